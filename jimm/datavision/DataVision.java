@@ -1,5 +1,6 @@
 package jimm.datavision;
 import jimm.datavision.source.charsep.CharSepSource;
+import jimm.datavision.source.sql.Database;
 import jimm.datavision.layout.*;
 import jimm.datavision.layout.swing.SwingLE;
 import jimm.datavision.layout.pdf.PDFLE;
@@ -32,6 +33,8 @@ int numReports;
 boolean usesGUI;
 String charSepFile;
 char sepChar;
+boolean streaming;
+int fetchSize;
 String reportDir;
 String outputDir;
 
@@ -45,7 +48,7 @@ String outputDir;
  */
 public static void main(String[] args) {
 
-  Getopts g = new Getopts("a:c:d:e:f:g:h:i:l:np:qr:s:wx:E:R:o:", args);
+  Getopts g = new Getopts("a:c:d:e:f:g:h:i:l:np:qr:s:wx:E:R:o:S:", args);
   if (g.error()) {		// Any bad command line argument?
 	  usage(null);		// If so, whine and exit
 	}
@@ -142,6 +145,8 @@ void designReport(Getopts g, File reportXMLFile) throws FileNotFoundException {
 
     if (g.hasOption('q'))
 	report.setCaseSensitiveDatabaseNames(false);
+
+    streamingFromOptions(report);
 }
 
 /**
@@ -195,6 +200,8 @@ void runReport(Getopts g, File reportXMLFile) throws Exception {
     if (g.hasOption('q'))
 	report.setCaseSensitiveDatabaseNames(false);
 
+    streamingFromOptions(report);
+
     report.setLayoutEngine(createLayoutEngine(reportXMLFile, g));
     report.runReport();
 }
@@ -407,6 +414,28 @@ protected void dataSourceFromOptions(Getopts g) {
 	charSepFile = g.option('e');
 	sepChar = g.option('a', DEFAULT_CHARACTER_SEPARATOR).charAt(0);
     }
+
+    if (g.hasOption('S')) {	// Stream rows from the database
+	streaming = true;
+	try {
+	    fetchSize = Integer.parseInt(g.option('S'));
+	}
+	catch (NumberFormatException nfe) {
+	    usage(I18N.get("DataVision.fetch_size"));
+	}
+    }
+}
+
+/**
+ * Turns on streaming if it was asked for on the command line and the
+ * report's data source is a database. Must be called after the report
+ * has been read.
+ *
+ * @param report a report
+ */
+protected void streamingFromOptions(Report report) {
+    if (streaming && report.getDataSource() instanceof Database)
+	((Database)report.getDataSource()).setStreaming(true, fetchSize);
 }
 
 public String toString() {
@@ -417,6 +446,8 @@ public String toString() {
 	+ ", usesGUI = " + usesGUI
 	+ ", charSepFile = " + charSepFile
 	+ ", sepChar = " + sepChar
+	+ ", streaming = " + streaming
+	+ ", fetchSize = " + fetchSize
 	+ "]";
 }
 
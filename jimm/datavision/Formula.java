@@ -1,11 +1,19 @@
 package jimm.datavision;
 import jimm.datavision.field.Field;
 import jimm.datavision.field.SpecialField;
+import jimm.datavision.expr.CompiledExpression;
+import jimm.datavision.expr.ExpressionCompiler;
+import jimm.datavision.expr.ExpressionException;
+import jimm.datavision.expr.Operand;
 import jimm.datavision.source.Column;
-import jimm.util.StringUtils;
+import jimm.datavision.source.SelectableAccessor;
+import jimm.datavision.source.SelectableBinding;
 import jimm.util.XMLWriter;
-import jimm.util.Replacer;
 import jimm.util.I18N;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 
 /**
  * A formula is a Bean Scripting Framework (BSF) script evaluated at runtime.
@@ -27,16 +35,86 @@ import jimm.util.I18N;
  * <li> {!<i>id_number</i>} is replaced by a user column's value (string,
  * number, or date).</li>
  * <ul>
+ * <p>
+ * When the report's scripting language can compile scripts (see {@link
+ * Scripting#compile}), each reference is instead replaced by a global
+ * variable and the script is compiled once per report run. Each evaluation
+ * sets the variables to the current values and runs the compiled script.
+ * Formulas whose references can't safely be turned into variables, for
+ * example because they appear inside string literals, and values that
+ * would be read differently as variables than as script text are pasted
+ * in as described above.
+ * <p>
+ * Formulas written in the expression language (see {@link
+ * ExpressionCompiler}) are compiled to Java classes once per report run.
+ * Their references are typed operands whose values are handed to the
+ * compiled expression.
+ * <p>
+ * While a report runs, a formula is only evaluated again when something it
+ * depends on may have changed. See {@link #getEvaluationFrequency}.
  *
  * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
  */
 public class Formula extends Expression {
 
+/** Marks ids in the accessor cache that are not columns. */
+protected static final Object NO_SELECTABLE = new Object();
+/** A reference value that is replaced by &quot;nil&quot;. */
+protected static final Object NIL = new Object() {
+    public String toString() { return "nil"; }
+};
+/** A reference value that can't be handed to a compiled script. */
+protected static final Object NOT_BINDABLE = new Object();
+/** Ruby words after which a "/" starts a regular expression. */
+protected static final String KEYWORDS =
+    " and case do else elsif if in not or p print puts return then unless until when while ";
+/** Ruby words that may appear on their own in a formula without side effects. */
+protected static final String PURE_WORDS =
+    " and else elsif end false if nil not or then true unless Math ";
+/** Ruby methods that may run arbitrary code. */
+protected static final String UNSAFE_METHODS =
+    " __send__ class_eval define_method eval instance_eval instance_variable_set module_eval send ";
+
+/** The formula's value is the same for the whole report run. */
+public static final int EVAL_PER_RUN = 0;
+/** The formula's value only changes when a group's value changes. */
+public static final int EVAL_PER_GROUP = 1;
+/** The formula's value may change with every row. */
+public static final int EVAL_PER_ROW = 2;
+
+/**
+ * A reference within the expression to a special value, formula,
+ * parameter, user column, or column. The object it refers to is found
+ * when the expression is compiled.
+ */
+static class Reference {
+    char kind;			// '%', '@', '?', '!', or ' ' for columns
+    String name;		// Text between the delimiters
+    Object target;		// Formula, Parameter, or SelectableAccessor
+    boolean quote;		// Quote column values
+    Reference(char kind, String name) { this.kind = kind; this.name = name; }
+}
+
 protected String language;
 protected Object cachedEvalResult;
 protected boolean useCache;
 protected boolean shouldEvaluate;
 protected boolean showException;
+protected HashMap accessors;	// Column and user column ids to accessors
+protected SelectableBinding accessorBinding;
+protected ArrayList template;	// Strings and references
+protected SelectableBinding templateBinding;
+protected RubyScript script;	// Compiled from scriptTemplate; may be null
+protected ArrayList scriptTemplate;
+protected CompiledExpression compiledExpression; // From expressionTemplate
+protected ArrayList expressionTemplate;
+protected boolean compilingExpression;
+protected int frequency;	// EVAL_PER_* or -1 if not yet classified
+protected boolean classifying;
+protected boolean sideEffects;	// Declared by the report
+protected boolean pure;		// No side effects found by classify()
+protected ArrayList groupsUsed;
+protected ArrayList dependencies; // Display strings of references
 
 /**
  * Constructor.
@@ -69,6 +147,7 @@ public Formula(Long id, Report report, String name, String evalString) {
     super(id == null ? report.generateNewFormulaId() : id, report, name,
 	  evalString, "#");
     language = report.getScripting().getDefaultLanguage();
+    frequency = -1;
 }
 
 
@@ -99,6 +178,59 @@ public void shouldEvaluate() { shouldEvaluate = true; }
 public void setExpression(String newExpression) {
     super.setExpression(newExpression);
     showException = true;
+    accessors = null;
+    template = null;
+    frequency = -1;
+}
+
+/**
+ * Tells this formula to compile its expression again the next time it is
+ * evaluated, so formulas and parameters are looked up again. Called at
+ * the start of each report run.
+ */
+public void forgetTemplate() {
+    template = null;
+    frequency = -1;
+}
+
+/**
+ * Returns <code>true</code> if this formula's expression has been
+ * compiled, so evaluating it does not parse it again. Values that can't be
+ * handed to the compiled script still make the formula paste them into
+ * its text and evaluate that.
+ *
+ * @return <code>true</code> if the expression has been compiled
+ */
+public boolean isCompiled() {
+    return script != null && scriptTemplate == template;
+}
+
+/**
+ * Returns an accessor for the column or user column with the specified id,
+ * or <code>null</code> if there is no such column. Accessors are kept until
+ * the report's selectable binding changes, so columns are only looked up
+ * by name once per report run.
+ *
+ * @param id a column or user column id as it appears in our expression
+ * @param userColumn if <code>true</code>, <var>id</var> is a user column id
+ * @return an accessor or <code>null</code>
+ */
+protected SelectableAccessor accessorFor(String id, boolean userColumn) {
+    SelectableBinding binding = report.getSelectableBinding();
+    if (accessors == null || binding != accessorBinding) {
+	accessors = new HashMap();
+	accessorBinding = binding;
+    }
+
+    String key = userColumn ? "!" + id : id;
+    Object accessor = accessors.get(key);
+    if (accessor == null) {
+	Selectable sel = userColumn ? (Selectable)report.findUserColumn(id)
+	    : (Selectable)report.findColumn(id);
+	accessor = sel == null ? NO_SELECTABLE : new SelectableAccessor(sel);
+	accessors.put(key, accessor);
+    }
+    return accessor == NO_SELECTABLE ? null : (SelectableAccessor)accessor;
 }
 
 /**
@@ -147,9 +279,395 @@ public Object eval(Field formulaField) {
 }
 
 /**
- * Modifies the formula text so it is ready to evaluate, then gives it to the
- * report to evaluate and returns the result. {@link #eval} calls this method
- * and stores the return value into <var>cachedEvalResult</var>.
+ * Compiles the expression into a template: a list of the strings between
+ * references and the {@link Reference}s themselves, in order. The template
+ * is kept until the expression or the report's selectable binding changes
+ * or {@link #forgetTemplate} is called, so references are only parsed and
+ * looked up once per report run.
+ * <p>
+ * References are found the way successive substitution passes over the
+ * expression used to find them: special values, formulas, parameters, and
+ * user columns first, then columns. Text in braces that is not the name of
+ * a column is kept as-is, and braces right after a "#" (Ruby string
+ * substitution) are left alone.
+ *
+ * @return the template
+ */
+protected ArrayList template() {
+    // Reports without data sources have no columns to bind
+    SelectableBinding binding = report.getDataSource() == null ? null
+	: report.getSelectableBinding();
+    if (template != null && binding == templateBinding)
+	return template;
+
+    String str = getExpression();
+    ArrayList parts = new ArrayList();
+    StringBuffer literal = new StringBuffer();
+    int len = str.length();
+    int literalUntil = -1;	// End of braced text that isn't a column
+    int pos = 0;
+    while (pos < len) {
+	char c = str.charAt(pos);
+	if (c != '{' || (pos > 0 && str.charAt(pos - 1) == '#')) {
+	    literal.append(c);
+	    ++pos;
+	    continue;
+	}
+
+	int end = prefixedEnd(str, pos);
+	if (end != -1) {	// Special value, formula, parameter, user col
+	    addLiteral(parts, literal);
+	    parts.add(resolve(new Reference(str.charAt(pos + 1),
+					    str.substring(pos + 2, end))));
+	    pos = end + 1;
+	    continue;
+	}
+
+	if (pos > literalUntil) {
+	    end = columnEnd(str, pos);
+	    if (end != -1) {
+		String name = str.substring(pos + 1, end);
+		SelectableAccessor col = name.indexOf('{') == -1
+		    && binding != null ? accessorFor(name, false) : null;
+		if (col != null) {
+		    addLiteral(parts, literal);
+		    Reference ref = new Reference(' ', name);
+		    ref.target = col;
+		    ref.quote = isQuoted(((Column)col.getSelectable()).getType());
+		    parts.add(ref);
+		    pos = end + 1;
+		    continue;
+		}
+		literalUntil = end;
+	    }
+	}
+	literal.append(c);
+	++pos;
+    }
+    addLiteral(parts, literal);
+
+    template = parts;
+    templateBinding = binding;
+    return template;
+}
+
+/**
+ * If a special value, formula, parameter, or user column reference starts
+ * at <var>pos</var>, returns the position of its closing brace. Else
+ * returns -1.
+ */
+protected int prefixedEnd(String str, int pos) {
+    if (pos + 1 >= str.length() || "%@?!".indexOf(str.charAt(pos + 1)) == -1)
+	return -1;
+    return str.indexOf('}', pos + 2);
+}
+
+/**
+ * Returns the position of the brace that closes the braced text starting
+ * at <var>pos</var>, skipping over prefixed references inside it, or -1
+ * if there is none.
+ */
+protected int columnEnd(String str, int pos) {
+    int len = str.length();
+    for (int i = pos + 1; i < len; ++i) {
+	char c = str.charAt(i);
+	if (c == '}')
+	    return i;
+	if (c == '{' && str.charAt(i - 1) != '#') {
+	    int end = prefixedEnd(str, i);
+	    if (end == -1)
+		continue;
+	    i = end;
+	}
+    }
+    return -1;
+}
+
+protected void addLiteral(ArrayList parts, StringBuffer literal) {
+    if (literal.length() > 0) {
+	parts.add(literal.toString());
+	literal.setLength(0);
+    }
+}
+
+/** Finds the object a prefixed reference refers to. */
+protected Reference resolve(Reference ref) {
+    switch (ref.kind) {
+    case '@':
+	ref.target = report.findFormula(ref.name);
+	break;
+    case '?':
+	ref.target = report.findParameter(ref.name);
+	break;
+    case '!':
+	ref.target = accessorFor(ref.name, true);
+	break;
+    }
+    return ref;
+}
+
+/** Returns <code>true</code> if values of this column type are quoted. */
+protected static boolean isQuoted(int type) {
+    switch (type) {
+    case java.sql.Types.CHAR:
+    case java.sql.Types.VARCHAR:
+    case java.sql.Types.DATE:
+    case java.sql.Types.TIME:
+    case java.sql.Types.TIMESTAMP:
+	return true;
+    default:
+	return false;
+    }
+}
+
+/**
+ * Returns the text a reference is replaced by, or <code>null</code> if
+ * the whole formula evaluates to <code>null</code>. Missing special
+ * values and column values become &quot;nil&quot;. Missing formula,
+ * parameter, and user column values make the formula's value
+ * <code>null</code>.
+ */
+protected Object valueOf(Reference ref, Field formulaField) {
+    Object val;
+    switch (ref.kind) {
+    case '%':
+	val = SpecialField.value(formulaField, ref.name, report);
+	return val == null ? NIL : val;
+    case '@':
+	return ref.target == null ? NIL
+	    : ((Formula)ref.target).eval(formulaField);
+    case '?':
+	return ref.target == null ? NIL : ((Parameter)ref.target).getValue();
+    case '!':
+	return ref.target == null ? NIL
+	    : ((SelectableAccessor)ref.target).getValue(report);
+    default:
+	val = ((SelectableAccessor)ref.target).getValue(report);
+	return val == null ? NIL : val;
+    }
+}
+
+/**
+ * Returns the text a reference's value is replaced by when it is pasted
+ * into the script.
+ */
+protected String textOf(Reference ref, Object val) {
+    if (val != NIL && ref.kind == ' ' && ref.quote)
+	return quoted(val);
+    return val.toString();
+}
+
+/**
+ * Returns the Java object that, as a Ruby variable, has the same value as
+ * the text {@link #textOf} returns, or {@link #NOT_BINDABLE} if there is
+ * none. Quoted column values become strings. Other values are bound only
+ * if their text is an integer, a decimal number, <code>true</code>,
+ * <code>false</code>, or <code>nil</code>.
+ *
+ * @param ref a reference
+ * @param val the reference's value
+ * @param following the template text right after the reference, or
+ * <code>null</code>
+ */
+protected Object bindable(Reference ref, Object val, String following) {
+    if (val == NIL)
+	return null;
+    if (ref.kind == ' ' && ref.quote)
+	return val.toString();
+
+    String str = val.toString();
+    if ("nil".equals(str)) return null;
+    if ("true".equals(str)) return Boolean.TRUE;
+    if ("false".equals(str)) return Boolean.FALSE;
+
+    int len = str.length();
+    int start = str.startsWith("-") ? 1 : 0;
+    int dot = -1;
+    for (int i = start; i < len; ++i) {
+	char c = str.charAt(i);
+	if (c == '.' && dot == -1 && i > start && i < len - 1)
+	    dot = i;
+	else if (!Character.isDigit(c))
+	    return NOT_BINDABLE;
+    }
+    // Ruby reads leading zeros as octal; "-2 ** 2" is -(2 ** 2)
+    if (len == start
+	|| (str.charAt(start) == '0' && start + 1 < len && start + 1 != dot)
+	|| (start == 1 && following != null
+	    && following.trim().startsWith("**")))
+	return NOT_BINDABLE;
+    try {
+	if (dot == -1)
+	    return new Long(str);
+	return new Double(str);
+    }
+    catch (NumberFormatException e) {	// Too big for a long
+	return NOT_BINDABLE;
+    }
+}
+
+/**
+ * Returns the compiled script for <var>parts</var>, compiling it if it
+ * hasn't been yet, or <code>null</code> if it can't be compiled.
+ */
+protected RubyScript script(ArrayList parts) {
+    if (parts == scriptTemplate)
+	return script;
+    scriptTemplate = parts;
+    script = null;
+
+    Scripting scripting = report.getScripting();
+    if (!scripting.canCompile(getLanguage()))
+	return null;
+
+    ArrayList globals = new ArrayList();
+    String source = boundSource(parts, globals);
+    if (source != null)
+	script = scripting.compile(getLanguage(), source, getName(),
+				   (String[])globals.toArray(new String[globals.size()]));
+    return script;
+}
+
+/**
+ * Returns the script text with each reference replaced by a global
+ * variable, or <code>null</code> if that might change what the script
+ * means. The names of the variables are added to <var>globals</var>.
+ * <p>
+ * This scans the script's Ruby tokens just well enough to find references
+ * inside string literals, regular expressions, and other text that isn't
+ * code, and to find references that are glued to the text around them.
+ * Anything it doesn't understand makes it return <code>null</code>.
+ */
+protected String boundSource(ArrayList parts, ArrayList globals) {
+    StringBuffer buf = new StringBuffer();
+    int n = parts.size();
+    ArrayList starts = new ArrayList();
+    for (int i = 0; i < n; ++i) {
+	Object part = parts.get(i);
+	if (part instanceof String) {
+	    buf.append((String)part);
+	    continue;
+	}
+	String global = "$dv_" + getId() + "_" + globals.size();
+	starts.add(new Integer(buf.length()));
+	globals.add(global);
+	buf.append(global);
+    }
+    String str = buf.toString();
+    if (globals.isEmpty())
+	return str;
+    if (str.startsWith("=begin"))
+	return null;
+
+    int len = str.length();
+    int[] refEnd = new int[len];	// Non-zero where references start
+    for (int i = 0; i < starts.size(); ++i) {
+	int start = ((Integer)starts.get(i)).intValue();
+	int end = start + ((String)globals.get(i)).length();
+	refEnd[start] = end;
+	if (start > 0 && "$@:.?".indexOf(str.charAt(start - 1)) != -1
+	    || start > 0 && isIdentifierChar(str.charAt(start - 1))
+	    || end < len && (isIdentifierChar(str.charAt(end))
+			     || str.charAt(end) == '$'))
+	    return null;
+    }
+
+    boolean lastIsValue = false; // Was previous token an operand?
+    int pos = 0;
+    while (pos < len) {
+	char c = str.charAt(pos);
+	if (refEnd[pos] != 0) {
+	    pos = refEnd[pos];
+	    lastIsValue = true;
+	}
+	else if (Character.isWhitespace(c)) {
+	    if (c == '\n' && str.startsWith("=begin", pos + 1))
+		return null;
+	    ++pos;
+	}
+	else if (c == '#') {
+	    while (pos < len && str.charAt(pos) != '\n')
+		++pos;
+	}
+	else if (c == '\'' || c == '"') {
+	    int end = stringEnd(str, pos, c, refEnd);
+	    if (end == -1 || (c == '"' && str.substring(pos, end).indexOf("#{") != -1))
+		return null;
+	    pos = end;
+	    lastIsValue = true;
+	}
+	else if (isIdentifierChar(c) || c == '$' || c == '@'
+		 || (c == ':' && pos + 1 < len
+		     && isIdentifierChar(str.charAt(pos + 1))))
+	{
+	    int start = pos++;
+	    while (pos < len && isIdentifierChar(str.charAt(pos)))
+		++pos;
+	    if (pos < len && (str.charAt(pos) == '?' || str.charAt(pos) == '!')
+		&& !Character.isDigit(c))
+		++pos;		// Method name such as "nil?"
+	    String word = str.substring(start, pos);
+	    lastIsValue = KEYWORDS.indexOf(" " + word + " ") == -1;
+	    if (lastIsValue && Character.isDigit(c) && pos + 1 < len
+		&& str.charAt(pos) == '.' && Character.isDigit(str.charAt(pos + 1)))
+	    {			// Decimal number
+		for (++pos; pos < len && isIdentifierChar(str.charAt(pos)); ++pos)
+		    ;
+	    }
+	    // "foo /x/" calls foo with a regular expression
+	    if (!Character.isDigit(c) && lastIsValue && pos + 2 < len
+		&& Character.isWhitespace(str.charAt(pos))
+		&& "/%".indexOf(str.charAt(pos + 1)) != -1
+		&& !Character.isWhitespace(str.charAt(pos + 2)))
+		return null;
+	}
+	else if (c == '/' && !lastIsValue) { // Regular expression
+	    int end = stringEnd(str, pos, c, refEnd);
+	    if (end == -1)
+		return null;
+	    pos = end;
+	    lastIsValue = true;
+	}
+	else if (c == '`' || (!lastIsValue && (c == '%' || c == '?'))
+		 || (!lastIsValue && str.startsWith("<<", pos))
+		 || (!lastIsValue && (c == '-' || c == '+') && pos + 1 < len
+		     && refEnd[pos + 1] != 0))
+	    return null;	// Percent literal, heredoc, etc.
+	else {
+	    lastIsValue = c == ')' || c == ']' || c == '}';
+	    ++pos;
+	}
+    }
+    return str;
+}
+
+/**
+ * Returns the position just past the end of the string literal or
+ * regular expression that starts at <var>pos</var>, or -1 if it does not
+ * end or it contains a reference.
+ */
+protected int stringEnd(String str, int pos, char quote, int[] refEnd) {
+    int len = str.length();
+    for (int i = pos + 1; i < len; ++i) {
+	char c = str.charAt(i);
+	if (refEnd[i] != 0)
+	    return -1;
+	if (c == '\\')
+	    ++i;
+	else if (c == quote)
+	    return i + 1;
+    }
+    return -1;
+}
+
+protected static boolean isIdentifierChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_';
+}
+
+/**
+ * Builds the script from the compiled expression, then gives it to the
+ * report to evaluate and returns the result. {@link #eval} calls this
+ * method and stores the return value into <var>cachedEvalResult</var>.
  *
  * @param formulaField the field that is using this formula, used to
  * evaluate any special fields in the formula; may be <code>null</code>
@@ -157,91 +675,475 @@ public Object eval(Field formulaField) {
  * <code>null</code>
  * @see SpecialField#value
  */
-protected Object evaluate(final Field formulaField) {
-    String str = getExpression();
-    if (str == null || str.trim().length() == 0)
+protected Object evaluate(Field formulaField) {
+    String expr = getExpression();
+    if (expr == null || expr.trim().length() == 0)
 	return null;
+    if (report.getScripting().isExpressionLanguage(getLanguage()))
+	return evaluateExpression(formulaField);
+
+    ArrayList parts = template();
+    int n = parts.size();
+    Object[] values = new Object[n];
+    for (int i = 0; i < n; ++i) {
+	Object part = parts.get(i);
+	if (part instanceof Reference) {
+	    values[i] = valueOf((Reference)part, formulaField);
+	    if (values[i] == null)
+		return null;
+	}
+    }
 
-    // Special values
-    str = StringUtils.replaceDelimited("#", "{%", "}", new Replacer() {
-	public Object replace(String str) {
-	    Object obj = SpecialField.value(formulaField, str, report);
-	    return obj == null ? "nil" : obj;
-	}},
-			   str);
-    if (str == null) return null;
-
-    // Formula values
-    str = StringUtils.replaceDelimited("#", "{@", "}", new Replacer() {
-	public Object replace(String str) {
-	    Formula f = report.findFormula(str);
-	    return f == null ? "nil" : f.eval(formulaField);
-	}},
-			   str);
-    if (str == null) return null;
-
-    // Parameter values
-    str = StringUtils.replaceDelimited("#", "{?", "}", new Replacer() {
-	public Object replace(String str) {
-	    Parameter p = report.findParameter(str);
-	    return p == null ? "nil" : p.getValue();
-	}},
-			   str);
-    if (str == null) return null;
-
-    // User column values
-    str = StringUtils.replaceDelimited("#", "{!", "}", new Replacer() {
-	public Object replace(String str) {
-	    UserColumn uc = report.findUserColumn(str);
-	    return uc == null ? "nil" : report.columnValue(uc);
-	}},
-			   str);
-    if (str == null) return null;
-
-    // Column values
-    str = StringUtils.replaceDelimited("#", "{", "}", new Replacer() {
-	public Object replace(String str) {
-	    Column col = report.findColumn(str);
-	    if (col == null)
-		return "{" + str + "}";
-
-	    Object val = null;
-	    switch (col.getType()) {
-	    case java.sql.Types.CHAR:
-	    case java.sql.Types.VARCHAR:
-	    case java.sql.Types.DATE:
-	    case java.sql.Types.TIME:
-	    case java.sql.Types.TIMESTAMP:
-		val = report.columnValue(col);
-		val = val == null ? "nil" : quoted(val);
-		break;
-	    default:
-		val = report.columnValue(col);
-		if (val == null)
-		    val = "nil";
-		break;
+    RubyScript compiled = script(parts);
+    if (compiled != null) {
+	Object[] bound = new Object[n];
+	int numBound = 0;
+	for (int i = 0; i < n && compiled != null; ++i) {
+	    if (!(parts.get(i) instanceof Reference))
+		continue;
+	    Object following = i + 1 < n ? parts.get(i + 1) : null;
+	    Object val = bindable((Reference)parts.get(i), values[i],
+				  following instanceof String
+				  ? (String)following : null);
+	    if (val == NOT_BINDABLE)
+		compiled = null;
+	    bound[numBound++] = val;
+	}
+	if (compiled != null) {
+	    try {
+		return compiled.eval(bound);
 	    }
-	    return val;
-	}},
-			   str);
-    if (str == null || str.trim().length() == 0) return null;
+	    catch (Exception e) {
+		showError(spliced(parts, values), e);
+		return null;
+	    }
+	}
+    }
+
+    String str = spliced(parts, values);
+    if (str.trim().length() == 0) return null;
 
     try {
 	return report.eval(getLanguage(), str, getName());
     }
     catch (Exception e) {
-	if (showException) {
-	    showException = false;
-	    // I don't pass e to error() so we avoid a stack trace, which
-	    // will be almost useless to the user or to me.
-	    ErrorHandler.error(I18N.get("Formula.script_error")
-			       + " \"" + str + '"' + ": " + e.toString(),
-			       I18N.get("Formula.script_error_title"));
+	showError(str, e);
+	return null;
+    }
+}
+
+/**
+ * Evaluates an expression language formula by handing the values of its
+ * references to its compiled expression.
+ */
+protected Object evaluateExpression(Field formulaField) {
+    ArrayList parts = template();
+    CompiledExpression compiled = compiledExpression(parts);
+    if (compiled == null)
+	return null;
+
+    int n = parts.size();
+    Object[] values = new Object[n];
+    int numValues = 0;
+    for (int i = 0; i < n; ++i) {
+	Object part = parts.get(i);
+	if (part instanceof Reference) {
+	    Object val = valueOf((Reference)part, formulaField);
+	    values[numValues++] = val == NIL ? null : val;
 	}
+    }
+    try {
+	return compiled.eval(values);
+    }
+    catch (RuntimeException e) {
+	showError(getExpression(), e);
 	return null;
     }
 }
 
+/**
+ * Returns the compiled expression for <var>parts</var>, compiling it if it
+ * hasn't been yet, or <code>null</code> if it has an error.
+ */
+protected CompiledExpression compiledExpression(ArrayList parts) {
+    if (parts == expressionTemplate)
+	return compiledExpression;
+    expressionTemplate = parts;
+    compiledExpression = null;
+
+    ArrayList source = new ArrayList();
+    for (Iterator iter = parts.iterator(); iter.hasNext(); ) {
+	Object part = iter.next();
+	if (part instanceof Reference) {
+	    Reference ref = (Reference)part;
+	    String text = ref.kind == ' ' ? "{" + ref.name + "}"
+		: "{" + ref.kind + ref.name + "}";
+	    source.add(new Operand(operandType(ref), text));
+	}
+	else
+	    source.add(part);
+    }
+
+    compilingExpression = true;
+    try {
+	compiledExpression = ExpressionCompiler.compile(source);
+    }
+    catch (ExpressionException e) {
+	showError(getExpression(), e);
+    }
+    finally {
+	compilingExpression = false;
+    }
+    return compiledExpression;
+}
+
+/**
+ * Returns the type of the values of an expression language formula, or
+ * <code>TYPE_OBJECT</code> if it is not one or it can't be compiled.
+ */
+protected int expressionType() {
+    String expr = getExpression();
+    if (compilingExpression || expr == null || expr.trim().length() == 0
+	|| !report.getScripting().isExpressionLanguage(getLanguage()))
+	return CompiledExpression.TYPE_OBJECT;
+    CompiledExpression compiled = compiledExpression(template());
+    return compiled == null ? CompiledExpression.TYPE_OBJECT
+	: compiled.getType();
+}
+
+/** Returns the expression language type of a reference. */
+protected int operandType(Reference ref) {
+    switch (ref.kind) {
+    case '%':
+	if ("report.date".equals(ref.name))
+	    return CompiledExpression.TYPE_DATE;
+	if ("report.row".equals(ref.name) || "page.number".equals(ref.name)
+	    || "group.count".equals(ref.name))
+	    return CompiledExpression.TYPE_LONG;
+	return CompiledExpression.TYPE_STRING;
+    case '@':
+	return ref.target == null ? CompiledExpression.TYPE_OBJECT
+	    : ((Formula)ref.target).expressionType();
+    case '?':
+	Parameter p = (Parameter)ref.target;
+	if (p == null || p.getArity() == Parameter.ARITY_RANGE
+	    || p.getArity() == Parameter.ARITY_LIST_MULTIPLE)
+	    return CompiledExpression.TYPE_OBJECT;
+	switch (p.getType()) {
+	case Parameter.TYPE_BOOLEAN: return CompiledExpression.TYPE_BOOLEAN;
+	case Parameter.TYPE_STRING: return CompiledExpression.TYPE_STRING;
+	case Parameter.TYPE_NUMERIC: return CompiledExpression.TYPE_DOUBLE;
+	default: return CompiledExpression.TYPE_DATE;
+	}
+    case '!':
+	return CompiledExpression.TYPE_OBJECT;
+    default:
+	Column col = (Column)((SelectableAccessor)ref.target).getSelectable();
+	return CompiledExpression.typeOfSqlType(col.getType());
+    }
+}
+
+/**
+ * Returns how often this formula's value may change while the report
+ * runs: {@link #EVAL_PER_RUN}, {@link #EVAL_PER_GROUP}, or {@link
+ * #EVAL_PER_ROW}. The report only re-evaluates a formula when its value
+ * may have changed.
+ * <p>
+ * The frequency comes from the formula's references. Parameters and
+ * report metadata (title, name, author, description, and run date) are the
+ * same for the whole run. Columns that are the selectables of groups only
+ * change when those groups do. Other columns, user columns, and the row
+ * number, page number, and group count change with every row. Referenced
+ * formulas pass on their own frequencies.
+ * <p>
+ * Expression language formulas have no side effects. A Ruby formula that
+ * might read or change anything other than its references, for example
+ * because it uses variables, assignments, or calls methods other than
+ * those of its values, is evaluated every row. So are formulas written in
+ * other languages and formulas declared to have side effects.
+ *
+ * @return one of the <code>EVAL_PER_*</code> constants
+ */
+public int getEvaluationFrequency() {
+    if (classifying)		// Circular reference
+	return EVAL_PER_ROW;
+    if (frequency == -1)
+	classify();
+    return frequency;
+}
+
+/**
+ * Returns the groups whose values this formula depends on. When its
+ * frequency is {@link #EVAL_PER_GROUP}, the formula is evaluated again
+ * when one of these groups has a new value.
+ *
+ * @return a possibly empty collection of {@link Group}s
+ */
+public Collection groupsUsed() {
+    getEvaluationFrequency();
+    return groupsUsed;
+}
+
+/**
+ * Returns a one-line description of this formula's evaluation frequency,
+ * whether it has side effects, and the references it depends on, for
+ * debugging.
+ *
+ * @return a description of this formula's dependencies
+ */
+public String dependencyString() {
+    int freq = getEvaluationFrequency();
+    StringBuffer buf = new StringBuffer();
+    buf.append('"').append(getName()).append("\" ").append(designLabel());
+    buf.append(freq == EVAL_PER_RUN ? " per run"
+	       : (freq == EVAL_PER_GROUP ? " per group" : " per row"));
+    if (freq == EVAL_PER_GROUP) {
+	buf.append(" (");
+	for (Iterator iter = groupsUsed.iterator(); iter.hasNext(); ) {
+	    buf.append(((Group)iter.next()).getSelectableName());
+	    if (iter.hasNext()) buf.append(", ");
+	}
+	buf.append(')');
+    }
+    if (hasSideEffects())
+	buf.append(", side effects");
+    buf.append(":");
+    for (Iterator iter = dependencies.iterator(); iter.hasNext(); )
+	buf.append(' ').append(iter.next());
+    return buf.toString();
+}
+
+/**
+ * Returns <code>true</code> if this formula has been declared to have side
+ * effects.
+ *
+ * @return <code>true</code> if this formula is declared to have side
+ * effects
+ * @see #hasSideEffects
+ */
+public boolean getSideEffects() { return sideEffects; }
+
+/**
+ * Declares whether this formula has side effects, for formulas whose side
+ * effects the report can't see.
+ *
+ * @param newSideEffects if <code>true</code>, this formula has side
+ * effects
+ * @see #hasSideEffects
+ */
+public void setSideEffects(boolean newSideEffects) {
+    if (sideEffects != newSideEffects) {
+	sideEffects = newSideEffects;
+	frequency = -1;
+	setChanged();
+	notifyObservers();
+    }
+}
+
+/**
+ * Returns <code>true</code> if evaluating this formula might change
+ * something other than its own value, for example a variable that other
+ * formulas use. While a report runs, formulas with side effects are
+ * evaluated for each row in which their fields' sections are output or
+ * hidden, whether or not their values are used. Other formulas are only
+ * evaluated when a visible field, an aggregate, a suppression proc, or
+ * another formula that is being evaluated needs their values.
+ * <p>
+ * A formula has side effects if it is declared to (see {@link
+ * #setSideEffects}) or if it might according to the checks described in
+ * {@link #getEvaluationFrequency}, so reports that rely on formulas
+ * setting variables keep working.
+ *
+ * @return <code>true</code> if this formula might have side effects
+ */
+public boolean hasSideEffects() {
+    getEvaluationFrequency();
+    return sideEffects || !pure;
+}
+
+/** Finds our evaluation frequency and the groups we depend on. */
+protected void classify() {
+    classifying = true;
+    int freq = EVAL_PER_RUN;
+    ArrayList groups = new ArrayList();
+    ArrayList deps = new ArrayList();
+    try {
+	String expr = getExpression();
+	ArrayList parts = expr == null || expr.trim().length() == 0
+	    ? new ArrayList() : template();
+	pure = hasNoSideEffects(parts);
+	if (sideEffects || !pure)
+	    freq = EVAL_PER_ROW;
+	for (Iterator iter = parts.iterator(); iter.hasNext(); ) {
+	    Object part = iter.next();
+	    if (part instanceof Reference)
+		freq = Math.max(freq, classify((Reference)part, groups, deps));
+	}
+    }
+    finally {
+	classifying = false;
+    }
+    frequency = freq;
+    groupsUsed = freq == EVAL_PER_GROUP ? groups : new ArrayList();
+    dependencies = deps;
+}
+
+/**
+ * Returns the evaluation frequency of a reference, adding the groups it
+ * depends on to <var>groups</var> and its display string to
+ * <var>deps</var>.
+ */
+protected int classify(Reference ref, ArrayList groups, ArrayList deps) {
+    int freq;
+    switch (ref.kind) {
+    case '%':
+	deps.add("{%" + ref.name + "}");
+	return "report.row".equals(ref.name) || "page.number".equals(ref.name)
+	    || "group.count".equals(ref.name) ? EVAL_PER_ROW : EVAL_PER_RUN;
+    case '@':
+	if (ref.target == null)
+	    return EVAL_PER_RUN;
+	Formula f = (Formula)ref.target;
+	deps.add(f.designLabel());
+	freq = f.getEvaluationFrequency();
+	if (freq == EVAL_PER_GROUP)
+	    addAll(groups, f.groupsUsed());
+	return freq;
+    case '?':
+	if (ref.target != null)
+	    deps.add(((Parameter)ref.target).designLabel());
+	return EVAL_PER_RUN;
+    case '!':			// User columns are like columns
+    default:
+	if (ref.target == null)	// Missing user column
+	    return EVAL_PER_RUN;
+	Selectable sel = ((SelectableAccessor)ref.target).getSelectable();
+	deps.add(ref.kind == '!' ? "{!" + sel.getDisplayName() + "}"
+		 : "{" + sel.getDisplayName() + "}");
+	Group g = report.findGroup(sel);
+	if (g == null)
+	    return EVAL_PER_ROW;
+	if (!groups.contains(g))
+	    groups.add(g);
+	return EVAL_PER_GROUP;
+    }
+}
+
+protected void addAll(ArrayList list, Collection items) {
+    for (Iterator iter = items.iterator(); iter.hasNext(); ) {
+	Object obj = iter.next();
+	if (!list.contains(obj))
+	    list.add(obj);
+    }
+}
+
+/**
+ * Returns <code>true</code> if evaluating this formula with the values in
+ * <var>parts</var> can't read or change anything but those values.
+ */
+protected boolean hasNoSideEffects(ArrayList parts) {
+    Scripting scripting = report.getScripting();
+    if (scripting.isExpressionLanguage(getLanguage()))
+	return true;
+    if (!scripting.isRubyLanguage(getLanguage()))
+	return false;
+
+    StringBuffer buf = new StringBuffer();
+    for (Iterator iter = parts.iterator(); iter.hasNext(); ) {
+	Object part = iter.next();
+	buf.append(part instanceof String ? (String)part : " 0 ");
+    }
+    return hasNoSideEffects(buf.toString());
+}
+
+/**
+ * Returns <code>true</code> if the Ruby script <var>str</var> only uses
+ * literals, operators, a few keywords, and methods called on values. Any
+ * variable, assignment, method called without a receiver, or anything
+ * else that might read or change state outside the script makes this
+ * return <code>false</code>.
+ */
+protected boolean hasNoSideEffects(String str) {
+    int len = str.length();
+    int pos = 0;
+    while (pos < len) {
+	char c = str.charAt(pos);
+	if (c == '\'' || c == '"') {
+	    int end = stringEnd(str, pos, c, new int[len]);
+	    if (end == -1 || (c == '"' && str.substring(pos, end).indexOf("#{") != -1))
+		return false;
+	    pos = end;
+	}
+	else if (c == '#') {
+	    while (pos < len && str.charAt(pos) != '\n')
+		++pos;
+	}
+	else if (Character.isDigit(c)) {
+	    while (pos < len && (isIdentifierChar(str.charAt(pos))
+				 || (str.charAt(pos) == '.' && pos + 1 < len
+				     && Character.isDigit(str.charAt(pos + 1)))))
+		++pos;
+	}
+	else if (isIdentifierChar(c)) {
+	    int start = pos;
+	    while (pos < len && isIdentifierChar(str.charAt(pos)))
+		++pos;
+	    String word = str.substring(start, pos);
+	    if (pos < len && str.charAt(pos) == '!'
+		&& (pos + 1 == len || str.charAt(pos + 1) != '='))
+		return false;	// Method that changes its receiver
+	    int before = start - 1;
+	    while (before >= 0 && Character.isWhitespace(str.charAt(before)))
+		--before;
+	    boolean isMethod = before >= 0 && (str.charAt(before) == '.'
+					       || str.startsWith("::", before - 1));
+	    boolean isSymbol = before == start - 1 && before >= 0
+		&& str.charAt(before) == ':' && !isMethod;
+	    if (isMethod ? UNSAFE_METHODS.indexOf(" " + word + " ") != -1
+		: !isSymbol && PURE_WORDS.indexOf(" " + word + " ") == -1)
+		return false;
+	}
+	else if (c == '$' || c == '@' || c == '`' || str.startsWith("<<", pos))
+	    return false;
+	else if (c == '=') {
+	    if (pos + 1 < len && "=~>".indexOf(str.charAt(pos + 1)) != -1)
+		pos += 2;
+	    else
+		return false;	// Assignment
+	}
+	else if ((c == '!' || c == '<' || c == '>') && str.startsWith("=", pos + 1))
+	    pos += 2;
+	else
+	    ++pos;
+    }
+    return true;
+}
+
+/** Returns the script with the values of references pasted in. */
+protected String spliced(ArrayList parts, Object[] values) {
+    StringBuffer buf = new StringBuffer(getExpression().length() + 32);
+    int n = parts.size();
+    for (int i = 0; i < n; ++i) {
+	Object part = parts.get(i);
+	if (part instanceof String)
+	    buf.append((String)part);
+	else
+	    buf.append(textOf((Reference)part, values[i]));
+    }
+    return buf.toString();
+}
+
+protected void showError(String str, Exception e) {
+    if (showException) {
+	showException = false;
+	// I don't pass e to error() so we avoid a stack trace, which
+	// will be almost useless to the user or to me.
+	ErrorHandler.error(I18N.get("Formula.script_error")
+			   + " \"" + str + '"' + ": " + e.toString(),
+			   I18N.get("Formula.script_error_title"));
+    }
+}
+
 /**
  * Returns the scripting language this formula uses.
  *
@@ -257,6 +1159,7 @@ public void setLanguage(String newLang) {
 
     if (!language.equals(newLang)) {
 	language = newLang;
+	frequency = -1;
 	setChanged();
 	notifyObservers();
     }
@@ -328,6 +1231,8 @@ protected void writeAdditionalAttributes(XMLWriter out) {
     if (language != null && language.length() != 0
 	&& !language.equals(report.getScripting().getDefaultLanguage()))
 	out.attr("language", language);
+    if (sideEffects)
+	out.attr("side-effects", sideEffects);
 	
 }
 
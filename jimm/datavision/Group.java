@@ -1,6 +1,7 @@
 package jimm.datavision;
 import jimm.datavision.field.Field;
 import jimm.datavision.source.DataSource;
+import jimm.datavision.source.SelectableAccessor;
 import jimm.util.XMLWriter;
 
 /**
@@ -24,6 +25,7 @@ protected Report report;
 protected SectionArea headers;
 protected SectionArea footers;
 protected Selectable selectable;
+protected SelectableAccessor accessor;
 protected int sortOrder;
 protected Object value;		// Current row value
 protected boolean newValue;
@@ -80,6 +82,7 @@ public static int sortOrderStringToInt(String order) {
 public Group(Report report, Selectable selectable) {
     this.report = report;
     this.selectable = selectable;
+    accessor = new SelectableAccessor(selectable);
     sortOrder = SORT_ASCENDING;
     headers = new SectionArea(SectionArea.GROUP_HEADER);
     footers = new SectionArea(SectionArea.GROUP_FOOTER);
@@ -97,7 +100,10 @@ public Selectable getSelectable() { return selectable; }
  *
  * @param newSelectable the new selectable
  */
-public void setSelectable(Selectable newSelectable) { selectable = newSelectable; }
+public void setSelectable(Selectable newSelectable) {
+    selectable = newSelectable;
+    accessor = new SelectableAccessor(selectable);
+}
 
 /**
  * Reloads reference to selectable.
@@ -142,7 +148,15 @@ public Object getValue() { return value; }
  * @param report the report from which we retrieve our selectable's value
  */
 public void setValue(Report report) {
-    Object val = selectable.getValue(report);
+    // Most rows have the same value as the previous one. Compare against
+    // the current row without fetching (and possibly boxing) its value.
+    if (value != null && accessor.valueEquals(report, value)) {
+	newValue = false;
+	firstValue = false;
+	return;
+    }
+
+    Object val = accessor.getValue(report);
     if (value == null) {
 	value = val;
 	firstValue = true;
@@ -40,6 +40,9 @@ public static final String XML_JAVA_ENCODING = "UTF8";
 public static final String XML_ENCODING_ATTRIBUTE = "UTF-8";
 
 protected static final double OUTPUT_DTD_VERSION = 1.2;
+/** If true, formula dependencies are printed when a report runs. */
+protected static final boolean DEBUG_FORMULAS =
+    Boolean.getBoolean("datavision.debug.formulas");
 
 protected String name;
 protected String title;
@@ -58,6 +61,7 @@ protected SectionArea pageHeaders;
 protected SectionArea pageFooters;
 protected SectionArea details;
 protected DataCursor rset;
+protected SelectableBinding selectableBinding;
 protected LayoutEngine layoutEngine;
 protected PaperFormat paperFormat;
 protected Collection aggregateFields;
@@ -126,6 +130,13 @@ public void setLayoutEngine(LayoutEngine layoutEngine) {
     this.layoutEngine.setReport(this);
 }
 
+/**
+ * Returns the layout engine.
+ *
+ * @return the layout engine; may be <code>null</code>
+ */
+public LayoutEngine getLayoutEngine() { return layoutEngine; }
+
 /**
  * Generates and returns a new unique id number. The number is one larger
  * than the largest in a given list of {@link Identity} objects whose
@@ -1370,12 +1381,20 @@ public void runReport() {
     // Pre-report initialization
     for (Iterator iter = groups.iterator(); iter.hasNext(); )
 	((Group)iter.next()).reset();
+    for (Iterator iter = subreports(); iter.hasNext(); )
+	((Subreport)iter.next()).clearRunCaches();
     collectAggregateFields();
-    if (startFormula != null)
+    for (Iterator iter = formulas(); iter.hasNext(); )
+	((Formula)iter.next()).forgetTemplate();
+    if (startFormula != null) {
+	startFormula.forgetTemplate();
 	startFormula.eval();
+    }
     for (Iterator iter = formulas(); iter.hasNext(); )
 	((Formula)iter.next()).useCache();
     resetCachedValues();
+    if (DEBUG_FORMULAS)
+	System.err.print(formulaDependencies());
 
     rset = null;
     StatusDialog statusDialog = null;
@@ -1391,7 +1410,7 @@ public void runReport() {
 	if (!layoutEngine.wantsMoreData())
 	    return;
 
-	rset = dataSource.execute();
+	rset = dataSource.executeForReport();
 
 	boolean layoutStarted = false;
 	while (layoutEngine.wantsMoreData() && rset.next()) {
@@ -1433,6 +1452,9 @@ public void runReport() {
     }
     finally {
 	if (rset != null) rset.close();
+	for (Iterator iter = subreports(); iter.hasNext(); )
+	    ((Subreport)iter.next()).stopPrefetching();
+	dataSource.reportFinished();
 
 	aggregateFields = null;
 	for (Iterator iter = groups.iterator(); iter.hasNext(); )
@@ -1460,15 +1482,15 @@ protected Frame getDesignFrame() {
  * method of the result set has already been called.
  */
 protected void processResultRow() throws java.sql.SQLException {
-    resetCachedValues();
     updateGroups();
+    resetRowValues();
 
     // To output footers, bring back the previous row of data
     if (!rset.isFirst()) {
 	rset.previous();
 	layoutEngine.groupFooters(false);
 	rset.next();
-	resetCachedValues();
+	resetRowValues();
     }
 
     updateGroupCounters();
@@ -1490,17 +1512,64 @@ protected void resetCachedValues() {
 }
 
 /**
- * Evalues the formulas in the specified section. This is called by the
- * layout engine just before the section gets output.
+ * Tells each formula whose value may have changed since the last row
+ * that it should re-evaluate. Formulas whose values are the same for the
+ * whole run are left alone, and formulas that only depend on group
+ * values re-evaluate when one of those groups has a new value. Called
+ * after the groups have been updated.
+ *
+ * @see Formula#getEvaluationFrequency
+ */
+protected void resetRowValues() {
+    for (Iterator iter = formulas(); iter.hasNext(); ) {
+	Formula f = (Formula)iter.next();
+	switch (f.getEvaluationFrequency()) {
+	case Formula.EVAL_PER_ROW:
+	    f.shouldEvaluate();
+	    break;
+	case Formula.EVAL_PER_GROUP:
+	    for (Iterator gi = f.groupsUsed().iterator(); gi.hasNext(); ) {
+		if (((Group)gi.next()).isNewValue()) {
+		    f.shouldEvaluate();
+		    break;
+		}
+	    }
+	    break;
+	}
+    }
+    for (Iterator iter = subreports(); iter.hasNext(); )
+	((Subreport)iter.next()).clearCache();
+}
+
+/**
+ * Returns a description of each formula's evaluation frequency and the
+ * references it depends on, one formula per line. Printed to
+ * <code>System.err</code> at the start of each report run when the
+ * <code>datavision.debug.formulas</code> system property is
+ * <code>true</code>.
+ *
+ * @return a description of the formula dependency graph
+ * @see Formula#dependencyString
+ */
+public String formulaDependencies() {
+    StringBuffer buf = new StringBuffer();
+    for (Iterator iter = formulas(); iter.hasNext(); )
+	buf.append(((Formula)iter.next()).dependencyString()).append('\n');
+    return buf.toString();
+}
+
+/**
+ * Evalues the formulas with side effects in the specified section. This is
+ * called by the layout engine just before the section gets output, or
+ * instead of outputting it if it is hidden. Formulas without side effects
+ * are only evaluated when a visible field, aggregate, suppression proc, or
+ * other formula needs their values.
  *
  * @param s a section
+ * @see Formula#hasSideEffects
  */
 public void evaluateFormulasIn(Section s) {
-    for (Iterator iter = s.fields(); iter.hasNext(); ) {
-	Field f = (Field)iter.next();
-	if (f instanceof FormulaField)
-	    ((FormulaField)f).getValue(); // Force evaluation
-    }
+    s.evaluateFormulas();
 }
 
 /**
@@ -1510,8 +1579,49 @@ public void evaluateFormulasIn(Section s) {
  * @return the string or Double value of the column
  */
 public Object columnValue(Selectable selectable) {
-    // Ask data source for field number, then get value of that column
-    return rset.getObject(dataSource.indexOfSelectable(selectable) + 1);
+    return rset.getObject(getSelectableBinding().slotOf(selectable));
+}
+
+/**
+ * Returns the current value of the specified selectable as a
+ * <code>double</code>. <code>null</code> values are returned as 0. When the
+ * data source uses typed row storage, numeric values are not boxed. Only
+ * defined when running a report.
+ *
+ * @return the value of the column as a <code>double</code>
+ * @see DataCursor#getDouble
+ */
+public double columnDoubleValue(Selectable selectable) {
+    return rset.getDouble(getSelectableBinding().slotOf(selectable));
+}
+
+/**
+ * Returns <code>true</code> if <var>val</var> equals the current value of
+ * the specified selectable. When the data source uses typed row storage,
+ * the column value is compared without boxing it. Only defined when
+ * running a report.
+ *
+ * @param selectable a selectable
+ * @param val a non-<code>null</code> object
+ * @return <code>true</code> if <var>val</var> equals the selectable's value
+ * @see DataCursor#valueEquals
+ */
+public boolean columnValueEquals(Selectable selectable, Object val) {
+    return rset.valueEquals(getSelectableBinding().slotOf(selectable), val);
+}
+
+/**
+ * Returns the binding of selectables to data cursor columns for the
+ * current data source and query. The binding is rebuilt whenever the
+ * query's selectables change.
+ *
+ * @return a selectable binding
+ * @see SelectableAccessor
+ */
+public SelectableBinding getSelectableBinding() {
+    if (selectableBinding == null || !selectableBinding.isCurrent(dataSource))
+	selectableBinding = new SelectableBinding(dataSource);
+    return selectableBinding;
 }
 
 /**
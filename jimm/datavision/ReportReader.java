@@ -303,6 +303,10 @@ protected void report(Attributes attributes) {
 protected void defaultLanguage(Attributes attributes) {
     String lang = rubyLanguageNameHack(attributes.getValue("default-language"));
     getReport().getScripting().setDefaultLanguage(lang);
+    String compile = attributes.getValue("compile-formulas");
+    if (compile != null)
+	getReport().getScripting()
+	    .setCompileFormulas("true".equals(compile));
 }
 
 protected void language(Attributes attributes) {
@@ -335,6 +339,26 @@ protected void database(Attributes attributes) {
 				   getReport(),
 				   attributes.getValue("name"),
 				   attributes.getValue("username"));
+	db.setTypedRows("true".equals(attributes.getValue("typed-rows")));
+	String batchSize = attributes.getValue("prefetch-batch-size");
+	String queueDepth = attributes.getValue("prefetch-queue-depth");
+	db.setPrefetch(batchSize == null ? 0 : Integer.parseInt(batchSize),
+		       queueDepth == null ? 0 : Integer.parseInt(queueDepth));
+	String fetchSize = attributes.getValue("fetch-size");
+	db.setStreaming("true".equals(attributes.getValue("streaming")),
+			fetchSize == null ? 0 : Integer.parseInt(fetchSize));
+	db.setAggregatePushDown("true".equals(attributes.getValue("aggregate-push-down")));
+	if ("true".equals(attributes.getValue("connection-pool")))
+	    db.setConnectionPooling(true);
+	String partitions = attributes.getValue("partitions");
+	if (partitions != null)
+	    db.setPartitions(Integer.parseInt(partitions));
+	String ttl = attributes.getValue("result-cache-ttl");
+	if (ttl != null)
+	    db.setResultCacheTTL(Integer.parseInt(ttl));
+	ttl = attributes.getValue("metadata-cache-ttl");
+	if (ttl != null)
+	    db.setMetadataCacheTTL(Integer.parseInt(ttl));
 	getReport().setDataSource(db);
     }
     catch (UserCancellationException iae) {
@@ -366,6 +390,13 @@ protected void charSepSource(Attributes attributes) {
     String charString = attributes.getValue("sep-char");
     if (charString != null)
 	charSepSource.setSepChar(charString.charAt(0));
+    String threads = attributes.getValue("parse-threads");
+    if (threads != null)
+	charSepSource.setParseThreads(Integer.parseInt(threads));
+    String sortMemory = attributes.getValue("sort-memory-budget");
+    if (sortMemory != null)
+	charSepSource.setSortMemoryBudget(Long.parseLong(sortMemory));
+    charSepSource.setTypedRows("true".equals(attributes.getValue("typed-rows")));
 
     getReport().setDataSource(charSepSource);
 }
@@ -426,6 +457,15 @@ protected void sort(Attributes attributes) {
 protected void subreport(Attributes attributes) {
     subreport = new Subreport(report, new Long(attributes.getValue("id")));
     // The subreport adds itself to the parent report.
+    String batchSize = attributes.getValue("batch-size");
+    if (batchSize != null)
+	subreport.setBatchSize(Integer.parseInt(batchSize));
+    String cacheSize = attributes.getValue("cache-size");
+    if (cacheSize != null)
+	subreport.setCacheSize(Integer.parseInt(cacheSize));
+    String prefetch = attributes.getValue("prefetch");
+    if (prefetch != null)
+	subreport.setPrefetch(Integer.parseInt(prefetch));
 
     removeReportSections();	// Acts on subreport
 
@@ -498,6 +538,7 @@ protected void formula(String parentTag, Attributes attributes)
     String language = attributes.getValue("language");
     if (language != null)
 	formula.setLanguage(language);
+    formula.setSideEffects("true".equals(attributes.getValue("side-effects")));
 }
 
 /**
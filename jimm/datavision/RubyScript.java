@@ -0,0 +1,113 @@
+package jimm.datavision;
+import org.apache.bsf.BSFException;
+import org.jruby.Ruby;
+import org.jruby.ast.Node;
+import org.jruby.javasupport.JavaEmbedUtils;
+import org.jruby.runtime.DynamicScope;
+
+/**
+ * A Ruby script that is parsed once and evaluated many times. Values that
+ * change from one evaluation to the next are handed to the script in
+ * global variables instead of being pasted into its text.
+ * <p>
+ * The script is parsed in the same top-level scope that BSF uses to
+ * evaluate strings, so it sees the same local variables as every other
+ * script run by the same report. The script is parsed again if another
+ * script has created new local variables since it was parsed, so it sees
+ * those too, or if it is evaluated by another thread, since local
+ * variables belong to a thread.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see Scripting#compile
+ */
+public class RubyScript {
+
+protected Ruby runtime;
+protected String source;
+protected String name;
+protected String[] globals;
+protected Node node;
+protected DynamicScope scope;	// Scope the node was parsed in
+protected int numVariables;	// Number of locals in scope after parse
+
+/**
+ * Returns the JRuby runtime used by a BSF manager's Ruby engine.
+ *
+ * @param scripting the scripting object that owns the manager
+ * @param language the language name the Ruby engine is registered under
+ * @return a JRuby runtime
+ */
+static Ruby runtimeFor(Scripting scripting, String language)
+    throws BSFException
+{
+    return (Ruby)scripting.eval(language, "require 'jruby'; JRuby.runtime",
+				"runtime");
+}
+
+/**
+ * Constructor. Parses the script.
+ *
+ * @param runtime a JRuby runtime
+ * @param source the script
+ * @param name the name displayed in error messages
+ * @param globals the names of the global variables, including the leading
+ * "$", that receive values in {@link #eval}
+ * @throws BSFException if the script can not be parsed
+ */
+RubyScript(Ruby runtime, String source, String name, String[] globals)
+    throws BSFException
+{
+    this.runtime = runtime;
+    this.source = source;
+    this.name = name;
+    this.globals = globals;
+    parse();
+}
+
+protected void parse() throws BSFException {
+    DynamicScope current = runtime.getCurrentContext().getCurrentScope();
+    try {
+	node = runtime.parse(source, name, current);
+	scope = current;
+	numVariables = current.getStaticScope().getNumberOfVariables();
+    }
+    catch (RuntimeException e) {
+	throw new BSFException(BSFException.REASON_EXECUTION_ERROR,
+			       "Exception", e);
+    }
+}
+
+/**
+ * Returns the script's source text.
+ *
+ * @return the source text
+ */
+public String getSource() { return source; }
+
+/**
+ * Sets the global variables to <var>values</var>, evaluates the script,
+ * and returns its result converted to a Java object.
+ *
+ * @param values one value per global variable, in order
+ * @return the result
+ * @throws BSFException if the script raises an exception
+ */
+public Object eval(Object[] values) throws BSFException {
+    DynamicScope current = runtime.getCurrentContext().getCurrentScope();
+    if (current != scope
+	|| current.getStaticScope().getNumberOfVariables() != numVariables)
+	parse();
+    try {
+	for (int i = 0; i < globals.length; ++i)
+	    runtime.getGlobalVariables()
+		.set(globals[i], JavaEmbedUtils.javaToRuby(runtime, values[i]));
+	return JavaEmbedUtils.rubyToJava(runtime, runtime.eval(node),
+					 Object.class);
+    }
+    catch (RuntimeException e) {
+	throw new BSFException(BSFException.REASON_EXECUTION_ERROR,
+			       "Exception", e);
+    }
+}
+
+}
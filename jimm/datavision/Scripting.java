@@ -6,6 +6,14 @@ import org.apache.bsf.BSFException;
 
 /**
  * Bean Scripting Framework management.
+ * <p>
+ * Formulas written in the default Ruby language can be compiled once (see
+ * {@link #compile}) instead of being parsed again every time they are
+ * evaluated. This can be turned off with {@link #setCompileFormulas}.
+ * <p>
+ * The expression language (see {@link jimm.datavision.expr.ExpressionCompiler})
+ * is always available as well. Formulas written in it are compiled to Java
+ * classes.
  *
  * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
  */
@@ -14,18 +22,28 @@ public class Scripting implements Writeable {
 protected static final String DEFAULT_LANGUAGE = "Ruby";
 protected static final String DEFAULT_CLASS =
     "org.jruby.javasupport.bsf.JRubyEngine";
+public static final String EXPRESSION_LANGUAGE = "Expression";
+protected static final String EXPRESSION_CLASS =
+    "jimm.datavision.expr.ExpressionEngine";
 
 protected Report report;
 protected String defaultLanguage;
 protected Map languages;
 protected Map managers;
+protected boolean compileFormulas;
+protected Map runtimes;		// Language names to JRuby runtimes
+protected Map scripts;		// Language names to maps of compiled scripts
 
 public Scripting(Report report) {
     this.report = report;
     defaultLanguage = DEFAULT_LANGUAGE;
     languages = new HashMap();
     languages.put(DEFAULT_LANGUAGE, DEFAULT_CLASS);
+    languages.put(EXPRESSION_LANGUAGE, EXPRESSION_CLASS);
     managers = new HashMap();
+    compileFormulas = true;
+    runtimes = new HashMap();
+    scripts = new HashMap();
 }
 
 /** Returns an immutable copy of the map of languages. */
@@ -45,6 +63,8 @@ public void addLanguage(String language, String className) {
 public void replaceLanguages(Map langs) {
     languages.clear();
     languages.putAll(langs);
+    runtimes.clear();
+    scripts.clear();
 }
 
 /** Returns the default language name. */
@@ -87,6 +107,97 @@ public Object eval(String language, String evalString, String name)
     return getBsfManager(language).eval(language, name, 1, 1, evalString);
 }
 
+/**
+ * Returns <code>true</code> if formulas are compiled when possible. The
+ * default is <code>true</code>.
+ */
+public boolean getCompileFormulas() { return compileFormulas; }
+
+/**
+ * Tells formulas whether to compile their scripts when possible. When
+ * <code>false</code>, every formula evaluation builds a script string by
+ * pasting in column, formula, and parameter values and has BSF evaluate
+ * it.
+ */
+public void setCompileFormulas(boolean compile) {
+    compileFormulas = compile;
+    scripts.clear();
+}
+
+/**
+ * Returns <code>true</code> if scripts written in <var>language</var> can
+ * be compiled. Only the JRuby engine that ships with DataVision can.
+ *
+ * @param language a language name
+ */
+public boolean canCompile(String language) {
+    return compileFormulas && isRubyLanguage(language);
+}
+
+/**
+ * Returns <code>true</code> if <var>language</var> is run by the JRuby
+ * engine.
+ *
+ * @param language a language name
+ */
+public boolean isRubyLanguage(String language) {
+    return DEFAULT_CLASS.equals(languages.get(language));
+}
+
+/**
+ * Returns <code>true</code> if <var>language</var> is the expression
+ * language.
+ *
+ * @param language a language name
+ */
+public boolean isExpressionLanguage(String language) {
+    return EXPRESSION_CLASS.equals(languages.get(language));
+}
+
+/**
+ * Compiles a script whose values are handed to it in global variables
+ * instead of being pasted into its text. Compiled scripts are shared by
+ * source text, so compiling the same script again is cheap. Returns
+ * <code>null</code> if the script can't be compiled, for example because
+ * of a syntax error; the caller should evaluate it the usual way so the
+ * error is reported normally.
+ *
+ * @param language the language to use; see {@link #canCompile}
+ * @param source the script
+ * @param name a name (for example, a formula name) to display with error
+ * messages
+ * @param globals names of the global variables that {@link RubyScript#eval}
+ * sets, in order
+ * @return a compiled script or <code>null</code>
+ */
+public RubyScript compile(String language, String source, String name,
+			  String[] globals)
+{
+    if (!canCompile(language))
+	return null;
+
+    Map compiled = (Map)scripts.get(language);
+    if (compiled == null) {
+	compiled = new HashMap();
+	scripts.put(language, compiled);
+    }
+    if (compiled.containsKey(source))
+	return (RubyScript)compiled.get(source);
+
+    RubyScript script = null;
+    try {
+	org.jruby.Ruby runtime = (org.jruby.Ruby)runtimes.get(language);
+	if (runtime == null) {
+	    runtime = RubyScript.runtimeFor(this, language);
+	    runtimes.put(language, runtime);
+	}
+	script = new RubyScript(runtime, source, name, globals);
+    }
+    catch (BSFException e) {}	// Leave it to eval to complain
+    compiled.put(source, script);
+    return script;
+}
+
 /** Returns BSFManager for the default language. */
 public BSFManager getBsfManager() throws BSFException {
     return getBsfManager(defaultLanguage);
@@ -108,6 +219,8 @@ public BSFManager getBsfManager(String language) throws BSFException {
 public void writeXML(XMLWriter out) {
     out.startElement("bean-scripting-framework");
     out.attr("default-language", defaultLanguage);
+    if (!compileFormulas)
+	out.attr("compile-formulas", "false");
 
     for (Iterator iter = languages.keySet().iterator(); iter.hasNext(); ) {
 	String language = (String)iter.next();
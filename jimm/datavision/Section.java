@@ -347,16 +347,19 @@ public boolean containsReferenceTo(Parameter p) {
 }
 
 /**
- * Forces all of the formulas used in this section to be evaluated.
- * See the comment for <code>LayoutEngine.groupHeaders</code> for why
- * this method is necessary.
+ * Forces the formulas used in this section that have side effects to be
+ * evaluated. Other formulas are evaluated when something uses their
+ * values. See the comment for <code>LayoutEngine.groupHeaders</code> for
+ * why this method is necessary.
  *
  * @see jimm.datavision.layout.LayoutEngine#groupHeaders
+ * @see Formula#hasSideEffects
  */
 public void evaluateFormulas() {
     for (Iterator iter = fields(); iter.hasNext(); ) {
 	Field field = (Field)iter.next();
-	if (field instanceof FormulaField)
+	if (field instanceof FormulaField
+	    && ((FormulaField)field).getFormula().hasSideEffects())
 	    field.getValue();
     }
 }
@@ -1,6 +1,10 @@
 package jimm.datavision;
 import jimm.datavision.field.Field;
+import jimm.datavision.layout.LayoutEngine;
 import jimm.datavision.source.*;
+import jimm.datavision.source.sql.ConnectionPool;
+import jimm.datavision.source.sql.Database;
+import jimm.datavision.source.sql.SubreportPrefetcher;
 import jimm.datavision.source.sql.SubreportQuery;
 import jimm.util.StringUtils;
 import jimm.util.XMLWriter;
@@ -13,6 +17,20 @@ import java.util.*;
  * When first created, the subreport adds the joins given to it
  * to its SQL where clause, turning the columns from the current
  * report into parameters.
+ * <p>
+ * If a batch size is set (see {@link #setBatchSize}) and every join is an
+ * equality join, the subreport instead runs one query for the join values
+ * of the current parent row and the rows that follow it. The rows returned
+ * are divided up by join values and kept until the parent report needs
+ * them.
+ * <p>
+ * If a cache size is set (see {@link #setCacheSize}), the values of the
+ * most recently used join values are kept for the rest of the report run,
+ * so parent rows whose join values repeat don't run the query again.
+ * <p>
+ * If batching can't be used and a prefetch count is set (see {@link
+ * #setPrefetch}), the queries for the parent rows that follow the current
+ * one are run on worker threads while the current row is laid out.
  *
  * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
  */
@@ -21,6 +39,18 @@ public class Subreport extends Report implements Identity {
 protected Report parentReport;
 protected Long id;
 protected String cachedValue;
+protected int batchSize;
+protected HashMap batchValues; // Batch keys to row strings
+protected List batchWhere;	// Where key of the current batch
+protected int cacheSize;
+protected LinkedHashMap valueCache; // Join keys to values, LRU first
+protected int cacheHits;
+protected int cacheMisses;
+protected int prefetch;
+protected SubreportPrefetcher prefetcher;
+
+/** How often to check for cancellation while waiting for a query. */
+protected static final long CANCEL_CHECK_MILLIS = 100;
 
 public Subreport(Report parent, Long id) {
     if (id == null)		// Generate new value
@@ -59,8 +89,121 @@ public void clearCache() {
 }
 
 /**
- * Runs the query and returns a string containing a line of text for each
- * row returned by the subreport query.
+ * Forgets all values kept from earlier rows, both those in the value
+ * cache and those fetched for a batch, and resets the cache statistics.
+ * Called by the parent report each time it starts running.
+ */
+public void clearRunCaches() {
+    stopPrefetching();
+    prefetcher = null;
+    cachedValue = null;
+    batchValues = null;
+    batchWhere = null;
+    if (valueCache != null)
+	valueCache.clear();
+    cacheHits = cacheMisses = 0;
+}
+
+/**
+ * Returns the number of values kept in the value cache. 0 means values are
+ * not cached.
+ *
+ * @return the cache size
+ */
+public int getCacheSize() { return cacheSize; }
+
+/**
+ * Sets the number of values kept in the value cache. The cache holds the
+ * values for the most recently used join values, and is emptied each time
+ * the parent report runs. Values are only reused when the parameters and
+ * formulas in the subreport's where clause have the same values, too. Use
+ * it for lookups, where the same join values appear in many parent rows.
+ *
+ * @param size the cache size; 0 turns caching off
+ */
+public void setCacheSize(int size) {
+    cacheSize = size < 0 ? 0 : size;
+    if (cacheSize == 0)
+	valueCache = null;
+    else
+	valueCache = new LinkedHashMap(16, 0.75f, true) {
+	    protected boolean removeEldestEntry(Map.Entry eldest) {
+		return size() > cacheSize;
+	    }
+	    };
+}
+
+/** Returns the number of values found in the value cache this run. */
+public int getCacheHits() { return cacheHits; }
+
+/** Returns the number of values not found in the value cache this run. */
+public int getCacheMisses() { return cacheMisses; }
+
+/**
+ * Returns the number of parent rows after the current one whose queries are
+ * run ahead of time. 0 means queries are run only when needed.
+ *
+ * @return the prefetch count
+ */
+public int getPrefetch() { return prefetch; }
+
+/**
+ * Sets the number of parent rows after the current one whose queries are
+ * run ahead of time on worker threads. Prefetching is only used when
+ * batching isn't (see {@link #setBatchSize}) and the parent report's
+ * database borrows its connections from a {@link ConnectionPool}; each
+ * worker uses its own connection. A prefetched result is only used if the
+ * query and its parameter values turn out to be the same as they are when
+ * the parent report reaches that row.
+ *
+ * @param rows the prefetch count; 0 turns prefetching off
+ */
+public void setPrefetch(int rows) {
+    prefetch = rows < 0 ? 0 : rows;
+    clearRunCaches();
+}
+
+/**
+ * Returns the object running queries ahead of time during the current or
+ * most recent report run, or <code>null</code> if there is none.
+ *
+ * @return a prefetcher or <code>null</code>
+ */
+public SubreportPrefetcher getPrefetcher() { return prefetcher; }
+
+/**
+ * Cancels queries that are being run ahead of time. Called by the parent
+ * report when it finishes running.
+ */
+public void stopPrefetching() {
+    if (prefetcher != null)
+	prefetcher.close();
+}
+
+/**
+ * Returns the number of parent rows whose subreport rows are fetched by
+ * a single query. 0 means a query is run for each parent row.
+ *
+ * @return the batch size
+ */
+public int getBatchSize() { return batchSize; }
+
+/**
+ * Sets the number of parent rows whose subreport rows are fetched by a
+ * single query. Batching is only used when every join is an equality
+ * join. Some databases limit the number of values in an "in" list, so
+ * don't make this too large.
+ *
+ * @param size the batch size; 0 or 1 turns batching off
+ */
+public void setBatchSize(int size) {
+    batchSize = size < 0 ? 0 : size;
+    batchValues = null;
+}
+
+/**
+ * Returns a string containing a line of text for each row returned by the
+ * subreport query, from the value cache if possible.
  *
  * @return a string with newlines separating each row of data
  * @see #makeRowStrings
@@ -69,12 +212,45 @@ public Object getValue() {
     if (cachedValue != null)
 	return cachedValue;
 
+    List key = null;
+    if (valueCache != null) {
+	SubreportQuery q = (SubreportQuery)getDataSource().getQuery();
+	key = whereKey(q);
+	key.addAll(joinKey(q.parentValues()));
+	cachedValue = (String)valueCache.get(key);
+	if (cachedValue != null) {
+	    ++cacheHits;
+	    return cachedValue;
+	}
+	++cacheMisses;
+    }
+
+    if (batchSize > 1
+	&& ((SubreportQuery)getDataSource().getQuery()).canBatch())
+	cachedValue = batchedValue();
+    else if (prefetch > 0)
+	cachedValue = prefetchedValue();
+    else
+	cachedValue = queryValue();
+
+    if (key != null)
+	valueCache.put(key, cachedValue);
+    return cachedValue;
+}
+
+/**
+ * Runs the query and returns a string containing a line of text for each
+ * row returned by the subreport query.
+ *
+ * @return a string with newlines separating each row of data
+ */
+protected String queryValue() {
+    String value = "";		// In case something happens
     rset = null;
-    cachedValue = "";		// In case something happens
     try {
 	rset = getDataSource().execute();
 	if (rset != null)
-	    cachedValue = StringUtils.join(makeRowStrings(), "\n");
+	    value = StringUtils.join(makeRowStrings(), "\n");
     }
     catch (Exception e) {
 	ErrorHandler.error(e.toString());
@@ -83,8 +259,208 @@ public Object getValue() {
 	if (rset != null)
 	    rset.close();
     }
+    return value;
+}
 
-    return cachedValue;
+/**
+ * Returns the value for the parent report's current row, using the result
+ * of a query run ahead of time if there is one. First submits the queries
+ * for as many of the following parent rows as haven't been submitted yet.
+ *
+ * @return a string with newlines separating each row of data
+ * @throws UserCancellationException if the report is cancelled while
+ * waiting for the query
+ */
+protected String prefetchedValue() {
+    Database db = (Database)getDataSource();
+    ConnectionPool pool = db.getConnectionPool();
+    DataCursor parentRows = parentReport.getCurrentRow();
+    if (pool == null || parentRows == null
+	|| (prefetcher != null && prefetcher.isClosed()))
+	return queryValue();
+
+    SubreportQuery q = (SubreportQuery)db.getQuery();
+    String sql = q.toPreparedStatementString();
+    if (sql == null || sql.length() == 0)
+	return queryValue();
+    if (prefetcher == null)
+	prefetcher = new SubreportPrefetcher(pool, prefetch);
+
+    List whereValues = new ArrayList(q.getPreparedStmtValues());
+    List values = q.parentValues();
+    ArrayList params = new ArrayList(whereValues);
+    params.addAll(values);
+    int row = parentReport.rowNumber();
+    SubreportPrefetcher.Task task = prefetcher.take(row, sql, params, values);
+
+    int[] slots = q.parentSlots();
+    int n = parentRows.lookAhead(prefetch);
+    List[] cols = new List[slots.length];
+    for (int j = 0; j < slots.length; ++j)
+	cols[j] = parentRows.peekColumn(n, slots[j]);
+    for (int i = Math.max(prefetcher.lastRowSubmitted() - row, 0); i < n; ++i) {
+	ArrayList ahead = new ArrayList(slots.length);
+	for (int j = 0; j < slots.length; ++j)
+	    ahead.add(cols[j].get(i));
+	params = new ArrayList(whereValues);
+	params.addAll(ahead);
+	prefetcher.submit(row + 1 + i, sql, params, ahead,
+			  q.getNumSelectables());
+    }
+
+    if (task == null)
+	return queryValue();
+    while (!prefetcher.await(task, CANCEL_CHECK_MILLIS))
+	if (!wantsMoreData())
+	    throw new UserCancellationException();
+
+    String value = "";
+    rset = null;
+    try {
+	rset = prefetcher.rows(task, q, db.usesTypedRows());
+	value = StringUtils.join(makeRowStrings(), "\n");
+    }
+    catch (Exception e) {
+	ErrorHandler.error(e.toString());
+    }
+    finally {
+	if (rset != null)
+	    rset.close();
+    }
+    return value;
+}
+
+/**
+ * Returns <code>false</code> if the layout engine of the outermost parent
+ * report has been cancelled.
+ */
+protected boolean wantsMoreData() {
+    Report r = parentReport;
+    while (r instanceof Subreport)
+	r = ((Subreport)r).getParentReport();
+    LayoutEngine le = r.getLayoutEngine();
+    return le == null || le.wantsMoreData();
+}
+
+/**
+ * Returns the value for the parent report's current row from the current
+ * batch, first running a query for a new batch if necessary. The new batch
+ * holds the join values of the current row and of as many of the
+ * following parent rows as are needed to fill it.
+ *
+ * @return a string with newlines separating each row of data
+ */
+protected String batchedValue() {
+    SubreportQuery q = (SubreportQuery)getDataSource().getQuery();
+    List values = q.parentValues();
+    if (values.contains(null))	// Never equal to anything
+	return "";
+    List key = joinKey(values);
+    List where = whereKey(q);
+    if (batchValues != null && where.equals(batchWhere)
+	&& batchValues.containsKey(key))
+	return (String)batchValues.get(key);
+
+    LinkedHashMap keys = new LinkedHashMap(); // Batch keys to values
+    keys.put(key, values);
+    DataCursor parentRows = parentReport.getCurrentRow();
+    if (parentRows != null) {
+	int[] slots = q.parentSlots();
+	int n = parentRows.lookAhead(batchSize - 1);
+	List[] cols = new List[slots.length];
+	for (int j = 0; j < slots.length; ++j)
+	    cols[j] = parentRows.peekColumn(n, slots[j]);
+	for (int i = 0; i < n && keys.size() < batchSize; ++i) {
+	    ArrayList row = new ArrayList(slots.length);
+	    for (int j = 0; j < slots.length; ++j)
+		row.add(cols[j].get(i));
+	    if (!row.contains(null))
+		keys.put(joinKey(row), row);
+	}
+    }
+
+    HashMap rowStrings = new HashMap();
+    for (Iterator iter = keys.keySet().iterator(); iter.hasNext(); )
+	rowStrings.put(iter.next(), new ArrayList());
+
+    rset = null;
+    q.setBatchKeys(new ArrayList(keys.values()));
+    try {
+	rset = getDataSource().execute();
+	if (rset != null) {
+	    List to = q.childColumns();
+	    SelectableAccessor[] accessors = new SelectableAccessor[to.size()];
+	    for (int j = 0; j < accessors.length; ++j)
+		accessors[j] = new SelectableAccessor((Column)to.get(j));
+	    Section detail = getFirstSectionByArea(SectionArea.DETAIL);
+	    while (rset.next()) {
+		ArrayList row = new ArrayList(accessors.length);
+		for (int j = 0; j < accessors.length; ++j)
+		    row.add(accessors[j].getValue(this));
+		List strings = (List)rowStrings.get(joinKey(row));
+		if (strings != null)
+		    strings.add(rowString(detail));
+	    }
+	}
+    }
+    catch (Exception e) {
+	ErrorHandler.error(e.toString());
+    }
+    finally {
+	q.setBatchKeys(null);
+	if (rset != null)
+	    rset.close();
+    }
+
+    batchValues = new HashMap();
+    batchWhere = where;
+    for (Iterator iter = rowStrings.entrySet().iterator(); iter.hasNext(); ) {
+	Map.Entry entry = (Map.Entry)iter.next();
+	batchValues.put(entry.getKey(),
+			StringUtils.join((List)entry.getValue(), "\n"));
+    }
+    return (String)batchValues.get(key);
+}
+
+/**
+ * Returns a list holding the query's prepared statement string followed by
+ * the values of the parameters and formulas in its where clause. Values
+ * kept for one parent row can only be used for another if this key is the
+ * same for both.
+ */
+protected List whereKey(SubreportQuery q) {
+    ArrayList key = new ArrayList();
+    key.add(q.toPreparedStatementString());
+    key.addAll(joinKey(q.getPreparedStmtValues()));
+    return key;
+}
+
+/**
+ * Returns a list of join values that can be compared with others read
+ * from a different table, whose columns may have different but compatible
+ * types. Numbers with integer values become <code>Long</code>s, other
+ * numbers become <code>Double</code>s, and dates become their times in
+ * milliseconds.
+ */
+protected static List joinKey(List values) {
+    ArrayList key = new ArrayList(values.size());
+    for (Iterator iter = values.iterator(); iter.hasNext(); ) {
+	Object val = iter.next();
+	if (val instanceof Long || val instanceof Integer
+	    || val instanceof Short || val instanceof Byte)
+	    val = new Long(((Number)val).longValue());
+	else if (val instanceof Number) {
+	    double d = ((Number)val).doubleValue();
+	    if (d == Math.floor(d) && Math.abs(d) < (double)(1L << 53))
+		val = new Long((long)d);
+	    else
+		val = new Double(d);
+	}
+	else if (val instanceof java.util.Date)
+	    val = new Long(((java.util.Date)val).getTime());
+	key.add(val);
+    }
+    return key;
 }
 
 /**
@@ -94,20 +470,33 @@ public Object getValue() {
 protected Collection makeRowStrings() {
     ArrayList rowStrings = new ArrayList();
     Section detail = getFirstSectionByArea(SectionArea.DETAIL);
-    while (rset.next()) {
-	ArrayList values = new ArrayList();
-	for (Iterator iter = detail.fields(); iter.hasNext(); ) {
-	    String str = ((Field)iter.next()).toString();
-	    values.add(str == null ? "" : str);
-	}
-	rowStrings.add(StringUtils.join(values, " "));
-    }
+    while (rset.next())
+	rowStrings.add(rowString(detail));
     return rowStrings;
 }
 
+/**
+ * Returns the values of the fields in <var>detail</var> for the current
+ * row, separated by spaces.
+ */
+protected String rowString(Section detail) {
+    ArrayList values = new ArrayList();
+    for (Iterator iter = detail.fields(); iter.hasNext(); ) {
+	String str = ((Field)iter.next()).toString();
+	values.add(str == null ? "" : str);
+    }
+    return StringUtils.join(values, " ");
+}
+
 public void writeXML(XMLWriter out) {
     out.startElement("subreport");
     out.attr("id", id);
+    if (batchSize > 0)
+	out.attr("batch-size", batchSize);
+    if (cacheSize > 0)
+	out.attr("cache-size", cacheSize);
+    if (prefetch > 0)
+	out.attr("prefetch", prefetch);
     getDataSource().getQuery().writeXML(out);
     ListWriter.writeList(out, formulas.values(), "formulas");
     ListWriter.writeList(out, usercols.values(), "usercols");
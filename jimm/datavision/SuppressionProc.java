@@ -37,6 +37,18 @@ public Formula getFormula() {
     return formula;
 }
 
+/**
+ * Returns <code>true</code> if this proc has a non-empty formula.
+ *
+ * @return <code>true</code> if there is a formula to evaluate
+ */
+public boolean hasFormula() {
+    if (formula == null)
+	return false;
+    String expr = formula.getExpression();
+    return expr != null && expr.length() > 0;
+}
+
 public boolean refersTo(Field f) {
     return formula != null && formula.refersTo(f);
 }
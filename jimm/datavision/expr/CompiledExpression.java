@@ -0,0 +1,128 @@
+package jimm.datavision.expr;
+import java.sql.Types;
+import java.util.Date;
+
+/**
+ * An expression compiled to Java bytecode by {@link ExpressionCompiler}.
+ * Each compiled expression is a subclass of this class whose {@link #eval}
+ * method computes the expression's value using primitive
+ * <code>long</code>, <code>double</code>, and <code>boolean</code>
+ * arithmetic, boxing only the result.
+ * <p>
+ * The protected static methods are called by the generated code.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public abstract class CompiledExpression {
+
+public static final int TYPE_BOOLEAN = 0;
+public static final int TYPE_LONG = 1;
+public static final int TYPE_DOUBLE = 2;
+public static final int TYPE_STRING = 3;
+public static final int TYPE_DATE = 4;
+/** Any object. Must be converted before it is used with an operator. */
+public static final int TYPE_OBJECT = 5;
+
+protected static final String[] TYPE_NAMES = {
+    "boolean", "integer", "number", "string", "date", "object"
+};
+
+/**
+ * Returns the expression type of values of a column whose JDBC type is
+ * <var>sqlType</var>.
+ *
+ * @param sqlType a <code>java.sql.Types</code> constant
+ * @return one of the <code>TYPE_</code> constants
+ */
+public static int typeOfSqlType(int sqlType) {
+    switch (sqlType) {
+    case Types.BIT: case Types.BOOLEAN:
+	return TYPE_BOOLEAN;
+    case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER:
+    case Types.BIGINT:
+	return TYPE_LONG;
+    case Types.FLOAT: case Types.REAL: case Types.DOUBLE:
+    case Types.NUMERIC: case Types.DECIMAL:
+	return TYPE_DOUBLE;
+    case Types.CHAR: case Types.VARCHAR: case Types.LONGVARCHAR:
+    case Types.CLOB:
+	return TYPE_STRING;
+    case Types.DATE: case Types.TIME: case Types.TIMESTAMP:
+	return TYPE_DATE;
+    default:
+	return TYPE_OBJECT;
+    }
+}
+
+/**
+ * Returns the name of a type, for error messages.
+ *
+ * @param type one of the <code>TYPE_</code> constants
+ */
+public static String typeName(int type) { return TYPE_NAMES[type]; }
+
+protected String source;
+protected int type;
+
+protected CompiledExpression() {}
+
+/**
+ * Returns the text the expression was compiled from.
+ *
+ * @return the expression's source text
+ */
+public String getSource() { return source; }
+
+/**
+ * Returns the type of the values {@link #eval} returns.
+ *
+ * @return one of the <code>TYPE_</code> constants
+ */
+public int getType() { return type; }
+
+/**
+ * Evaluates the expression. <var>values</var> holds one value for each
+ * {@link Operand} the expression was compiled with, in order. If any value
+ * is <code>null</code>, the result is <code>null</code> unless the operand
+ * is only used by the <code>isnull</code> and <code>ifnull</code>
+ * functions.
+ *
+ * @param values operand values
+ * @return a <code>Long</code>, <code>Double</code>, <code>Boolean</code>,
+ * <code>String</code>, <code>Date</code>, or other object; may be
+ * <code>null</code>
+ * @throws RuntimeException if an operand has the wrong class or a function
+ * fails
+ */
+public abstract Object eval(Object[] values);
+
+// ================================================================
+// Called by generated code
+
+protected static Object box(long val) { return new Long(val); }
+protected static Object box(double val) { return new Double(val); }
+protected static Object box(boolean val) { return Boolean.valueOf(val); }
+
+protected static long longValue(Object val) {
+    return ((Number)val).longValue();
+}
+
+protected static double doubleValue(Object val) {
+    return ((Number)val).doubleValue();
+}
+
+protected static boolean booleanValue(Object val) {
+    return ((Boolean)val).booleanValue();
+}
+
+protected static String stringValue(Object val) {
+    return val == null ? "" : val.toString();
+}
+
+protected static Date dateValue(Object val) { return (Date)val; }
+
+protected static boolean equal(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+}
+
+}
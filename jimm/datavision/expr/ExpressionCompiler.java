@@ -0,0 +1,583 @@
+package jimm.datavision.expr;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Compiles expressions into Java classes. The expression language is
+ * small and statically typed: integers, numbers, strings, booleans, and
+ * dates, with the operators
+ * <pre>
+ *   ?:  ||  &amp;&amp;  !  ==  !=  &lt;  &lt;=  &gt;  &gt;=  +  -  *  /  %
+ * </pre>
+ * (plus <code>and</code>, <code>or</code>, and <code>not</code>), string
+ * and number literals, <code>true</code>, <code>false</code>, parentheses,
+ * and calls to the {@link Functions}. "+" concatenates if either side is a
+ * string. "/" always divides numbers, never integers. A date plus or minus
+ * a number adds or subtracts days, and a date minus a date is the number
+ * of days between them. <code>isnull({...})</code> and
+ * <code>ifnull({...}, default)</code> test operands for <code>null</code>.
+ * <p>
+ * Operands (columns, parameters, and the like) are given to the compiler
+ * as {@link Operand}s between strings of expression text. Each expression
+ * is type-checked and turned into a subclass of {@link CompiledExpression}
+ * whose <code>eval</code> method is written using the ASM bytecode
+ * library. Integer, number, and boolean values stay primitive until the
+ * result is returned.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class ExpressionCompiler implements Opcodes {
+
+protected static final String PACKAGE = "jimm/datavision/expr/gen/";
+protected static final String CONVERSIONS =
+    "number(), integer(), string(), bool(), or date()";
+
+protected static final int T_EOF = 0;
+protected static final int T_NUMBER = 1;
+protected static final int T_STRING = 2;
+protected static final int T_IDENT = 3;
+protected static final int T_OP = 4;
+protected static final int T_OPERAND = 5;
+
+/** Maps function names to lists of methods. */
+protected static final Map FUNCTIONS = functionTable();
+protected static int classCount;
+
+static class Token {
+    int kind;
+    String text;
+    Object value;		// Literal value or operand index
+    Token(int kind, String text, Object value) {
+	this.kind = kind;
+	this.text = text;
+	this.value = value;
+    }
+}
+
+/** Defines one compiled expression class. */
+static class Loader extends ClassLoader {
+    Loader(ClassLoader parent) { super(parent); }
+    Class define(String name, byte[] code) {
+	return defineClass(name, code, 0, code.length);
+    }
+}
+
+protected String source;
+protected ArrayList tokens;
+protected int pos;
+protected Operand[] operands;
+protected boolean[] strict;	// Operands whose nulls make the result null
+
+/**
+ * Compiles an expression that has no operands.
+ *
+ * @param source the expression
+ * @return the compiled expression
+ * @throws ExpressionException if the expression has a syntax or type error
+ */
+public static CompiledExpression compile(String source)
+    throws ExpressionException
+{
+    return compile(Collections.singletonList(source));
+}
+
+/**
+ * Compiles an expression.
+ *
+ * @param parts expression text <code>String</code>s and {@link Operand}s,
+ * in order; the values given to <code>eval</code> must be in the same
+ * order as the operands
+ * @return the compiled expression
+ * @throws ExpressionException if the expression has a syntax or type error
+ */
+public static CompiledExpression compile(List parts)
+    throws ExpressionException
+{
+    return new ExpressionCompiler(parts).compile();
+}
+
+protected static Map functionTable() {
+    Method[] methods = Functions.class.getMethods();
+    Arrays.sort(methods, new Comparator() {
+	public int compare(Object a, Object b) {
+	    return a.toString().compareTo(b.toString());
+	}
+    });
+
+    HashMap table = new HashMap();
+    for (int i = 0; i < methods.length; ++i) {
+	Method m = methods[i];
+	if (!Modifier.isStatic(m.getModifiers())
+	    || m.getDeclaringClass() != Functions.class
+	    || typeOfClass(m.getReturnType()) == -1
+	    || paramTypes(m) == null)
+	    continue;
+	List list = (List)table.get(m.getName());
+	if (list == null) {
+	    list = new ArrayList();
+	    table.put(m.getName(), list);
+	}
+	list.add(m);
+    }
+    return table;
+}
+
+/** Returns the expression type of a Java class, or -1 if there is none. */
+protected static int typeOfClass(Class c) {
+    if (c == Long.TYPE) return CompiledExpression.TYPE_LONG;
+    if (c == Double.TYPE) return CompiledExpression.TYPE_DOUBLE;
+    if (c == Boolean.TYPE) return CompiledExpression.TYPE_BOOLEAN;
+    if (c == String.class) return CompiledExpression.TYPE_STRING;
+    if (c == Date.class) return CompiledExpression.TYPE_DATE;
+    if (c == Object.class) return CompiledExpression.TYPE_OBJECT;
+    return -1;
+}
+
+protected static int[] paramTypes(Method m) {
+    Class[] classes = m.getParameterTypes();
+    int[] types = new int[classes.length];
+    for (int i = 0; i < classes.length; ++i)
+	if ((types[i] = typeOfClass(classes[i])) == -1)
+	    return null;
+    return types;
+}
+
+protected ExpressionCompiler(List parts) throws ExpressionException {
+    ArrayList ops = new ArrayList();
+    StringBuffer buf = new StringBuffer();
+    tokens = new ArrayList();
+    for (Iterator iter = parts.iterator(); iter.hasNext(); ) {
+	Object part = iter.next();
+	if (part instanceof Operand) {
+	    tokens.add(new Token(T_OPERAND, part.toString(),
+				 new Integer(ops.size())));
+	    ops.add(part);
+	    buf.append(part.toString());
+	}
+	else {
+	    tokenize(part.toString());
+	    buf.append(part.toString());
+	}
+    }
+    tokens.add(new Token(T_EOF, "end of expression", null));
+    source = buf.toString();
+    operands = (Operand[])ops.toArray(new Operand[ops.size()]);
+    strict = new boolean[operands.length];
+}
+
+// ================================================================
+// Lexer
+
+protected void tokenize(String str) throws ExpressionException {
+    int len = str.length();
+    int i = 0;
+    while (i < len) {
+	char c = str.charAt(i);
+	int start = i;
+	if (Character.isWhitespace(c)) {
+	    ++i;
+	}
+	else if (Character.isDigit(c)) {
+	    while (i < len && Character.isDigit(str.charAt(i)))
+		++i;
+	    boolean isDouble = false;
+	    if (i + 1 < len && str.charAt(i) == '.'
+		&& Character.isDigit(str.charAt(i + 1)))
+	    {
+		isDouble = true;
+		for (++i; i < len && Character.isDigit(str.charAt(i)); ++i)
+		    ;
+	    }
+	    if (i < len && (str.charAt(i) == 'e' || str.charAt(i) == 'E')) {
+		int exp = i + 1;
+		if (exp < len && "+-".indexOf(str.charAt(exp)) != -1)
+		    ++exp;
+		if (exp < len && Character.isDigit(str.charAt(exp))) {
+		    isDouble = true;
+		    for (i = exp; i < len && Character.isDigit(str.charAt(i)); ++i)
+			;
+		}
+	    }
+	    String text = str.substring(start, i);
+	    try {
+		tokens.add(new Token(T_NUMBER, text,
+				     isDouble ? (Object)new Double(text)
+				     : (Object)new Long(text)));
+	    }
+	    catch (NumberFormatException e) {
+		throw new ExpressionException("number too large: " + text);
+	    }
+	}
+	else if (c == '"' || c == '\'') {
+	    StringBuffer buf = new StringBuffer();
+	    for (++i; i < len && str.charAt(i) != c; ++i) {
+		char sc = str.charAt(i);
+		if (sc == '\\' && i + 1 < len) {
+		    sc = str.charAt(++i);
+		    switch (sc) {
+		    case 'n': sc = '\n'; break;
+		    case 't': sc = '\t'; break;
+		    case 'r': sc = '\r'; break;
+		    }
+		}
+		buf.append(sc);
+	    }
+	    if (i >= len)
+		throw new ExpressionException("unterminated string: "
+					      + str.substring(start));
+	    ++i;
+	    tokens.add(new Token(T_STRING, str.substring(start, i),
+				 buf.toString()));
+	}
+	else if (Character.isLetter(c) || c == '_') {
+	    while (i < len && (Character.isLetterOrDigit(str.charAt(i))
+			       || str.charAt(i) == '_'))
+		++i;
+	    tokens.add(new Token(T_IDENT, str.substring(start, i), null));
+	}
+	else if (c == '{') {
+	    int end = str.indexOf('}', i);
+	    throw new ExpressionException("unknown reference "
+					  + (end == -1 ? str.substring(i)
+					     : str.substring(i, end + 1)));
+	}
+	else {
+	    String two = i + 1 < len ? str.substring(i, i + 2) : "";
+	    if ("==".equals(two) || "!=".equals(two) || "<=".equals(two)
+		|| ">=".equals(two) || "&&".equals(two) || "||".equals(two))
+		i += 2;
+	    else if ("<>+-*/%!?:(),".indexOf(c) != -1)
+		++i;
+	    else if (c == '=')
+		throw new ExpressionException("use == to compare values");
+	    else
+		throw new ExpressionException("unexpected character '" + c
+					      + "'");
+	    tokens.add(new Token(T_OP, str.substring(start, i), null));
+	}
+    }
+}
+
+// ================================================================
+// Parser
+
+protected Token peek() { return (Token)tokens.get(pos); }
+
+protected Token next() { return (Token)tokens.get(pos++); }
+
+/** Skips the next token if it is the operator or word <var>text</var>. */
+protected boolean accept(String text) {
+    Token t = peek();
+    if ((t.kind == T_OP || t.kind == T_IDENT) && t.text.equals(text)) {
+	++pos;
+	return true;
+    }
+    return false;
+}
+
+protected void expect(String text) throws ExpressionException {
+    if (!accept(text))
+	throw error("expected \"" + text + "\"");
+}
+
+protected ExpressionException error(String msg) {
+    return new ExpressionException(msg + " before " + peek().text + " in "
+				   + source);
+}
+
+protected ExpressionException typeError(String op, Node left, Node right) {
+    String msg = "can't use " + op + " with "
+	+ CompiledExpression.typeName(left.type);
+    if (right != null)
+	msg += " and " + CompiledExpression.typeName(right.type);
+    if (left.type == Node.OBJECT || (right != null && right.type == Node.OBJECT))
+	msg += "; convert values of unknown type with " + CONVERSIONS;
+    return new ExpressionException(msg + " in " + source);
+}
+
+protected Node expression() throws ExpressionException {
+    Node condition = or();
+    if (!accept("?"))
+	return condition;
+    if (condition.type != Node.BOOLEAN)
+	throw typeError("?:", condition, null);
+    Node ifTrue = expression();
+    expect(":");
+    return new Node.Conditional(condition, ifTrue, expression());
+}
+
+protected Node or() throws ExpressionException {
+    Node left = and();
+    while (accept("||") || accept("or")) {
+	Node right = and();
+	if (left.type != Node.BOOLEAN || right.type != Node.BOOLEAN)
+	    throw typeError("or", left, right);
+	left = new Node.Logical(false, left, right);
+    }
+    return left;
+}
+
+protected Node and() throws ExpressionException {
+    Node left = not();
+    while (accept("&&") || accept("and")) {
+	Node right = not();
+	if (left.type != Node.BOOLEAN || right.type != Node.BOOLEAN)
+	    throw typeError("and", left, right);
+	left = new Node.Logical(true, left, right);
+    }
+    return left;
+}
+
+protected Node not() throws ExpressionException {
+    if (accept("!") || accept("not")) {
+	Node operand = not();
+	if (operand.type != Node.BOOLEAN)
+	    throw typeError("not", operand, null);
+	return new Node.Not(operand);
+    }
+    return comparison();
+}
+
+protected Node comparison() throws ExpressionException {
+    Node left = additive();
+    String[] ops = { "==", "!=", "<", "<=", ">", ">=" };
+    int[] jumps = { IFEQ, IFNE, IFLT, IFLE, IFGT, IFGE };
+    for (int i = 0; i < ops.length; ++i) {
+	if (!accept(ops[i]))
+	    continue;
+	Node right = additive();
+	int type = Node.common(left.type, right.type);
+	boolean equality = i < 2;
+	if ((type == Node.OBJECT && !(equality && left.type == right.type))
+	    || (type == Node.BOOLEAN && !equality))
+	    throw typeError(ops[i], left, right);
+	return new Node.Compare(jumps[i], type, left, right);
+    }
+    return left;
+}
+
+protected Node additive() throws ExpressionException {
+    Node left = multiplicative();
+    while (true) {
+	boolean plus = accept("+");
+	if (!plus && !accept("-"))
+	    return left;
+	Node right = multiplicative();
+	if (plus && (left.type == Node.STRING || right.type == Node.STRING))
+	    left = new Node.Concat(left, right);
+	else if (Node.isNumeric(left.type) && Node.isNumeric(right.type))
+	    left = new Node.Arithmetic(Node.common(left.type, right.type),
+				       plus ? LADD : LSUB, left, right);
+	else if (left.type == Node.DATE && Node.isNumeric(right.type))
+	    left = new Node.AddDays(left, right, !plus);
+	else if (plus && Node.isNumeric(left.type) && right.type == Node.DATE)
+	    left = new Node.AddDays(right, left, false);
+	else if (!plus && left.type == Node.DATE && right.type == Node.DATE)
+	    left = new Node.DateDifference(left, right);
+	else
+	    throw typeError(plus ? "+" : "-", left, right);
+    }
+}
+
+protected Node multiplicative() throws ExpressionException {
+    Node left = unary();
+    while (true) {
+	String op = peek().text;
+	int opcode;
+	if (accept("*")) opcode = LMUL;
+	else if (accept("/")) opcode = LDIV;
+	else if (accept("%")) opcode = LREM;
+	else return left;
+
+	Node right = unary();
+	if (!Node.isNumeric(left.type) || !Node.isNumeric(right.type))
+	    throw typeError(op, left, right);
+	int type = opcode == LDIV ? Node.DOUBLE
+	    : Node.common(left.type, right.type);
+	left = new Node.Arithmetic(type, opcode, left, right);
+    }
+}
+
+protected Node unary() throws ExpressionException {
+    if (!accept("-"))
+	return primary();
+    Node operand = unary();
+    if (!Node.isNumeric(operand.type))
+	throw typeError("-", operand, null);
+    if (operand instanceof Node.Literal) {
+	Object val = ((Node.Literal)operand).value;
+	return new Node.Literal(operand.type, operand.type == Node.LONG
+				? (Object)new Long(-((Long)val).longValue())
+				: (Object)new Double(-((Double)val).doubleValue()));
+    }
+    return new Node.Negate(operand);
+}
+
+protected Node primary() throws ExpressionException {
+    Token t = peek();
+    switch (t.kind) {
+    case T_NUMBER:
+	++pos;
+	return new Node.Literal(t.value instanceof Long ? Node.LONG : Node.DOUBLE,
+				t.value);
+    case T_STRING:
+	++pos;
+	return new Node.Literal(Node.STRING, t.value);
+    case T_OPERAND:
+	++pos;
+	int index = ((Integer)t.value).intValue();
+	strict[index] = true;
+	return new Node.OperandRef(index, operands[index].getType());
+    case T_IDENT:
+	++pos;
+	if ("true".equals(t.text) || "false".equals(t.text))
+	    return new Node.Literal(Node.BOOLEAN, Boolean.valueOf(t.text));
+	return call(t.text);
+    default:
+	if (accept("(")) {
+	    Node n = expression();
+	    expect(")");
+	    return n;
+	}
+	throw error("unexpected " + t.text);
+    }
+}
+
+/** Parses the arguments of a function call and finds the function. */
+protected Node call(String name) throws ExpressionException {
+    expect("(");
+    if ("isnull".equals(name) || "ifnull".equals(name)) {
+	Token t = next();
+	if (t.kind != T_OPERAND)
+	    throw error(name + " needs a column, parameter, or formula");
+	int index = ((Integer)t.value).intValue();
+	Node n;
+	if ("isnull".equals(name))
+	    n = new Node.IsNull(index);
+	else {
+	    expect(",");
+	    n = new Node.IfNull(index, operands[index].getType(), expression());
+	}
+	expect(")");
+	return n;
+    }
+
+    ArrayList args = new ArrayList();
+    if (!accept(")")) {
+	do {
+	    args.add(expression());
+	} while (accept(","));
+	expect(")");
+    }
+    Node[] argNodes = (Node[])args.toArray(new Node[args.size()]);
+
+    List candidates = (List)FUNCTIONS.get(name);
+    if (candidates == null)
+	throw new ExpressionException("unknown function " + name + " in "
+				      + source);
+    Method best = null;
+    int bestCost = Integer.MAX_VALUE;
+    for (Iterator iter = candidates.iterator(); iter.hasNext(); ) {
+	Method m = (Method)iter.next();
+	int cost = conversionCost(paramTypes(m), argNodes);
+	if (cost < bestCost) {
+	    best = m;
+	    bestCost = cost;
+	}
+    }
+    if (best == null) {
+	StringBuffer buf = new StringBuffer();
+	for (int i = 0; i < argNodes.length; ++i) {
+	    if (i > 0) buf.append(", ");
+	    buf.append(CompiledExpression.typeName(argNodes[i].type));
+	}
+	throw new ExpressionException("can't call " + name + "(" + buf
+				      + ") in " + source);
+    }
+    return new Node.Call(best, paramTypes(best),
+			 typeOfClass(best.getReturnType()), argNodes);
+}
+
+/**
+ * Returns the cost of converting arguments to parameter types, or
+ * <code>Integer.MAX_VALUE</code> if they can't be.
+ */
+protected int conversionCost(int[] params, Node[] args) {
+    if (params.length != args.length)
+	return Integer.MAX_VALUE;
+    int cost = 0;
+    for (int i = 0; i < params.length; ++i) {
+	int from = args[i].type;
+	if (from == params[i])
+	    continue;
+	else if (from == Node.LONG && params[i] == Node.DOUBLE)
+	    cost += 1;
+	else if (params[i] == Node.OBJECT)
+	    cost += 3;
+	else
+	    return Integer.MAX_VALUE;
+    }
+    return cost;
+}
+
+// ================================================================
+// Code generation
+
+protected CompiledExpression compile() throws ExpressionException {
+    if (peek().kind == T_EOF)
+	throw error("empty expression");
+    Node root = expression();
+    if (peek().kind != T_EOF)
+	throw error("unexpected " + peek().text);
+
+    String name;
+    synchronized (ExpressionCompiler.class) {
+	name = PACKAGE + "Expression" + (++classCount);
+    }
+    ClassWriter cw = new ClassWriter(true);
+    cw.visit(V1_4, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, name, null,
+	     Generator.BASE, null);
+
+    MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+    mv.visitCode();
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitMethodInsn(INVOKESPECIAL, Generator.BASE, "<init>", "()V");
+    mv.visitInsn(RETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    mv = cw.visitMethod(ACC_PUBLIC, "eval",
+			"([Ljava/lang/Object;)Ljava/lang/Object;", null, null);
+    mv.visitCode();
+    Generator g = new Generator(mv, operands);
+    g.loadOperands(strict);
+    root.generate(g, Node.OBJECT);
+    mv.visitInsn(ARETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+    cw.visitEnd();
+
+    CompiledExpression compiled;
+    try {
+	Loader loader = new Loader(ExpressionCompiler.class.getClassLoader());
+	compiled = (CompiledExpression)loader
+	    .define(name.replace('/', '.'), cw.toByteArray()).newInstance();
+    }
+    catch (Exception e) {
+	throw new ExpressionException("can't load compiled " + source + ": "
+				      + e);
+    }
+    catch (LinkageError e) {	// Verify error; a bug in this class
+	throw new ExpressionException("can't load compiled " + source + ": "
+				      + e);
+    }
+    compiled.source = source;
+    compiled.type = root.type;
+    return compiled;
+}
+
+}
@@ -0,0 +1,55 @@
+package jimm.datavision.expr;
+import java.util.HashMap;
+import org.apache.bsf.BSFException;
+import org.apache.bsf.util.BSFEngineImpl;
+
+/**
+ * Lets the Bean Scripting Framework evaluate expressions, so the
+ * expression language can be chosen like any other scripting language.
+ * Formulas don't use this engine; they compile their expressions once
+ * with {@link ExpressionCompiler} and hand operand values to the compiled
+ * expression directly. This engine evaluates expressions that have no
+ * operands, compiling each one the first time it is seen.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class ExpressionEngine extends BSFEngineImpl {
+
+/** The most compiled expressions kept. */
+protected static final int CACHE_SIZE = 64;
+protected static final Object[] NO_VALUES = new Object[0];
+
+protected HashMap compiled = new HashMap();
+
+public Object eval(String source, int lineNo, int columnNo, Object expr)
+    throws BSFException
+{
+    String text = expr.toString();
+    try {
+	CompiledExpression ce = (CompiledExpression)compiled.get(text);
+	if (ce == null) {
+	    if (compiled.size() >= CACHE_SIZE)
+		compiled.clear();
+	    ce = ExpressionCompiler.compile(text);
+	    compiled.put(text, ce);
+	}
+	return ce.eval(NO_VALUES);
+    }
+    catch (ExpressionException e) {
+	throw new BSFException(BSFException.REASON_EXECUTION_ERROR,
+			       e.getMessage(), e);
+    }
+    catch (RuntimeException e) {
+	throw new BSFException(BSFException.REASON_EXECUTION_ERROR,
+			       e.toString(), e);
+    }
+}
+
+public Object call(Object object, String name, Object[] args)
+    throws BSFException
+{
+    throw new BSFException(BSFException.REASON_UNSUPPORTED_FEATURE,
+			   "expressions can't call methods");
+}
+
+}
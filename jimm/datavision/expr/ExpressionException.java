@@ -0,0 +1,14 @@
+package jimm.datavision.expr;
+
+/**
+ * Thrown when an expression has a syntax or type error.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class ExpressionException extends Exception {
+
+public ExpressionException(String msg) {
+    super(msg);
+}
+
+}
@@ -0,0 +1,289 @@
+package jimm.datavision.expr;
+import java.text.DecimalFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * The functions that expressions may call. Every public static method whose
+ * parameter and return types are <code>long</code>, <code>double</code>,
+ * <code>boolean</code>, <code>String</code>, <code>Date</code>, or
+ * <code>Object</code> is a function; the compiler finds them by
+ * reflection, so adding a function only takes adding a method here. A
+ * function may be overloaded; the compiler picks the method whose
+ * parameter types best match the arguments.
+ * <p>
+ * String positions are one-based, as in SQL.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class Functions {
+
+protected static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+private Functions() {}
+
+// ================================================================
+// Strings
+
+public static long length(String s) { return s.length(); }
+
+public static String upper(String s) { return s.toUpperCase(); }
+
+public static String lower(String s) { return s.toLowerCase(); }
+
+public static String trim(String s) { return s.trim(); }
+
+/** Returns <var>len</var> characters starting at one-based <var>start</var>. */
+public static String substr(String s, long start, long len) {
+    int from = (int)Math.max(0, Math.min(start - 1, s.length()));
+    int to = (int)Math.max(from, Math.min(from + len, s.length()));
+    return s.substring(from, to);
+}
+
+/** Returns the characters starting at one-based <var>start</var>. */
+public static String substr(String s, long start) {
+    return substr(s, start, s.length());
+}
+
+public static String left(String s, long len) { return substr(s, 1, len); }
+
+public static String right(String s, long len) {
+    return substr(s, s.length() - Math.max(0, len) + 1, len);
+}
+
+/** Returns the one-based position of <var>t</var> in <var>s</var>, or 0. */
+public static long indexOf(String s, String t) { return s.indexOf(t) + 1; }
+
+public static boolean contains(String s, String t) {
+    return s.indexOf(t) != -1;
+}
+
+public static boolean startsWith(String s, String t) {
+    return s.startsWith(t);
+}
+
+public static boolean endsWith(String s, String t) { return s.endsWith(t); }
+
+/** Replaces every occurrence of <var>from</var> with <var>to</var>. */
+public static String replace(String s, String from, String to) {
+    if (from.length() == 0)
+	return s;
+    StringBuffer buf = new StringBuffer();
+    int start = 0;
+    for (int pos = s.indexOf(from); pos != -1; pos = s.indexOf(from, start)) {
+	buf.append(s.substring(start, pos));
+	buf.append(to);
+	start = pos + from.length();
+    }
+    buf.append(s.substring(start));
+    return buf.toString();
+}
+
+public static String repeat(String s, long times) {
+    StringBuffer buf = new StringBuffer();
+    for (long i = 0; i < times; ++i)
+	buf.append(s);
+    return buf.toString();
+}
+
+/** Pads <var>s</var> on the left with <var>pad</var> to <var>len</var>. */
+public static String lpad(String s, long len, String pad) {
+    if (pad.length() == 0 || s.length() >= len)
+	return s;
+    StringBuffer buf = new StringBuffer();
+    while (buf.length() + s.length() < len)
+	buf.append(pad);
+    buf.setLength((int)len - s.length());
+    return buf.append(s).toString();
+}
+
+/** Pads <var>s</var> on the right with <var>pad</var> to <var>len</var>. */
+public static String rpad(String s, long len, String pad) {
+    if (pad.length() == 0 || s.length() >= len)
+	return s;
+    StringBuffer buf = new StringBuffer(s);
+    while (buf.length() < len)
+	buf.append(pad);
+    buf.setLength((int)len);
+    return buf.toString();
+}
+
+// ================================================================
+// Numbers
+
+public static long abs(long n) { return Math.abs(n); }
+
+public static double abs(double n) { return Math.abs(n); }
+
+public static long round(double n) { return Math.round(n); }
+
+/** Rounds <var>n</var> to <var>digits</var> places after the decimal point. */
+public static double round(double n, long digits) {
+    double scale = Math.pow(10, digits);
+    return Math.round(n * scale) / scale;
+}
+
+public static long floor(double n) { return (long)Math.floor(n); }
+
+public static long ceil(double n) { return (long)Math.ceil(n); }
+
+public static double sqrt(double n) { return Math.sqrt(n); }
+
+public static double pow(double n, double power) { return Math.pow(n, power); }
+
+public static double exp(double n) { return Math.exp(n); }
+
+public static double log(double n) { return Math.log(n); }
+
+public static double log10(double n) { return Math.log(n) / Math.log(10); }
+
+public static long min(long a, long b) { return Math.min(a, b); }
+
+public static double min(double a, double b) { return Math.min(a, b); }
+
+public static long max(long a, long b) { return Math.max(a, b); }
+
+public static double max(double a, double b) { return Math.max(a, b); }
+
+public static long sign(double n) { return n < 0 ? -1 : (n > 0 ? 1 : 0); }
+
+// ================================================================
+// Conversions
+
+public static String string(long n) { return String.valueOf(n); }
+
+public static String string(double n) { return String.valueOf(n); }
+
+public static String string(boolean b) { return String.valueOf(b); }
+
+public static String string(Object obj) {
+    return CompiledExpression.stringValue(obj);
+}
+
+public static double number(String s) { return Double.parseDouble(s.trim()); }
+
+public static double number(Object obj) {
+    if (obj instanceof Number)
+	return ((Number)obj).doubleValue();
+    return number(string(obj));
+}
+
+public static long integer(double n) { return (long)n; }
+
+public static long integer(String s) { return (long)number(s); }
+
+public static long integer(Object obj) {
+    if (obj instanceof Number)
+	return ((Number)obj).longValue();
+    return integer(string(obj));
+}
+
+public static boolean bool(Object obj) {
+    if (obj instanceof Boolean)
+	return ((Boolean)obj).booleanValue();
+    if (obj instanceof Number)
+	return ((Number)obj).doubleValue() != 0;
+    return "true".equalsIgnoreCase(string(obj).trim());
+}
+
+public static Date date(Object obj) {
+    if (obj instanceof Date)
+	return (Date)obj;
+    return parseDate(string(obj), "yyyy-MM-dd");
+}
+
+/** Formats a number using a <code>java.text.DecimalFormat</code> pattern. */
+public static String format(double n, String pattern) {
+    return new DecimalFormat(pattern).format(n);
+}
+
+/** Formats a date using a <code>java.text.SimpleDateFormat</code> pattern. */
+public static String format(Date d, String pattern) {
+    return new SimpleDateFormat(pattern).format(d);
+}
+
+// ================================================================
+// Dates
+
+public static Date now() { return new Date(); }
+
+public static Date today() {
+    Calendar cal = Calendar.getInstance();
+    cal.set(Calendar.HOUR_OF_DAY, 0);
+    cal.set(Calendar.MINUTE, 0);
+    cal.set(Calendar.SECOND, 0);
+    cal.set(Calendar.MILLISECOND, 0);
+    return cal.getTime();
+}
+
+/** Returns a date; <var>month</var> is one-based. */
+public static Date date(long year, long month, long day) {
+    Calendar cal = Calendar.getInstance();
+    cal.clear();
+    cal.set((int)year, (int)month - 1, (int)day);
+    return cal.getTime();
+}
+
+/**
+ * Parses a date using a <code>java.text.SimpleDateFormat</code> pattern.
+ *
+ * @throws IllegalArgumentException if <var>s</var> can't be parsed
+ */
+public static Date parseDate(String s, String pattern) {
+    try {
+	return new SimpleDateFormat(pattern).parse(s);
+    }
+    catch (ParseException pe) {
+	throw new IllegalArgumentException("can't parse date \"" + s + '"');
+    }
+}
+
+public static long year(Date d) { return field(d, Calendar.YEAR); }
+
+/** Returns the month, January being 1. */
+public static long month(Date d) { return field(d, Calendar.MONTH) + 1; }
+
+public static long day(Date d) { return field(d, Calendar.DAY_OF_MONTH); }
+
+public static long hour(Date d) { return field(d, Calendar.HOUR_OF_DAY); }
+
+public static long minute(Date d) { return field(d, Calendar.MINUTE); }
+
+public static long second(Date d) { return field(d, Calendar.SECOND); }
+
+/** Returns the day of the week, Sunday being 1. */
+public static long weekday(Date d) { return field(d, Calendar.DAY_OF_WEEK); }
+
+protected static long field(Date d, int field) {
+    Calendar cal = Calendar.getInstance();
+    cal.setTime(d);
+    return cal.get(field);
+}
+
+public static Date addDays(Date d, double days) {
+    return new Date(d.getTime() + Math.round(days * MILLIS_PER_DAY));
+}
+
+public static Date addMonths(Date d, long months) {
+    return add(d, Calendar.MONTH, months);
+}
+
+public static Date addYears(Date d, long years) {
+    return add(d, Calendar.YEAR, years);
+}
+
+protected static Date add(Date d, int field, long amount) {
+    Calendar cal = Calendar.getInstance();
+    cal.setTime(d);
+    cal.add(field, (int)amount);
+    return cal.getTime();
+}
+
+/** Returns the number of days from <var>from</var> to <var>to</var>. */
+public static double daysBetween(Date from, Date to) {
+    return (double)(to.getTime() - from.getTime()) / MILLIS_PER_DAY;
+}
+
+}
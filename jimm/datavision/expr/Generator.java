@@ -0,0 +1,183 @@
+package jimm.datavision.expr;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Writes the bytecode of a compiled expression's <code>eval</code> method
+ * for the {@link Node}s of the expression.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+class Generator implements Opcodes {
+
+static final String BASE = "jimm/datavision/expr/CompiledExpression";
+static final String FUNCTIONS = "jimm/datavision/expr/Functions";
+static final String[] DESCRIPTORS = {
+    "Z", "J", "D", "Ljava/lang/String;", "Ljava/util/Date;",
+    "Ljava/lang/Object;"
+};
+static final String[] UNBOXERS = {
+    "booleanValue", "longValue", "doubleValue", "stringValue", "dateValue",
+    null
+};
+
+MethodVisitor mv;
+Operand[] operands;
+int[] locals;			// Local variable of each loaded operand
+
+Generator(MethodVisitor mv, Operand[] operands) {
+    this.mv = mv;
+    this.operands = operands;
+    locals = new int[operands.length];
+}
+
+/** Returns the descriptor of a method taking and returning types. */
+static String descriptor(int[] params, int result) {
+    StringBuffer buf = new StringBuffer("(");
+    for (int i = 0; i < params.length; ++i)
+	buf.append(DESCRIPTORS[params[i]]);
+    buf.append(')');
+    buf.append(DESCRIPTORS[result]);
+    return buf.toString();
+}
+
+static boolean isWide(int type) {
+    return type == CompiledExpression.TYPE_LONG
+	|| type == CompiledExpression.TYPE_DOUBLE;
+}
+
+/**
+ * Writes code that copies each operand in <var>strict</var> from the
+ * values array into a local variable, returning <code>null</code> from
+ * <code>eval</code> if the value is <code>null</code>.
+ */
+void loadOperands(boolean[] strict) {
+    Label isNull = new Label();
+    boolean any = false;
+    int next = 2;		// After this and values
+    for (int i = 0; i < operands.length; ++i) {
+	if (!strict[i])
+	    continue;
+	int type = operands[i].getType();
+	loadRaw(i);
+	mv.visitInsn(DUP);
+	mv.visitJumpInsn(IFNULL, isNull);
+	unbox(type);
+	locals[i] = next;
+	mv.visitVarInsn(storeOpcode(type), next);
+	next += isWide(type) ? 2 : 1;
+	any = true;
+    }
+    if (any) {
+	Label start = new Label();
+	mv.visitJumpInsn(GOTO, start);
+	mv.visitLabel(isNull);
+	mv.visitInsn(POP);
+	mv.visitInsn(ACONST_NULL);
+	mv.visitInsn(ARETURN);
+	mv.visitLabel(start);
+    }
+}
+
+/** Pushes the value of a loaded operand. */
+void loadOperand(int i) {
+    int type = operands[i].getType();
+    mv.visitVarInsn(storeOpcode(type) - (ISTORE - ILOAD), locals[i]);
+}
+
+/** Pushes an operand's value from the values array, as an object. */
+void loadRaw(int i) {
+    mv.visitVarInsn(ALOAD, 1);
+    pushInt(i);
+    mv.visitInsn(AALOAD);
+}
+
+static int storeOpcode(int type) {
+    switch (type) {
+    case CompiledExpression.TYPE_BOOLEAN: return ISTORE;
+    case CompiledExpression.TYPE_LONG: return LSTORE;
+    case CompiledExpression.TYPE_DOUBLE: return DSTORE;
+    default: return ASTORE;
+    }
+}
+
+/** Converts the object on the stack to a value of <var>type</var>. */
+void unbox(int type) {
+    if (UNBOXERS[type] != null)
+	mv.visitMethodInsn(INVOKESTATIC, BASE, UNBOXERS[type],
+			   "(Ljava/lang/Object;)" + DESCRIPTORS[type]);
+}
+
+/**
+ * Converts the value on the stack from type <var>from</var> to type
+ * <var>to</var>. The compiler only asks for integer to number, anything
+ * to string, and anything to object.
+ */
+void convert(int from, int to) {
+    if (from == to)
+	return;
+    switch (to) {
+    case CompiledExpression.TYPE_DOUBLE:
+	mv.visitInsn(L2D);
+	break;
+    case CompiledExpression.TYPE_STRING:
+	String param = isWide(from) || from == CompiledExpression.TYPE_BOOLEAN
+	    ? DESCRIPTORS[from] : "Ljava/lang/Object;";
+	mv.visitMethodInsn(INVOKESTATIC, FUNCTIONS, "string",
+			   "(" + param + ")Ljava/lang/String;");
+	break;
+    case CompiledExpression.TYPE_OBJECT:
+	if (isWide(from) || from == CompiledExpression.TYPE_BOOLEAN)
+	    mv.visitMethodInsn(INVOKESTATIC, BASE, "box",
+			       "(" + DESCRIPTORS[from] + ")Ljava/lang/Object;");
+	break;
+    default:
+	throw new IllegalArgumentException("can't convert "
+					   + CompiledExpression.typeName(from)
+					   + " to "
+					   + CompiledExpression.typeName(to));
+    }
+}
+
+void pushInt(int i) {
+    if (i >= -1 && i <= 5)
+	mv.visitInsn(ICONST_0 + i);
+    else if (i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE)
+	mv.visitIntInsn(BIPUSH, i);
+    else if (i >= Short.MIN_VALUE && i <= Short.MAX_VALUE)
+	mv.visitIntInsn(SIPUSH, i);
+    else
+	mv.visitLdcInsn(new Integer(i));
+}
+
+void pushLong(long n) {
+    if (n == 0 || n == 1)
+	mv.visitInsn(LCONST_0 + (int)n);
+    else
+	mv.visitLdcInsn(new Long(n));
+}
+
+void pushDouble(double n) {
+    if (n == 0 || n == 1)
+	mv.visitInsn(DCONST_0 + (int)n);
+    else
+	mv.visitLdcInsn(new Double(n));
+}
+
+/**
+ * Replaces the value on the stack with 1 if <var>jump</var> (an
+ * <code>IF</code> opcode) would jump, else with 0.
+ */
+void pushCondition(int jump) {
+    Label yes = new Label();
+    Label end = new Label();
+    mv.visitJumpInsn(jump, yes);
+    mv.visitInsn(ICONST_0);
+    mv.visitJumpInsn(GOTO, end);
+    mv.visitLabel(yes);
+    mv.visitInsn(ICONST_1);
+    mv.visitLabel(end);
+}
+
+}
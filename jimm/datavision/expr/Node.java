@@ -0,0 +1,311 @@
+package jimm.datavision.expr;
+import java.lang.reflect.Method;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * A node of a parsed expression. Each node knows the type of its value
+ * and writes the code that pushes that value onto the stack.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+abstract class Node implements Opcodes {
+
+static final int BOOLEAN = CompiledExpression.TYPE_BOOLEAN;
+static final int LONG = CompiledExpression.TYPE_LONG;
+static final int DOUBLE = CompiledExpression.TYPE_DOUBLE;
+static final int STRING = CompiledExpression.TYPE_STRING;
+static final int DATE = CompiledExpression.TYPE_DATE;
+static final int OBJECT = CompiledExpression.TYPE_OBJECT;
+
+int type;
+
+Node(int type) { this.type = type; }
+
+abstract void generate(Generator g);
+
+/** Writes this node's code and converts its value to <var>to</var>. */
+void generate(Generator g, int to) {
+    generate(g);
+    g.convert(type, to);
+}
+
+static boolean isNumeric(int type) { return type == LONG || type == DOUBLE; }
+
+/**
+ * Returns the type both <var>a</var> and <var>b</var> can be converted to:
+ * the type itself if they are the same, number for a mix of integers and
+ * numbers, and object otherwise.
+ */
+static int common(int a, int b) {
+    if (a == b) return a;
+    if (isNumeric(a) && isNumeric(b)) return DOUBLE;
+    return OBJECT;
+}
+
+// ================================================================
+
+static class Literal extends Node {
+    Object value;
+    Literal(int type, Object value) { super(type); this.value = value; }
+    void generate(Generator g) {
+	switch (type) {
+	case BOOLEAN:
+	    g.mv.visitInsn(((Boolean)value).booleanValue() ? ICONST_1 : ICONST_0);
+	    break;
+	case LONG:
+	    g.pushLong(((Long)value).longValue());
+	    break;
+	case DOUBLE:
+	    g.pushDouble(((Double)value).doubleValue());
+	    break;
+	default:
+	    g.mv.visitLdcInsn(value);
+	    break;
+	}
+    }
+}
+
+/** An operand that has been loaded into a local variable. */
+static class OperandRef extends Node {
+    int index;
+    OperandRef(int index, int type) { super(type); this.index = index; }
+    void generate(Generator g) { g.loadOperand(index); }
+}
+
+/** <code>isnull({...})</code>: true if the operand's value is null. */
+static class IsNull extends Node {
+    int index;
+    IsNull(int index) { super(BOOLEAN); this.index = index; }
+    void generate(Generator g) {
+	g.loadRaw(index);
+	g.pushCondition(IFNULL);
+    }
+}
+
+/**
+ * <code>ifnull({...}, default)</code>: the operand's value, or the default
+ * if it is null.
+ */
+static class IfNull extends Node {
+    int index;
+    int operandType;
+    Node otherwise;
+    IfNull(int index, int operandType, Node otherwise) {
+	super(common(operandType, otherwise.type));
+	this.index = index;
+	this.operandType = operandType;
+	this.otherwise = otherwise;
+    }
+    void generate(Generator g) {
+	Label isNull = new Label();
+	Label end = new Label();
+	g.loadRaw(index);
+	g.mv.visitInsn(DUP);
+	g.mv.visitJumpInsn(IFNULL, isNull);
+	g.unbox(operandType);
+	g.convert(operandType, type);
+	g.mv.visitJumpInsn(GOTO, end);
+	g.mv.visitLabel(isNull);
+	g.mv.visitInsn(POP);
+	otherwise.generate(g, type);
+	g.mv.visitLabel(end);
+    }
+}
+
+static class Negate extends Node {
+    Node operand;
+    Negate(Node operand) { super(operand.type); this.operand = operand; }
+    void generate(Generator g) {
+	operand.generate(g);
+	g.mv.visitInsn(type == LONG ? LNEG : DNEG);
+    }
+}
+
+static class Not extends Node {
+    Node operand;
+    Not(Node operand) { super(BOOLEAN); this.operand = operand; }
+    void generate(Generator g) {
+	operand.generate(g);
+	g.mv.visitInsn(ICONST_1);
+	g.mv.visitInsn(IXOR);
+    }
+}
+
+/** Integer or number arithmetic. */
+static class Arithmetic extends Node {
+    int opcode;			// The long version
+    Node left, right;
+    Arithmetic(int type, int opcode, Node left, Node right) {
+	super(type);
+	this.opcode = opcode;
+	this.left = left;
+	this.right = right;
+    }
+    void generate(Generator g) {
+	left.generate(g, type);
+	right.generate(g, type);
+	g.mv.visitInsn(type == LONG ? opcode : opcode + (DADD - LADD));
+    }
+}
+
+static class Concat extends Node {
+    Node left, right;
+    Concat(Node left, Node right) {
+	super(STRING);
+	this.left = left;
+	this.right = right;
+    }
+    void generate(Generator g) {
+	left.generate(g, STRING);
+	right.generate(g, STRING);
+	g.mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "concat",
+			     "(Ljava/lang/String;)Ljava/lang/String;");
+    }
+}
+
+/** A date plus or minus a number of days. */
+static class AddDays extends Node {
+    Node date, days;
+    boolean subtract;
+    AddDays(Node date, Node days, boolean subtract) {
+	super(DATE);
+	this.date = date;
+	this.days = days;
+	this.subtract = subtract;
+    }
+    void generate(Generator g) {
+	date.generate(g);
+	days.generate(g, DOUBLE);
+	if (subtract)
+	    g.mv.visitInsn(DNEG);
+	g.mv.visitMethodInsn(INVOKESTATIC, Generator.FUNCTIONS, "addDays",
+			     "(Ljava/util/Date;D)Ljava/util/Date;");
+    }
+}
+
+/** The number of days from one date to another. */
+static class DateDifference extends Node {
+    Node left, right;
+    DateDifference(Node left, Node right) {
+	super(DOUBLE);
+	this.left = left;
+	this.right = right;
+    }
+    void generate(Generator g) {
+	right.generate(g);
+	left.generate(g);
+	g.mv.visitMethodInsn(INVOKESTATIC, Generator.FUNCTIONS, "daysBetween",
+			     "(Ljava/util/Date;Ljava/util/Date;)D");
+    }
+}
+
+/** A comparison of two values of type <var>operandType</var>. */
+static class Compare extends Node {
+    int jump;			// IFEQ, IFNE, IFLT, etc.
+    int operandType;
+    Node left, right;
+    Compare(int jump, int operandType, Node left, Node right) {
+	super(BOOLEAN);
+	this.jump = jump;
+	this.operandType = operandType;
+	this.left = left;
+	this.right = right;
+    }
+    void generate(Generator g) {
+	left.generate(g, operandType);
+	right.generate(g, operandType);
+	switch (operandType) {
+	case BOOLEAN:
+	    g.mv.visitInsn(ISUB);
+	    break;
+	case LONG:
+	    g.mv.visitInsn(LCMP);
+	    break;
+	case DOUBLE:		// NaN compares false
+	    g.mv.visitInsn(jump == IFLT || jump == IFLE ? DCMPG : DCMPL);
+	    break;
+	case STRING:
+	    g.mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "compareTo",
+				 "(Ljava/lang/String;)I");
+	    break;
+	case DATE:
+	    g.mv.visitMethodInsn(INVOKEVIRTUAL, "java/util/Date", "compareTo",
+				 "(Ljava/util/Date;)I");
+	    break;
+	default:		// Equal is 1, so flip the test
+	    g.mv.visitMethodInsn(INVOKESTATIC, Generator.BASE, "equal",
+				 "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+	    g.pushCondition(jump == IFEQ ? IFNE : IFEQ);
+	    return;
+	}
+	g.pushCondition(jump);
+    }
+}
+
+/** Short-circuit "and" and "or". */
+static class Logical extends Node {
+    boolean and;
+    Node left, right;
+    Logical(boolean and, Node left, Node right) {
+	super(BOOLEAN);
+	this.and = and;
+	this.left = left;
+	this.right = right;
+    }
+    void generate(Generator g) {
+	Label shortCircuit = new Label();
+	Label end = new Label();
+	left.generate(g);
+	g.mv.visitJumpInsn(and ? IFEQ : IFNE, shortCircuit);
+	right.generate(g);
+	g.mv.visitJumpInsn(GOTO, end);
+	g.mv.visitLabel(shortCircuit);
+	g.mv.visitInsn(and ? ICONST_0 : ICONST_1);
+	g.mv.visitLabel(end);
+    }
+}
+
+/** <code>condition ? a : b</code> */
+static class Conditional extends Node {
+    Node condition, ifTrue, ifFalse;
+    Conditional(Node condition, Node ifTrue, Node ifFalse) {
+	super(common(ifTrue.type, ifFalse.type));
+	this.condition = condition;
+	this.ifTrue = ifTrue;
+	this.ifFalse = ifFalse;
+    }
+    void generate(Generator g) {
+	Label otherwise = new Label();
+	Label end = new Label();
+	condition.generate(g);
+	g.mv.visitJumpInsn(IFEQ, otherwise);
+	ifTrue.generate(g, type);
+	g.mv.visitJumpInsn(GOTO, end);
+	g.mv.visitLabel(otherwise);
+	ifFalse.generate(g, type);
+	g.mv.visitLabel(end);
+    }
+}
+
+/** A call to one of the {@link Functions}. */
+static class Call extends Node {
+    Method method;
+    int[] paramTypes;
+    Node[] args;
+    Call(Method method, int[] paramTypes, int resultType, Node[] args) {
+	super(resultType);
+	this.method = method;
+	this.paramTypes = paramTypes;
+	this.args = args;
+    }
+    void generate(Generator g) {
+	for (int i = 0; i < args.length; ++i)
+	    args[i].generate(g, paramTypes[i]);
+	g.mv.visitMethodInsn(INVOKESTATIC, Generator.FUNCTIONS,
+			     method.getName(),
+			     Generator.descriptor(paramTypes, type));
+    }
+}
+
+}
@@ -0,0 +1,33 @@
+package jimm.datavision.expr;
+
+/**
+ * A value an expression refers to, such as a column or parameter. The
+ * compiler only needs to know its type; its value is handed to {@link
+ * CompiledExpression#eval} each time the expression is evaluated.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class Operand {
+
+protected int type;
+protected String text;
+
+/**
+ * Constructor.
+ *
+ * @param type one of the <code>CompiledExpression.TYPE_</code> constants
+ * @param text the reference as it appears in the expression; used in error
+ * messages
+ */
+public Operand(int type, String text) {
+    this.type = type;
+    this.text = text;
+}
+
+public int getType() { return type; }
+
+public String getText() { return text; }
+
+public String toString() { return text; }
+
+}
@@ -1,5 +1,6 @@
 package jimm.datavision.field;
 import jimm.datavision.*;
+import jimm.datavision.source.DataCursor;
 import java.util.*;
 
 interface AggregateFunction {
@@ -92,6 +93,9 @@ protected AggregateFunction function;
 protected double[] values;	// Read-only
 protected int valuesIndex;
 protected Field fieldToAggregate;
+protected int partialSlot;	// Non-zero when rows hold partial aggregates
+protected int partialCountSlot;
+protected double partialCount;
 
 /**
  * Returns <code>true</code> if <var>functionName</var> is a legal aggregate
@@ -168,6 +172,22 @@ public String dragString() {
     return typeString() + ":" + getField().getId();
 }
 
+/**
+ * Makes this field aggregate values that the data source has already
+ * partly aggregated, one row per group, instead of detail values. Each row
+ * holds this field's function applied to the group's values, except that
+ * for "average" it holds their sum. For "count" and "average", each row
+ * also holds the group's row count. Called while a report is being run by
+ * {@link jimm.datavision.source.sql.AggregatePushDown}.
+ *
+ * @param valueSlot the 1-based column index of the partial value, or 0
+ * @param countSlot the 1-based column index of the partial row count, or 0
+ */
+public void usePartialAggregates(int valueSlot, int countSlot) {
+    partialSlot = valueSlot;
+    partialCountSlot = countSlot;
+}
+
 /**
  * Returns the group over which this field is aggregating. May return
  * <code>null</code> since not all aggregate fields are associated with
@@ -225,6 +245,16 @@ public Long getFieldId() {
 public double getAggregateValue() {
     if (function == null)
 	return 0;
+    if (partialCountSlot != 0) {
+	if ("count".equals(functionName))
+	    return partialCount;
+	if ("average".equals(functionName)) {
+	    if (partialCount == 0)
+		return 0;
+	    return ((AggregateFunction)functions.get("sum"))
+		.aggregate(values, valuesIndex) / partialCount;
+	}
+    }
     return function.aggregate(values, valuesIndex);
 }
 
@@ -273,15 +303,26 @@ public boolean canBeAggregated() {
 public void updateAggregate() {
     /*
      * Our value field holds the id of some other field. Get that field's
-     * value, then convert it to a double.
+     * value, then convert it to a double. Column values are read straight
+     * from the current row so they need not be boxed.
      */
-    Object obj = getField().getValue();
+    Field f = getField();
     double value = 0;
-    if (obj != null) {
-	if (obj instanceof Number)
-	    value = ((Number)obj).doubleValue();
-	else
-	    value = Double.parseDouble(obj.toString());
+    DataCursor row = getReport().getCurrentRow();
+    if (partialSlot != 0 || partialCountSlot != 0) {
+	if (partialSlot != 0)
+	    value = row.getDouble(partialSlot);
+    }
+    else if (f instanceof ColumnField)
+	value = ((ColumnField)f).getDoubleValue();
+    else {
+	Object obj = f.getValue();
+	if (obj != null) {
+	    if (obj instanceof Number)
+		value = ((Number)obj).doubleValue();
+	    else
+		value = Double.parseDouble(obj.toString());
+	}
     }
 
     // If we are aggregating within a group and this is a new value,
@@ -290,6 +331,7 @@ public void updateAggregate() {
     if (values == null || (group != null && group.isNewValue())) {
 	values = new double[START_VALUES_LENGTH];
 	valuesIndex = 0;
+	partialCount = 0;
     }
     else if (valuesIndex == values.length) { // Expand the values array
 	double[] newValues = new double[values.length * 2];
@@ -297,6 +339,8 @@ public void updateAggregate() {
 	values = newValues;
     }
     values[valuesIndex++] = value;
+    if (partialCountSlot != 0)
+	partialCount += row.getDouble(partialCountSlot);
 }
 
 /**
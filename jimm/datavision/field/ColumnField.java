@@ -2,6 +2,7 @@ package jimm.datavision.field;
 import jimm.datavision.Report;
 import jimm.datavision.Section;
 import jimm.datavision.source.Column;
+import jimm.datavision.source.SelectableAccessor;
 import jimm.util.I18N;
 
 /**
@@ -13,6 +14,7 @@ import jimm.util.I18N;
 public class ColumnField extends Field {
 
 protected Column column;
+protected SelectableAccessor accessor;
 
 /**
  * Constructs a column field with the specified id in the specified report
@@ -35,6 +37,7 @@ public ColumnField(Long id, Report report, Section section, Object value,
 	    + I18N.get("UnknownColumn.column_unknown");
 	throw new IllegalArgumentException(errorMsg);
     }
+    accessor = new SelectableAccessor(column);
 }
 
 public String dragString() {
@@ -56,6 +59,7 @@ public Column getColumn() { return column; }
 public void setColumn(Column newColumn) {
     if (column != newColumn) {
 	column = newColumn;
+	accessor = new SelectableAccessor(column);
 	setChanged();
 	notifyObservers();
     }
@@ -71,7 +75,16 @@ public String formulaString() { return "{" + value + "}"; }
  *
  * @return the value string
  */
-public Object getValue() { return getReport().columnValue(column); }
+public Object getValue() { return accessor.getValue(getReport()); }
+
+/**
+ * Returns the value of this field as a <code>double</code>. Only defined
+ * while the report is running.
+ *
+ * @return the current value of the database column as a <code>double</code>
+ * @see SelectableAccessor#getDoubleValue
+ */
+public double getDoubleValue() { return accessor.getDoubleValue(getReport()); }
 
 /**
  * This override returns <code>true</code> if this column is in a detail
@@ -121,6 +121,20 @@ public boolean canBeAggregated() {
  */
 public Object getValue() { return formula.eval(this); }
 
+/**
+ * Returns the height needed to output the current value of this field.
+ * Hidden fields don't evaluate their formulas just to be measured unless
+ * the formula has side effects; they return the height of their bounds,
+ * so they still take up the same room in their section.
+ *
+ * @return the output height
+ * @see Formula#hasSideEffects
+ */
+public double getOutputHeight() {
+    return isVisible() || formula.hasSideEffects() ? super.getOutputHeight()
+	: getBounds().height;
+}
+
 /**
  * Returns a collection of the columns used in the formula. This is used
  * by the report's query when it is figuring out what columns and tables
@@ -128,6 +128,16 @@ public String designLabel() { return "{" + value + "}"; }
 
 public String formulaString() { return "{%" + value + "}"; }
 
+/**
+ * Returns <code>true</code> if this field's value counts data rows, as
+ * "report.row" and "group.count" do.
+ *
+ * @return <code>true</code> if this field counts rows
+ */
+public boolean countsRows() {
+    return "report.row".equals(value) || "group.count".equals(value);
+}
+
 /**
  * Returns the value of this field.
  *
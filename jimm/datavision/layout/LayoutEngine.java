@@ -87,9 +87,11 @@ public boolean wantsMoreData() { return wantsMoreData; }
 
 /**
  * Called by someone else running the report to cancel all the hard work
- * this layout engine has performed.
+ * this layout engine has performed. After this, {@link #wantsMoreData}
+ * returns <code>false</code>.
  */
 public void cancel() {
+    wantsMoreData = false;
     closeOutput();
 }
 
@@ -153,10 +155,11 @@ protected void closeOutput() {
  * Called by the report when group headers need to be output. Once one
  * group header is output, we output all remaining group headers.
  * <p>
- * We need to explicitly evaluate all formulas in the headers that will be
- * output because {@link #checkRemainingPageLength} causes formulas in
- * detail and footers to be evaluated. Those formulas may depend upon
- * values in these headers.
+ * We need to explicitly evaluate the formulas with side effects in the
+ * headers that will be output because {@link #checkRemainingPageLength}
+ * causes formulas in detail and footers to be evaluated. Those formulas may
+ * depend upon values set by these headers. Other header formulas are
+ * evaluated when the headers are output.
  *
  * @param isLastRow if <code>true</code>, this is the last row of the report
  */
@@ -357,7 +360,8 @@ protected void outputSection(Section sect, int which) {
 	previousSectionArea = which;
     }
     else {
-	// Always eval formulas, even if the section is hidden
+	// Formulas with side effects are evaluated even if the section
+	// is hidden
 	report.evaluateFormulasIn(sect);
     }
 }
@@ -1,5 +1,8 @@
 package jimm.datavision.source;
 import java.util.List;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * Represents a row of data. Provides the interface needed by
@@ -8,6 +11,16 @@ import java.util.List;
  * <p>
  * The only method subclasses <em>must</em> implement is
  * <code>readRowData()</code>.
+ * <p>
+ * A subclass may instead ask for typed storage by calling
+ * {@link #useTypedStorage} and overriding {@link #readRowInto}. Rows are
+ * then kept in a small pool of reusable {@link RowBuffer}s instead of a
+ * new list of boxed values per row, and numeric values may be read without
+ * boxing via {@link #getDouble} and {@link #getLong}.
+ * <p>
+ * Callers that want to see more than the next row, such as subreports
+ * collecting the join values of upcoming rows, can read further ahead with
+ * {@link #lookAhead} and examine those rows with {@link #peekColumn}.
  *
  * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
  */
@@ -20,17 +33,59 @@ protected List nextRowData;
 protected List lastRowData;
 protected int lastRowNumber;
 
+// Typed storage; only used when columnKinds is non-null
+protected int[] columnKinds;
+protected RowBuffer prevRow;
+protected RowBuffer currRow;
+protected RowBuffer nextRow;
+protected RowBuffer lastRow;
+protected ArrayList freeRows;
+
+// Rows read beyond the next row by lookAhead; lists or row buffers
+protected LinkedList aheadRows;
+protected boolean aheadExhausted;
+
+/**
+ * Switches this cursor to typed storage. Must be called before the first
+ * row is read.
+ *
+ * @param kinds the storage kind of each column
+ * @see RowBuffer#kindsFor
+ */
+protected void useTypedStorage(int[] kinds) {
+    columnKinds = kinds;
+    freeRows = new ArrayList();
+}
+
+/**
+ * Returns <code>true</code> if this cursor stores rows in reusable
+ * typed buffers.
+ *
+ * @return <code>true</code> if this cursor uses typed storage
+ */
+public boolean isTypedStorage() { return columnKinds != null; }
+
 public boolean isFirst() { return currRowNumber == 1; }
 public boolean isLast() {
+    if (isTypedStorage()) {
+	if (nextRow != null)
+	    return false;
+	nextRow = fillNextRow();
+	return nextRow == null;
+    }
+
     if (nextRowData != null)	// We already have next row cached
 	return false;
-    nextRowData = readRowData(); // Read next row
+    nextRowData = readNextRowData(); // Read next row
     return nextRowData == null;	// If it's null, we are at the last row
 }
 
 public boolean next() {
+    if (isTypedStorage())
+	return nextTyped();
+
     if (nextRowData == null)	// If we have no cached data, read the next row
-	nextRowData = readRowData();
+	nextRowData = readNextRowData();
 
     if (nextRowData == null) {	// When no more data, curr row is the last row
 	lastRowData = currRowData;
@@ -45,27 +100,148 @@ public boolean next() {
     return currRowData != null;
 }
 
+protected boolean nextTyped() {
+    if (nextRow == null)
+	nextRow = fillNextRow();
+
+    if (nextRow == null) {
+	lastRow = currRow;
+	lastRowNumber = currRowNumber;
+    }
+
+    RowBuffer dropped = prevRow;
+    prevRow = currRow;
+    currRow = nextRow;
+    nextRow = null;
+    recycle(dropped);
+
+    ++currRowNumber;
+    return currRow != null;
+}
+
 public boolean previous() {
     if (currRowNumber <= 1)	// Not same as isFirst()
 	return false;
 
-    nextRowData = currRowData;
-    currRowData = prevRowData;
-    prevRowData = null;
+    if (isTypedStorage()) {
+	if (nextRow != null)	// Keep it for when we move forward again
+	    aheadRows().addFirst(nextRow);
+	nextRow = currRow;
+	currRow = prevRow;
+	prevRow = null;
+    }
+    else {
+	if (nextRowData != null)
+	    aheadRows().addFirst(nextRowData);
+	nextRowData = currRowData;
+	currRowData = prevRowData;
+	prevRowData = null;
+    }
     --currRowNumber;
     return true;
 }
 
 public boolean last() {
-    while (lastRowData == null && next())
-	;
-    currRowData = lastRowData;
+    if (isTypedStorage()) {
+	while (lastRow == null && next())
+	    ;
+	currRow = lastRow;
+    }
+    else {
+	while (lastRowData == null && next())
+	    ;
+	currRowData = lastRowData;
+    }
     currRowNumber = lastRowNumber;
     return true;
 }
 
 public int getRow() { return currRowNumber; }
 
+/**
+ * Reads up to <var>n</var> rows past the current row without moving to
+ * them, so they can be examined with {@link #peekColumn}. Returns the
+ * number of rows past the current row that are available, which is less
+ * than <var>n</var> only when there is no more data.
+ *
+ * @param n the number of rows to read ahead
+ * @return the number of rows available, at most <var>n</var>
+ */
+public int lookAhead(int n) {
+    if (n <= 0 || isLast())	// isLast reads the next row
+	return 0;
+
+    LinkedList ahead = aheadRows();
+    while (ahead.size() + 1 < n && !aheadExhausted) {
+	Object row = isTypedStorage() ? (Object)fillRow() : (Object)readRowData();
+	if (row == null)
+	    aheadExhausted = true;
+	else
+	    ahead.addLast(row);
+    }
+    return Math.min(n, ahead.size() + 1);
+}
+
+/**
+ * Returns the values of one column in the <var>n</var> rows following the
+ * current row. Those rows must already have been read by
+ * {@link #lookAhead}. <var>index</var> starts at 1.
+ *
+ * @param n the number of rows
+ * @param index a column index
+ * @return a list of <var>n</var> values
+ */
+public List peekColumn(int n, int index) {
+    ArrayList values = new ArrayList(n);
+    if (n <= 0)
+	return values;
+
+    values.add(valueIn(isTypedStorage() ? (Object)nextRow : nextRowData,
+		       index));
+    if (aheadRows != null)
+	for (Iterator iter = aheadRows.iterator();
+	     values.size() < n && iter.hasNext(); )
+	    values.add(valueIn(iter.next(), index));
+    return values;
+}
+
+/**
+ * Returns the value in the <var>index</var>'th column of a row that is
+ * either a list or a row buffer.
+ */
+protected Object valueIn(Object row, int index) {
+    if (row == null)
+	return null;
+    return row instanceof RowBuffer ? ((RowBuffer)row).getObject(index - 1)
+	: ((List)row).get(index - 1);
+}
+
+protected LinkedList aheadRows() {
+    if (aheadRows == null)
+	aheadRows = new LinkedList();
+    return aheadRows;
+}
+
+/**
+ * Returns the next row's data, from the rows read by {@link #lookAhead}
+ * if there are any.
+ */
+protected List readNextRowData() {
+    if (aheadRows != null && !aheadRows.isEmpty())
+	return (List)aheadRows.removeFirst();
+    return aheadExhausted ? null : readRowData();
+}
+
+/**
+ * Returns a buffer holding the next row, from the rows read by
+ * {@link #lookAhead} if there are any.
+ */
+protected RowBuffer fillNextRow() {
+    if (aheadRows != null && !aheadRows.isEmpty())
+	return (RowBuffer)aheadRows.removeFirst();
+    return aheadExhausted ? null : fillRow();
+}
+
 public void close() {}
 
 /**
@@ -82,9 +258,125 @@ public void close() {}
  * if no data has yet been read
  */
 public Object getObject(int index) {
+    // A cursor using typed storage may still make a list of values the
+    // current row while it evaluates a where clause.
+    if (isTypedStorage() && currRowData == null)
+	return currRow == null ? null : currRow.getObject(index - 1);
     return currRowData == null ? null : currRowData.get(index - 1);
 }
 
+/**
+ * Returns the value in the specified column as a <code>double</code>.
+ * <var>index</var> starts at 1. <code>null</code> values are returned as
+ * 0 and non-numeric values are parsed. When using typed storage, numeric
+ * columns are read without boxing.
+ *
+ * @return the value in the <var>index</var>'th column as a
+ * <code>double</code>
+ */
+public double getDouble(int index) {
+    if (isTypedStorage())
+	return currRow == null ? 0 : currRow.getDouble(index - 1);
+
+    Object obj = getObject(index);
+    if (obj == null)
+	return 0;
+    return (obj instanceof Number) ? ((Number)obj).doubleValue()
+	: Double.parseDouble(obj.toString());
+}
+
+/**
+ * Returns the value in the specified column as a <code>long</code>.
+ * <var>index</var> starts at 1. <code>null</code> values are returned as
+ * 0 and non-numeric values are parsed. When using typed storage, numeric
+ * columns are read without boxing.
+ *
+ * @return the value in the <var>index</var>'th column as a
+ * <code>long</code>
+ */
+public long getLong(int index) {
+    if (isTypedStorage())
+	return currRow == null ? 0 : currRow.getLong(index - 1);
+
+    Object obj = getObject(index);
+    if (obj == null)
+	return 0;
+    return (obj instanceof Number) ? ((Number)obj).longValue()
+	: (long)Double.parseDouble(obj.toString());
+}
+
+/**
+ * Returns <code>true</code> if the value in the specified column is
+ * <code>null</code> or no data has yet been read. <var>index</var> starts
+ * at 1.
+ *
+ * @return <code>true</code> if the <var>index</var>'th column is
+ * <code>null</code>
+ */
+public boolean isNull(int index) {
+    if (isTypedStorage())
+	return currRow == null || currRow.isNull(index - 1);
+    return getObject(index) == null;
+}
+
+/**
+ * Returns <code>true</code> if <var>val</var> equals the object in the
+ * specified column. When using typed storage, the column value is not
+ * boxed to make the comparison. <var>index</var> starts at 1.
+ *
+ * @param index a column index
+ * @param val a non-<code>null</code> object
+ * @return <code>true</code> if <code>val.equals(getObject(index))</code>
+ */
+public boolean valueEquals(int index, Object val) {
+    if (isTypedStorage())
+	return currRow != null && currRow.valueEquals(index - 1, val);
+    return val.equals(getObject(index));
+}
+
+/**
+ * Returns a row buffer filled with the next row of data, or
+ * <code>null</code> if there is no more data.
+ */
+protected RowBuffer fillRow() {
+    RowBuffer row = freeRows.isEmpty() ? new RowBuffer(columnKinds)
+	: (RowBuffer)freeRows.remove(freeRows.size() - 1);
+    if (readRowInto(row))
+	return row;
+    freeRows.add(row);
+    return null;
+}
+
+/**
+ * Returns <var>row</var> to the pool of free buffers if it is no longer
+ * referenced as the previous, current, next, or last row.
+ */
+protected void recycle(RowBuffer row) {
+    if (row != null && row != prevRow && row != currRow && row != nextRow
+	&& row != lastRow)
+	freeRows.add(row);
+}
+
+/**
+ * Reads the next row of data into <var>row</var> and returns
+ * <code>true</code>, or returns <code>false</code> if there is no more
+ * data. Only called when using typed storage.
+ * <p>
+ * The default implementation copies the list returned by
+ * <code>readRowData</code>. Subclasses that call {@link #useTypedStorage}
+ * should override this method and fill the buffer directly.
+ *
+ * @param row a row buffer to fill
+ * @return <code>true</code> if a row was read
+ */
+protected boolean readRowInto(RowBuffer row) {
+    List data = readRowData();
+    if (data == null)
+	return false;
+    row.setAll(data);
+    return true;
+}
+
 protected abstract List readRowData();
 
 }
@@ -18,9 +18,18 @@ import org.xml.sax.InputSource;
  */
 public abstract class DataSource implements Writeable {
 
+/** The default number of row batches a prefetching cursor reads ahead. */
+public static final int DEFAULT_PREFETCH_QUEUE_DEPTH = 4;
+/** The default number of bytes of rows a report sorts in memory. */
+public static final long DEFAULT_SORT_MEMORY_BUDGET = 16 * 1024 * 1024;
+
 protected Report report;
 protected Query query;
 protected String metadataURL;
+protected boolean typedRows;
+protected int prefetchBatchSize;
+protected int prefetchQueueDepth = DEFAULT_PREFETCH_QUEUE_DEPTH;
+protected long sortMemoryBudget = DEFAULT_SORT_MEMORY_BUDGET;
 
 public DataSource(Report r, Query q) {
     report = r;
@@ -133,6 +142,184 @@ public String getSourceFile() { return null; }
  */
 public void reuseSourceFile() throws FileNotFoundException { }
 
+/**
+ * Returns <code>true</code> if this data source's cursors should store rows
+ * in reusable typed buffers instead of lists of boxed objects. Data sources
+ * whose cursors do not support typed storage ignore this setting.
+ *
+ * @return <code>true</code> if typed row storage has been requested
+ * @see DataCursor#isTypedStorage
+ */
+public boolean usesTypedRows() { return typedRows; }
+
+/**
+ * Turns typed row storage on or off. Called from
+ * <code>ReportReader</code>, for example.
+ *
+ * @param typed if <code>true</code>, use typed row storage
+ */
+public void setTypedRows(boolean typed) { typedRows = typed; }
+
+/**
+ * Returns the number of rows in each batch read ahead on a background
+ * thread while the report is running. 0, the default, means rows are not
+ * read ahead.
+ *
+ * @return the prefetch batch size; 0 means prefetching is off
+ * @see PrefetchCursor
+ */
+public int getPrefetchBatchSize() { return prefetchBatchSize; }
+
+/**
+ * Returns the maximum number of prefetched row batches waiting to be used.
+ *
+ * @return the prefetch queue depth
+ */
+public int getPrefetchQueueDepth() { return prefetchQueueDepth; }
+
+/**
+ * Sets the prefetch batch size and queue depth. Called from
+ * <code>ReportReader</code>, for example. A batch size less than one turns
+ * prefetching off. A queue depth less than one means the default depth.
+ * Rows are only read ahead when {@link #canPrefetch} says they can be.
+ *
+ * @param batchSize the number of rows in each batch
+ * @param queueDepth the maximum number of batches waiting to be used
+ */
+public void setPrefetch(int batchSize, int queueDepth) {
+    prefetchBatchSize = batchSize < 1 ? 0 : batchSize;
+    prefetchQueueDepth = queueDepth < 1 ? DEFAULT_PREFETCH_QUEUE_DEPTH
+	: queueDepth;
+}
+
+/**
+ * Returns <code>true</code> if this data source's cursors return rows in
+ * their original order, so that the report must sort them itself to honor
+ * the query's sorts and the report's groups. The default implementation
+ * returns <code>false</code>.
+ *
+ * @return <code>true</code> if rows need to be sorted after they are read
+ * @see SortedCursor
+ */
+public boolean needsSortStage() { return false; }
+
+/**
+ * Returns the approximate number of bytes of rows sorted in memory before
+ * rows are written to temporary files. Only used by data sources that
+ * need a sort stage.
+ *
+ * @return the sort memory budget in bytes
+ * @see #needsSortStage
+ */
+public long getSortMemoryBudget() { return sortMemoryBudget; }
+
+/**
+ * Sets the approximate number of bytes of rows sorted in memory before
+ * rows are written to temporary files.
+ *
+ * @param bytes the sort memory budget; values less than one mean the
+ * default
+ */
+public void setSortMemoryBudget(long bytes) {
+    sortMemoryBudget = bytes < 1 ? DEFAULT_SORT_MEMORY_BUDGET : bytes;
+}
+
+/**
+ * Returns <code>true</code> if this data source's cursors may read rows on
+ * a thread other than the report's. Data sources that don't generate SQL
+ * evaluate the where clause while reading rows, and the where clause may
+ * run scripts and read the report's current row, so their rows can't be
+ * read ahead when the query has a where clause.
+ *
+ * @return <code>true</code> if rows may be read ahead
+ * @see PrefetchCursor
+ */
+public boolean canPrefetch() {
+    String where = getQuery().getWhereClause();
+    return isSQLGenerated() || where == null || where.length() == 0;
+}
+
+/**
+ * Runs the query and returns a cursor. If this data source needs a sort
+ * stage and the report has groups or sorts, the cursor is wrapped in a
+ * {@link SortedCursor}. If a prefetch batch size has been set and {@link
+ * #canPrefetch} returns <code>true</code>, the cursor is wrapped in a
+ * {@link PrefetchCursor}. Called by the report when it runs.
+ *
+ * @return a data cursor
+ * @see #execute
+ */
+public DataCursor executeForReport() throws Exception {
+    DataCursor cursor = execute();
+    if (needsSortStage())
+	cursor = sortedCursor(cursor);
+    if (prefetchBatchSize > 0 && canPrefetch())
+	cursor = new PrefetchCursor(cursor, prefetchBatchSize,
+				    prefetchQueueDepth);
+    return cursor;
+}
+
+/**
+ * Called by the report when it has finished running, whether or not it
+ * succeeded. Data sources may let go of resources they don't need between
+ * runs. By default, does nothing.
+ */
+public void reportFinished() { }
+
+/**
+ * Returns a cursor that sorts the rows of <var>cursor</var> the same way
+ * a SQL query's "order by" clause would: first by the report's groups, then
+ * by the query's sorts. Returns <var>cursor</var> if there is nothing to
+ * sort by. Sorted selectables that aren't in the rows are ignored, but
+ * groups must be able to sort, because unsorted groups break in the wrong
+ * places.
+ *
+ * @param cursor a data cursor
+ * @return a sorted data cursor, or <var>cursor</var>
+ * @throws IllegalStateException if a group's selectable is not in the rows
+ */
+protected DataCursor sortedCursor(DataCursor cursor) {
+    ArrayList indexes = new ArrayList();
+    ArrayList descending = new ArrayList();
+    for (Iterator iter = report.groups(); iter.hasNext(); ) {
+	Group g = (Group)iter.next();
+	int index = indexOfSelectable(g.getSelectable());
+	if (index < 0) {
+	    cursor.close();
+	    throw new IllegalStateException(I18N.get("DataSource.group_not_sortable")
+					    + ' ' + g.getSelectableName());
+	}
+	indexes.add(new Integer(index));
+	descending.add(Boolean.valueOf(g.getSortOrder()
+				       == Group.SORT_DESCENDING));
+    }
+    for (Iterator iter = query.sortedSelectables(); iter.hasNext(); ) {
+	Selectable s = (Selectable)iter.next();
+	indexes.add(new Integer(indexOfSelectable(s)));
+	descending.add(Boolean.valueOf(query.sortOrderOf(s)
+				       == Query.SORT_DESCENDING));
+    }
+
+    int n = 0;
+    int[] keyIndexes = new int[indexes.size()];
+    boolean[] keyDescending = new boolean[indexes.size()];
+    for (int i = 0; i < indexes.size(); ++i) {
+	int index = ((Integer)indexes.get(i)).intValue();
+	if (index >= 0) {	// Skip sorts that aren't columns
+	    keyIndexes[n] = index;
+	    keyDescending[n++] = ((Boolean)descending.get(i)).booleanValue();
+	}
+    }
+    if (n == 0)
+	return cursor;
+
+    int[] k = new int[n];
+    boolean[] d = new boolean[n];
+    System.arraycopy(keyIndexes, 0, k, 0, n);
+    System.arraycopy(keyDescending, 0, d, 0, n);
+    return new SortedCursor(cursor, k, d, sortMemoryBudget);
+}
+
 public Report getReport() { return report; }
 
 public Query getQuery() { return query; }
@@ -0,0 +1,372 @@
+package jimm.datavision.source;
+import java.io.*;
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Sorts rows of data that may not fit in memory. Rows are collected until
+ * their estimated size exceeds a memory budget, then sorted and written to
+ * a temporary run file in the compact binary format of {@link ValueCodec}.
+ * When all rows have been added, the runs are merged, at most {@link #MAX_MERGE_FAN_IN} at a time.
+ * If all the rows fit within the budget, nothing is written to disk.
+ * <p>
+ * The sort is stable: rows with equal keys are returned in the order in
+ * which they were added.
+ * <p>
+ * Usage: call {@link #add} for each row, then {@link #finish}, then
+ * {@link #next} until it returns <code>null</code>. Always call
+ * {@link #close} to delete the run files.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see SortedCursor
+ */
+public class ExternalSorter {
+
+public static final int MAX_MERGE_FAN_IN = 64;
+
+protected Comparator comparator;
+protected long memoryBudget;
+protected ArrayList buffer;
+protected long bufferBytes;
+protected ArrayList runFiles;	// Files, in the order they were written
+protected boolean inMemory;	// True if nothing was spilled
+protected int memoryIndex;	// Index of next row in buffer
+protected Merger merger;	// Non-null if something was spilled
+
+/**
+ * Constructor.
+ *
+ * @param keyIndexes the 0-based index of each sort key column, most
+ * significant first
+ * @param descending <code>true</code> for each key that is sorted in
+ * descending order
+ * @param memoryBudget the approximate number of bytes of rows to hold in
+ * memory before writing them to disk
+ */
+public ExternalSorter(int[] keyIndexes, boolean[] descending,
+		      long memoryBudget)
+{
+    comparator = new RowComparator(keyIndexes, descending);
+    this.memoryBudget = memoryBudget;
+    buffer = new ArrayList();
+    runFiles = new ArrayList();
+}
+
+/**
+ * Adds a row to be sorted.
+ *
+ * @param row a list of column values
+ */
+public void add(List row) throws IOException {
+    if (!(row instanceof ArrayList)) // Don't hold on to fancy lists
+	row = new ArrayList(row);
+    buffer.add(row);
+    bufferBytes += ValueCodec.estimateSize(row);
+    if (bufferBytes > memoryBudget)
+	spill();
+}
+
+/**
+ * Returns <code>true</code> if any rows have been written to disk.
+ *
+ * @return <code>true</code> if any rows have been written to disk
+ */
+public boolean hasSpilled() { return !runFiles.isEmpty(); }
+
+/**
+ * Call after all rows have been added and before calling {@link #next}.
+ */
+public void finish() throws IOException {
+    if (runFiles.isEmpty()) {
+	Collections.sort(buffer, comparator);
+	inMemory = true;
+	return;
+    }
+
+    if (!buffer.isEmpty())
+	spill();
+    buffer = null;
+
+    // Merge groups of runs until there are few enough to merge at once
+    while (runFiles.size() > MAX_MERGE_FAN_IN) {
+	ArrayList merged = new ArrayList();
+	for (int i = 0; i < runFiles.size(); i += MAX_MERGE_FAN_IN) {
+	    List group = runFiles.subList(i, Math.min(runFiles.size(),
+						      i + MAX_MERGE_FAN_IN));
+	    if (group.size() == 1) {
+		merged.add(group.get(0));
+		continue;
+	    }
+
+	    Merger m = new Merger(group);
+	    File f = createRunFile();
+	    merged.add(f);
+	    DataOutputStream out = openRun(f);
+	    try {
+		List row;
+		while ((row = m.next()) != null)
+		    writeRow(out, row);
+	    }
+	    finally {
+		out.close();
+		m.close();
+	    }
+	    for (Iterator iter = group.iterator(); iter.hasNext(); )
+		((File)iter.next()).delete();
+	}
+	runFiles = merged;
+    }
+    merger = new Merger(runFiles);
+}
+
+/**
+ * Returns the next row in sorted order or <code>null</code> if there are
+ * no more rows.
+ *
+ * @return a list of column values
+ */
+public List next() throws IOException {
+    if (inMemory) {
+	if (memoryIndex >= buffer.size())
+	    return null;
+	// Let the row be garbage collected
+	return (List)buffer.set(memoryIndex++, null);
+    }
+    return merger == null ? null : merger.next();
+}
+
+/**
+ * Closes and deletes all run files.
+ */
+public void close() {
+    if (merger != null) {
+	try {
+	    merger.close();
+	}
+	catch (IOException ioe) {}
+	merger = null;
+    }
+    for (Iterator iter = runFiles.iterator(); iter.hasNext(); )
+	((File)iter.next()).delete();
+    runFiles.clear();
+    buffer = null;
+    inMemory = false;
+}
+
+/**
+ * Sorts the rows in memory and writes them to a new run file.
+ */
+protected void spill() throws IOException {
+    Collections.sort(buffer, comparator);
+    File f = createRunFile();
+    runFiles.add(f);
+    DataOutputStream out = openRun(f);
+    try {
+	for (Iterator iter = buffer.iterator(); iter.hasNext(); )
+	    writeRow(out, (List)iter.next());
+    }
+    finally {
+	out.close();
+    }
+    buffer = new ArrayList();
+    bufferBytes = 0;
+}
+
+protected File createRunFile() throws IOException {
+    File f = File.createTempFile("datavision_sort", ".run");
+    f.deleteOnExit();
+    return f;
+}
+
+protected DataOutputStream openRun(File f) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(
+	new FileOutputStream(f), 65536));
+}
+
+protected void writeRow(DataOutputStream out, List row) throws IOException {
+    out.writeInt(row.size());
+    for (Iterator iter = row.iterator(); iter.hasNext(); )
+	ValueCodec.writeValue(out, iter.next());
+}
+
+protected static List readRow(DataInputStream in) throws IOException {
+    int size;
+    try {
+	size = in.readInt();
+    }
+    catch (EOFException eof) {
+	return null;
+    }
+    ArrayList row = new ArrayList(size);
+    for (int i = 0; i < size; ++i)
+	row.add(ValueCodec.readValue(in));
+    return row;
+}
+
+/**
+ * Compares two column values. <code>null</code> comes before everything
+ * else, numbers of different classes are compared by value, and anything
+ * else that isn't comparable is compared as a string.
+ *
+ * @param a a value
+ * @param b another value
+ * @return a negative number, zero, or a positive number
+ */
+public static int compareValues(Object a, Object b) {
+    if (a == b)
+	return 0;
+    if (a == null)
+	return -1;
+    if (b == null)
+	return 1;
+
+    if (a instanceof Number && b instanceof Number
+	&& a.getClass() != b.getClass())
+	return compareNumbers((Number)a, (Number)b);
+    if (a instanceof Comparable && a.getClass() == b.getClass())
+	return ((Comparable)a).compareTo(b);
+    if (a instanceof java.util.Date && b instanceof java.util.Date) {
+	long diff = ((java.util.Date)a).getTime()
+	    - ((java.util.Date)b).getTime();
+	return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+    }
+    return a.toString().compareTo(b.toString());
+}
+
+protected static int compareNumbers(Number a, Number b) {
+    if ((a instanceof Integer || a instanceof Long || a instanceof Short
+	 || a instanceof Byte)
+	&& (b instanceof Integer || b instanceof Long || b instanceof Short
+	    || b instanceof Byte)) {
+	long diff = a.longValue() - b.longValue();
+	return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+    }
+    boolean aFloating = a instanceof Double || a instanceof Float;
+    boolean bFloating = b instanceof Double || b instanceof Float;
+    if (!aFloating && !bFloating) // At least one BigDecimal or BigInteger
+	return new BigDecimal(a.toString()).compareTo(new BigDecimal(b.toString()));
+    return Double.compare(a.doubleValue(), b.doubleValue());
+}
+
+/**
+ * Compares rows using the sort keys.
+ */
+protected static class RowComparator implements Comparator {
+
+protected int[] keyIndexes;
+protected boolean[] descending;
+
+RowComparator(int[] keyIndexes, boolean[] descending) {
+    this.keyIndexes = keyIndexes;
+    this.descending = descending;
+}
+
+public int compare(Object o1, Object o2) {
+    List a = (List)o1;
+    List b = (List)o2;
+    for (int i = 0; i < keyIndexes.length; ++i) {
+	int index = keyIndexes[i];
+	int result = compareValues(index < a.size() ? a.get(index) : null,
+				   index < b.size() ? b.get(index) : null);
+	if (result != 0)
+	    return descending[i] ? -result : result;
+    }
+    return 0;
+}
+
+}
+
+/**
+ * Merges sorted run files. Keeps the current row of each run in a heap
+ * ordered by the row and then by the run's position in the list, which
+ * keeps the merge stable.
+ */
+protected class Merger {
+
+protected DataInputStream[] ins;
+protected List[] rows;		// Current row of each run
+protected int[] heap;		// Run numbers
+protected int heapSize;
+
+Merger(List files) throws IOException {
+    int n = files.size();
+    ins = new DataInputStream[n];
+    rows = new List[n];
+    heap = new int[n];
+    try {
+	for (int i = 0; i < n; ++i) {
+	    ins[i] = new DataInputStream(new BufferedInputStream(
+		new FileInputStream((File)files.get(i)), 65536));
+	    rows[i] = readRow(ins[i]);
+	    if (rows[i] != null) {
+		heap[heapSize] = i;
+		siftUp(heapSize++);
+	    }
+	}
+    }
+    catch (IOException ioe) {
+	close();
+	throw ioe;
+    }
+}
+
+List next() throws IOException {
+    if (heapSize == 0)
+	return null;
+
+    int run = heap[0];
+    List row = rows[run];
+    rows[run] = readRow(ins[run]);
+    if (rows[run] == null)
+	heap[0] = heap[--heapSize];
+    if (heapSize > 0)
+	siftDown(0);
+    return row;
+}
+
+protected boolean less(int runA, int runB) {
+    int result = comparator.compare(rows[runA], rows[runB]);
+    return result < 0 || (result == 0 && runA < runB);
+}
+
+protected void siftUp(int i) {
+    while (i > 0) {
+	int parent = (i - 1) / 2;
+	if (!less(heap[i], heap[parent]))
+	    break;
+	swap(i, parent);
+	i = parent;
+    }
+}
+
+protected void siftDown(int i) {
+    while (true) {
+	int smallest = i;
+	int left = 2 * i + 1;
+	int right = left + 1;
+	if (left < heapSize && less(heap[left], heap[smallest]))
+	    smallest = left;
+	if (right < heapSize && less(heap[right], heap[smallest]))
+	    smallest = right;
+	if (smallest == i)
+	    return;
+	swap(i, smallest);
+	i = smallest;
+    }
+}
+
+protected void swap(int i, int j) {
+    int tmp = heap[i];
+    heap[i] = heap[j];
+    heap[j] = tmp;
+}
+
+void close() throws IOException {
+    for (int i = 0; i < ins.length; ++i)
+	if (ins[i] != null)
+	    ins[i].close();
+}
+
+}
+
+}
@@ -0,0 +1,169 @@
+package jimm.datavision.source;
+import jimm.datavision.UserCancellationException;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * A data cursor that reads rows from another cursor on a separate
+ * producer thread. Rows are handed to the report thread in batches through
+ * a bounded ring buffer, so that fetching data from the data source and
+ * laying out the report can overlap.
+ * <p>
+ * The lookahead and lookbehind behavior of <code>isLast</code> and
+ * <code>previous</code> is unchanged because it is implemented by the
+ * <code>DataCursor</code> superclass on top of {@link #readRowData}.
+ * <p>
+ * The wrapped cursor must not need anything from the report thread while
+ * reading rows. For example, cursors that evaluate where clause formulas
+ * while reading may not be wrapped (see {@link DataSource#canPrefetch}).
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see DataSource#getPrefetchBatchSize
+ */
+public class PrefetchCursor extends DataCursor implements Runnable {
+
+protected DataCursor source;
+protected int batchSize;
+protected Object[] ring;
+protected int head;		// Index of next batch to take
+protected int count;		// Number of batches in the ring
+protected boolean producerDone;
+protected boolean closed;
+protected RuntimeException producerException;
+protected Thread producer;
+protected List batch;
+protected int batchIndex;
+
+/**
+ * Constructor. Starts the producer thread immediately.
+ *
+ * @param source the cursor to read rows from
+ * @param batchSize the number of rows in each batch
+ * @param queueDepth the maximum number of batches waiting to be consumed
+ */
+public PrefetchCursor(DataCursor source, int batchSize, int queueDepth) {
+    if (batchSize < 1 || queueDepth < 1) // Programmer error; no I18N
+	throw new IllegalArgumentException("batch size and queue depth"
+					   + " must be positive");
+    this.source = source;
+    this.batchSize = batchSize;
+    ring = new Object[queueDepth];
+
+    producer = new Thread(this, "DataVision prefetch");
+    producer.setDaemon(true);
+    producer.start();
+}
+
+/**
+ * The producer thread's loop. Reads batches of rows from the source cursor
+ * and puts them in the ring buffer until there is no more data or this
+ * cursor is closed.
+ */
+public void run() {
+    try {
+	boolean more = true;
+	while (more) {
+	    ArrayList rows = new ArrayList(batchSize);
+	    List row = null;
+	    while (rows.size() < batchSize
+		   && (row = source.readRowData()) != null)
+		rows.add(row);
+	    more = row != null;
+	    if (!put(rows))
+		return;
+	}
+    }
+    catch (RuntimeException re) {
+	synchronized (this) {
+	    producerException = re;
+	}
+    }
+    finally {
+	synchronized (this) {
+	    producerDone = true;
+	    notifyAll();
+	}
+    }
+}
+
+/**
+ * Adds a batch to the ring buffer, waiting for room if necessary. Returns
+ * <code>false</code> if this cursor has been closed.
+ */
+protected synchronized boolean put(List rows) {
+    while (count == ring.length && !closed) {
+	try {
+	    wait();
+	}
+	catch (InterruptedException ie) {
+	    return false;
+	}
+    }
+    if (closed)
+	return false;
+
+    ring[(head + count) % ring.length] = rows;
+    ++count;
+    notifyAll();
+    return true;
+}
+
+/**
+ * Removes and returns the next batch from the ring buffer, waiting for
+ * the producer if necessary. Returns <code>null</code> when the producer
+ * is done and all batches have been taken.
+ *
+ * @throws UserCancellationException if the report thread is interrupted
+ * while waiting
+ */
+protected synchronized List take() {
+    while (count == 0 && !producerDone) {
+	try {
+	    wait();
+	}
+	catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	    throw new UserCancellationException();
+	}
+    }
+    if (producerException != null)
+	throw producerException;
+    if (count == 0)
+	return null;
+
+    List rows = (List)ring[head];
+    ring[head] = null;
+    head = (head + 1) % ring.length;
+    --count;
+    notifyAll();
+    return rows;
+}
+
+protected List readRowData() {
+    while (batch == null || batchIndex == batch.size()) {
+	batch = take();
+	batchIndex = 0;
+	if (batch == null)
+	    return null;
+    }
+    return (List)batch.get(batchIndex++);
+}
+
+/**
+ * Stops the producer thread and closes the source cursor.
+ */
+public void close() {
+    synchronized (this) {
+	closed = true;
+	notifyAll();
+    }
+    try {
+	producer.join();
+    }
+    catch (InterruptedException ie) {
+	Thread.currentThread().interrupt();
+    }
+    source.close();
+}
+
+}
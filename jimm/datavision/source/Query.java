@@ -21,6 +21,7 @@ protected String whereClause;
 protected ArrayList sortSelectables;
 protected ArrayList sortOrders;
 protected ArrayList selectables; // Can't be a Set; we need selectable indices
+protected int selectablesVersion;
 
 /**
  * Constructor.
@@ -246,6 +247,15 @@ public int indexOfSelectable(Selectable selectable) {
     return selectables.indexOf(selectable);
 }
 
+/**
+ * Returns a number that changes every time the selectables used by this
+ * query are found again. Used to tell when a {@link SelectableBinding}
+ * must be rebuilt.
+ *
+ * @return the selectables version number
+ */
+public int getSelectablesVersion() { return selectablesVersion; }
+
 /**
  * Builds collections of the selectables actually used in the report.
  */
@@ -255,6 +265,7 @@ public void findSelectablesUsed() {
     // indexable.
 
     selectables.clear();
+    ++selectablesVersion;
     report.withFieldsDo(new FieldWalker() {
 	public void step(Field f) {
 	    if (f instanceof ColumnField) {
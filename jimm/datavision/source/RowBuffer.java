@@ -0,0 +1,353 @@
+package jimm.datavision.source;
+import jimm.datavision.Selectable;
+import java.util.Iterator;
+import java.util.List;
+import java.sql.Types;
+
+/**
+ * A reusable row of typed column slots. Integral values are stored in a
+ * <code>long</code> array, floating point values in a <code>double</code>
+ * array, and everything else (strings, dates, big decimals) in an
+ * <code>Object</code> array. Each column's kind is fixed when the buffer
+ * is created.
+ * <p>
+ * {@link DataCursor}s that use typed storage fill a small pool of these
+ * buffers over and over instead of allocating a new list of boxed values
+ * for every row. Values are only boxed when someone asks for them as
+ * objects via {@link #getObject}.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see DataCursor
+ */
+public class RowBuffer {
+
+/** Column values are stored as objects. */
+public static final int KIND_OBJECT = 0;
+/** Column values are <code>int</code>s, boxed as <code>Integer</code>. */
+public static final int KIND_INT = 1;
+/** Column values are <code>long</code>s, boxed as <code>Long</code>. */
+public static final int KIND_LONG = 2;
+/** Column values are <code>double</code>s, boxed as <code>Double</code>. */
+public static final int KIND_DOUBLE = 3;
+/**
+ * Column values are whatever numbers they were set to. <code>long</code>s
+ * are boxed as <code>Integer</code> when they fit and <code>Long</code>
+ * otherwise, <code>double</code>s as <code>Double</code>, and other objects
+ * are stored as-is. Used for columns such as character-separated file
+ * "number" columns whose values may be integers in one row and decimals
+ * in the next.
+ */
+public static final int KIND_NUMBER = 4;
+
+protected int[] kinds;
+protected long[] longs;
+protected double[] doubles;
+protected Object[] objects;
+protected boolean[] nulls;
+protected boolean[] floating;	// KIND_NUMBER values stored in doubles
+
+/**
+ * Returns the storage kind to use for a column of the given
+ * <code>java.sql.Types</code> type. The kinds are chosen so that
+ * {@link #getObject} returns the same class a JDBC driver's
+ * <code>getObject</code> would for that type.
+ *
+ * @param type a <code>java.sql.Types</code> value
+ * @return one of the <code>KIND_*</code> constants
+ */
+public static int kindOf(int type) {
+    switch (type) {
+    case Types.TINYINT:
+    case Types.SMALLINT:
+    case Types.INTEGER:
+	return KIND_INT;
+    case Types.BIGINT:
+	return KIND_LONG;
+    case Types.DOUBLE:
+    case Types.FLOAT:
+	return KIND_DOUBLE;
+    default:
+	return KIND_OBJECT;
+    }
+}
+
+/**
+ * Returns an array of column kinds, one for each of the query's
+ * selectables. Columns get a kind based on their type; user columns, whose
+ * type we do not know, are always stored as objects.
+ *
+ * @param query a query whose selectables have already been found
+ * @return an array of <code>KIND_*</code> constants
+ */
+public static int[] kindsFor(Query query) {
+    int[] kinds = new int[query.getNumSelectables()];
+    int i = 0;
+    for (Iterator iter = query.selectables(); iter.hasNext(); ++i) {
+	Selectable s = (Selectable)iter.next();
+	kinds[i] = (s instanceof Column)
+	    ? kindOf(((Column)s).getType()) : KIND_OBJECT;
+    }
+    return kinds;
+}
+
+/**
+ * Constructor.
+ *
+ * @param kinds the kind of each column; this array is shared, not copied
+ */
+public RowBuffer(int[] kinds) {
+    this.kinds = kinds;
+    int n = kinds.length;
+    longs = new long[n];
+    doubles = new double[n];
+    objects = new Object[n];
+    nulls = new boolean[n];
+    floating = new boolean[n];
+}
+
+/**
+ * Returns the number of columns in this row.
+ *
+ * @return the number of columns
+ */
+public int size() { return kinds.length; }
+
+/**
+ * Returns the storage kind of the specified column. <var>i</var> starts
+ * at 0.
+ *
+ * @param i a column index
+ * @return one of the <code>KIND_*</code> constants
+ */
+public int kindAt(int i) { return kinds[i]; }
+
+public void setLong(int i, long val) {
+    switch (kinds[i]) {
+    case KIND_NUMBER:
+	objects[i] = null;
+	floating[i] = false;
+	longs[i] = val;
+	break;
+    case KIND_INT:
+    case KIND_LONG:
+	longs[i] = val;
+	break;
+    case KIND_DOUBLE:
+	doubles[i] = val;
+	break;
+    default:
+	objects[i] = new Long(val);
+	break;
+    }
+    nulls[i] = false;
+}
+
+public void setDouble(int i, double val) {
+    switch (kinds[i]) {
+    case KIND_INT:
+    case KIND_LONG:
+	longs[i] = (long)val;
+	break;
+    case KIND_NUMBER:
+	objects[i] = null;
+	floating[i] = true;
+	doubles[i] = val;
+	break;
+    case KIND_DOUBLE:
+	doubles[i] = val;
+	break;
+    default:
+	objects[i] = new Double(val);
+	break;
+    }
+    nulls[i] = false;
+}
+
+/**
+ * Stores an object. If the column holds primitives, a <code>Number</code>
+ * is unboxed and anything else is parsed.
+ *
+ * @param i a column index
+ * @param val any object; may be <code>null</code>
+ */
+public void setObject(int i, Object val) {
+    if (val == null) {
+	setNull(i);
+	return;
+    }
+
+    switch (kinds[i]) {
+    case KIND_INT:
+    case KIND_LONG:
+	longs[i] = (val instanceof Number) ? ((Number)val).longValue()
+	    : Long.parseLong(val.toString());
+	break;
+    case KIND_DOUBLE:
+	doubles[i] = (val instanceof Number) ? ((Number)val).doubleValue()
+	    : Double.parseDouble(val.toString());
+	break;
+    case KIND_NUMBER:
+	if (val instanceof Integer || val instanceof Long)
+	    setLong(i, ((Number)val).longValue());
+	else if (val instanceof Double)
+	    setDouble(i, ((Double)val).doubleValue());
+	else
+	    objects[i] = val;
+	break;
+    default:
+	objects[i] = val;
+	break;
+    }
+    nulls[i] = false;
+}
+
+public void setNull(int i) {
+    objects[i] = null;
+    nulls[i] = true;
+}
+
+public boolean isNull(int i) { return nulls[i]; }
+
+/**
+ * Returns the value of the specified column as an object, boxing
+ * primitive values.
+ *
+ * @param i a column index
+ * @return the column value; may be <code>null</code>
+ */
+public Object getObject(int i) {
+    if (nulls[i])
+	return null;
+    switch (kinds[i]) {
+    case KIND_INT: return new Integer((int)longs[i]);
+    case KIND_LONG: return new Long(longs[i]);
+    case KIND_DOUBLE: return new Double(doubles[i]);
+    case KIND_NUMBER:
+	if (objects[i] != null)
+	    return objects[i];
+	if (floating[i])
+	    return new Double(doubles[i]);
+	long val = longs[i];
+	return val == (int)val ? (Object)new Integer((int)val) : new Long(val);
+    default: return objects[i];
+    }
+}
+
+/**
+ * Returns the value of the specified column as a <code>double</code>.
+ * <code>null</code> values are returned as 0. Non-numeric objects are
+ * parsed.
+ *
+ * @param i a column index
+ * @return the value as a <code>double</code>
+ */
+public double getDouble(int i) {
+    if (nulls[i])
+	return 0;
+    switch (kinds[i]) {
+    case KIND_INT:
+    case KIND_LONG:
+	return longs[i];
+    case KIND_DOUBLE:
+	return doubles[i];
+    case KIND_NUMBER:
+	if (objects[i] == null)
+	    return floating[i] ? doubles[i] : longs[i];
+	return doubleOf(objects[i]);
+    default:
+	return doubleOf(objects[i]);
+    }
+}
+
+/** Returns an object's value as a <code>double</code>, parsing if needed. */
+protected static double doubleOf(Object obj) {
+    return (obj instanceof Number) ? ((Number)obj).doubleValue()
+	: Double.parseDouble(obj.toString());
+}
+
+/**
+ * Returns the value of the specified column as a <code>long</code>.
+ * <code>null</code> values are returned as 0. Non-numeric objects are
+ * parsed.
+ *
+ * @param i a column index
+ * @return the value as a <code>long</code>
+ */
+public long getLong(int i) {
+    if (nulls[i])
+	return 0;
+    switch (kinds[i]) {
+    case KIND_INT:
+    case KIND_LONG:
+	return longs[i];
+    case KIND_DOUBLE:
+	return (long)doubles[i];
+    case KIND_NUMBER:
+	if (objects[i] == null)
+	    return floating[i] ? (long)doubles[i] : longs[i];
+	return longOf(objects[i]);
+    default:
+	return longOf(objects[i]);
+    }
+}
+
+/** Returns an object's value as a <code>long</code>, parsing if needed. */
+protected static long longOf(Object obj) {
+    return (obj instanceof Number) ? ((Number)obj).longValue()
+	: (long)Double.parseDouble(obj.toString());
+}
+
+/**
+ * Returns <code>true</code> if <var>val</var> is equal to the object that
+ * {@link #getObject} would return for column <var>i</var>, without boxing
+ * the column's value.
+ *
+ * @param i a column index
+ * @param val a non-<code>null</code> object
+ * @return <code>true</code> if <code>val.equals(getObject(i))</code>
+ */
+public boolean valueEquals(int i, Object val) {
+    if (nulls[i])
+	return false;
+    switch (kinds[i]) {
+    case KIND_INT:
+	return val instanceof Integer
+	    && ((Integer)val).intValue() == (int)longs[i];
+    case KIND_LONG:
+	return val instanceof Long && ((Long)val).longValue() == longs[i];
+    case KIND_DOUBLE:
+	return val instanceof Double
+	    && Double.doubleToLongBits(((Double)val).doubleValue())
+	       == Double.doubleToLongBits(doubles[i]);
+    case KIND_NUMBER:
+	if (objects[i] == null && !floating[i]) {
+	    long l = longs[i];
+	    return l == (int)l
+		? val instanceof Integer && ((Integer)val).intValue() == l
+		: val instanceof Long && ((Long)val).longValue() == l;
+	}
+	if (objects[i] == null)
+	    return val instanceof Double
+		&& Double.doubleToLongBits(((Double)val).doubleValue())
+		   == Double.doubleToLongBits(doubles[i]);
+	return val.equals(objects[i]);
+    default:
+	return val.equals(objects[i]);
+    }
+}
+
+/**
+ * Fills this row with the values in <var>list</var>. Used to adapt cursors
+ * that only know how to return lists.
+ *
+ * @param list a list of column values
+ */
+public void setAll(List list) {
+    int n = Math.min(list.size(), kinds.length);
+    for (int i = 0; i < n; ++i)
+	setObject(i, list.get(i));
+    for (int i = n; i < kinds.length; ++i)
+	setNull(i);
+}
+
+}
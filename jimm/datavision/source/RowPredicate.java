@@ -0,0 +1,756 @@
+package jimm.datavision.source;
+import jimm.datavision.Report;
+import jimm.datavision.Parameter;
+import jimm.util.StringUtils;
+import jimm.util.Replacer;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * A where clause compiled into Java so it can be evaluated against rows of
+ * data without running a script. Used by data sources such as files and
+ * lists of objects whose where clauses are Ruby scripts.
+ * <p>
+ * {@link #compile} handles a common subset of Ruby: column references,
+ * parameter references, string, number, <code>nil</code>,
+ * <code>true</code>, and <code>false</code> literals; comparisons
+ * (<code>== != &lt; &lt;= &gt; &gt;=</code>); <code>&amp;&amp; || !</code>
+ * and <code>and or not</code>; parentheses; <code>nil?</code>;
+ * <code>between?(a, b)</code>; <code>[a, b, c].include?(x)</code>; and
+ * string prefix matches such as <code>=~ /^abc/</code> and
+ * <code>!~ /^abc/</code>. Anything else means the where clause can't be
+ * compiled.
+ * <p>
+ * Values are compared the way Ruby would compare the text that a
+ * {@link jimm.datavision.Formula} substitutes for them. If a row contains
+ * a value that would make the script raise an error (for example, a
+ * string compared to a number with <code>&lt;</code>), {@link #test}
+ * returns <code>null</code> and the caller should evaluate the script
+ * instead.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see WhereClauseFilter
+ */
+public class RowPredicate {
+
+/** Returned by nodes when the answer must come from the script. */
+protected static final Object UNKNOWN = new Object();
+
+protected Node root;
+
+/**
+ * Compiles a where clause. Returns <code>null</code> if the where clause
+ * can't be compiled.
+ *
+ * @param source the data source whose rows will be tested
+ * @param whereClause a where clause script
+ * @param language the script's language
+ * @return a predicate, or <code>null</code> if <var>whereClause</var>
+ * can't be compiled
+ */
+public static RowPredicate compile(DataSource source, String whereClause,
+				   String language)
+{
+    if (whereClause == null || !"Ruby".equalsIgnoreCase(language))
+	return null;
+
+    // Formulas, special values, and user columns change while the report
+    // runs, so we leave them to the script.
+    if (whereClause.indexOf("{@") >= 0 || whereClause.indexOf("{%") >= 0
+	|| whereClause.indexOf("{!") >= 0)
+	return null;
+
+    // Parameter values don't change while the report runs. Substitute
+    // them exactly the way Formula does.
+    final Report report = source.getReport();
+    String str = StringUtils.replaceDelimited("#", "{?", "}", new Replacer() {
+	public Object replace(String id) {
+	    Parameter p = report.findParameter(id);
+	    return p == null ? "nil" : p.getValue();
+	}},
+					      whereClause);
+    if (str == null)
+	return null;
+
+    try {
+	Parser parser = new Parser(source, str);
+	Node root = parser.parse();
+	return root == null ? null : new RowPredicate(root);
+    }
+    catch (CompileException ce) {
+	return null;
+    }
+}
+
+protected RowPredicate(Node root) {
+    this.root = root;
+}
+
+/**
+ * Tests a row of data. As in Ruby, any value other than <code>nil</code>
+ * and <code>false</code> is true.
+ *
+ * @param row a list of column values, in the data source's column order
+ * @return <code>Boolean.TRUE</code> or <code>Boolean.FALSE</code>, or
+ * <code>null</code> if the script must be evaluated to find the answer
+ */
+public Boolean test(List row) {
+    Object val = root.eval(row);
+    return val == UNKNOWN ? null : Boolean.valueOf(truthy(val));
+}
+
+// ================================================================
+// Values
+
+protected static boolean truthy(Object val) {
+    return val != null && val != Boolean.FALSE;
+}
+
+protected static boolean isIntegral(Object val) {
+    return val instanceof Integer || val instanceof Long
+	|| val instanceof Short || val instanceof Byte;
+}
+
+/**
+ * Ruby's <code>==</code>.
+ */
+protected static boolean rubyEquals(Object a, Object b) {
+    if (a == null || b == null)
+	return a == b;
+    if (a instanceof Number && b instanceof Number)
+	return compareNumbers((Number)a, (Number)b) == 0;
+    return a.equals(b);
+}
+
+/**
+ * Ruby's <code>&lt;=&gt;</code>, or <code>null</code> where Ruby would
+ * raise an error.
+ */
+protected static Integer rubyCompare(Object a, Object b) {
+    if (a instanceof Number && b instanceof Number)
+	return new Integer(compareNumbers((Number)a, (Number)b));
+    if (a instanceof String && b instanceof String) {
+	// Ruby compares bytes, which only matches Java for ASCII
+	if (!isAscii((String)a) || !isAscii((String)b))
+	    return null;
+	return new Integer(((String)a).compareTo((String)b));
+    }
+    return null;
+}
+
+protected static boolean isAscii(String str) {
+    for (int i = str.length() - 1; i >= 0; --i)
+	if (str.charAt(i) > 127)
+	    return false;
+    return true;
+}
+
+protected static int compareNumbers(Number a, Number b) {
+    if (isIntegral(a) && isIntegral(b)) {
+	long x = a.longValue(), y = b.longValue();
+	return x < y ? -1 : (x > y ? 1 : 0);
+    }
+    double x = a.doubleValue(), y = b.doubleValue();
+    return x < y ? -1 : (x > y ? 1 : 0);
+}
+
+// ================================================================
+// Nodes
+
+protected static abstract class Node {
+    /** Returns a Ruby value or UNKNOWN. */
+    abstract Object eval(List row);
+}
+
+protected static class Literal extends Node {
+    Object val;
+    Literal(Object val) { this.val = val; }
+    Object eval(List row) { return val; }
+}
+
+/**
+ * The value of a column, as Ruby would see the text Formula substitutes
+ * for it.
+ */
+protected static class ColumnRef extends Node {
+    int index;
+    boolean quoted;
+    ColumnRef(int index, Column col) {
+	this.index = index;
+	switch (col.getType()) {
+	case java.sql.Types.CHAR:
+	case java.sql.Types.VARCHAR:
+	case java.sql.Types.DATE:
+	case java.sql.Types.TIME:
+	case java.sql.Types.TIMESTAMP:
+	    quoted = true;
+	    break;
+	}
+    }
+    Object eval(List row) {
+	Object val = index < row.size() ? row.get(index) : null;
+	if (val == null)
+	    return null;
+	if (quoted) {
+	    String str = val.toString();
+	    // Ruby would interpolate these inside a double-quoted string
+	    if (str.indexOf("#{") >= 0 || str.indexOf("#@") >= 0
+		|| str.indexOf("#$") >= 0)
+		return UNKNOWN;
+	    return str;
+	}
+	if (val instanceof Number) {
+	    double d = ((Number)val).doubleValue();
+	    return Double.isNaN(d) || Double.isInfinite(d) ? UNKNOWN : val;
+	}
+	return val instanceof Boolean ? val : UNKNOWN;
+    }
+}
+
+protected static class Not extends Node {
+    Node operand;
+    Not(Node operand) { this.operand = operand; }
+    Object eval(List row) {
+	Object val = operand.eval(row);
+	return val == UNKNOWN ? UNKNOWN : Boolean.valueOf(!truthy(val));
+    }
+}
+
+/** Both <code>&amp;&amp;</code> and <code>and</code>. */
+protected static class And extends Node {
+    Node left, right;
+    And(Node left, Node right) { this.left = left; this.right = right; }
+    Object eval(List row) {
+	Object val = left.eval(row);
+	return val == UNKNOWN || !truthy(val) ? val : right.eval(row);
+    }
+}
+
+/** Both <code>||</code> and <code>or</code>. */
+protected static class Or extends Node {
+    Node left, right;
+    Or(Node left, Node right) { this.left = left; this.right = right; }
+    Object eval(List row) {
+	Object val = left.eval(row);
+	return val == UNKNOWN || truthy(val) ? val : right.eval(row);
+    }
+}
+
+protected static class Comparison extends Node {
+    String op;
+    Node left, right;
+    Comparison(String op, Node left, Node right) {
+	this.op = op;
+	this.left = left;
+	this.right = right;
+    }
+    Object eval(List row) {
+	Object a = left.eval(row);
+	if (a == UNKNOWN) return UNKNOWN;
+	Object b = right.eval(row);
+	if (b == UNKNOWN) return UNKNOWN;
+
+	if (op.equals("=="))
+	    return Boolean.valueOf(rubyEquals(a, b));
+	if (op.equals("!="))
+	    return Boolean.valueOf(!rubyEquals(a, b));
+
+	Integer cmp = rubyCompare(a, b);
+	if (cmp == null)
+	    return UNKNOWN;
+	int c = cmp.intValue();
+	if (op.equals("<")) return Boolean.valueOf(c < 0);
+	if (op.equals("<=")) return Boolean.valueOf(c <= 0);
+	if (op.equals(">")) return Boolean.valueOf(c > 0);
+	return Boolean.valueOf(c >= 0);
+    }
+}
+
+protected static class IsNil extends Node {
+    Node operand;
+    IsNil(Node operand) { this.operand = operand; }
+    Object eval(List row) {
+	Object val = operand.eval(row);
+	return val == UNKNOWN ? UNKNOWN : Boolean.valueOf(val == null);
+    }
+}
+
+protected static class Between extends Node {
+    Node operand, min, max;
+    Between(Node operand, Node min, Node max) {
+	this.operand = operand;
+	this.min = min;
+	this.max = max;
+    }
+    Object eval(List row) {
+	Object val = operand.eval(row);
+	Object lo = min.eval(row);
+	Object hi = max.eval(row);
+	if (val == UNKNOWN || lo == UNKNOWN || hi == UNKNOWN)
+	    return UNKNOWN;
+	Integer c1 = rubyCompare(val, lo);
+	Integer c2 = rubyCompare(val, hi);
+	if (c1 == null || c2 == null)
+	    return UNKNOWN;
+	return Boolean.valueOf(c1.intValue() >= 0 && c2.intValue() <= 0);
+    }
+}
+
+protected static class Includes extends Node {
+    Node[] elements;
+    Node operand;
+    Includes(Node[] elements, Node operand) {
+	this.elements = elements;
+	this.operand = operand;
+    }
+    Object eval(List row) {
+	Object val = operand.eval(row);
+	if (val == UNKNOWN)
+	    return UNKNOWN;
+	for (int i = 0; i < elements.length; ++i) {
+	    Object elem = elements[i].eval(row);
+	    if (elem == UNKNOWN)
+		return UNKNOWN;
+	    if (rubyEquals(elem, val))
+		return Boolean.TRUE;
+	}
+	return Boolean.FALSE;
+    }
+}
+
+/**
+ * <code>=~ /^prefix/</code>, which returns 0 or <code>nil</code>, and
+ * <code>!~ /^prefix/</code>, which returns a boolean.
+ */
+protected static class PrefixMatch extends Node {
+    Node operand;
+    String prefix;
+    boolean negated;
+    PrefixMatch(Node operand, String prefix, boolean negated) {
+	this.operand = operand;
+	this.prefix = prefix;
+	this.negated = negated;
+    }
+    Object eval(List row) {
+	Object val = operand.eval(row);
+	if (val == UNKNOWN)
+	    return UNKNOWN;
+	// In Ruby, "^" matches at the start of every line
+	if (val instanceof String && ((String)val).indexOf('\n') >= 0)
+	    return UNKNOWN;
+	boolean matches = val instanceof String
+	    && ((String)val).startsWith(prefix);
+	if (negated)
+	    return Boolean.valueOf(!matches);
+	if (matches)
+	    return new Integer(0);
+	// Object#=~ returns false; String#=~ returns nil
+	return val instanceof String ? null : Boolean.FALSE;
+    }
+}
+
+// ================================================================
+// Parser
+
+protected static class CompileException extends Exception {
+    CompileException() { super(); }
+}
+
+/**
+ * A recursive descent parser that follows Ruby's operator precedence:
+ * <code>and</code> and <code>or</code> (equal and lowest), then
+ * <code>not</code>, <code>||</code>, <code>&amp;&amp;</code>, equality,
+ * relational operators, and <code>!</code>.
+ */
+protected static class Parser {
+
+static final int EOF = 0;
+static final int COLUMN = 1;
+static final int LITERAL = 2;
+static final int OP = 3;
+static final int WORD = 4;
+static final int REGEX = 5;
+
+DataSource source;
+String str;
+int pos;
+int type;			// Current token
+String text;
+Object value;
+
+Parser(DataSource source, String str) {
+    this.source = source;
+    this.str = str.trim();
+}
+
+Node parse() throws CompileException {
+    advance();
+    Node node = keywordExpr();
+    if (type != EOF)
+	throw new CompileException();
+    return node;
+}
+
+boolean isOp(String op) { return type == OP && text.equals(op); }
+boolean isWord(String word) { return type == WORD && text.equals(word); }
+
+void expectOp(String op) throws CompileException {
+    if (!isOp(op))
+	throw new CompileException();
+    advance();
+}
+
+Node keywordExpr() throws CompileException {
+    Node node = keywordNot();
+    while (isWord("and") || isWord("or")) {
+	boolean and = text.equals("and");
+	advance();
+	Node right = keywordNot();
+	node = and ? (Node)new And(node, right) : new Or(node, right);
+    }
+    return node;
+}
+
+Node keywordNot() throws CompileException {
+    if (isWord("not")) {
+	advance();
+	return new Not(keywordNot());
+    }
+    return orExpr();
+}
+
+Node orExpr() throws CompileException {
+    Node node = andExpr();
+    while (isOp("||")) {
+	advance();
+	node = new Or(node, andExpr());
+    }
+    return node;
+}
+
+Node andExpr() throws CompileException {
+    Node node = equalityExpr();
+    while (isOp("&&")) {
+	advance();
+	node = new And(node, equalityExpr());
+    }
+    return node;
+}
+
+Node equalityExpr() throws CompileException {
+    Node node = relationalExpr();
+    if (isOp("==") || isOp("!=")) {
+	String op = text;
+	advance();
+	node = new Comparison(op, node, relationalExpr());
+	if (isOp("==") || isOp("!=")) // Not associative
+	    throw new CompileException();
+    }
+    else if (isOp("=~") || isOp("!~")) {
+	boolean negated = text.equals("!~");
+	advance();
+	if (type != REGEX)
+	    throw new CompileException();
+	node = new PrefixMatch(node, (String)value, negated);
+	advance();
+    }
+    return node;
+}
+
+Node relationalExpr() throws CompileException {
+    Node node = unaryExpr();
+    if (isOp("<") || isOp("<=") || isOp(">") || isOp(">=")) {
+	String op = text;
+	advance();
+	node = new Comparison(op, node, unaryExpr());
+    }
+    return node;
+}
+
+Node unaryExpr() throws CompileException {
+    if (isOp("!")) {
+	advance();
+	return new Not(unaryExpr());
+    }
+    return postfixExpr();
+}
+
+Node postfixExpr() throws CompileException {
+    Node node;
+    Node[] array = null;
+    if (isOp("[")) {
+	advance();
+	ArrayList elements = new ArrayList();
+	if (!isOp("]")) {
+	    elements.add(keywordFree());
+	    while (isOp(",")) {
+		advance();
+		elements.add(keywordFree());
+	    }
+	}
+	expectOp("]");
+	array = (Node[])elements.toArray(new Node[elements.size()]);
+	node = null;
+    }
+    else
+	node = primary();
+
+    while (isOp(".")) {
+	advance();
+	if (type != WORD)
+	    throw new CompileException();
+	String method = text;
+	advance();
+	if (method.equals("include?") && array != null) {
+	    expectOp("(");
+	    node = new Includes(array, keywordFree());
+	    expectOp(")");
+	    array = null;
+	}
+	else if (array != null)
+	    throw new CompileException();
+	else if (method.equals("nil?"))
+	    node = new IsNil(node);
+	else if (method.equals("between?")) {
+	    expectOp("(");
+	    Node min = keywordFree();
+	    expectOp(",");
+	    Node max = keywordFree();
+	    expectOp(")");
+	    node = new Between(node, min, max);
+	}
+	else
+	    throw new CompileException();
+    }
+    if (array != null)		// An array by itself
+	throw new CompileException();
+    return node;
+}
+
+/** An argument or array element, which may not use and/or/not. */
+Node keywordFree() throws CompileException {
+    return orExpr();
+}
+
+Node primary() throws CompileException {
+    Node node;
+    switch (type) {
+    case COLUMN:
+    case LITERAL:
+	node = type == COLUMN ? (Node)value : new Literal(value);
+	advance();
+	return node;
+    case OP:
+	if (text.equals("(")) {
+	    advance();
+	    node = keywordExpr();
+	    expectOp(")");
+	    return node;
+	}
+	break;
+    }
+    throw new CompileException();
+}
+
+// ================================================================
+// Tokenizer
+
+void advance() throws CompileException {
+    while (pos < str.length() && (str.charAt(pos) == ' '
+				  || str.charAt(pos) == '\t'))
+	++pos;
+    if (pos >= str.length()) {
+	type = EOF;
+	text = null;
+	return;
+    }
+
+    boolean afterMatchOp = type == OP && (text.equals("=~")
+					  || text.equals("!~"));
+    char c = str.charAt(pos);
+    if (c == '{')
+	column();
+    else if (c == '\'' || c == '"')
+	string(c);
+    else if (c == '/' && afterMatchOp)
+	regex();
+    else if ((c >= '0' && c <= '9')
+	     || (c == '-' && pos + 1 < str.length()
+		 && Character.isDigit(str.charAt(pos + 1))))
+	number();
+    else if (Character.isLetter(c) || c == '_')
+	word();
+    else
+	operator();
+}
+
+void column() throws CompileException {
+    int end = str.indexOf('}', pos);
+    if (end < 0)
+	throw new CompileException();
+    String id = str.substring(pos + 1, end);
+    Column col = source.findColumn(id);
+    int index = col == null ? -1 : source.indexOfSelectable(col);
+    if (index < 0)	// Formula would leave the text as-is
+	throw new CompileException();
+    type = COLUMN;
+    text = id;
+    value = new ColumnRef(index, col);
+    pos = end + 1;
+}
+
+void string(char quote) throws CompileException {
+    StringBuffer buf = new StringBuffer();
+    int i = pos + 1;
+    while (true) {
+	if (i >= str.length())
+	    throw new CompileException();
+	char c = str.charAt(i++);
+	if (c == quote)
+	    break;
+	// Formula substitutes column values inside strings, too, and Ruby
+	// interpolates "#{...}" in double-quoted strings
+	if (c == '{' || (c == '#' && quote == '"'))
+	    throw new CompileException();
+	if (c == '\\') {
+	    if (i >= str.length())
+		throw new CompileException();
+	    char next = str.charAt(i++);
+	    if (next == quote || next == '\\')
+		c = next;
+	    else if (quote == '\'') { // Backslash is literal
+		buf.append(c);
+		c = next;
+	    }
+	    else if (next == 'n')
+		c = '\n';
+	    else if (next == 't')
+		c = '\t';
+	    else
+		throw new CompileException();
+	}
+	buf.append(c);
+    }
+    type = LITERAL;
+    text = str.substring(pos, i);
+    value = buf.toString();
+    pos = i;
+}
+
+void regex() throws CompileException {
+    // Only "/^literal text/"
+    int i = pos + 1;
+    if (i >= str.length() || str.charAt(i) != '^')
+	throw new CompileException();
+    ++i;
+    StringBuffer buf = new StringBuffer();
+    while (true) {
+	if (i >= str.length())
+	    throw new CompileException();
+	char c = str.charAt(i++);
+	if (c == '/')
+	    break;
+	if (c == '\\') {
+	    if (i >= str.length())
+		throw new CompileException();
+	    c = str.charAt(i++);
+	    if (Character.isLetterOrDigit(c)) // \d, \w, etc.
+		throw new CompileException();
+	}
+	else if (".[]()*+?{}|$^#".indexOf(c) >= 0)
+	    throw new CompileException();
+	buf.append(c);
+    }
+    if (i < str.length() && Character.isLetter(str.charAt(i))) // Flags
+	throw new CompileException();
+    type = REGEX;
+    text = str.substring(pos, i);
+    value = buf.toString();
+    pos = i;
+}
+
+void number() throws CompileException {
+    int i = pos;
+    if (str.charAt(i) == '-')
+	++i;
+    while (i < str.length() && Character.isDigit(str.charAt(i)))
+	++i;
+    boolean floating = false;
+    if (i + 1 < str.length() && str.charAt(i) == '.'
+	&& Character.isDigit(str.charAt(i + 1))) {
+	floating = true;
+	++i;
+	while (i < str.length() && Character.isDigit(str.charAt(i)))
+	    ++i;
+    }
+    if (i < str.length() && (str.charAt(i) == 'e' || str.charAt(i) == 'E')) {
+	floating = true;
+	++i;
+	if (i < str.length() && (str.charAt(i) == '+' || str.charAt(i) == '-'))
+	    ++i;
+	if (i >= str.length() || !Character.isDigit(str.charAt(i)))
+	    throw new CompileException();
+	while (i < str.length() && Character.isDigit(str.charAt(i)))
+	    ++i;
+    }
+    if (i < str.length() && (Character.isLetterOrDigit(str.charAt(i))
+			     || str.charAt(i) == '_'))
+	throw new CompileException();
+
+    text = str.substring(pos, i);
+    try {
+	value = floating ? (Object)new Double(text) : new Long(text);
+    }
+    catch (NumberFormatException nfe) { // Too big for a long
+	throw new CompileException();
+    }
+    type = LITERAL;
+    pos = i;
+}
+
+void word() throws CompileException {
+    int i = pos;
+    while (i < str.length() && (Character.isLetterOrDigit(str.charAt(i))
+				|| str.charAt(i) == '_'))
+	++i;
+    if (i < str.length() && str.charAt(i) == '?') // Method name
+	++i;
+    text = str.substring(pos, i);
+    pos = i;
+
+    if (text.equals("nil")) {
+	type = LITERAL;
+	value = null;
+    }
+    else if (text.equals("true") || text.equals("false")) {
+	type = LITERAL;
+	value = Boolean.valueOf(text.equals("true"));
+    }
+    else
+	type = WORD;
+}
+
+void operator() throws CompileException {
+    String[] ops = {
+	"==", "!=", "<=", ">=", "=~", "!~", "&&", "||", "<", ">", "!", "(",
+	")", "[", "]", ",", "."
+    };
+    for (int i = 0; i < ops.length; ++i) {
+	if (str.startsWith(ops[i], pos)) {
+	    // Ruby's "===" and "<=>" are something else entirely
+	    int end = pos + ops[i].length();
+	    if (i < 10 && end < str.length()
+		&& "=>~".indexOf(str.charAt(end)) >= 0)
+		throw new CompileException();
+	    type = OP;
+	    text = ops[i];
+	    pos = end;
+	    return;
+	}
+    }
+    throw new CompileException(); // Includes newlines and semicolons
+}
+
+}
+
+}
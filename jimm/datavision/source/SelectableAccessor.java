@@ -0,0 +1,84 @@
+package jimm.datavision.source;
+import jimm.datavision.Report;
+import jimm.datavision.Selectable;
+
+/**
+ * Reads the value of a single selectable from a running report's current
+ * row. The selectable's slot is looked up once per {@link SelectableBinding}
+ * and remembered, so reading a value does not require any searching.
+ * <p>
+ * Objects that read the same selectable over and over, such as column
+ * fields and groups, keep one of these instead of calling
+ * <code>Report.columnValue</code>.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class SelectableAccessor {
+
+protected Selectable selectable;
+protected SelectableBinding binding;
+protected int slot;
+
+/**
+ * Constructor.
+ *
+ * @param selectable a selectable
+ */
+public SelectableAccessor(Selectable selectable) {
+    this.selectable = selectable;
+}
+
+public Selectable getSelectable() { return selectable; }
+
+/**
+ * Returns the slot of our selectable in the report's current binding.
+ *
+ * @param report a running report
+ * @return a 1-based data cursor column index
+ */
+protected int slot(Report report) {
+    SelectableBinding b = report.getSelectableBinding();
+    if (b != binding) {
+	binding = b;
+	slot = b.slotOf(selectable);
+    }
+    return slot;
+}
+
+/**
+ * Returns the current value of our selectable. Only defined when running
+ * a report.
+ *
+ * @param report a running report
+ * @return the selectable's value
+ */
+public Object getValue(Report report) {
+    return report.getCurrentRow().getObject(slot(report));
+}
+
+/**
+ * Returns the current value of our selectable as a <code>double</code>.
+ * Only defined when running a report.
+ *
+ * @param report a running report
+ * @return the selectable's value as a <code>double</code>
+ * @see DataCursor#getDouble
+ */
+public double getDoubleValue(Report report) {
+    return report.getCurrentRow().getDouble(slot(report));
+}
+
+/**
+ * Returns <code>true</code> if <var>val</var> equals the current value of
+ * our selectable. Only defined when running a report.
+ *
+ * @param report a running report
+ * @param val a non-<code>null</code> object
+ * @return <code>true</code> if <var>val</var> equals the selectable's value
+ * @see DataCursor#valueEquals
+ */
+public boolean valueEquals(Report report, Object val) {
+    return report.getCurrentRow().valueEquals(slot(report), val);
+}
+
+}
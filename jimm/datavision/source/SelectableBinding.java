@@ -0,0 +1,74 @@
+package jimm.datavision.source;
+import jimm.datavision.Selectable;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Maps each selectable used by a query to its fixed slot, the 1-based
+ * column index of its value in the data source's {@link DataCursor}. A
+ * binding is built once per run of the query instead of asking the data
+ * source for a selectable's index for every value of every row.
+ * <p>
+ * A binding is only valid for the data source, query, and set of
+ * selectables it was built from. When the query's selectables are found
+ * again, {@link #isCurrent} returns <code>false</code> and the report
+ * builds a new binding.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see SelectableAccessor
+ * @see jimm.datavision.Report#getSelectableBinding
+ */
+public class SelectableBinding {
+
+protected DataSource dataSource;
+protected Query query;
+protected int selectablesVersion;
+protected HashMap slots;
+
+/**
+ * Constructor. Binds all of the query's selectables.
+ *
+ * @param dataSource a data source
+ */
+public SelectableBinding(DataSource dataSource) {
+    this.dataSource = dataSource;
+    query = dataSource.getQuery();
+    slots = new HashMap();
+    if (query != null) {
+	selectablesVersion = query.getSelectablesVersion();
+	for (Iterator iter = query.selectables(); iter.hasNext(); )
+	    slotOf((Selectable)iter.next());
+    }
+}
+
+/**
+ * Returns <code>true</code> if this binding is still valid for
+ * <var>ds</var>.
+ *
+ * @param ds a data source
+ * @return <code>true</code> if this binding may be used
+ */
+public boolean isCurrent(DataSource ds) {
+    return ds == dataSource && ds.getQuery() == query
+	&& (query == null || query.getSelectablesVersion() == selectablesVersion);
+}
+
+/**
+ * Returns the slot of the specified selectable. Selectables that were not
+ * bound when this binding was built (for example, character-separated
+ * file columns that are not used by the report) are looked up and
+ * remembered.
+ *
+ * @param sel a selectable
+ * @return the 1-based index of the selectable's value in a data cursor
+ */
+public int slotOf(Selectable sel) {
+    Integer slot = (Integer)slots.get(sel);
+    if (slot == null) {
+	slot = new Integer(dataSource.indexOfSelectable(sel) + 1);
+	slots.put(sel, slot);
+    }
+    return slot.intValue();
+}
+
+}
@@ -0,0 +1,88 @@
+package jimm.datavision.source;
+import jimm.datavision.ErrorHandler;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A data cursor that returns the rows of another cursor in sorted order.
+ * Used by data sources that can't sort their own data, such as files and
+ * lists of objects. The first time a row is needed, all rows are read from
+ * the wrapped cursor and handed to an {@link ExternalSorter}.
+ * <p>
+ * Some cursors evaluate a where clause formula while reading rows, and that
+ * formula reads column values from the report's current cursor, which is
+ * this one. While we are reading rows, column values therefore come from
+ * the wrapped cursor.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see DataSource#executeForReport
+ */
+public class SortedCursor extends DataCursor {
+
+protected DataCursor source;
+protected ExternalSorter sorter;
+protected boolean reading;
+protected boolean sorted;
+
+/**
+ * Constructor.
+ *
+ * @param source the cursor to read rows from
+ * @param keyIndexes the 0-based index of each sort key column, most
+ * significant first
+ * @param descending <code>true</code> for each key that is sorted in
+ * descending order
+ * @param memoryBudget the approximate number of bytes of rows to hold in
+ * memory before writing them to disk
+ */
+public SortedCursor(DataCursor source, int[] keyIndexes,
+		    boolean[] descending, long memoryBudget)
+{
+    this.source = source;
+    sorter = new ExternalSorter(keyIndexes, descending, memoryBudget);
+}
+
+/**
+ * Returns <code>true</code> if the sorter had to write rows to disk. Only
+ * meaningful after the first row has been read.
+ *
+ * @return <code>true</code> if the sorter wrote rows to disk
+ */
+public boolean hasSpilled() { return sorter.hasSpilled(); }
+
+/**
+ * While reading rows from the wrapped cursor, returns its values.
+ */
+public Object getObject(int index) {
+    return reading ? source.getObject(index) : super.getObject(index);
+}
+
+protected List readRowData() {
+    try {
+	if (!sorted) {
+	    reading = true;
+	    try {
+		List row;
+		while ((row = source.readRowData()) != null)
+		    sorter.add(row);
+	    }
+	    finally {
+		reading = false;
+	    }
+	    sorter.finish();
+	    sorted = true;
+	}
+	return sorter.next();
+    }
+    catch (IOException ioe) {
+	ErrorHandler.error(ioe);
+	return null;
+    }
+}
+
+public void close() {
+    sorter.close();
+    source.close();
+}
+
+}
@@ -0,0 +1,248 @@
+package jimm.datavision.source;
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads and writes column values in a compact binary format. Each value is
+ * a tag byte followed by the value's bytes. Used wherever rows of data are
+ * written to disk, such as sort runs and cached results.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see ExternalSorter
+ */
+public class ValueCodec {
+
+// Value tags
+protected static final byte TAG_NULL = 0;
+protected static final byte TAG_STRING = 1;
+protected static final byte TAG_LONG_STRING = 2;
+protected static final byte TAG_INTEGER = 3;
+protected static final byte TAG_LONG = 4;
+protected static final byte TAG_DOUBLE = 5;
+protected static final byte TAG_FLOAT = 6;
+protected static final byte TAG_SHORT = 7;
+protected static final byte TAG_BYTE = 8;
+protected static final byte TAG_BOOLEAN = 9;
+protected static final byte TAG_CHARACTER = 10;
+protected static final byte TAG_BIG_DECIMAL = 11;
+protected static final byte TAG_BIG_INTEGER = 12;
+protected static final byte TAG_DATE = 13;
+protected static final byte TAG_SQL_DATE = 14;
+protected static final byte TAG_TIME = 15;
+protected static final byte TAG_TIMESTAMP = 16;
+protected static final byte TAG_SERIALIZED = 17;
+
+/** writeUTF can't write more than 64K bytes; this many chars always fit. */
+protected static final int MAX_UTF_CHARS = 65535 / 3;
+
+/**
+ * Returns a rough estimate of the number of bytes of memory used by a row.
+ *
+ * @param row a list of values
+ * @return an estimated size in bytes
+ */
+public static long estimateSize(List row) {
+    long size = 32 + 8 * row.size();
+    for (Iterator iter = row.iterator(); iter.hasNext(); ) {
+	Object val = iter.next();
+	if (val instanceof String)
+	    size += 40 + 2 * ((String)val).length();
+	else if (val != null)
+	    size += 24;
+    }
+    return size;
+}
+
+/**
+ * Writes a tag byte followed by the value. Classes we don't know about
+ * must be serializable.
+ *
+ * @param out an output stream
+ * @param val a value; may be <code>null</code>
+ */
+public static void writeValue(DataOutputStream out, Object val)
+    throws IOException
+{
+    if (val == null)
+	out.writeByte(TAG_NULL);
+    else if (val instanceof String) {
+	String s = (String)val;
+	if (s.length() <= MAX_UTF_CHARS) {
+	    out.writeByte(TAG_STRING);
+	    out.writeUTF(s);
+	}
+	else {
+	    out.writeByte(TAG_LONG_STRING);
+	    out.writeInt(s.length());
+	    out.writeChars(s);
+	}
+    }
+    else if (val instanceof Integer) {
+	out.writeByte(TAG_INTEGER);
+	out.writeInt(((Integer)val).intValue());
+    }
+    else if (val instanceof Long) {
+	out.writeByte(TAG_LONG);
+	out.writeLong(((Long)val).longValue());
+    }
+    else if (val instanceof Double) {
+	out.writeByte(TAG_DOUBLE);
+	out.writeDouble(((Double)val).doubleValue());
+    }
+    else if (val instanceof Float) {
+	out.writeByte(TAG_FLOAT);
+	out.writeFloat(((Float)val).floatValue());
+    }
+    else if (val instanceof Short) {
+	out.writeByte(TAG_SHORT);
+	out.writeShort(((Short)val).shortValue());
+    }
+    else if (val instanceof Byte) {
+	out.writeByte(TAG_BYTE);
+	out.writeByte(((Byte)val).byteValue());
+    }
+    else if (val instanceof Boolean) {
+	out.writeByte(TAG_BOOLEAN);
+	out.writeBoolean(((Boolean)val).booleanValue());
+    }
+    else if (val instanceof Character) {
+	out.writeByte(TAG_CHARACTER);
+	out.writeChar(((Character)val).charValue());
+    }
+    else if (val.getClass() == BigDecimal.class) {
+	out.writeByte(TAG_BIG_DECIMAL);
+	out.writeUTF(val.toString());
+    }
+    else if (val.getClass() == BigInteger.class) {
+	out.writeByte(TAG_BIG_INTEGER);
+	out.writeUTF(val.toString());
+    }
+    else if (val.getClass() == java.util.Date.class) {
+	out.writeByte(TAG_DATE);
+	out.writeLong(((java.util.Date)val).getTime());
+    }
+    else if (val.getClass() == java.sql.Date.class) {
+	out.writeByte(TAG_SQL_DATE);
+	out.writeLong(((java.util.Date)val).getTime());
+    }
+    else if (val.getClass() == java.sql.Time.class) {
+	out.writeByte(TAG_TIME);
+	out.writeLong(((java.util.Date)val).getTime());
+    }
+    else if (val.getClass() == java.sql.Timestamp.class) {
+	java.sql.Timestamp ts = (java.sql.Timestamp)val;
+	out.writeByte(TAG_TIMESTAMP);
+	out.writeLong(ts.getTime());
+	out.writeInt(ts.getNanos());
+    }
+    else {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	ObjectOutputStream objOut = new ObjectOutputStream(bytes);
+	objOut.writeObject(val);
+	objOut.close();
+	out.writeByte(TAG_SERIALIZED);
+	out.writeInt(bytes.size());
+	bytes.writeTo(out);
+    }
+}
+
+/**
+ * Returns <code>true</code> if {@link #writeValue} writes a value without
+ * serializing it: <code>null</code>, strings, numbers, booleans,
+ * characters, and dates.
+ *
+ * @param val a value; may be <code>null</code>
+ * @return <code>true</code> if the value isn't serialized
+ */
+public static boolean isPlainValue(Object val) {
+    if (val == null || val instanceof String || val instanceof Integer
+	|| val instanceof Long || val instanceof Double
+	|| val instanceof Float || val instanceof Short
+	|| val instanceof Byte || val instanceof Boolean
+	|| val instanceof Character)
+	return true;
+    Class c = val.getClass();
+    return c == BigDecimal.class || c == BigInteger.class
+	|| c == java.util.Date.class || c == java.sql.Date.class
+	|| c == java.sql.Time.class || c == java.sql.Timestamp.class;
+}
+
+/**
+ * Reads a value written by {@link #writeValue}.
+ *
+ * @param in an input stream
+ * @return a value; may be <code>null</code>
+ */
+public static Object readValue(DataInputStream in) throws IOException {
+    return readValue(in, true);
+}
+
+/**
+ * Reads a value written by {@link #writeValue} that must not have been
+ * serialized (see {@link #isPlainValue}). Use this to read files that
+ * someone else may have written, so they can't make us deserialize
+ * arbitrary objects.
+ *
+ * @param in an input stream
+ * @return a value; may be <code>null</code>
+ * @throws IOException if the value was serialized
+ */
+public static Object readPlainValue(DataInputStream in) throws IOException {
+    return readValue(in, false);
+}
+
+protected static Object readValue(DataInputStream in,
+				  boolean allowSerialized)
+    throws IOException
+{
+    byte tag = in.readByte();
+    switch (tag) {
+    case TAG_NULL: return null;
+    case TAG_STRING: return in.readUTF();
+    case TAG_LONG_STRING:
+	char[] chars = new char[in.readInt()];
+	for (int i = 0; i < chars.length; ++i)
+	    chars[i] = in.readChar();
+	return new String(chars);
+    case TAG_INTEGER: return new Integer(in.readInt());
+    case TAG_LONG: return new Long(in.readLong());
+    case TAG_DOUBLE: return new Double(in.readDouble());
+    case TAG_FLOAT: return new Float(in.readFloat());
+    case TAG_SHORT: return new Short(in.readShort());
+    case TAG_BYTE: return new Byte(in.readByte());
+    case TAG_BOOLEAN: return Boolean.valueOf(in.readBoolean());
+    case TAG_CHARACTER: return new Character(in.readChar());
+    case TAG_BIG_DECIMAL: return new BigDecimal(in.readUTF());
+    case TAG_BIG_INTEGER: return new BigInteger(in.readUTF());
+    case TAG_DATE: return new java.util.Date(in.readLong());
+    case TAG_SQL_DATE: return new java.sql.Date(in.readLong());
+    case TAG_TIME: return new java.sql.Time(in.readLong());
+    case TAG_TIMESTAMP:
+	java.sql.Timestamp ts = new java.sql.Timestamp(in.readLong());
+	ts.setNanos(in.readInt());
+	return ts;
+    case TAG_SERIALIZED:
+	if (!allowSerialized)
+	    throw new IOException("serialized value not allowed");
+	byte[] bytes = new byte[in.readInt()];
+	in.readFully(bytes);
+	ObjectInputStream objIn =
+	    new ObjectInputStream(new ByteArrayInputStream(bytes));
+	try {
+	    return objIn.readObject();
+	}
+	catch (ClassNotFoundException cnfe) {
+	    throw new IOException(cnfe.toString());
+	}
+	finally {
+	    objIn.close();
+	}
+    default:
+	throw new IOException("bad value tag " + tag);
+    }
+}
+
+}
@@ -0,0 +1,93 @@
+package jimm.datavision.source;
+import jimm.datavision.Formula;
+import jimm.datavision.Report;
+import java.util.List;
+
+/**
+ * Decides which rows a where clause accepts, for data sources such as files
+ * and lists of objects that can't hand the where clause to a database.
+ * <p>
+ * When possible, the where clause is compiled into a {@link RowPredicate}
+ * that tests rows without running a script. For rows the predicate can't
+ * decide, and for where clauses it can't compile, the where clause is
+ * evaluated as a formula.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class WhereClauseFilter {
+
+protected DataCursor cursor;
+protected Report report;
+protected String script;
+protected RowPredicate predicate;
+protected Formula formula;
+
+/**
+ * Returns a filter for the query's where clause, or <code>null</code> if
+ * the query has no where clause.
+ *
+ * @param source a data source
+ * @param cursor the cursor whose rows will be tested
+ * @return a filter, or <code>null</code> if there is no where clause
+ */
+public static WhereClauseFilter create(DataSource source, DataCursor cursor) {
+    String script = source.getQuery().getWhereClause();
+    if (script == null || script.length() == 0)
+	return null;
+    return new WhereClauseFilter(source, cursor, script);
+}
+
+/**
+ * Constructor.
+ *
+ * @param source a data source
+ * @param cursor the cursor whose rows will be tested; column values used
+ * by the formula come from this cursor's current row
+ * @param script the where clause
+ */
+public WhereClauseFilter(DataSource source, DataCursor cursor, String script) {
+    this.cursor = cursor;
+    this.report = source.getReport();
+    this.script = script;
+    predicate = RowPredicate.compile(source, script,
+				     report.getScripting().getDefaultLanguage());
+}
+
+/**
+ * Returns <code>true</code> if the where clause was compiled.
+ *
+ * @return <code>true</code> if the where clause was compiled
+ */
+public boolean isCompiled() { return predicate != null; }
+
+/**
+ * Returns <code>true</code> if the where clause accepts the row.
+ *
+ * @param row a list of column values
+ * @return <code>true</code> if the row should be used
+ */
+public boolean accept(List row) {
+    if (predicate != null) {
+	Boolean answer = predicate.test(row);
+	if (answer != null)
+	    return answer.booleanValue();
+    }
+
+    if (formula == null)
+	formula = new Formula(null, report, "", script);
+
+    // Make the row the current row because the formula we are about to
+    // evaluate reads its column values from there. Afterwards, restore the
+    // original current row (actually the previous row, but we don't care).
+    List origCurrRowData = cursor.currRowData;
+    cursor.currRowData = row;
+    try {
+	Object obj = formula.eval();
+	return obj != null && !Boolean.FALSE.equals(obj);
+    }
+    finally {
+	cursor.currRowData = origCurrRowData;
+    }
+}
+
+}
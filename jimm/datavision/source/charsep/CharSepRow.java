@@ -1,13 +1,12 @@
 package jimm.datavision.source.charsep;
-import jimm.datavision.Formula;
 import jimm.datavision.ErrorHandler;
 import jimm.datavision.source.DataCursor;
 import jimm.datavision.source.Column;
 import jimm.datavision.source.Query;
+import jimm.datavision.source.RowBuffer;
+import jimm.datavision.source.WhereClauseFilter;
 import java.util.*;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.text.ParseException;
 
 /**
  * A concrete subclass of <code>DataCursor</code> that wraps a delimited file parser.
@@ -18,20 +17,26 @@ public class CharSepRow extends DataCursor {
 
 protected CharSepSource source;
 protected Query query;
-protected Formula whereClauseFormula;
+protected WhereClauseFilter whereClause;
 protected boolean noMoreData;
 protected DelimParser parser;
-protected HashMap dateParsers;
-protected boolean dateParseErrorReported;
+protected MappedDelimParser mappedParser;
+protected ParallelDelimParser parallelParser;
+protected RowConverter converter;
 
 CharSepRow(CharSepSource source, Query query) {
     this.source = source;
     this.query = query;
     this.query.findSelectablesUsed();	// Needed so we can find columns later
+    whereClause = WhereClauseFilter.create(source, this);
 
-    String script = query.getWhereClause();
-    if (script != null && script.length() > 0)
-	whereClauseFormula = new Formula(null, source.getReport(), "", script);
+    ArrayList list = new ArrayList();
+    for (Iterator iter = source.columns(); iter.hasNext(); )
+	list.add(iter.next());
+    converter =
+	new RowConverter((Column[])list.toArray(new Column[list.size()]));
+    if (source.usesTypedRows())
+	useTypedStorage(converter.getKinds());
 }
 
 /**
@@ -42,46 +47,68 @@ public List readRowData() {
     if (noMoreData)
 	return null;
 
-    List data = null;
-
-    boolean acceptRow;
+    List data;
     do {
 	data = retrieveNextRow();
-	if (whereClauseFormula != null && data != null) {
-	    // Run the Ruby script and retrive its boolean value. If true,
-	    // accept the line. Else, reject it and move on to the next
-	    // line.
-
-	    // First, save the existing current row and make the new data
-	    // the current row. We need to do this because the formula we
-	    // are about to evaluate may make use of data in the new
-	    // current row.
-	    List origCurrRowData = currRowData;
-	    currRowData = data;	// Need data available to formula
-
-	    // Evaulate the script and retrieve a boolean.
-	    Object obj = whereClauseFormula.eval();
-	    acceptRow = ((Boolean)obj).booleanValue();
-
-	    // Replace the original current row data (acutally the previous
-	    // row, but we don't care).
-	    currRowData = origCurrRowData;
-	}
-	else
-	    acceptRow = true;
-    } while (!acceptRow);
+    } while (data != null && whereClause != null && !whereClause.accept(data));
 
     return data;
 }
 
+/**
+ * Reads the next row into a typed row buffer. Without a where clause,
+ * records from the mapped parser are converted straight into the buffer,
+ * so numbers are never boxed.
+ */
+protected boolean readRowInto(RowBuffer row) {
+    if (noMoreData)
+	return false;
+
+    openParser();
+    if (whereClause == null && mappedParser != null) {
+	DelimRecord record = readMappedRecord();
+	if (record == null)
+	    return false;
+	for (int i = 0; i < row.size(); ++i)
+	    converter.convertInto(record, i, row);
+	return true;
+    }
+
+    List data = readRowData();
+    if (data == null)
+	return false;
+    if (data instanceof LazyData)
+	((LazyData)data).fill(row);
+    else
+	row.setAll(data);
+    return true;
+}
+
+/**
+ * Creates the parser the first time it is needed.
+ */
+protected void openParser() {
+    if (parallelParser != null || mappedParser != null || parser != null)
+	return;
+
+    parallelParser = source.getParallelParser(converter);
+    if (parallelParser == null)
+	mappedParser = source.getMappedParser();
+    if (parallelParser == null && mappedParser == null)
+	parser = new DelimParser(source.getReader(), source.getSepChar());
+}
+
 /**
  * Retrieve the next row of data and return it as a list of column values.
  *
  * @return a list of column values
  */
 protected List retrieveNextRow() {
-    if (parser == null)
-	parser = new DelimParser(source.getReader(), source.getSepChar());
+    openParser();
+    if (parallelParser != null)
+	return retrieveNextParallelRow();
+    if (mappedParser != null)
+	return retrieveNextMappedRow();
 
     List data = null;
     try {
@@ -97,60 +124,174 @@ protected List retrieveNextRow() {
 	return null;
     }
 
-    int numColumnsInData = data.size();
-    int i = 0;
-    for (Iterator iter = source.columns(); iter.hasNext(); ++i) {
-	Column col = (Column)iter.next();
+    return new StringData(data);
+}
 
-	if (i >= numColumnsInData) {
-	    data.add(null);
-	    continue;
-	}
+/**
+ * Retrieve the next row of data from the mapped parser. Column values are
+ * not decoded or converted until they are used.
+ *
+ * @return a list of column values
+ */
+protected List retrieveNextMappedRow() {
+    DelimRecord record = readMappedRecord();
+    return record == null ? null : new RecordData(record);
+}
 
-	if (col.isNumeric()) {
-	    String str = data.get(i).toString();
-	    if (str == null || str.length() == 0)
-		data.set(i, new Integer(0));
-	    else if (str.indexOf('.') == -1)
-		data.set(i, new Integer(str));
-	    else
-		data.set(i, new Double(str));
-	}
-	else if (col.isDate())
-	    data.set(i, parseDate(col, data.get(i).toString()));
-	// else, it's a string; there is nothing to modify
+/**
+ * Returns the next record from the mapped parser, or <code>null</code> if
+ * there are no more.
+ */
+protected DelimRecord readMappedRecord() {
+    DelimRecord record = null;
+    try {
+	record = mappedParser.readRecord();
     }
+    catch (IOException ioe) {
+	ErrorHandler.error(ioe);
+    }
+    if (record == null)
+	noMoreData = true;
+    return record;
+}
 
+/**
+ * Retrieve the next row of data from the parallel parser, which has
+ * already converted the column values.
+ *
+ * @return a list of column values
+ */
+protected List retrieveNextParallelRow() {
+    List data = null;
+    try {
+	data = parallelParser.parse();
+    }
+    catch (IOException ioe) {
+	ErrorHandler.error(ioe);
+    }
+    if (data == null)
+	noMoreData = true;
     return data;
 }
 
-protected Date parseDate(Column col, String dateString) {
-    String formatString = col.getDateParseFormat();
+public void close() {
+    if (parallelParser != null) {
+	parallelParser.close();
+	parallelParser = null;
+    }
+    if (mappedParser != null) {
+	try {
+	    mappedParser.close();
+	}
+	catch (IOException ioe) {
+	    ErrorHandler.error(ioe);
+	}
+	mappedParser = null;
+    }
+    source.closeReader();
+}
+
+/**
+ * A row whose column values are converted the first time they are asked
+ * for, so columns the report never uses are never converted. Rows rejected
+ * by a compiled where clause only convert the columns it tests.
+ */
+protected abstract class LazyData extends AbstractList {
 
-    // Find existing parser, if any
-    if (dateParsers == null)
-	dateParsers = new HashMap();
-    SimpleDateFormat parser = (SimpleDateFormat)dateParsers.get(formatString);
+protected Object[] values;
+protected boolean[] converted;
 
-    if (parser == null) {
-	parser = new SimpleDateFormat(formatString);
-	dateParsers.put(formatString, parser);
-    }
+LazyData(int numValues) {
+    int size = Math.max(numValues, converter.getNumColumns());
+    values = new Object[size];
+    converted = new boolean[size];
+}
 
-    try {
-	return parser.parse(dateString);
+/**
+ * Returns the converted value of column <var>i</var>.
+ */
+protected abstract Object convert(int i);
+
+public int size() { return values.length; }
+
+public Object get(int i) {
+    if (!converted[i]) {
+	values[i] = convert(i);
+	converted[i] = true;
     }
-    catch (ParseException ex) {
-	if (!dateParseErrorReported) {
-	    ErrorHandler.error("Parse format string = " + formatString, ex);
-	    dateParseErrorReported = true;
-	}
-	return null;
+    return values[i];
+}
+
+public Object set(int i, Object val) {
+    Object old = get(i);
+    values[i] = val;
+    return old;
+}
+
+/**
+ * Converts column <var>i</var> into a row buffer.
+ */
+protected abstract void convertInto(int i, RowBuffer row);
+
+/**
+ * Fills a row buffer with this row's values. Values that have not yet been
+ * converted are converted straight into the buffer.
+ */
+void fill(RowBuffer row) {
+    for (int i = 0; i < row.size(); ++i) {
+	if (converted[i])
+	    row.setObject(i, values[i]);
+	else
+	    convertInto(i, row);
     }
 }
 
-public void close() {
-    source.closeReader();
+}
+
+/**
+ * A row whose column values are converted from a {@link DelimRecord}.
+ */
+protected class RecordData extends LazyData {
+
+protected DelimRecord record;
+
+RecordData(DelimRecord record) {
+    super(record.size());
+    this.record = record;
+}
+
+protected Object convert(int i) { return converter.convert(record, i); }
+
+protected void convertInto(int i, RowBuffer row) {
+    converter.convertInto(record, i, row);
+}
+
+}
+
+/**
+ * A row whose column values are converted from the strings returned by a
+ * {@link DelimParser}.
+ */
+protected class StringData extends LazyData {
+
+protected List strings;
+
+StringData(List strings) {
+    super(strings.size());
+    this.strings = strings;
+}
+
+protected Object convert(int i) {
+    if (i >= strings.size() || i >= converter.getNumColumns())
+	return i < strings.size() ? strings.get(i) : null;
+    return converter.convert(i, strings.get(i).toString());
+}
+
+protected void convertInto(int i, RowBuffer row) {
+    converter.convertInto(i, i < strings.size()
+			  ? strings.get(i).toString() : null, row);
+}
+
 }
 
 }
@@ -19,19 +19,25 @@ protected ArrayList columns;
 protected char sepChar;
 protected BufferedReader reader;
 protected String sourceFilePath;
+protected String sourceFileEncoding; // Non-null when reading sourceFilePath
+protected int parseThreads;
+protected int parseChunkSize;
 
 public CharSepSource(Report report) {
     super(report, new CharSepQuery(report));
     columns = new ArrayList();
     sepChar = DEFAULT_SEP_CHAR;
+    parseThreads = 1;
+    parseChunkSize = ParallelDelimParser.DEFAULT_CHUNK_SIZE;
 }
 
 public boolean canJoinTables() { return true; }
 public boolean isSQLGenerated() { return false; }
 public boolean isConnectionEditable() { return false; }
 public boolean areRecordsSelectable() { return true; }
-public boolean areRecordsSortable() { return false; }
-public boolean canGroupRecords() { return false; }
+public boolean areRecordsSortable() { return true; }
+public boolean canGroupRecords() { return true; }
+public boolean needsSortStage() { return true; }
 
 public boolean usesSourceFile() { return true; }
 public boolean needsSourceFile() { return reader == null; }
@@ -47,7 +53,9 @@ public void setSourceFile(String filePath) throws FileNotFoundException {
 }
 
 public void reuseSourceFile() throws FileNotFoundException {
-    setInput(new FileReader(sourceFilePath));
+    FileReader fileReader = new FileReader(sourceFilePath);
+    setInput(fileReader);
+    sourceFileEncoding = fileReader.getEncoding();
 }
 
 public void setInput(Reader reader) {
@@ -55,10 +63,12 @@ public void setInput(Reader reader) {
 	this.reader = (BufferedReader)reader;
     else
 	this.reader = new BufferedReader(reader);
+    sourceFileEncoding = null;
 }
 
 public void setInput(InputStreamReader inputStreamReader) {
     reader = new BufferedReader(inputStreamReader);
+    sourceFileEncoding = null;
 }
 
 public void setInput(String fileName) throws FileNotFoundException {
@@ -68,6 +78,47 @@ public void setInput(String fileName) throws FileNotFoundException {
 public char getSepChar() { return sepChar; }
 public void setSepChar(char c) { sepChar = c; }
 
+/**
+ * Returns the number of threads used to parse the source file.
+ *
+ * @return the number of parsing threads
+ * @see #setParseThreads
+ */
+public int getParseThreads() { return parseThreads; }
+
+/**
+ * Sets the number of threads used to parse the source file. When greater
+ * than one and the file is bigger than one chunk, chunks of the file are
+ * parsed and converted by that many threads at once. Input that does not
+ * come from a source file is always parsed by the report's thread.
+ *
+ * @param threads the number of parsing threads; values less than one
+ * mean one
+ * @see ParallelDelimParser
+ */
+public void setParseThreads(int threads) {
+    parseThreads = threads < 1 ? 1 : threads;
+}
+
+/**
+ * Returns the number of bytes in each chunk of the source file handed to a
+ * parsing thread.
+ *
+ * @return the chunk size in bytes
+ */
+public int getParseChunkSize() { return parseChunkSize; }
+
+/**
+ * Sets the number of bytes in each chunk of the source file handed to a
+ * parsing thread.
+ *
+ * @param size the chunk size in bytes; values less than one mean the
+ * default
+ */
+public void setParseChunkSize(int size) {
+    parseChunkSize = size < 1 ? ParallelDelimParser.DEFAULT_CHUNK_SIZE : size;
+}
+
 /**
  * This override not only remembers the column but also hands it to the
  * query for cacheing.
@@ -114,6 +165,50 @@ BufferedReader getReader() {
     return reader;
 }
 
+/**
+ * Returns a parser that memory-maps the source file, or <code>null</code>
+ * if our input is not the source file or the file can't be parsed that
+ * way. In that case, the caller should use a {@link DelimParser} that reads
+ * from {@link #getReader}.
+ *
+ * @return a mapped parser or <code>null</code>
+ */
+MappedDelimParser getMappedParser() {
+    if (reader == null || sourceFileEncoding == null
+	|| !MappedDelimParser.canParse(sepChar, sourceFileEncoding))
+	return null;
+
+    try {
+	return new MappedDelimParser(new File(sourceFilePath), sepChar,
+				     sourceFileEncoding,
+				     MappedDelimParser.DEFAULT_WINDOW_SIZE);
+    }
+    catch (IOException ioe) {
+	return null;		// Let the caller fall back to the reader
+    }
+}
+
+/**
+ * Returns a parser that parses the source file using several threads, or
+ * <code>null</code> if we are only using one thread, the file is no bigger
+ * than one chunk, or the file can't be memory-mapped.
+ *
+ * @param converter converts column text
+ * @return a parallel parser or <code>null</code>
+ * @see #getMappedParser
+ */
+ParallelDelimParser getParallelParser(RowConverter converter) {
+    if (parseThreads <= 1 || reader == null || sourceFileEncoding == null
+	|| !MappedDelimParser.canParse(sepChar, sourceFileEncoding))
+	return null;
+
+    File file = new File(sourceFilePath);
+    if (file.length() <= parseChunkSize)
+	return null;
+    return new ParallelDelimParser(file, sepChar, sourceFileEncoding,
+				   converter, parseThreads, parseChunkSize);
+}
+
 void closeReader() {
     try {
 	if (reader != null)
@@ -135,6 +230,12 @@ void closeReader() {
 protected void doWriteXML(XMLWriter out) {
     out.startElement("charsep");
     out.attr("sepchar", sepChar);
+    if (parseThreads > 1)
+	out.attr("parse-threads", parseThreads);
+    if (sortMemoryBudget != DEFAULT_SORT_MEMORY_BUDGET)
+	out.attr("sort-memory-budget", Long.toString(sortMemoryBudget));
+    if (typedRows)
+	out.attr("typed-rows", typedRows);
     if (metadataURL != null)
 	out.textElement("metadata-url", metadataURL);
     else
@@ -0,0 +1,243 @@
+package jimm.datavision.source.charsep;
+import jimm.datavision.source.Column;
+import jimm.datavision.source.RowBuffer;
+import java.util.Date;
+import java.util.HashMap;
+import java.text.SimpleDateFormat;
+import java.text.ParseException;
+
+/**
+ * Converts the text of one charsep column into a value of the column's
+ * type. A {@link RowConverter} creates one converter per column when it is
+ * created, so each row only has to hand each column's text to the right
+ * converter.
+ * <p>
+ * Converters are not thread-safe. Each thread that converts rows needs its
+ * own {@link RowConverter}.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+abstract class ColumnConverter {
+
+/**
+ * Returns a converter for <var>col</var>.
+ *
+ * @param col a column
+ * @param dateParsers date parsers keyed by format string, shared by all of
+ * one row converter's columns
+ * @param errorReporter used to report date parsing errors once
+ * @return a converter
+ */
+static ColumnConverter create(Column col, HashMap dateParsers,
+			      RowConverter errorReporter)
+{
+    if (col.isNumeric())
+	return new NumberConverter();
+    if (col.isDate()) {
+	String format = col.getDateParseFormat();
+	SimpleDateFormat parser = (SimpleDateFormat)dateParsers.get(format);
+	if (parser == null) {
+	    parser = new SimpleDateFormat(format);
+	    dateParsers.put(format, parser);
+	}
+	return new DateConverter(format, parser, errorReporter);
+    }
+    return new StringConverter();
+}
+
+/**
+ * Returns the {@link RowBuffer} kind used to store this column's values.
+ *
+ * @return a <code>RowBuffer.KIND_*</code> constant
+ */
+int getKind() { return RowBuffer.KIND_OBJECT; }
+
+/**
+ * Converts a column's text.
+ *
+ * @param str the column's text; never <code>null</code>
+ * @return the converted value; may be <code>null</code>
+ */
+abstract Object convert(String str);
+
+/**
+ * Converts a column of a record.
+ *
+ * @param record a record
+ * @param i a column index starting at 0
+ * @return the converted value; may be <code>null</code>
+ */
+abstract Object convert(DelimRecord record, int i);
+
+/**
+ * Converts a column of a record and stores it in a row buffer. Converters
+ * for numbers store primitives.
+ *
+ * @param record a record
+ * @param i a column index starting at 0
+ * @param row a row buffer whose column <var>i</var> has the kind returned
+ * by {@link #getKind}
+ */
+void convertInto(DelimRecord record, int i, RowBuffer row) {
+    row.setObject(i, convert(record, i));
+}
+
+/**
+ * Converts a column's text and stores it in a row buffer.
+ *
+ * @param str the column's text; never <code>null</code>
+ * @param i a column index starting at 0
+ * @param row a row buffer
+ */
+void convertInto(String str, int i, RowBuffer row) {
+    row.setObject(i, convert(str));
+}
+
+// ================================================================
+
+/**
+ * Converts numbers. Text without a decimal point or exponent becomes an
+ * <code>Integer</code>, or a <code>Long</code> if it is too big; anything
+ * else becomes a <code>Double</code>. Empty columns are <code>null</code>.
+ */
+static class NumberConverter extends ColumnConverter {
+
+int getKind() { return RowBuffer.KIND_NUMBER; }
+
+Object convert(String str) {
+    if (str.length() == 0)
+	return null;
+    if (isIntegral(str)) {
+	long val = Long.parseLong(str);
+	return val == (int)val ? (Object)new Integer((int)val) : new Long(val);
+    }
+    return new Double(str);
+}
+
+Object convert(DelimRecord record, int i) {
+    if (record.isEmpty(i))
+	return null;
+    if (record.isIntegral(i)) {
+	long val = record.getLong(i);
+	return val == (int)val ? (Object)new Integer((int)val) : new Long(val);
+    }
+    return new Double(record.getDouble(i));
+}
+
+void convertInto(DelimRecord record, int i, RowBuffer row) {
+    if (record.isEmpty(i))
+	row.setNull(i);
+    else if (record.isIntegral(i))
+	row.setLong(i, record.getLong(i));
+    else
+	row.setDouble(i, record.getDouble(i));
+}
+
+void convertInto(String str, int i, RowBuffer row) {
+    if (str.length() == 0)
+	row.setNull(i);
+    else if (isIntegral(str))
+	row.setLong(i, Long.parseLong(str));
+    else
+	row.setDouble(i, Double.parseDouble(str));
+}
+
+/**
+ * Returns <code>true</code> if <var>str</var> is an optional minus sign
+ * followed by digits that fit in a <code>long</code>.
+ */
+static boolean isIntegral(String str) {
+    int len = str.length();
+    int j = str.charAt(0) == '-' ? 1 : 0;
+    if (j == len || len - j > DelimRecord.MAX_LONG_DIGITS)
+	return false;
+    for (; j < len; ++j) {
+	char c = str.charAt(j);
+	if (c < '0' || c > '9')
+	    return false;
+    }
+    return true;
+}
+
+}
+
+// ================================================================
+
+/**
+ * Parses dates using the column's date format. Empty columns are
+ * <code>null</code>. Parsed dates are cached
+ * by their text, since the same dates usually appear in many rows. Rows
+ * with the same text share the same <code>Date</code> object.
+ */
+static class DateConverter extends ColumnConverter {
+
+protected String format;
+protected SimpleDateFormat parser;
+protected RowConverter errorReporter;
+protected RecentValueCache cache;
+
+DateConverter(String format, SimpleDateFormat parser,
+	      RowConverter errorReporter)
+{
+    this.format = format;
+    this.parser = parser;
+    this.errorReporter = errorReporter;
+    cache = new RecentValueCache();
+}
+
+Object convert(String str) {
+    if (str.length() == 0)
+	return null;
+    Object date = cache.get(str);
+    return date != null ? date : parse(str);
+}
+
+Object convert(DelimRecord record, int i) {
+    if (record.isEmpty(i))
+	return null;
+    Object date = cache.get(record, i);
+    return date != null ? date : parse(record.getString(i));
+}
+
+protected Date parse(String str) {
+    try {
+	Date date = parser.parse(str);
+	cache.put(str, date);
+	return date;
+    }
+    catch (ParseException ex) {
+	errorReporter.dateParseError(format, ex);
+	return null;
+    }
+}
+
+}
+
+// ================================================================
+
+/**
+ * Returns strings. When decoding records, recently seen strings are reused
+ * instead of decoding the column again.
+ */
+static class StringConverter extends ColumnConverter {
+
+protected RecentValueCache cache;
+
+StringConverter() {
+    cache = new RecentValueCache();
+}
+
+Object convert(String str) { return str; }
+
+Object convert(DelimRecord record, int i) {
+    Object str = cache.get(record, i);
+    if (str == null) {
+	str = record.getString(i);
+	cache.put((String)str, str);
+    }
+    return str;
+}
+
+}
+
+}
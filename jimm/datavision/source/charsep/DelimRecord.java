@@ -0,0 +1,272 @@
+package jimm.datavision.source.charsep;
+import java.nio.ByteBuffer;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * One line of delimited data found by a {@link MappedDelimParser}. Column
+ * data is not copied out of the parser's byte buffer. Columns are decoded
+ * into strings or parsed into numbers only when asked for, so columns that
+ * are never used cost almost nothing.
+ * <p>
+ * Most columns are a contiguous slice of the buffer. Columns whose text
+ * differs from the raw bytes (for example, quoted columns containing
+ * doubled quotes) are copied into their own byte arrays.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class DelimRecord {
+
+protected static final int MAX_INT_DIGITS = 9;
+/** Any number with this many digits fits in a <code>long</code>. */
+static final int MAX_LONG_DIGITS = 18;
+protected static final int MAX_EXACT_DOUBLE_DIGITS = 15;
+protected static final double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+    1e13, 1e14, 1e15
+};
+
+protected ByteBuffer buffer;
+protected String encoding;
+protected int numColumns;
+protected int[] starts;
+protected int[] lengths;
+protected byte[][] copies;
+
+DelimRecord(ByteBuffer buffer, String encoding, int numColumns,
+	    int[] starts, int[] lengths, byte[][] copies)
+{
+    this.buffer = buffer;
+    this.encoding = encoding;
+    this.numColumns = numColumns;
+    this.starts = starts;
+    this.lengths = lengths;
+    this.copies = copies;
+}
+
+/**
+ * Returns the number of columns in this line.
+ *
+ * @return the number of columns
+ */
+public int size() { return numColumns; }
+
+/**
+ * Returns <code>true</code> if the specified column is empty.
+ *
+ * @param i a column index starting at 0
+ * @return <code>true</code> if the column is the empty string
+ */
+public boolean isEmpty(int i) { return lengths[i] == 0; }
+
+/**
+ * Returns the byte at offset <var>j</var> within column <var>i</var>.
+ */
+protected byte byteAt(int i, int j) {
+    return copies[i] != null ? copies[i][j] : buffer.get(starts[i] + j);
+}
+
+/**
+ * Returns <code>true</code> if the specified column contains the ASCII
+ * character <var>c</var>.
+ *
+ * @param i a column index starting at 0
+ * @param c an ASCII character
+ * @return <code>true</code> if <var>c</var> is in the column
+ */
+public boolean contains(int i, char c) {
+    byte b = (byte)c;
+    for (int j = 0, len = lengths[i]; j < len; ++j)
+	if (byteAt(i, j) == b)
+	    return true;
+    return false;
+}
+
+/**
+ * Returns the specified column decoded as a string.
+ *
+ * @param i a column index starting at 0
+ * @return the column's text
+ */
+public String getString(int i) {
+    int len = lengths[i];
+    if (len == 0)
+	return "";
+
+    // Plain ASCII, the usual case, needs no decoding
+    char[] chars = new char[len];
+    int j;
+    for (j = 0; j < len; ++j) {
+	byte b = byteAt(i, j);
+	if (b < 0)
+	    break;
+	chars[j] = (char)b;
+    }
+    if (j == len)
+	return new String(chars);
+
+    byte[] bytes = copies[i];
+    if (bytes == null) {
+	bytes = new byte[len];
+	for (j = 0; j < len; ++j)
+	    bytes[j] = buffer.get(starts[i] + j);
+    }
+    try {
+	return new String(bytes, 0, len, encoding);
+    }
+    catch (UnsupportedEncodingException uee) {
+	return new String(bytes, 0, len);
+    }
+}
+
+/**
+ * Returns a hash code for the specified column's text without decoding it.
+ * For ASCII text this is the same as the decoded string's
+ * <code>hashCode</code>.
+ *
+ * @param i a column index starting at 0
+ * @return a hash code
+ */
+public int textHashCode(int i) {
+    int h = 0;
+    for (int j = 0, len = lengths[i]; j < len; ++j)
+	h = 31 * h + (byteAt(i, j) & 0xff);
+    return h;
+}
+
+/**
+ * Returns <code>true</code> if the specified column's text is the ASCII
+ * string <var>str</var>, without decoding the column. Always returns
+ * <code>false</code> if the column contains anything but ASCII.
+ *
+ * @param i a column index starting at 0
+ * @param str a string
+ * @return <code>true</code> if the column's text equals <var>str</var>
+ */
+public boolean textEquals(int i, String str) {
+    int len = lengths[i];
+    if (str.length() != len)
+	return false;
+    for (int j = 0; j < len; ++j) {
+	byte b = byteAt(i, j);
+	if (b < 0 || b != str.charAt(j))
+	    return false;
+    }
+    return true;
+}
+
+/**
+ * Returns the specified column parsed as an <code>int</code>. Simple
+ * integers are parsed straight from the bytes; anything else is handed
+ * to <code>Integer.parseInt</code>, which may throw an exception.
+ *
+ * @param i a column index starting at 0
+ * @return the column's value
+ * @throws NumberFormatException if the column is not an integer
+ */
+public int getInt(int i) {
+    int len = lengths[i];
+    int j = 0;
+    boolean negative = false;
+    if (len > 0 && byteAt(i, 0) == '-') {
+	negative = true;
+	j = 1;
+    }
+    if (len - j > 0 && len - j <= MAX_INT_DIGITS) {
+	int val = 0;
+	for (; j < len; ++j) {
+	    int digit = byteAt(i, j) - '0';
+	    if (digit < 0 || digit > 9)
+		return Integer.parseInt(getString(i));
+	    val = val * 10 + digit;
+	}
+	return negative ? -val : val;
+    }
+    return Integer.parseInt(getString(i));
+}
+
+/**
+ * Returns <code>true</code> if the specified column is an optional minus
+ * sign followed by few enough digits to fit in a <code>long</code>.
+ *
+ * @param i a column index starting at 0
+ * @return <code>true</code> if {@link #getLong} can parse the column
+ * straight from the bytes
+ */
+public boolean isIntegral(int i) {
+    int len = lengths[i];
+    int j = len > 0 && byteAt(i, 0) == '-' ? 1 : 0;
+    if (j == len || len - j > MAX_LONG_DIGITS)
+	return false;
+    for (; j < len; ++j) {
+	byte b = byteAt(i, j);
+	if (b < '0' || b > '9')
+	    return false;
+    }
+    return true;
+}
+
+/**
+ * Returns the specified column parsed as a <code>long</code>. Simple
+ * integers are parsed straight from the bytes; anything else is handed
+ * to <code>Long.parseLong</code>, which may throw an exception.
+ *
+ * @param i a column index starting at 0
+ * @return the column's value
+ * @throws NumberFormatException if the column is not an integer
+ */
+public long getLong(int i) {
+    if (!isIntegral(i))
+	return Long.parseLong(getString(i));
+
+    int len = lengths[i];
+    int j = byteAt(i, 0) == '-' ? 1 : 0;
+    long val = 0;
+    for (int k = j; k < len; ++k)
+	val = val * 10 + (byteAt(i, k) - '0');
+    return j == 1 ? -val : val;
+}
+
+/**
+ * Returns the specified column parsed as a <code>double</code>. Simple
+ * decimal numbers with few enough digits to be converted exactly are
+ * parsed straight from the bytes; anything else is handed to
+ * <code>Double.parseDouble</code>, which may throw an exception.
+ *
+ * @param i a column index starting at 0
+ * @return the column's value
+ * @throws NumberFormatException if the column is not a number
+ */
+public double getDouble(int i) {
+    int len = lengths[i];
+    int j = 0;
+    boolean negative = false;
+    if (len > 0 && byteAt(i, 0) == '-') {
+	negative = true;
+	j = 1;
+    }
+
+    long mantissa = 0;
+    int numDigits = 0;
+    int scale = -1;		// Digits after the decimal point
+    for (; j < len; ++j) {
+	byte b = byteAt(i, j);
+	if (b == '.' && scale < 0)
+	    scale = 0;
+	else if (b >= '0' && b <= '9') {
+	    mantissa = mantissa * 10 + (b - '0');
+	    ++numDigits;
+	    if (scale >= 0)
+		++scale;
+	}
+	else
+	    return Double.parseDouble(getString(i));
+    }
+    if (numDigits == 0 || numDigits > MAX_EXACT_DOUBLE_DIGITS)
+	return Double.parseDouble(getString(i));
+
+    // Both values are exact, so the division is rounded correctly
+    double val = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+    return negative ? -val : val;
+}
+
+}
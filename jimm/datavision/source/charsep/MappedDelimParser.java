@@ -0,0 +1,442 @@
+package jimm.datavision.source.charsep;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * Parses delimited data from a file by memory-mapping it. Follows exactly
+ * the same quoting rules as {@link DelimParser}, but instead of reading one
+ * character at a time and building strings it scans the mapped bytes and
+ * returns {@link DelimRecord}s that only remember where each column is.
+ * <p>
+ * Delimiters, quotes, and line endings are ASCII, so they can be found
+ * without decoding the file. That means the file must use an encoding in
+ * which those bytes never appear inside other characters, such as UTF-8 or
+ * ISO-8859-1, and the delimiter must be an ASCII character. See
+ * {@link #canParse}.
+ * <p>
+ * Large files are mapped a window at a time. A line is always contained
+ * within a single window; when a line crosses the end of a window, the
+ * next window starts at the beginning of that line.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see DelimParser
+ */
+public class MappedDelimParser {
+
+public static final String DEFAULT_ENCODING = "UTF-8";
+public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+protected static final int NO_RECORD = 0;
+protected static final int RECORD = 1;
+protected static final int NEED_MORE = 2;
+protected static final int INITIAL_NUM_COLUMNS = 16;
+
+protected FileInputStream stream;
+protected FileChannel channel;
+protected long fileSize;
+protected byte delimiter;
+protected String encoding;
+protected int windowSize;
+
+protected MappedByteBuffer window;
+protected long windowStart;	// File offset of window
+protected int windowLen;
+protected int pos;		// Start of next line within window
+
+// Columns of the line being scanned
+protected int numColumns;
+protected int[] starts;
+protected int[] lengths;
+protected byte[][] copies;
+
+// Text of the column being scanned
+protected int contentStart;
+protected int contentLen;
+protected byte[] copy;		// Non-null if text is not a slice of window
+
+/**
+ * Constructor, using UTF-8 and the default window size. The caller must
+ * call {@link #close}.
+ *
+ * @param file the file to read
+ * @param delimiter an ASCII delimiter character
+ */
+public MappedDelimParser(File file, char delimiter) throws IOException {
+    this(file, delimiter, DEFAULT_ENCODING, DEFAULT_WINDOW_SIZE);
+}
+
+/**
+ * Constructor. The caller must call {@link #close}.
+ *
+ * @param file the file to read
+ * @param delimiter an ASCII delimiter character
+ * @param encoding the file's character encoding, used when decoding
+ * column text
+ * @param windowSize the number of bytes to map at a time
+ */
+public MappedDelimParser(File file, char delimiter, String encoding,
+			 int windowSize)
+    throws IOException
+{
+    if (!canParse(delimiter, encoding)) // Programmer error; no I18N
+	throw new IllegalArgumentException("unusable delimiter or encoding");
+
+    this.delimiter = (byte)delimiter;
+    this.encoding = encoding;
+    this.windowSize = windowSize < 1 ? DEFAULT_WINDOW_SIZE : windowSize;
+    stream = new FileInputStream(file);
+    channel = stream.getChannel();
+    fileSize = channel.size();
+
+    starts = new int[INITIAL_NUM_COLUMNS];
+    lengths = new int[INITIAL_NUM_COLUMNS];
+    copies = new byte[INITIAL_NUM_COLUMNS][];
+}
+
+/**
+ * Returns <code>true</code> if this class can parse data using the
+ * specified delimiter and encoding.
+ *
+ * @param delimiter a delimiter character
+ * @param encoding a character encoding name
+ * @return <code>true</code> if <var>delimiter</var> is ASCII and not a
+ * quote or line ending, and <var>encoding</var> is UTF-8, US-ASCII, or a
+ * single-byte ISO or Windows encoding
+ */
+public static boolean canParse(char delimiter, String encoding) {
+    if (delimiter >= 128 || delimiter == '"' || delimiter == '\n'
+	|| delimiter == '\r')
+	return false;
+
+    String name;
+    try {
+	name = Charset.forName(encoding).name();
+    }
+    catch (IllegalArgumentException iae) { // Illegal or unsupported name
+	return false;
+    }
+    return name.equals("UTF-8") || name.equals("US-ASCII")
+	|| name.startsWith("ISO-8859-") || name.startsWith("windows-125");
+}
+
+/**
+ * Returns the next line of data or <code>null</code> if there is no more
+ * data.
+ *
+ * @return a record; <code>null</code> if there is no more data
+ */
+public DelimRecord readRecord() throws IOException {
+    if (window == null)
+	map(0, windowSize);
+
+    int result;
+    while ((result = scan()) == NEED_MORE) {
+	// The line crosses the end of the window. Start a new window at the
+	// beginning of the line, making it bigger if the line fills it.
+	map(windowStart + pos, pos == 0 ? windowLen * 2 : windowSize);
+    }
+    if (result == NO_RECORD)
+	return null;
+
+    int[] s = new int[numColumns];
+    int[] l = new int[numColumns];
+    byte[][] c = new byte[numColumns][];
+    System.arraycopy(starts, 0, s, 0, numColumns);
+    System.arraycopy(lengths, 0, l, 0, numColumns);
+    System.arraycopy(copies, 0, c, 0, numColumns);
+    return new DelimRecord(window, encoding, numColumns, s, l, c);
+}
+
+/**
+ * Returns a list of column strings or <code>null</code> if there is no
+ * more data. Returns exactly what {@link DelimParser#parse} would.
+ *
+ * @return a <code>List</code> of strings; return <code>null</code> if
+ * there is no more data.
+ */
+public List parse() throws IOException {
+    DelimRecord record = readRecord();
+    if (record == null)
+	return null;
+
+    ArrayList columns = new ArrayList(record.size());
+    for (int i = 0; i < record.size(); ++i)
+	columns.add(record.getString(i));
+    return columns;
+}
+
+/**
+ * Returns the file offset at which the next record will start.
+ *
+ * @return a file offset
+ */
+public long getPosition() {
+    return window == null ? 0 : windowStart + pos;
+}
+
+/**
+ * Makes the next record start at <var>offset</var>, which must be the
+ * beginning of a line.
+ *
+ * @param offset a file offset
+ */
+public void seek(long offset) throws IOException {
+    map(offset, windowSize);
+}
+
+/**
+ * Returns the number of quote characters in the specified part of the
+ * file.
+ *
+ * @param from starting file offset
+ * @param to ending file offset (exclusive)
+ * @return the number of quote bytes
+ */
+public long countQuotes(long from, long to) throws IOException {
+    long n = 0;
+    to = Math.min(to, fileSize);
+    while (from < to) {
+	map(from, Math.min(windowSize, to - from));
+	MappedByteBuffer buf = window;
+	for (int i = 0, len = windowLen; i < len; ++i)
+	    if (buf.get(i) == '"')
+		++n;
+	from += windowLen;
+    }
+    window = null;
+    return n;
+}
+
+/**
+ * Guesses where the first line that starts after <var>from</var> begins
+ * without parsing everything that comes before. Quotes are assumed
+ * to come in pairs, so a line ending is only a line ending when it follows
+ * an even number of quotes. That is always true of files written the way
+ * {@link DelimParser} expects, but a caller must be prepared for a wrong
+ * guess if the file is malformed.
+ *
+ * @param from file offset at which to start looking for a line ending
+ * @param insideQuotes <code>true</code> if an odd number of quotes come
+ * before <var>from</var>
+ * @return the file offset of the start of a line; the file size if there
+ * are no more lines
+ */
+public long findLineStart(long from, boolean insideQuotes) throws IOException {
+    boolean afterCR = false;
+    while (from < fileSize) {
+	map(from, windowSize);
+	MappedByteBuffer buf = window;
+	for (int i = 0, len = windowLen; i < len; ++i) {
+	    byte c = buf.get(i);
+	    if (afterCR)	// Line ending is "\r" or "\r\n"
+		return windowStart + (c == '\n' ? i + 1 : i);
+	    if (c == '"')
+		insideQuotes = !insideQuotes;
+	    else if (c == '\n' && !insideQuotes)
+		return windowStart + i + 1;
+	    else if (c == '\r' && !insideQuotes)
+		afterCR = true;
+	}
+	from += windowLen;
+    }
+    return fileSize;
+}
+
+/**
+ * Closes the file. Records that have already been read remain valid.
+ */
+public void close() throws IOException {
+    channel.close();
+    stream.close();
+}
+
+/**
+ * Maps up to <var>size</var> bytes of the file starting at
+ * <var>start</var>.
+ */
+protected void map(long start, long size) throws IOException {
+    size = Math.min(Math.min(size, fileSize - start), Integer.MAX_VALUE);
+    window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+    windowStart = start;
+    windowLen = (int)size;
+    pos = 0;
+}
+
+protected boolean isOrdinary(byte b) {
+    return b != '"' && b != '\n' && b != '\r' && b != delimiter;
+}
+
+/**
+ * Scans the next line starting at <var>pos</var>. This is the state
+ * machine in {@link DelimParser#parse}, with runs of ordinary bytes
+ * handled all at once.
+ *
+ * @return <code>RECORD</code> if a line was found, <code>NO_RECORD</code>
+ * at the end of the file, or <code>NEED_MORE</code> if the line continues
+ * past the end of the window
+ */
+protected int scan() {
+    MappedByteBuffer buf = window;
+    int end = windowLen;
+    boolean lastWindow = windowStart + windowLen >= fileSize;
+    boolean insideQuotes = false;
+    int numQuotesSeen = 0;
+    byte prevChar = 0;
+    int i = pos;
+
+    numColumns = 0;
+    contentLen = 0;
+    copy = null;
+
+    while (true) {
+	if (i >= end) {
+	    if (!lastWindow)
+		return NEED_MORE;
+	    break;		// End of file
+	}
+
+	byte c = buf.get(i);
+	if (c == '"') {
+	    if (!insideQuotes) { // Start of quoted column
+		insideQuotes = true;
+		numQuotesSeen = 0;
+	    }
+	    else if (numQuotesSeen == 1) { // Second of doubled quotes
+		append(i, 1);
+		numQuotesSeen = 0;
+	    }
+	    else
+		numQuotesSeen = 1;
+	    ++i;
+	}
+	else if (c == '\n' || c == '\r') {
+	    if (insideQuotes) {
+		if (numQuotesSeen == 1) { // Closing quote at end of line
+		    endColumn();
+		    pos = i + 1;
+		    return RECORD;
+		}
+		append(i, 1);
+		++i;
+	    }
+	    else {		// End of line
+		int next = i + 1;
+		if (c == '\r') { // Eat following '\n' if it exists
+		    if (next >= end && !lastWindow)
+			return NEED_MORE;
+		    if (next < end && buf.get(next) == '\n')
+			++next;
+		}
+		if (next >= end && !lastWindow)
+		    return NEED_MORE;
+		pos = next;
+		if (numColumns == 0 && contentLen == 0 && next >= end)
+		    return NO_RECORD; // Empty line at end of file
+		endColumn();
+		return RECORD;
+	    }
+	}
+	else if (c == delimiter) {
+	    if (!insideQuotes)	// Normal delimiter
+		endColumn();
+	    else if (numQuotesSeen == 1) { // End of quoted column
+		insideQuotes = false;
+		endColumn();
+	    }
+	    else		// Delimiter inside quoted column
+		append(i, 1);
+	    ++i;
+	}
+	else {			// Everything else, as many as possible
+	    int runStart = i;
+	    do {
+		++i;
+	    } while (i < end && isOrdinary(buf.get(i)));
+	    numQuotesSeen = 0;
+	    append(runStart, i - runStart);
+	    c = buf.get(i - 1);
+	}
+	prevChar = c;
+    }
+
+    // We've reached EOF
+    pos = i;
+    if (numColumns == 0 && contentLen == 0) // Empty line at end of file
+	return NO_RECORD;
+    if (contentLen > 0 || prevChar == delimiter)
+	endColumn();
+    return RECORD;
+}
+
+/**
+ * Appends <var>n</var> bytes starting at window index <var>start</var> to
+ * the current column's text. As long as the text is a contiguous slice of
+ * the window, we only remember where it is.
+ */
+protected void append(int start, int n) {
+    if (copy == null) {
+	if (contentLen == 0) {
+	    contentStart = start;
+	    contentLen = n;
+	    return;
+	}
+	if (contentStart + contentLen == start) {
+	    contentLen += n;
+	    return;
+	}
+
+	// Skipped over something (a quote); start copying
+	copy = new byte[Math.max(64, (contentLen + n) * 2)];
+	for (int j = 0; j < contentLen; ++j)
+	    copy[j] = window.get(contentStart + j);
+    }
+
+    if (contentLen + n > copy.length) {
+	byte[] bigger = new byte[(contentLen + n) * 2];
+	System.arraycopy(copy, 0, bigger, 0, contentLen);
+	copy = bigger;
+    }
+    for (int j = 0; j < n; ++j)
+	copy[contentLen + j] = window.get(start + j);
+    contentLen += n;
+}
+
+/**
+ * Adds the current column to the current line and starts a new column.
+ */
+protected void endColumn() {
+    if (numColumns == starts.length) {
+	int len = numColumns * 2;
+	int[] s = new int[len];
+	int[] l = new int[len];
+	byte[][] c = new byte[len][];
+	System.arraycopy(starts, 0, s, 0, numColumns);
+	System.arraycopy(lengths, 0, l, 0, numColumns);
+	System.arraycopy(copies, 0, c, 0, numColumns);
+	starts = s;
+	lengths = l;
+	copies = c;
+    }
+
+    starts[numColumns] = contentStart;
+    lengths[numColumns] = contentLen;
+    if (copy == null)
+	copies[numColumns] = null;
+    else {
+	byte[] text = new byte[contentLen];
+	System.arraycopy(copy, 0, text, 0, contentLen);
+	copies[numColumns] = text;
+    }
+    ++numColumns;
+
+    contentLen = 0;
+    copy = null;
+}
+
+}
@@ -0,0 +1,320 @@
+package jimm.datavision.source.charsep;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * Parses and converts a large delimited file using several threads. The
+ * file is divided into fixed-size chunks of bytes. Worker threads parse the
+ * lines that start in each chunk using a {@link MappedDelimParser} and
+ * convert them using their own {@link RowConverter}. {@link #parse} returns
+ * the rows in their original order.
+ * <p>
+ * A chunk's first line can't be found for certain without parsing
+ * everything before it, because a line ending may be inside a quoted
+ * column. Each worker first counts the quotes in its chunk. Once the counts
+ * for all earlier chunks are known, it guesses that the chunk's first line
+ * starts after the first line ending that follows an even number of quotes
+ * (see {@link MappedDelimParser#findLineStart}). The guess is checked when
+ * the rows are handed out: the previous chunk's last line must end exactly
+ * where this chunk's first line begins. If it doesn't, the file is
+ * malformed and the chunk is parsed again on the caller's thread starting
+ * at the right place, so the results are always exactly what a single
+ * {@link MappedDelimParser} would return.
+ * <p>
+ * Workers never get more than a few chunks ahead of the caller, which
+ * limits the memory used by parsed rows.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class ParallelDelimParser implements Runnable {
+
+public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+protected File file;
+protected char delimiter;
+protected String encoding;
+protected RowConverter converter; // Used only by the caller's thread
+protected long fileSize;
+protected int chunkSize;
+protected int numChunks;
+protected int maxChunksAhead;
+protected Thread[] workers;
+
+// Per-chunk state, guarded by this
+protected long[] quoteCounts;	// Quotes before chunk's search start
+protected boolean[] counted;
+protected long[] starts;	// Where the worker started parsing
+protected long[] ends;		// Where the worker stopped parsing
+protected List[] rows;		// Non-null when chunk is done
+protected int nextChunkToClaim;
+protected int nextChunkToTake;
+protected boolean closed;
+protected Exception workerException;
+
+// Caller's state
+protected List chunkRows;
+protected int chunkRowIndex;
+protected long expectedStart;	// Where the next chunk must start
+
+/**
+ * Constructor. Starts the worker threads immediately. The caller must
+ * call {@link #close}.
+ *
+ * @param file the file to read
+ * @param delimiter an ASCII delimiter character
+ * @param encoding the file's character encoding
+ * @param converter converts column text; workers use copies
+ * @param numThreads the number of worker threads
+ * @param chunkSize the number of bytes in each chunk
+ * @see MappedDelimParser#canParse
+ */
+ParallelDelimParser(File file, char delimiter, String encoding,
+		    RowConverter converter, int numThreads, int chunkSize)
+{
+    if (numThreads < 1 || chunkSize < 1) // Programmer error; no I18N
+	throw new IllegalArgumentException("thread count and chunk size"
+					   + " must be positive");
+    this.file = file;
+    this.delimiter = delimiter;
+    this.encoding = encoding;
+    this.converter = converter;
+    this.chunkSize = chunkSize;
+    fileSize = file.length();
+    numChunks = (int)Math.max(1, (fileSize + chunkSize - 1) / chunkSize);
+    maxChunksAhead = numThreads + 2;
+
+    quoteCounts = new long[numChunks];
+    counted = new boolean[numChunks];
+    starts = new long[numChunks];
+    ends = new long[numChunks];
+    rows = new List[numChunks];
+
+    workers = new Thread[Math.min(numThreads, numChunks)];
+    for (int i = 0; i < workers.length; ++i) {
+	workers[i] = new Thread(this, "DataVision parser " + (i + 1));
+	workers[i].setDaemon(true);
+	workers[i].start();
+    }
+}
+
+/**
+ * A worker thread's loop. Parses chunks until there are none left or this
+ * parser is closed.
+ */
+public void run() {
+    MappedDelimParser parser = null;
+    try {
+	parser = new MappedDelimParser(file, delimiter, encoding, chunkSize);
+	RowConverter conv = new RowConverter(converter.columns);
+	int chunk;
+	while ((chunk = claimChunk()) >= 0)
+	    parseChunk(parser, conv, chunk);
+    }
+    catch (Exception e) {
+	synchronized (this) {
+	    if (workerException == null)
+		workerException = e;
+	    notifyAll();
+	}
+    }
+    finally {
+	try {
+	    if (parser != null)
+		parser.close();
+	}
+	catch (IOException ioe) {}
+    }
+}
+
+/**
+ * Returns the number of the next chunk to parse, waiting if workers are
+ * too far ahead of the caller. Returns -1 if there is nothing left to do.
+ */
+protected synchronized int claimChunk() {
+    while (!closed && workerException == null
+	   && nextChunkToClaim < numChunks
+	   && nextChunkToClaim >= nextChunkToTake + maxChunksAhead) {
+	try {
+	    wait();
+	}
+	catch (InterruptedException ie) {
+	    return -1;
+	}
+    }
+    if (closed || workerException != null || nextChunkToClaim >= numChunks)
+	return -1;
+    return nextChunkToClaim++;
+}
+
+protected long chunkStart(int chunk) {
+    return (long)chunk * chunkSize;
+}
+
+protected long chunkEnd(int chunk) {
+    return chunk == numChunks - 1 ? Long.MAX_VALUE : chunkStart(chunk + 1);
+}
+
+/**
+ * Parses the lines that start in one chunk.
+ */
+protected void parseChunk(MappedDelimParser parser, RowConverter conv,
+			  int chunk)
+    throws IOException
+{
+    // Count the quotes in the chunk, shifted back one byte so a line
+    // ending just before the chunk is seen by findLineStart.
+    long searchFrom = Math.max(0, chunkStart(chunk) - 1);
+    long searchTo = Math.min(fileSize, chunkEnd(chunk) - 1);
+    long quotes = parser.countQuotes(searchFrom, searchTo);
+    long quotesBefore = quotesBefore(chunk, quotes);
+    if (quotesBefore < 0)	// Closed
+	return;
+
+    long start = chunk == 0 ? 0
+	: parser.findLineStart(searchFrom, quotesBefore % 2 == 1);
+    List chunkRows = parse(parser, conv, start, chunkEnd(chunk));
+    synchronized (this) {
+	starts[chunk] = start;
+	ends[chunk] = parser.getPosition();
+	rows[chunk] = chunkRows;
+	notifyAll();
+    }
+}
+
+/**
+ * Records the number of quotes in a chunk, then waits until the counts of
+ * all earlier chunks are known and returns their total. Returns -1 if this
+ * parser is closed while waiting.
+ */
+protected synchronized long quotesBefore(int chunk, long quotes) {
+    quoteCounts[chunk] = quotes;
+    counted[chunk] = true;
+    notifyAll();
+
+    long total = 0;
+    for (int i = 0; i < chunk; ++i) {
+	while (!counted[i]) {
+	    if (closed || workerException != null)
+		return -1;
+	    try {
+		wait();
+	    }
+	    catch (InterruptedException ie) {
+		return -1;
+	    }
+	}
+	total += quoteCounts[i];
+    }
+    return total;
+}
+
+/**
+ * Parses and converts the lines that start at or after <var>start</var>
+ * and before <var>end</var>. The last line may extend past
+ * <var>end</var>.
+ */
+protected List parse(MappedDelimParser parser, RowConverter conv,
+		     long start, long end)
+    throws IOException
+{
+    ArrayList list = new ArrayList();
+    parser.seek(start);
+    while (parser.getPosition() < end) {
+	DelimRecord record = parser.readRecord();
+	if (record == null)
+	    break;
+	list.add(conv.convertAll(record));
+    }
+    return list;
+}
+
+/**
+ * Returns the rows of the next chunk, waiting for the workers if
+ * necessary. Returns <code>null</code> when there are no more chunks.
+ */
+protected List takeChunk() throws IOException {
+    int chunk;
+    long start, end;
+    List chunkRows;
+    synchronized (this) {
+	if (nextChunkToTake >= numChunks)
+	    return null;
+	chunk = nextChunkToTake;
+	while (rows[chunk] == null && workerException == null && !closed) {
+	    try {
+		wait();
+	    }
+	    catch (InterruptedException ie) {
+		return null;
+	    }
+	}
+	if (workerException instanceof IOException)
+	    throw (IOException)workerException;
+	if (workerException != null)
+	    throw (RuntimeException)workerException;
+	if (closed)
+	    return null;
+
+	start = starts[chunk];
+	end = ends[chunk];
+	chunkRows = rows[chunk];
+	rows[chunk] = null;
+	++nextChunkToTake;
+	notifyAll();
+    }
+
+    if (start != expectedStart) { // Bad guess; parse it again
+	MappedDelimParser parser =
+	    new MappedDelimParser(file, delimiter, encoding, chunkSize);
+	try {
+	    chunkRows = parse(parser, converter, expectedStart,
+			      chunkEnd(chunk));
+	    end = parser.getPosition();
+	}
+	finally {
+	    parser.close();
+	}
+    }
+    expectedStart = end;
+    return chunkRows;
+}
+
+/**
+ * Returns the next row of converted column values or <code>null</code> if
+ * there is no more data.
+ *
+ * @return a list of column values; <code>null</code> if there is no more
+ * data
+ * @see RowConverter#convertAll
+ */
+public List parse() throws IOException {
+    while (chunkRows == null || chunkRowIndex == chunkRows.size()) {
+	chunkRows = takeChunk();
+	chunkRowIndex = 0;
+	if (chunkRows == null)
+	    return null;
+    }
+    List row = (List)chunkRows.get(chunkRowIndex);
+    chunkRows.set(chunkRowIndex++, null); // Let it be garbage collected
+    return row;
+}
+
+/**
+ * Stops the worker threads.
+ */
+public void close() {
+    synchronized (this) {
+	closed = true;
+	notifyAll();
+    }
+    for (int i = 0; i < workers.length; ++i) {
+	try {
+	    workers[i].join();
+	}
+	catch (InterruptedException ie) {}
+    }
+}
+
+}
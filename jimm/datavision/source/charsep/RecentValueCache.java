@@ -0,0 +1,112 @@
+package jimm.datavision.source.charsep;
+
+/**
+ * A small cache of recently converted column values, keyed by the column's
+ * text. Dates and categorical strings such as names, codes, and statuses
+ * repeat heavily in most files; the cache lets us skip parsing them again
+ * and lets rows share one string instead of each decoding its own copy.
+ * <p>
+ * The cache is direct-mapped: each text hashes to one slot, and a new text
+ * simply replaces whatever was in its slot. Columns whose values rarely
+ * repeat would only pay for hashing, so the cache turns itself off if too
+ * few of its first lookups are hits.
+ * <p>
+ * Caches are not thread-safe. Each {@link RowConverter} has its own.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+class RecentValueCache {
+
+protected static final int NUM_SLOTS = 256;
+/** Number of lookups after which we decide if the cache is worth it. */
+protected static final int TRIAL_LOOKUPS = 1024;
+/** Fraction of trial lookups that must be hits to keep the cache. */
+protected static final double MIN_HIT_RATE = 0.25;
+
+protected String[] keys;
+protected Object[] values;
+protected int lookups;
+protected int hits;
+protected boolean enabled;
+
+RecentValueCache() {
+    keys = new String[NUM_SLOTS];
+    values = new Object[NUM_SLOTS];
+    enabled = true;
+}
+
+/**
+ * Returns <code>true</code> if the cache is still being used.
+ *
+ * @return <code>true</code> if lookups may find values
+ */
+boolean isEnabled() { return enabled; }
+
+/**
+ * Returns the value cached for the text of a record's column, or
+ * <code>null</code> if there is none.
+ *
+ * @param record a record
+ * @param i a column index starting at 0
+ * @return a cached value or <code>null</code>
+ */
+Object get(DelimRecord record, int i) {
+    if (!enabled)
+	return null;
+    int slot = slotFor(record.textHashCode(i));
+    String key = keys[slot];
+    return countLookup(key != null && record.textEquals(i, key), slot);
+}
+
+/**
+ * Returns the value cached for <var>text</var>, or <code>null</code> if
+ * there is none.
+ *
+ * @param text a column's text
+ * @return a cached value or <code>null</code>
+ */
+Object get(String text) {
+    if (!enabled)
+	return null;
+    int slot = slotFor(text.hashCode());
+    return countLookup(text.equals(keys[slot]), slot);
+}
+
+/**
+ * Remembers the value converted from <var>text</var>.
+ *
+ * @param text a column's text
+ * @param value the converted value; must not be <code>null</code>
+ */
+void put(String text, Object value) {
+    if (!enabled)
+	return;
+    int slot = slotFor(text.hashCode());
+    keys[slot] = text;
+    values[slot] = value;
+}
+
+protected int slotFor(int hash) {
+    hash ^= (hash >>> 16);
+    return (hash ^ (hash >>> 8)) & (NUM_SLOTS - 1);
+}
+
+/**
+ * Counts a lookup and returns the value in <var>slot</var> if it was a hit.
+ * After the trial lookups, turns the cache off if there were too few hits.
+ */
+protected Object countLookup(boolean hit, int slot) {
+    Object value = null;
+    if (hit) {
+	value = values[slot];
+	++hits;
+    }
+    if (++lookups == TRIAL_LOOKUPS && hits < TRIAL_LOOKUPS * MIN_HIT_RATE) {
+	enabled = false;
+	keys = null;
+	values = null;
+    }
+    return value;
+}
+
+}
@@ -0,0 +1,137 @@
+package jimm.datavision.source.charsep;
+import jimm.datavision.ErrorHandler;
+import jimm.datavision.source.Column;
+import jimm.datavision.source.RowBuffer;
+import java.util.*;
+import java.text.ParseException;
+
+/**
+ * Turns the text of charsep columns into numbers, dates, and strings
+ * according to each column's type, using one {@link ColumnConverter} per
+ * column.
+ * <p>
+ * Converters are not thread-safe, so each thread that converts rows needs
+ * its own row converter.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+class RowConverter {
+
+protected Column[] columns;
+protected ColumnConverter[] converters;
+protected boolean dateParseErrorReported;
+
+/**
+ * Constructor.
+ *
+ * @param columns the data source's columns, in order
+ */
+RowConverter(Column[] columns) {
+    this.columns = columns;
+    converters = new ColumnConverter[columns.length];
+    HashMap dateParsers = new HashMap();
+    for (int i = 0; i < columns.length; ++i)
+	converters[i] = ColumnConverter.create(columns[i], dateParsers, this);
+}
+
+int getNumColumns() { return columns.length; }
+
+/**
+ * Returns the {@link RowBuffer} kind of each column.
+ *
+ * @return an array of <code>RowBuffer.KIND_*</code> constants
+ */
+int[] getKinds() {
+    int[] kinds = new int[converters.length];
+    for (int i = 0; i < converters.length; ++i)
+	kinds[i] = converters[i].getKind();
+    return kinds;
+}
+
+/**
+ * Converts the text of the <var>i</var>'th column. Empty numeric columns
+ * become <code>null</code>.
+ *
+ * @param i a column index starting at 0
+ * @param str the column's text
+ * @return a number, date, or string
+ */
+Object convert(int i, String str) {
+    return str == null ? null : converters[i].convert(str);
+}
+
+/**
+ * Converts a column of a record the same way {@link #convert(int,String)}
+ * converts a string, but parses numbers without creating strings.
+ *
+ * @param record a record
+ * @param i a column index starting at 0
+ * @return a number, date, or string; <code>null</code> if the record does
+ * not have that many columns
+ */
+Object convert(DelimRecord record, int i) {
+    if (i >= record.size())
+	return null;
+    if (i >= columns.length)
+	return record.getString(i);
+    return converters[i].convert(record, i);
+}
+
+/**
+ * Converts a column of a record into a row buffer. Numbers are stored
+ * without being boxed.
+ *
+ * @param record a record
+ * @param i a column index starting at 0
+ * @param row a row buffer created using {@link #getKinds}
+ */
+void convertInto(DelimRecord record, int i, RowBuffer row) {
+    if (i >= record.size())
+	row.setNull(i);
+    else
+	converters[i].convertInto(record, i, row);
+}
+
+/**
+ * Converts the text of a column into a row buffer.
+ *
+ * @param i a column index starting at 0
+ * @param str the column's text; may be <code>null</code>
+ * @param row a row buffer created using {@link #getKinds}
+ */
+void convertInto(int i, String str, RowBuffer row) {
+    if (str == null)
+	row.setNull(i);
+    else
+	converters[i].convertInto(str, i, row);
+}
+
+/**
+ * Converts every column of a record.
+ *
+ * @param record a record
+ * @return a list of column values, with <code>null</code>s for columns
+ * missing from the record
+ */
+List convertAll(DelimRecord record) {
+    int size = Math.max(record.size(), columns.length);
+    ArrayList data = new ArrayList(size);
+    for (int i = 0; i < size; ++i)
+	data.add(convert(record, i));
+    return data;
+}
+
+/**
+ * Reports the first date parsing error.
+ *
+ * @param formatString the date format
+ * @param ex the exception
+ */
+void dateParseError(String formatString, ParseException ex) {
+    if (!dateParseErrorReported) {
+	ErrorHandler.error("Parse format string = " + formatString, ex);
+	dateParseErrorReported = true;
+    }
+}
+
+}
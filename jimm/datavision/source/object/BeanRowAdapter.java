@@ -0,0 +1,161 @@
+package jimm.datavision.source.object;
+import jimm.datavision.source.Column;
+import java.beans.Introspector;
+import java.beans.IntrospectionException;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.sql.Types;
+import java.util.*;
+
+/**
+ * Turns JavaBeans into rows for an {@link ObjectSource}. Each column is a
+ * bean property. The property getters are looked up once, when the adapter
+ * is created, so turning a bean into a row is just a method call per
+ * column.
+ * <p>
+ * Column ids and names are the property names. Column types are taken from
+ * the getters' return types; properties that are not numbers, booleans, or
+ * dates are treated as strings.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see IteratorRowSupplier
+ */
+public class BeanRowAdapter {
+
+protected static final Object[] NO_ARGS = new Object[0];
+
+protected Class beanClass;
+protected String[] propertyNames;
+protected Method[] getters;
+
+/**
+ * Creates an adapter that uses every readable property of the bean class
+ * except <code>class</code>, in alphabetical order.
+ *
+ * @param beanClass the class of the beans
+ * @throws IntrospectionException if the class can't be introspected
+ */
+public BeanRowAdapter(Class beanClass) throws IntrospectionException {
+    this(beanClass, readablePropertyNames(beanClass));
+}
+
+/**
+ * Creates an adapter that uses the specified properties, in order.
+ *
+ * @param beanClass the class of the beans
+ * @param propertyNames property names
+ * @throws IntrospectionException if the class can't be introspected or a
+ * property can't be read
+ */
+public BeanRowAdapter(Class beanClass, String[] propertyNames)
+    throws IntrospectionException
+{
+    this.beanClass = beanClass;
+    this.propertyNames = propertyNames;
+
+    HashMap descriptors = new HashMap();
+    PropertyDescriptor[] pds =
+	Introspector.getBeanInfo(beanClass).getPropertyDescriptors();
+    for (int i = 0; i < pds.length; ++i)
+	descriptors.put(pds[i].getName(), pds[i]);
+
+    getters = new Method[propertyNames.length];
+    for (int i = 0; i < propertyNames.length; ++i) {
+	PropertyDescriptor pd =
+	    (PropertyDescriptor)descriptors.get(propertyNames[i]);
+	if (pd == null || pd.getReadMethod() == null)
+	    throw new IntrospectionException("no readable property \""
+					     + propertyNames[i] + "\" in "
+					     + beanClass.getName());
+	getters[i] = pd.getReadMethod();
+	getters[i].setAccessible(true);
+    }
+}
+
+protected static String[] readablePropertyNames(Class beanClass)
+    throws IntrospectionException
+{
+    PropertyDescriptor[] pds =
+	Introspector.getBeanInfo(beanClass).getPropertyDescriptors();
+    ArrayList names = new ArrayList();
+    for (int i = 0; i < pds.length; ++i)
+	if (pds[i].getReadMethod() != null
+	    && !"class".equals(pds[i].getName()))
+	    names.add(pds[i].getName());
+    Collections.sort(names);
+    return (String[])names.toArray(new String[names.size()]);
+}
+
+/**
+ * Returns the number of columns.
+ *
+ * @return the number of columns
+ */
+public int getNumColumns() { return getters.length; }
+
+/**
+ * Returns a new column for each property, in order.
+ *
+ * @return a list of columns
+ */
+public List columns() {
+    ArrayList list = new ArrayList();
+    for (int i = 0; i < getters.length; ++i)
+	list.add(new Column(propertyNames[i], propertyNames[i],
+			    typeOf(getters[i].getReturnType())));
+    return list;
+}
+
+/**
+ * Adds a new column for each property to a data source.
+ *
+ * @param source an object data source
+ */
+public void addColumnsTo(ObjectSource source) {
+    for (Iterator iter = columns().iterator(); iter.hasNext(); )
+	source.addColumn((Column)iter.next());
+}
+
+/**
+ * Returns the <code>java.sql.Types</code> type used for a property type.
+ *
+ * @param c a property type
+ * @return a <code>java.sql.Types</code> constant
+ */
+protected static int typeOf(Class c) {
+    if (c == Integer.TYPE || c == Integer.class || c == Short.TYPE
+	|| c == Short.class || c == Byte.TYPE || c == Byte.class)
+	return Types.INTEGER;
+    if (c == Long.TYPE || c == Long.class)
+	return Types.BIGINT;
+    if (c == Double.TYPE || c == Double.class || c == Float.TYPE
+	|| c == Float.class)
+	return Types.DOUBLE;
+    if (c == Boolean.TYPE || c == Boolean.class)
+	return Types.BIT;
+    if (Number.class.isAssignableFrom(c))
+	return Types.NUMERIC;
+    if (java.sql.Timestamp.class.isAssignableFrom(c))
+	return Types.TIMESTAMP;
+    if (java.sql.Time.class.isAssignableFrom(c))
+	return Types.TIME;
+    if (Date.class.isAssignableFrom(c))
+	return Types.DATE;
+    return Types.VARCHAR;
+}
+
+/**
+ * Returns a row containing the values of a bean's properties.
+ *
+ * @param bean a bean
+ * @return a list of property values
+ * @throws Exception if a getter throws an exception
+ */
+public List toRow(Object bean) throws Exception {
+    ArrayList row = new ArrayList(getters.length);
+    for (int i = 0; i < getters.length; ++i)
+	row.add(getters[i].invoke(bean, NO_ARGS));
+    return row;
+}
+
+}
@@ -0,0 +1,136 @@
+package jimm.datavision.source.object;
+import java.util.List;
+
+/**
+ * A row supplier that reads rows from another supplier on a separate
+ * producer thread and holds them in a bounded buffer. Producing rows (for
+ * example, reading them from a service) and running the report can then
+ * overlap, while no more than the buffer's worth of rows is ever in memory.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see ObjectSource#setBufferSize
+ * @see jimm.datavision.source.PrefetchCursor
+ */
+public class BufferedRowSupplier implements RowSupplier, Runnable {
+
+protected RowSupplier source;
+protected Object[] ring;
+protected int head;		// Index of next row to take
+protected int count;		// Number of rows in the ring
+protected boolean producerDone;
+protected boolean closed;
+protected Exception producerException;
+protected Thread producer;
+
+/**
+ * Constructor. Starts the producer thread immediately.
+ *
+ * @param source the supplier to read rows from
+ * @param bufferSize the maximum number of rows waiting to be used
+ */
+public BufferedRowSupplier(RowSupplier source, int bufferSize) {
+    if (bufferSize < 1)		// Programmer error; no I18N
+	throw new IllegalArgumentException("buffer size must be positive");
+    this.source = source;
+    ring = new Object[bufferSize];
+
+    producer = new Thread(this, "DataVision object rows");
+    producer.setDaemon(true);
+    producer.start();
+}
+
+/**
+ * The producer thread's loop. Reads rows from the source supplier and puts
+ * them in the ring buffer until there are no more rows or this supplier is
+ * closed.
+ */
+public void run() {
+    try {
+	List row;
+	while ((row = source.nextRow()) != null)
+	    if (!put(row))
+		return;
+    }
+    catch (Exception e) {
+	synchronized (this) {
+	    producerException = e;
+	}
+    }
+    finally {
+	synchronized (this) {
+	    producerDone = true;
+	    notifyAll();
+	}
+    }
+}
+
+/**
+ * Adds a row to the ring buffer, waiting for room if necessary. Returns
+ * <code>false</code> if this supplier has been closed.
+ */
+protected synchronized boolean put(List row) {
+    while (count == ring.length && !closed) {
+	try {
+	    wait();
+	}
+	catch (InterruptedException ie) {
+	    return false;
+	}
+    }
+    if (closed)
+	return false;
+
+    ring[(head + count) % ring.length] = row;
+    ++count;
+    notifyAll();
+    return true;
+}
+
+/**
+ * Removes and returns the next row from the ring buffer, waiting for the
+ * producer if necessary. Returns <code>null</code> when the producer is
+ * done and all rows have been taken. If the source supplier threw an
+ * exception, it is thrown here after the rows before it have been taken.
+ */
+public synchronized List nextRow() throws Exception {
+    while (count == 0 && !producerDone) {
+	try {
+	    wait();
+	}
+	catch (InterruptedException ie) {
+	    return null;
+	}
+    }
+    if (count == 0) {
+	if (producerException != null) {
+	    Exception e = producerException;
+	    producerException = null;
+	    throw e;
+	}
+	return null;
+    }
+
+    List row = (List)ring[head];
+    ring[head] = null;
+    head = (head + 1) % ring.length;
+    --count;
+    notifyAll();
+    return row;
+}
+
+/**
+ * Stops the producer thread and closes the source supplier.
+ */
+public void close() {
+    synchronized (this) {
+	closed = true;
+	notifyAll();
+    }
+    try {
+	producer.join();
+    }
+    catch (InterruptedException ie) {}
+    source.close();
+}
+
+}
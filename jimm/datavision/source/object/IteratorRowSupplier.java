@@ -0,0 +1,47 @@
+package jimm.datavision.source.object;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Supplies rows from an iterator. The iterator may return lists of column
+ * values or, if a {@link BeanRowAdapter} is given, any objects the adapter
+ * knows how to turn into rows.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class IteratorRowSupplier implements RowSupplier {
+
+protected Iterator iter;
+protected BeanRowAdapter adapter;
+
+/**
+ * Constructor.
+ *
+ * @param iter an iterator over lists of column values
+ */
+public IteratorRowSupplier(Iterator iter) {
+    this(iter, null);
+}
+
+/**
+ * Constructor.
+ *
+ * @param iter an iterator over objects
+ * @param adapter turns each object into a row; if <code>null</code>, the
+ * objects must be lists of column values
+ */
+public IteratorRowSupplier(Iterator iter, BeanRowAdapter adapter) {
+    this.iter = iter;
+    this.adapter = adapter;
+}
+
+public List nextRow() throws Exception {
+    if (!iter.hasNext())
+	return null;
+    Object obj = iter.next();
+    return adapter == null ? (List)obj : adapter.toRow(obj);
+}
+
+public void close() {}
+
+}
@@ -1,9 +1,9 @@
 package jimm.datavision.source.object;
-import jimm.datavision.Formula;
 import jimm.datavision.ErrorHandler;
 import jimm.datavision.source.DataCursor;
 import jimm.datavision.source.Column;
 import jimm.datavision.source.Query;
+import jimm.datavision.source.WhereClauseFilter;
 import java.util.*;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
@@ -18,21 +18,18 @@ public class ObjectRow extends DataCursor {
 
 protected ObjectSource source;
 protected Query query;
-protected Formula whereClauseFormula;
+protected WhereClauseFilter whereClause;
 protected boolean noMoreData;
 protected HashMap dateParsers;
 protected boolean dateParseErrorReported;
+protected RowSupplier rows;
 
-private ArrayList data;
 ObjectRow(ObjectSource source, Query query) {
     this.source = source;
     this.query = query;
-    this.data = source.getData();
+    this.rows = source.openRows();
     this.query.findSelectablesUsed();	// Needed so we can find columns later
-
-    String script = query.getWhereClause();
-    if (script != null && script.length() > 0)
-	whereClauseFormula = new Formula(null, source.getReport(), "", script);
+    whereClause = WhereClauseFilter.create(source, this);
 }
 
 /**
@@ -43,34 +40,10 @@ public List readRowData() {
     if (noMoreData)
 	return null;
 
-    List data = null;
-
-    boolean acceptRow;
+    List data;
     do {
 	data = retrieveNextRow();
-	if (whereClauseFormula != null && data != null) {
-	    // Run the Ruby script and retrive its boolean value. If true,
-	    // accept the line. Else, reject it and move on to the next
-	    // line.
-
-	    // First, save the existing current row and make the new data
-	    // the current row. We need to do this because the formula we
-	    // are about to evaluate may make use of data in the new
-	    // current row.
-	    List origCurrRowData = currRowData;
-	    currRowData = data;	// Need data available to formula
-
-	    // Evaulate the script and retrieve a boolean.
-	    Object obj = whereClauseFormula.eval();
-	    acceptRow = ((Boolean)obj).booleanValue();
-
-	    // Replace the original current row data (acutally the previous
-	    // row, but we don't care).
-	    currRowData = origCurrRowData;
-	}
-	else
-	    acceptRow = true;
-    } while (!acceptRow);
+    } while (data != null && whereClause != null && !whereClause.accept(data));
 
     return data;
 }
@@ -80,19 +53,24 @@ public List readRowData() {
  *
  * @return a list of column values
  */
-private int rowIndex = 0;
 protected List retrieveNextRow() {
+    if (noMoreData)
+	return null;
 
-    if (noMoreData) { return null; }
     List row = null;
     try {
-      row = (ArrayList)data.get(rowIndex);
-      rowIndex++;
-    } catch (IndexOutOfBoundsException ioobe) {
-      noMoreData = true;
+	row = rows.nextRow();
     }
+    catch (Exception e) {
+	ErrorHandler.error(e);
+    }
+    if (row == null)
+	noMoreData = true;
     return row;
+}
 
+public void close() {
+    rows.close();
 }
 
 }
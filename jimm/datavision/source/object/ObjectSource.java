@@ -9,6 +9,11 @@ import java.util.*;
  * Provides the classes and interfaces that make up the a data source that
  * uses an ArrayList of ArrayLists representing a table of data.
  * See the ObjectSourceTest.java in the examples directory for usage example.
+ * <p>
+ * Instead of a list, rows may come from an iterator or a {@link RowSupplier}.
+ * Those rows are read only as the report needs them, so they never all
+ * have to be in memory. A {@link BeanRowAdapter} turns JavaBeans returned
+ * by an iterator into rows.
  *
  * @author Frank W. Zammetti, <a href="mailto:fzammetti@omnytex.com">fzammetti@omnytex.com</a>
  */
@@ -16,6 +21,8 @@ public class ObjectSource extends DataSource {
 
 protected ArrayList columns;
 private ArrayList data;
+protected RowSupplier supplier;
+protected int bufferSize;
 
 /**
  * Constructor.
@@ -30,12 +37,49 @@ public ObjectSource(Report report, ArrayList inData) {
     data = inData;
 }
 
+/**
+ * Constructor. The iterator's rows are read once, as the report needs them.
+ *
+ * @param report the report that uses this data source
+ * @param rows an iterator over lists of column values
+ */
+public ObjectSource(Report report, Iterator rows) {
+    this(report, new IteratorRowSupplier(rows));
+}
+
+/**
+ * Constructor. The iterator's objects are turned into rows by
+ * <var>adapter</var> and are read once, as the report needs them. The
+ * adapter's columns are added to this data source.
+ *
+ * @param report the report that uses this data source
+ * @param beans an iterator over beans
+ * @param adapter turns beans into rows
+ */
+public ObjectSource(Report report, Iterator beans, BeanRowAdapter adapter) {
+    this(report, new IteratorRowSupplier(beans, adapter));
+    adapter.addColumnsTo(this);
+}
+
+/**
+ * Constructor. The supplier's rows are read once, as the report needs them.
+ *
+ * @param report the report that uses this data source
+ * @param supplier supplies lists of column values
+ */
+public ObjectSource(Report report, RowSupplier supplier) {
+    super(report, new ObjectQuery(report));
+    columns = new ArrayList();
+    this.supplier = supplier;
+}
+
 public boolean canJoinTables() { return false; }
 public boolean isSQLGenerated() { return false; }
 public boolean isConnectionEditable() { return false; }
 public boolean areRecordsSelectable() { return false; }
-public boolean areRecordsSortable() { return false; }
-public boolean canGroupRecords() { return false; }
+public boolean areRecordsSortable() { return true; }
+public boolean canGroupRecords() { return true; }
+public boolean needsSortStage() { return true; }
 public boolean usesSourceFile() { return false; }
 
 /**
@@ -52,12 +96,52 @@ public void addColumn(Column col) {
 /**
  * Return the ArrayList of data this data source contains.
  *
- * @return The ArrayList of data passed to the data source during construction.
+ * @return The ArrayList of data passed to the data source during
+ * construction, or <code>null</code> if rows come from an iterator or
+ * supplier
  */
 public ArrayList getData() {
   return data;
 }
 
+/**
+ * Returns the number of rows read ahead of the report.
+ *
+ * @return the buffer size; 0 means rows are not read ahead
+ * @see #setBufferSize
+ */
+public int getBufferSize() { return bufferSize; }
+
+/**
+ * Sets the number of rows read ahead of the report from an iterator or
+ * supplier. When greater than zero, rows are read on a separate thread
+ * and at most this many are held in memory waiting to be used. The
+ * iterator or supplier must then not need anything from the report's
+ * thread. Ignored when the data is an <code>ArrayList</code>.
+ *
+ * @param size the buffer size; 0 means rows are not read ahead
+ * @see BufferedRowSupplier
+ */
+public void setBufferSize(int size) { bufferSize = size < 0 ? 0 : size; }
+
+/**
+ * Returns the supplier of this data source's rows. Rows from an iterator or
+ * supplier can only be read once; the second time this is called for such a
+ * data source, the returned supplier has no rows.
+ *
+ * @return a row supplier
+ */
+RowSupplier openRows() {
+    if (data != null)
+	return new IteratorRowSupplier(data.iterator());
+
+    RowSupplier rows = supplier;
+    if (rows == null)		// Already used
+	return new IteratorRowSupplier(Collections.EMPTY_LIST.iterator());
+    supplier = null;
+    return bufferSize > 0 ? new BufferedRowSupplier(rows, bufferSize) : rows;
+}
+
 /**
  * Given an id (a column name), returns the column that has that id. If no
  * column with the specified id exists, returns <code>null</code>. Uses
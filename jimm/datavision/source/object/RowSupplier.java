@@ -0,0 +1,28 @@
+package jimm.datavision.source.object;
+import java.util.List;
+
+/**
+ * Supplies the rows of an {@link ObjectSource} one at a time, so that rows
+ * do not all have to be in memory before a report runs. Each row is a list
+ * of column values in the same order as the data source's columns.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see ObjectSource#ObjectSource(jimm.datavision.Report, RowSupplier)
+ */
+public interface RowSupplier {
+
+/**
+ * Returns the next row, or <code>null</code> if there are no more rows.
+ *
+ * @return a list of column values, or <code>null</code>
+ * @throws Exception if the row can't be produced
+ */
+public List nextRow() throws Exception;
+
+/**
+ * Releases any resources used by this supplier. Called when the report is
+ * done with the rows, even if not all of them were read.
+ */
+public void close();
+
+}
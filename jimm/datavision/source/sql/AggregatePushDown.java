@@ -0,0 +1,229 @@
+package jimm.datavision.source.sql;
+import jimm.datavision.*;
+import jimm.datavision.field.*;
+import jimm.datavision.source.Column;
+import java.util.*;
+
+/**
+ * Lets the database compute the aggregates of a report that only shows
+ * group headers and footers. The report's query is rewritten to group by
+ * the report's group columns, so it returns one row per innermost group
+ * instead of every detail row. Each row holds the group column values and
+ * the sums, counts, minimums, and maximums of the aggregated columns for
+ * that group. Aggregate fields combine these partial aggregates as they
+ * would have combined detail values (see {@link
+ * AggregateField#usePartialAggregates}), so outer groups and the report
+ * footer get the same totals.
+ * <p>
+ * A plan is only made (see {@link #plan}) when the report's output does
+ * not depend on individual detail rows: every detail section is hidden;
+ * every group is over a column; no formulas, user columns, subreports, or
+ * row counters are used; header and footer column fields only show group
+ * columns; and every aggregate field is in a group or report footer and
+ * sums, counts, averages, or finds the minimum or maximum of a numeric
+ * column. As when DataVision aggregates detail rows itself,
+ * <code>null</code> values count as zero.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see Database#setAggregatePushDown
+ */
+public class AggregatePushDown {
+
+protected static final Set PUSHABLE_FUNCTIONS =
+    new HashSet(Arrays.asList(new String[] {
+	"sum", "subtotal", "count", "average", "min", "max"
+    }));
+
+protected SQLQuery query;
+protected Set groupColumns;
+protected Set summedColumns;	// Columns whose slots hold partial sums
+protected HashMap slots;	// Selectables to 1-based slots
+protected int numSelectables;
+protected ArrayList extraSelects; // Select strings after the selectables
+protected ArrayList aggregates;
+protected HashMap valueSlots;	// Aggregate fields to Integer slots
+protected HashMap countSlots;	// Aggregate fields to Integer slots
+
+/**
+ * Returns a plan for rewriting the report's query, or <code>null</code>
+ * if the report's output depends on individual detail rows.
+ *
+ * @param report a report
+ * @param query the report's query
+ * @return a plan or <code>null</code>
+ */
+public static AggregatePushDown plan(Report report, SQLQuery query) {
+    if (query instanceof SubreportQuery || !report.hasGroups()
+	|| report.subreports().hasNext())
+	return null;
+
+    HashSet groupColumns = new HashSet();
+    for (Iterator iter = report.groups(); iter.hasNext(); ) {
+	Selectable s = ((Group)iter.next()).getSelectable();
+	if (!(s instanceof Column))
+	    return null;
+	groupColumns.add(s);
+    }
+
+    final ArrayList sections = new ArrayList();
+    report.withSectionsDo(new SectionWalker() {
+	public void step(Section s) { sections.add(s); }
+	});
+    ArrayList aggregates = new ArrayList();
+    for (Iterator iter = sections.iterator(); iter.hasNext(); )
+	if (!canPushDown((Section)iter.next(), groupColumns, aggregates))
+	    return null;
+
+    return new AggregatePushDown(query, groupColumns, aggregates);
+}
+
+/**
+ * Returns <code>true</code> if nothing in <var>s</var> depends on
+ * individual detail rows. Adds the section's aggregate fields to
+ * <var>aggregates</var>.
+ */
+protected static boolean canPushDown(Section s, Set groupColumns,
+				     List aggregates)
+{
+    if (s.isDetail() ? !s.isHidden() : s.getSuppressionProc().hasFormula())
+	return false;
+
+    int area = s.getArea().getArea();
+    for (Iterator iter = s.fields(); iter.hasNext(); ) {
+	Field f = (Field)iter.next();
+	if (f instanceof FormulaField || f instanceof UserColumnField
+	    || f instanceof SubreportField)
+	    return false;
+	if (f instanceof SpecialField && ((SpecialField)f).countsRows())
+	    return false;
+	if (s.isDetail())
+	    continue;
+
+	if (f instanceof ColumnField) {
+	    if (!groupColumns.contains(((ColumnField)f).getColumn()))
+		return false;
+	}
+	else if (f instanceof AggregateField) {
+	    AggregateField af = (AggregateField)f;
+	    if (area != SectionArea.GROUP_FOOTER
+		&& area != SectionArea.REPORT_FOOTER)
+		return false;
+	    if (!PUSHABLE_FUNCTIONS.contains(af.getFunction())
+		|| !(af.getField() instanceof ColumnField))
+		return false;
+	    Column col = ((ColumnField)af.getField()).getColumn();
+	    if (!col.isNumeric() || groupColumns.contains(col))
+		return false;
+	    aggregates.add(af);
+	}
+    }
+    return true;
+}
+
+/**
+ * Constructor. Assigns the slots of the partial aggregates.
+ *
+ * @param query the report's query
+ * @param groupColumns the report's group columns
+ * @param aggregates the aggregate fields
+ */
+protected AggregatePushDown(SQLQuery query, Set groupColumns,
+			    List aggregates)
+{
+    this.query = query;
+    this.groupColumns = groupColumns;
+    this.aggregates = new ArrayList(aggregates);
+    summedColumns = new HashSet();
+    slots = new HashMap();
+    extraSelects = new ArrayList();
+    valueSlots = new HashMap();
+    countSlots = new HashMap();
+
+    query.findSelectablesUsed();
+    for (Iterator iter = query.selectables(); iter.hasNext(); )
+	slots.put(iter.next(), new Integer(++numSelectables));
+
+    for (Iterator iter = aggregates.iterator(); iter.hasNext(); ) {
+	AggregateField af = (AggregateField)iter.next();
+	Column col = ((ColumnField)af.getField()).getColumn();
+	String function = af.getFunction();
+	if ("count".equals(function) || "average".equals(function))
+	    countSlots.put(af, extraSlot("count(*)"));
+	if ("min".equals(function) || "max".equals(function))
+	    valueSlots.put(af, extraSlot(function + "(coalesce("
+					 + col.getSelectString(query)
+					 + ", 0))"));
+	else if (!"count".equals(function)) {
+	    summedColumns.add(col);
+	    valueSlots.put(af, slots.get(col));
+	}
+    }
+}
+
+/**
+ * Returns the slot of an extra select string, adding it if necessary.
+ */
+protected Integer extraSlot(String select) {
+    int i = extraSelects.indexOf(select);
+    if (i == -1) {
+	i = extraSelects.size();
+	extraSelects.add(select);
+    }
+    return new Integer(numSelectables + i + 1);
+}
+
+/**
+ * Returns the number of columns returned after those of the query's
+ * selectables.
+ *
+ * @return the number of extra columns
+ */
+public int getNumExtraColumns() { return extraSelects.size(); }
+
+/**
+ * Returns the strings that select the extra columns.
+ *
+ * @return a list of strings
+ */
+public List getExtraSelectStrings() { return extraSelects; }
+
+/**
+ * Returns the string that selects a selectable in the rewritten query:
+ * group columns are selected as is, summed columns are replaced by their
+ * sums, and other columns are only used by hidden detail sections and are
+ * replaced by <code>null</code>.
+ *
+ * @param s a selectable
+ * @return a select string
+ */
+public String getSelectString(Selectable s) {
+    if (groupColumns.contains(s))
+	return s.getSelectString(query);
+    if (summedColumns.contains(s))
+	return "sum(coalesce(" + s.getSelectString(query) + ", 0))";
+    return "null";
+}
+
+/**
+ * Tells each aggregate field which columns hold its partial aggregates.
+ * Call {@link #release} when the report has been run.
+ */
+public void apply() {
+    for (Iterator iter = aggregates.iterator(); iter.hasNext(); ) {
+	AggregateField af = (AggregateField)iter.next();
+	Integer value = (Integer)valueSlots.get(af);
+	Integer count = (Integer)countSlots.get(af);
+	af.usePartialAggregates(value == null ? 0 : value.intValue(),
+				count == null ? 0 : count.intValue());
+    }
+}
+
+/**
+ * Tells each aggregate field to go back to aggregating detail values.
+ */
+public void release() {
+    for (Iterator iter = aggregates.iterator(); iter.hasNext(); )
+	((AggregateField)iter.next()).usePartialAggregates(0, 0);
+}
+
+}
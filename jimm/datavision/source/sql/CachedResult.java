@@ -0,0 +1,408 @@
+package jimm.datavision.source.sql;
+import jimm.datavision.source.ValueCodec;
+import java.io.*;
+import java.util.*;
+
+/**
+ * The rows returned by a query, kept by a {@link ResultCache}. Values are
+ * stored by column. Columns whose values are all <code>Integer</code>s,
+ * <code>Long</code>s, or <code>Double</code>s are stored in primitive
+ * arrays; other columns are stored as objects.
+ * <p>
+ * The same layout is used when a result is written to disk: a header
+ * identifying the query, followed by each column's null flags and
+ * non-<code>null</code> values. Only values that can be written without
+ * serializing them (see {@link ValueCodec#isPlainValue}) may be cached, and
+ * serialized values are never read back.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class CachedResult {
+
+protected static final int MAGIC = 0x44565243; // "DVRC"
+protected static final int VERSION = 1;
+
+protected static final byte COL_OBJECT = 0;
+protected static final byte COL_INT = 1;
+protected static final byte COL_LONG = 2;
+protected static final byte COL_DOUBLE = 3;
+protected static final byte COL_STRING = 4;
+
+protected String key;
+protected String[] tableNames;
+protected long created;
+protected int numRows;
+protected int numColumns;
+protected byte[] encodings;
+protected boolean[][] nulls;
+protected Object[] values;	// int[], long[], double[], or Object[]
+protected long estimatedBytes;
+
+/**
+ * Creates a result from a list of rows.
+ *
+ * @param key the query's cache key
+ * @param tableNames the names of the tables used by the query
+ * @param numColumns the number of columns in each row
+ * @param rows a list of lists of column values
+ */
+public CachedResult(String key, String[] tableNames, int numColumns,
+		    List rows)
+{
+    this(key, tableNames, System.currentTimeMillis(), rows.size(),
+	 numColumns);
+
+    for (int col = 0; col < numColumns; ++col) {
+	encodings[col] = encodingOf(rows, col);
+	boolean[] colNulls = nulls[col] = new boolean[numRows];
+	switch (encodings[col]) {
+	case COL_INT:
+	    int[] ints = new int[numRows];
+	    for (int row = 0; row < numRows; ++row) {
+		Object val = valueAt(rows, row, col);
+		if (val == null) colNulls[row] = true;
+		else ints[row] = ((Integer)val).intValue();
+	    }
+	    values[col] = ints;
+	    break;
+	case COL_LONG:
+	    long[] longs = new long[numRows];
+	    for (int row = 0; row < numRows; ++row) {
+		Object val = valueAt(rows, row, col);
+		if (val == null) colNulls[row] = true;
+		else longs[row] = ((Long)val).longValue();
+	    }
+	    values[col] = longs;
+	    break;
+	case COL_DOUBLE:
+	    double[] doubles = new double[numRows];
+	    for (int row = 0; row < numRows; ++row) {
+		Object val = valueAt(rows, row, col);
+		if (val == null) colNulls[row] = true;
+		else doubles[row] = ((Double)val).doubleValue();
+	    }
+	    values[col] = doubles;
+	    break;
+	default:
+	    Object[] objs = new Object[numRows];
+	    for (int row = 0; row < numRows; ++row) {
+		objs[row] = valueAt(rows, row, col);
+		colNulls[row] = objs[row] == null;
+	    }
+	    values[col] = objs;
+	    break;
+	}
+    }
+    estimateBytes();
+}
+
+protected CachedResult(String key, String[] tableNames, long created,
+		       int numRows, int numColumns)
+{
+    this.key = key;
+    this.tableNames = tableNames;
+    this.created = created;
+    this.numRows = numRows;
+    this.numColumns = numColumns;
+    encodings = new byte[numColumns];
+    nulls = new boolean[numColumns][];
+    values = new Object[numColumns];
+}
+
+/**
+ * Returns <code>true</code> if every value in <var>row</var> may be
+ * cached (see {@link ValueCodec#isPlainValue}).
+ *
+ * @param row a list of column values
+ * @return <code>true</code> if the row may be cached
+ */
+public static boolean canCache(List row) {
+    for (Iterator iter = row.iterator(); iter.hasNext(); )
+	if (!ValueCodec.isPlainValue(iter.next()))
+	    return false;
+    return true;
+}
+
+protected static Object valueAt(List rows, int row, int col) {
+    List list = (List)rows.get(row);
+    return col < list.size() ? list.get(col) : null;
+}
+
+/**
+ * Returns the encoding to use for a column: a primitive array if every
+ * non-<code>null</code> value has the same class.
+ */
+protected static byte encodingOf(List rows, int col) {
+    Class c = null;
+    for (int row = 0; row < rows.size(); ++row) {
+	Object val = valueAt(rows, row, col);
+	if (val == null)
+	    continue;
+	if (c == null)
+	    c = val.getClass();
+	else if (c != val.getClass())
+	    return COL_OBJECT;
+    }
+    if (c == Integer.class) return COL_INT;
+    if (c == Long.class) return COL_LONG;
+    if (c == Double.class) return COL_DOUBLE;
+    if (c == String.class) return COL_STRING;
+    return COL_OBJECT;
+}
+
+protected void estimateBytes() {
+    long bytes = 64 + 2 * key.length();
+    for (int col = 0; col < numColumns; ++col) {
+	bytes += 16 + numRows;	// Null flags
+	switch (encodings[col]) {
+	case COL_INT: bytes += 4L * numRows; break;
+	case COL_LONG: case COL_DOUBLE: bytes += 8L * numRows; break;
+	default:
+	    Object[] objs = (Object[])values[col];
+	    bytes += 4L * numRows;
+	    bytes += ValueCodec.estimateSize(Arrays.asList(objs));
+	    break;
+	}
+    }
+    estimatedBytes = bytes;
+}
+
+/**
+ * Returns the key of the query that produced this result.
+ *
+ * @return the cache key
+ */
+public String getKey() { return key; }
+
+/**
+ * Returns the names of the tables used by the query.
+ *
+ * @return an array of table names
+ */
+public String[] getTableNames() { return tableNames; }
+
+/**
+ * Returns the time at which the query was run.
+ *
+ * @return a time in milliseconds
+ */
+public long getCreated() { return created; }
+
+/**
+ * Returns <code>true</code> if this result uses the named table.
+ * Table names are compared without regard to case.
+ *
+ * @param tableName a table name
+ * @return <code>true</code> if the query used the table
+ */
+public boolean usesTable(String tableName) {
+    for (int i = 0; i < tableNames.length; ++i)
+	if (tableNames[i].equalsIgnoreCase(tableName))
+	    return true;
+    return false;
+}
+
+public int getNumRows() { return numRows; }
+
+public int getNumColumns() { return numColumns; }
+
+/**
+ * Returns the approximate number of bytes of memory used by this result.
+ *
+ * @return an estimated size in bytes
+ */
+public long getEstimatedBytes() { return estimatedBytes; }
+
+/**
+ * Returns <code>true</code> if the specified value is <code>null</code>.
+ *
+ * @param row a row index starting at 0
+ * @param col a column index starting at 0
+ * @return <code>true</code> if the value is <code>null</code>
+ */
+public boolean isNull(int row, int col) { return nulls[col][row]; }
+
+/**
+ * Returns the encoding of a column.
+ *
+ * @param col a column index starting at 0
+ * @return one of the <code>COL_*</code> constants
+ */
+byte getEncoding(int col) { return encodings[col]; }
+
+/**
+ * Returns a value as an object.
+ *
+ * @param row a row index starting at 0
+ * @param col a column index starting at 0
+ * @return the value; may be <code>null</code>
+ */
+public Object get(int row, int col) {
+    if (nulls[col][row])
+	return null;
+    switch (encodings[col]) {
+    case COL_INT: return new Integer(((int[])values[col])[row]);
+    case COL_LONG: return new Long(((long[])values[col])[row]);
+    case COL_DOUBLE: return new Double(((double[])values[col])[row]);
+    default: return ((Object[])values[col])[row];
+    }
+}
+
+/** Returns a value from a column whose encoding is <code>COL_INT</code>. */
+int getInt(int row, int col) { return ((int[])values[col])[row]; }
+
+/** Returns a value from a column whose encoding is <code>COL_LONG</code>. */
+long getLong(int row, int col) { return ((long[])values[col])[row]; }
+
+/** Returns a value from a column whose encoding is <code>COL_DOUBLE</code>. */
+double getDouble(int row, int col) { return ((double[])values[col])[row]; }
+
+// ================================================================
+// Disk format
+
+/**
+ * Writes this result.
+ *
+ * @param out an output stream
+ */
+public void write(DataOutputStream out) throws IOException {
+    writeHeader(out);
+    out.writeInt(numRows);
+    out.writeInt(numColumns);
+    for (int col = 0; col < numColumns; ++col) {
+	out.writeByte(encodings[col]);
+	writeNulls(out, nulls[col]);
+	for (int row = 0; row < numRows; ++row) {
+	    if (nulls[col][row])
+		continue;
+	    switch (encodings[col]) {
+	    case COL_INT: out.writeInt(getInt(row, col)); break;
+	    case COL_LONG: out.writeLong(getLong(row, col)); break;
+	    case COL_DOUBLE: out.writeDouble(getDouble(row, col)); break;
+	    case COL_STRING:
+		writeString(out, (String)((Object[])values[col])[row]);
+		break;
+	    default:
+		Object val = ((Object[])values[col])[row];
+		if (!ValueCodec.isPlainValue(val))
+		    throw new IOException("can't cache a "
+					  + val.getClass().getName());
+		ValueCodec.writeValue(out, val);
+		break;
+	    }
+	}
+    }
+}
+
+protected void writeHeader(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    writeString(out, key);
+    out.writeLong(created);
+    out.writeInt(tableNames.length);
+    for (int i = 0; i < tableNames.length; ++i)
+	writeString(out, tableNames[i]);
+}
+
+protected static void writeString(DataOutputStream out, String str)
+    throws IOException
+{
+    ValueCodec.writeValue(out, str);
+}
+
+protected static void writeNulls(DataOutputStream out, boolean[] flags)
+    throws IOException
+{
+    for (int i = 0; i < flags.length; i += 8) {
+	int b = 0;
+	for (int j = 0; j < 8 && i + j < flags.length; ++j)
+	    if (flags[i + j])
+		b |= 1 << j;
+	out.writeByte(b);
+    }
+}
+
+/**
+ * Reads only the header of a result: everything but its rows. Returns
+ * <code>null</code> if the stream does not contain a result written by
+ * this version of DataVision.
+ *
+ * @param in an input stream
+ * @return a result without any rows, or <code>null</code>
+ */
+public static CachedResult readHeader(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC || in.readInt() != VERSION)
+	return null;
+    String key = (String)ValueCodec.readPlainValue(in);
+    long created = in.readLong();
+    String[] tableNames = new String[in.readInt()];
+    for (int i = 0; i < tableNames.length; ++i)
+	tableNames[i] = (String)ValueCodec.readPlainValue(in);
+    return new CachedResult(key, tableNames, created, 0, 0);
+}
+
+/**
+ * Reads a result written by {@link #write}. Returns <code>null</code> if
+ * the stream does not contain a result written by this version of
+ * DataVision.
+ *
+ * @param in an input stream
+ * @return a result or <code>null</code>
+ */
+public static CachedResult read(DataInputStream in) throws IOException {
+    CachedResult header = readHeader(in);
+    if (header == null)
+	return null;
+
+    int numRows = in.readInt();
+    int numColumns = in.readInt();
+    CachedResult result =
+	new CachedResult(header.key, header.tableNames, header.created,
+			 numRows, numColumns);
+    for (int col = 0; col < numColumns; ++col) {
+	byte encoding = result.encodings[col] = in.readByte();
+	boolean[] colNulls = result.nulls[col] = readNulls(in, numRows);
+	switch (encoding) {
+	case COL_INT:
+	    int[] ints = new int[numRows];
+	    for (int row = 0; row < numRows; ++row)
+		if (!colNulls[row]) ints[row] = in.readInt();
+	    result.values[col] = ints;
+	    break;
+	case COL_LONG:
+	    long[] longs = new long[numRows];
+	    for (int row = 0; row < numRows; ++row)
+		if (!colNulls[row]) longs[row] = in.readLong();
+	    result.values[col] = longs;
+	    break;
+	case COL_DOUBLE:
+	    double[] doubles = new double[numRows];
+	    for (int row = 0; row < numRows; ++row)
+		if (!colNulls[row]) doubles[row] = in.readDouble();
+	    result.values[col] = doubles;
+	    break;
+	default:
+	    Object[] objs = new Object[numRows];
+	    for (int row = 0; row < numRows; ++row)
+		if (!colNulls[row]) objs[row] = ValueCodec.readPlainValue(in);
+	    result.values[col] = objs;
+	    break;
+	}
+    }
+    result.estimateBytes();
+    return result;
+}
+
+protected static boolean[] readNulls(DataInputStream in, int n)
+    throws IOException
+{
+    boolean[] flags = new boolean[n];
+    for (int i = 0; i < n; i += 8) {
+	int b = in.readUnsignedByte();
+	for (int j = 0; j < 8 && i + j < n; ++j)
+	    flags[i + j] = (b & (1 << j)) != 0;
+    }
+    return flags;
+}
+
+}
@@ -0,0 +1,85 @@
+package jimm.datavision.source.sql;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.RowBuffer;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * A data cursor that replays the rows of a {@link CachedResult} instead of
+ * running a query. It returns the same values a {@link ResultSetRow} would
+ * have returned for the query that produced the result.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see ResultCache
+ */
+public class CachedResultRow extends DataCursor {
+
+protected CachedResult result;
+protected int numSelectables;
+protected int nextIndex;
+
+/**
+ * Constructor.
+ *
+ * @param result the cached rows
+ * @param query the query whose rows these are
+ * @param typed if <code>true</code>, use typed storage
+ */
+CachedResultRow(CachedResult result, SQLQuery query, boolean typed) {
+    this.result = result;
+    numSelectables = Math.min(query.getNumSelectables(),
+			      result.getNumColumns());
+    if (typed)
+	useTypedStorage(RowBuffer.kindsFor(query));
+}
+
+public List readRowData() {
+    if (nextIndex >= result.getNumRows())
+	return null;
+
+    int row = nextIndex++;
+    ArrayList list = new ArrayList(numSelectables);
+    for (int col = 0; col < numSelectables; ++col)
+	list.add(result.get(row, col));
+    return list;
+}
+
+protected boolean readRowInto(RowBuffer buf) {
+    if (nextIndex >= result.getNumRows())
+	return false;
+
+    int row = nextIndex++;
+    for (int col = 0; col < numSelectables; ++col) {
+	if (result.isNull(row, col)) {
+	    buf.setNull(col);
+	    continue;
+	}
+
+	byte encoding = result.getEncoding(col);
+	switch (buf.kindAt(col)) {
+	case RowBuffer.KIND_INT:
+	case RowBuffer.KIND_LONG:
+	    if (encoding == CachedResult.COL_INT)
+		buf.setLong(col, result.getInt(row, col));
+	    else if (encoding == CachedResult.COL_LONG)
+		buf.setLong(col, result.getLong(row, col));
+	    else
+		buf.setObject(col, result.get(row, col));
+	    break;
+	case RowBuffer.KIND_DOUBLE:
+	    if (encoding == CachedResult.COL_DOUBLE)
+		buf.setDouble(col, result.getDouble(row, col));
+	    else
+		buf.setObject(col, result.get(row, col));
+	    break;
+	default:
+	    buf.setObject(col, result.get(row, col));
+	    break;
+	}
+    }
+    for (int col = numSelectables; col < buf.size(); ++col)
+	buf.setNull(col);
+    return true;
+}
+
+}
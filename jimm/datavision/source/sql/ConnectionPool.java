@@ -0,0 +1,487 @@
+package jimm.datavision.source.sql;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * A pool of open database connections shared by every report in the
+ * process. When pooling is turned on, a {@link Database} borrows its
+ * connection from the pool for its driver, URL, and user instead of opening
+ * a new one, and gives it back when a report has been run. This helps
+ * servers and batch jobs that run many reports against the same database.
+ * <p>
+ * Pooling is turned on for one database by the <code>connection-pool</code>
+ * attribute of its XML (see {@link Database#setConnectionPooling}), or for
+ * every database by an application that embeds DataVision calling {@link
+ * #setEnabled} before reading its reports.
+ * <p>
+ * A pool opens at most <var>maxSize</var> connections at once. When they
+ * are all in use, borrowers wait for one to be given back. Connections are
+ * checked before they are handed out, and connections that have been idle
+ * too long are closed, though at least <var>minSize</var> are kept open.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class ConnectionPool {
+
+public static final int DEFAULT_MIN_SIZE = 0;
+public static final int DEFAULT_MAX_SIZE = 8;
+/** Idle connections are closed after this many milliseconds. */
+public static final long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000L;
+/** Borrowers wait at most this many milliseconds for a connection. */
+public static final long DEFAULT_BORROW_TIMEOUT = 30 * 1000L;
+
+protected static boolean enabled;
+protected static HashMap pools = new HashMap();
+
+/** A connection waiting to be borrowed. */
+static class IdleConnection {
+    Connection conn;
+    long since;
+    IdleConnection(Connection conn, long since) {
+	this.conn = conn;
+	this.since = since;
+    }
+}
+
+protected String key;
+protected String url;
+protected String user;
+private String password;
+protected int minSize;
+protected int maxSize;
+protected long idleTimeout;
+protected long borrowTimeout;
+protected String validationQuery;
+protected LinkedList idle;	// Least recently given back first
+protected HashSet active;
+protected int creating;
+protected int borrowCount;
+protected int createCount;
+protected int validationFailureCount;
+protected int evictionCount;
+protected int waitCount;
+protected int timeoutCount;
+protected boolean closed;
+
+/**
+ * Returns <code>true</code> if databases borrow their connections from
+ * connection pools.
+ *
+ * @return <code>true</code> if pooling is on
+ */
+public static boolean isEnabled() { return enabled; }
+
+/**
+ * Turns pooling on or off for databases created from now on. Pooling is
+ * off unless this is called.
+ *
+ * @param enable if <code>true</code>, turn pooling on
+ */
+public static void setEnabled(boolean enable) { enabled = enable; }
+
+/**
+ * Returns the pool for a driver, URL, and user, creating it if necessary.
+ * The JDBC driver must already be registered with the
+ * <code>DriverManager</code>.
+ * <p>
+ * Idle connections are handed out without logging in again, so a caller
+ * only gets an existing pool if its password matches the one the pool was
+ * created with. The pool's password is never replaced. Callers that get
+ * <code>null</code> back must open their own connection, which makes the
+ * database check their password.
+ *
+ * @param driverClassName the JDBC driver class name
+ * @param url the connection URL
+ * @param user the user name; may be empty
+ * @param password the password, used when opening new connections
+ * @return a connection pool, or <code>null</code> if the pool for this
+ * driver, URL, and user was created with a different password
+ */
+public static synchronized ConnectionPool getPool(String driverClassName,
+						  String url, String user,
+						  String password)
+{
+    String key = driverClassName + '\n' + url + '\n' + user;
+    ConnectionPool pool = (ConnectionPool)pools.get(key);
+    if (pool == null) {
+	pool = new ConnectionPool(key, url, user, password);
+	pools.put(key, pool);
+    }
+    else if (!pool.passwordMatches(password))
+	return null;
+    return pool;
+}
+
+/**
+ * Returns all the pools.
+ *
+ * @return a collection of connection pools
+ */
+public static synchronized Collection getPools() {
+    return new ArrayList(pools.values());
+}
+
+/**
+ * Closes every idle connection in every pool and forgets the pools.
+ * Connections that are borrowed are closed when they are given back.
+ */
+public static synchronized void closeAll() {
+    for (Iterator iter = pools.values().iterator(); iter.hasNext(); )
+	((ConnectionPool)iter.next()).close();
+    pools.clear();
+}
+
+/**
+ * Constructor. Use {@link #getPool} to share pools.
+ *
+ * @param key the pool's key
+ * @param url the connection URL
+ * @param user the user name; may be empty
+ * @param password the password
+ */
+protected ConnectionPool(String key, String url, String user,
+			 String password)
+{
+    this.key = key;
+    this.url = url;
+    this.user = user == null ? "" : user;
+    this.password = password;
+    minSize = DEFAULT_MIN_SIZE;
+    maxSize = DEFAULT_MAX_SIZE;
+    idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+    idle = new LinkedList();
+    active = new HashSet();
+}
+
+public String getKey() { return key; }
+
+/**
+ * Returns <code>true</code> if <var>pwd</var> is the password this pool
+ * opens its connections with. The password is not used when the user name
+ * is empty, so any password matches then.
+ *
+ * @param pwd a password; may be <code>null</code>
+ * @return <code>true</code> if connections from this pool may be handed
+ * to a caller that logs in with <var>pwd</var>
+ */
+protected boolean passwordMatches(String pwd) {
+    if (user.length() == 0)
+	return true;
+    String a = password == null ? "" : password;
+    String b = pwd == null ? "" : pwd;
+    return a.equals(b);
+}
+
+public synchronized int getMinSize() { return minSize; }
+
+/**
+ * Sets the number of connections that are kept open even when idle.
+ *
+ * @param size the minimum number of open connections
+ */
+public synchronized void setMinSize(int size) {
+    minSize = size < 0 ? 0 : size;
+}
+
+public synchronized int getMaxSize() { return maxSize; }
+
+/**
+ * Sets the number of connections that may be open at once.
+ *
+ * @param size the maximum number of open connections; at least one
+ */
+public synchronized void setMaxSize(int size) {
+    maxSize = size < 1 ? 1 : size;
+    notifyAll();
+}
+
+public synchronized long getIdleTimeout() { return idleTimeout; }
+
+/**
+ * Sets the number of milliseconds a connection may sit unused before it is
+ * closed.
+ *
+ * @param millis the idle timeout in milliseconds
+ */
+public synchronized void setIdleTimeout(long millis) { idleTimeout = millis; }
+
+public synchronized long getBorrowTimeout() { return borrowTimeout; }
+
+/**
+ * Sets the number of milliseconds {@link #borrow} waits for a connection
+ * when all of them are in use.
+ *
+ * @param millis the borrow timeout in milliseconds
+ */
+public synchronized void setBorrowTimeout(long millis) {
+    borrowTimeout = millis;
+}
+
+public synchronized String getValidationQuery() { return validationQuery; }
+
+/**
+ * Sets the query run to check a connection before it is handed out, for
+ * example "select 1". If <code>null</code>, connections are only checked
+ * to see that they have not been closed.
+ *
+ * @param sql a query or <code>null</code>
+ */
+public synchronized void setValidationQuery(String sql) {
+    validationQuery = sql;
+}
+
+/** Returns the number of connections handed out. */
+public synchronized int getBorrowCount() { return borrowCount; }
+
+/** Returns the number of connections opened. */
+public synchronized int getCreateCount() { return createCount; }
+
+/** Returns the number of idle connections that failed validation. */
+public synchronized int getValidationFailureCount() {
+    return validationFailureCount;
+}
+
+/** Returns the number of connections closed for being idle too long. */
+public synchronized int getEvictionCount() { return evictionCount; }
+
+/** Returns the number of times a borrower had to wait. */
+public synchronized int getWaitCount() { return waitCount; }
+
+/** Returns the number of times a borrower gave up waiting. */
+public synchronized int getTimeoutCount() { return timeoutCount; }
+
+/** Returns the number of connections currently borrowed. */
+public synchronized int getActiveCount() { return active.size(); }
+
+/** Returns the number of open connections waiting to be borrowed. */
+public synchronized int getIdleCount() { return idle.size(); }
+
+/**
+ * Returns an open connection, reusing an idle one if there is one that is
+ * still good. If all <var>maxSize</var> connections are in use, waits up
+ * to the borrow timeout for one to be given back.
+ *
+ * @return a connection; give it back with {@link #giveBack}
+ * @throws SQLException if a connection can't be opened or none becomes
+ * available in time
+ */
+public Connection borrow() throws SQLException {
+    long deadline = System.currentTimeMillis() + getBorrowTimeout();
+    boolean waited = false;
+    while (true) {
+	Connection conn = null;
+	synchronized (this) {
+	    evictIdle();
+	    if (!idle.isEmpty()) {
+		conn = ((IdleConnection)idle.removeLast()).conn;
+		active.add(conn);
+	    }
+	    else if (active.size() + creating < maxSize)
+		++creating;
+	    else {
+		long millis = deadline - System.currentTimeMillis();
+		if (millis <= 0) {
+		    ++timeoutCount;
+		    throw new SQLException("no connection available for "
+					   + url + " after waiting "
+					   + borrowTimeout + " ms");
+		}
+		if (!waited) {
+		    ++waitCount;
+		    waited = true;
+		}
+		try {
+		    wait(millis);
+		}
+		catch (InterruptedException ie) {
+		    Thread.currentThread().interrupt();
+		    throw new SQLException("interrupted while waiting for a connection");
+		}
+		continue;
+	    }
+	}
+
+	if (conn == null)
+	    return openConnection();
+
+	if (isValid(conn)) {
+	    synchronized (this) { ++borrowCount; }
+	    return conn;
+	}
+	synchronized (this) {
+	    active.remove(conn);
+	    ++validationFailureCount;
+	    notifyAll();
+	}
+	closeQuietly(conn);
+    }
+}
+
+/**
+ * Gives back a connection returned by {@link #borrow}. Closed connections
+ * are forgotten. Connections that aren't from this pool are ignored.
+ *
+ * @param conn a connection
+ */
+public synchronized void giveBack(Connection conn) {
+    if (conn == null || !active.remove(conn))
+	return;
+    notifyAll();
+
+    try {
+	if (conn.isClosed())
+	    return;
+	if (closed) {
+	    closeQuietly(conn);
+	    return;
+	}
+	if (!conn.getAutoCommit()) {
+	    conn.rollback();
+	    conn.setAutoCommit(true);
+	}
+    }
+    catch (SQLException sqle) {
+	closeQuietly(conn);
+	return;
+    }
+    idle.addLast(new IdleConnection(conn, System.currentTimeMillis()));
+    evictIdle();
+}
+
+/**
+ * Takes a connection that was opened without the pool, as if it had been
+ * borrowed and given back. Does nothing if the pool is closed or full.
+ *
+ * @param conn an open connection
+ * @return <code>true</code> if the pool took the connection
+ */
+public synchronized boolean adopt(Connection conn) {
+    if (closed || active.contains(conn)
+	|| idle.size() + active.size() + creating >= maxSize)
+	return false;
+    active.add(conn);
+    ++createCount;
+    giveBack(conn);
+    return true;
+}
+
+/**
+ * Closes a borrowed connection instead of giving it back, for example
+ * because an error has left it in a bad state.
+ *
+ * @param conn a connection returned by {@link #borrow}
+ */
+public void invalidate(Connection conn) {
+    synchronized (this) {
+	if (!active.remove(conn))
+	    return;
+	notifyAll();
+    }
+    closeQuietly(conn);
+}
+
+/**
+ * Opens connections until at least <var>minSize</var> are open.
+ *
+ * @throws SQLException if a connection can't be opened
+ */
+public void prefill() throws SQLException {
+    while (true) {
+	synchronized (this) {
+	    if (idle.size() + active.size() + creating >= minSize
+		|| active.size() + creating >= maxSize)
+		return;
+	    ++creating;
+	}
+	giveBack(openConnection());
+    }
+}
+
+/**
+ * Closes all idle connections. Borrowed connections are closed when they
+ * are given back instead of waiting to be borrowed again.
+ */
+public synchronized void close() {
+    closed = true;
+    for (Iterator iter = idle.iterator(); iter.hasNext(); )
+	closeQuietly(((IdleConnection)iter.next()).conn);
+    idle.clear();
+}
+
+/**
+ * Opens a new connection and marks it as borrowed. The caller must have
+ * incremented <var>creating</var>.
+ */
+protected Connection openConnection() throws SQLException {
+    Connection conn = null;
+    try {
+	if (user.length() == 0)
+	    conn = DriverManager.getConnection(url);
+	else
+	    conn = DriverManager.getConnection(url, user, password);
+	return conn;
+    }
+    finally {
+	synchronized (this) {
+	    --creating;
+	    if (conn != null) {
+		active.add(conn);
+		++createCount;
+		++borrowCount;
+	    }
+	    notifyAll();
+	}
+    }
+}
+
+/**
+ * Closes connections that have been idle longer than the idle timeout,
+ * keeping at least <var>minSize</var> connections open.
+ */
+protected synchronized void evictIdle() {
+    long oldest = System.currentTimeMillis() - idleTimeout;
+    while (!idle.isEmpty() && idle.size() + active.size() > minSize) {
+	IdleConnection ic = (IdleConnection)idle.getFirst();
+	if (ic.since > oldest)
+	    break;
+	idle.removeFirst();
+	closeQuietly(ic.conn);
+	++evictionCount;
+    }
+}
+
+/**
+ * Returns <code>true</code> if a connection is open and, if there is a
+ * validation query, can run it.
+ */
+protected boolean isValid(Connection conn) {
+    Statement stmt = null;
+    try {
+	if (conn.isClosed())
+	    return false;
+	String sql = getValidationQuery();
+	if (sql != null) {
+	    stmt = conn.createStatement();
+	    ResultSet rset = stmt.executeQuery(sql);
+	    rset.close();
+	}
+	return true;
+    }
+    catch (SQLException sqle) {
+	return false;
+    }
+    finally {
+	if (stmt != null) try { stmt.close(); } catch (SQLException e) {}
+    }
+}
+
+protected static void closeQuietly(Connection conn) {
+    StatementCache.closeStatements(conn);
+    try {
+	conn.close();
+    }
+    catch (SQLException sqle) {}
+}
+
+}
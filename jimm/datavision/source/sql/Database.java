@@ -3,6 +3,7 @@ import jimm.datavision.*;
 import jimm.datavision.source.*;
 import jimm.util.XMLWriter;
 import jimm.util.I18N;
+import java.io.File;
 import java.sql.*;
 import java.util.*;
 
@@ -14,6 +15,8 @@ import java.util.*;
 public class Database extends DataSource {
 
 protected static final String[] DB_OBJECT_TYPES = { "TABLE", "VIEW" };
+/** The number of rows fetched at a time when streaming, if not specified. */
+public static final int DEFAULT_STREAMING_FETCH_SIZE = 1000;
 
 protected String driverClassName;
 protected String connInfo;
@@ -21,13 +24,28 @@ protected String name;
 protected String username;
 protected TreeMap tables;
 protected HashMap tableCacheMap;
+protected boolean allTablesLoaded;
+protected HashSet tableNamesLookedUp;
 protected String schemaName;
 protected Connection conn;
+protected ConnectionPool pool;
+protected boolean connectionPooling;
 private String password;
 protected boolean hasPassword;
 protected boolean connectionOwnedByMe;
 protected boolean storesLowerCaseIdentifiers;
 protected boolean storesUpperCaseIdentifiers;
+protected boolean streaming;
+protected boolean aggregatePushDown;
+protected int partitions;
+protected int fetchSize;
+protected int resultCacheTTL;
+protected ResultCache resultCache;
+protected int metadataCacheTTL;
+protected File metadataCacheDirectory;
+protected long metadataCacheCreated;
+protected boolean catalogFromCache;
+protected boolean metadataChanged;
 protected String quoteString;
 
 public Database(Connection conn, Report report) throws SQLException {
@@ -43,7 +61,7 @@ public Database(Connection conn, Report report) throws SQLException {
 
     this.conn = conn;
     connectionOwnedByMe = false;
-    loadAllTables();
+    loadMetadata();
 }
 
 /**
@@ -111,7 +129,7 @@ protected Database(String driverClassName, String connInfo, Report report,
     hasPassword = givenPassword;
 
     initializeConnection();
-    loadAllTables();
+    loadMetadata();
 }
 
 public boolean canJoinTables() { return true; }
@@ -160,6 +178,21 @@ public Column findColumn(Object id) {
  * @param tableName a table name, perhaps including a schema name.
  */
 protected Table findTable(String tableName) {
+    Table t = findLoadedTable(tableName);
+    if (t == null && (!allTablesLoaded || catalogFromCache)) {
+	loadTableNamed(tableName);
+	t = findLoadedTable(tableName);
+    }
+    return t;
+}
+
+/**
+ * Given a table name, find the table among those that have already been
+ * loaded. See {@link #findTable}.
+ *
+ * @param tableName a table name, perhaps including a schema name.
+ */
+protected Table findLoadedTable(String tableName) {
     // First try a simple exact match using tableCacheMap. This will often
     // fail the first time, but after we have found a table using the quite
     // convoluted search below we store the table in tableCacheMap.
@@ -233,7 +266,14 @@ protected Table findTableWithId(String id) {
     return null;
 }
 
+/**
+ * Returns an iterator over all the tables in the database. The first call
+ * reads the entire catalog.
+ *
+ * @return an iterator over all tables
+ */
 public Iterator tables() {
+    ensureAllTablesLoaded();
     return tables.values().iterator();
 }
 
@@ -241,12 +281,115 @@ public Iterator tablesUsedInReport() {
     return ((SQLQuery)query).getTablesUsed().iterator();
 }
 
+/**
+ * Returns an iterator over all the columns of all the tables in the
+ * database. The first call reads the entire catalog.
+ *
+ * @return an iterator over all columns
+ */
 public Iterator columns() {
+    ensureAllTablesLoaded();
     return new ColumnIterator(tables.values().iterator());
 }
 
+/**
+ * Runs the query and returns a cursor over its rows. If the result cache
+ * is turned on (see {@link #setResultCacheTTL}) and it holds the rows
+ * returned by an earlier run of the same query with the same parameter
+ * values, those rows are returned instead.
+ */
 public DataCursor execute() throws SQLException {
-    return new ResultSetRow(conn, (SQLQuery)query);
+    saveMetadataCache();
+
+    SQLQuery sqlQuery = (SQLQuery)query;
+    String sql = sqlQuery.toPreparedStatementString();
+    if (partitions > 1 && pool != null && !streaming && resultCacheTTL <= 0
+	&& sql != null && sql.length() > 0) {
+	DataCursor cursor =
+	    PartitionedQuery.execute(report, sqlQuery, getConnection(), pool,
+				     partitions, usesTypedRows());
+	if (cursor != null)
+	    return cursor;
+    }
+    if (resultCacheTTL <= 0 || sql == null || sql.length() == 0)
+	return new ResultSetRow(getConnection(), sqlQuery, sql, usesTypedRows(),
+				streaming, fetchSize);
+
+    ResultCache cache = getResultCache();
+    String key = resultCacheKey(sql, sqlQuery.getPreparedStmtValues());
+    CachedResult result = cache.get(key, resultCacheTTL * 1000L);
+    if (result != null)
+	return new CachedResultRow(result, sqlQuery, usesTypedRows());
+
+    ArrayList tableNames = new ArrayList();
+    for (Iterator iter = sqlQuery.getTablesUsed().iterator(); iter.hasNext(); )
+	tableNames.add(((Table)iter.next()).getName());
+    return new RecordingCursor(new ResultSetRow(getConnection(), sqlQuery,
+						sql, false,
+						streaming, fetchSize),
+			       cache, key,
+			       (String[])tableNames.toArray(new String[tableNames.size()]),
+			       sqlQuery, usesTypedRows());
+}
+
+/**
+ * Returns the key used to find the result of a query in the result cache.
+ * The key identifies the database and user, the prepared statement
+ * string, and the class and value of each parameter.
+ *
+ * @param sql a prepared statement string
+ * @param values the values that will be plugged into the statement
+ * @return a cache key
+ */
+protected String resultCacheKey(String sql, List values) {
+    StringBuffer buf = new StringBuffer(connectionKey());
+    buf.append('\n').append(sql);
+    if (values != null) {
+	for (Iterator iter = values.iterator(); iter.hasNext(); ) {
+	    Object val = iter.next();
+	    buf.append('\n');
+	    if (val == null)
+		buf.append("null");
+	    else {
+		buf.append(val.getClass().getName()).append(':');
+		if (val instanceof java.util.Date)
+		    buf.append(((java.util.Date)val).getTime());
+		else
+		    buf.append(val);
+	    }
+	}
+    }
+    return buf.toString();
+}
+
+/**
+ * Returns the key used to find the snapshot of this database's metadata
+ * in the metadata cache. The key identifies the database, user, and
+ * schema name.
+ *
+ * @return a cache key
+ */
+protected String metadataCacheKey() {
+    return connectionKey() + '\n' + name;
+}
+
+/**
+ * Returns a string identifying the database URL and user, for use in cache
+ * keys. When we were handed a connection, they come from its metadata.
+ */
+protected String connectionKey() {
+    String url = connInfo, user = username;
+    if ((url == null || url.length() == 0) && conn != null) {
+	try {
+	    DatabaseMetaData dbmd = conn.getMetaData();
+	    url = dbmd.getURL();
+	    user = dbmd.getUserName();
+	}
+	catch (SQLException sqle) {
+	    // Fall back to our connection info
+	}
+    }
+    return url + '\n' + user;
 }
 
 public boolean storesLowerCaseIdentifiers() {
@@ -293,8 +436,15 @@ public void initializeConnection()
 	    Driver d = (Driver)Class.forName(driverClassName).newInstance();
 	    DriverManager.registerDriver(d);
 
-	    // Connect to the database
-	    if (username.length() == 0)
+	    // Connect to the database. If the pool for this URL and user was
+	    // created with another password, we log in ourselves.
+	    pool = null;
+	    if (connectionPooling || ConnectionPool.isEnabled())
+		pool = ConnectionPool.getPool(driverClassName, connInfo,
+					      username, password);
+	    if (pool != null)
+		conn = pool.borrow();
+	    else if (username.length() == 0)
 	      conn = DriverManager.getConnection(connInfo);
 	    else
 	      conn = DriverManager.getConnection(connInfo, username, password);
@@ -311,11 +461,79 @@ public void initializeConnection()
 }
 
 /**
- * Returns a connection to the database.
+ * Returns the database connection. If our connection comes from a
+ * connection pool and has been given back, we borrow another one.
+ *
+ * @return a connection, or <code>null</code> if one could not be borrowed
+ */
+public Connection getConnection() {
+    if (conn == null && pool != null) {
+	try {
+	    conn = pool.borrow();
+	}
+	catch (SQLException sqle) {
+	    ErrorHandler.error(sqle);
+	}
+    }
+    return conn;
+}
+
+/**
+ * Returns the connection pool our connection is borrowed from, or
+ * <code>null</code> if we don't use one.
+ *
+ * @return a connection pool or <code>null</code>
+ * @see ConnectionPool#setEnabled
+ */
+public ConnectionPool getConnectionPool() { return pool; }
+
+/**
+ * Returns <code>true</code> if this database borrows its connections from
+ * a connection pool even when pooling isn't turned on for every database.
  *
- * @return a connection to the database
+ * @return <code>true</code> if connection pooling is on for this database
+ */
+public boolean getConnectionPooling() { return connectionPooling; }
+
+/**
+ * Turns connection pooling on or off for this database. Called from
+ * <code>ReportReader</code>, for example. Turning it on hands the
+ * connection we opened to the pool for our driver, URL, and user, so it is
+ * given back when the report has run. Turning it off takes effect the next
+ * time the connection is reset.
+ *
+ * @param usePool if <code>true</code>, borrow connections from a pool
+ * @see ConnectionPool#setEnabled
+ */
+public void setConnectionPooling(boolean usePool) {
+    connectionPooling = usePool;
+    if (usePool && pool == null && connectionOwnedByMe) {
+	ConnectionPool p = ConnectionPool.getPool(driverClassName, connInfo,
+						  username, password);
+	// Else keep our own connection
+	if (p != null && (conn == null || p.adopt(conn))) {
+	    pool = p;
+	    conn = null;
+	}
+    }
+}
+
+/**
+ * Gives our connection back to the pool it was borrowed from, if any.
+ * Called by the report when it has finished running. The next call to
+ * {@link #getConnection} borrows a connection again.
  */
-public Connection getConnection() { return conn; }
+public void reportFinished() {
+    SQLQuery sqlQuery = (SQLQuery)query;
+    if (sqlQuery.getAggregatePushDown() != null) {
+	sqlQuery.getAggregatePushDown().release();
+	sqlQuery.setAggregatePushDown(null);
+    }
+    if (pool != null && conn != null) {
+	pool.giveBack(conn);
+	conn = null;
+    }
+}
 
 /**
  * Reset key instance variables, closes current connection, and "reloads"
@@ -344,24 +562,37 @@ public void reset(String driverClassName, String connInfo, String dbName,
     hasPassword = true;
 
     if (conn != null) {
-	if (connectionOwnedByMe)
+	if (pool != null)
+	    pool.giveBack(conn);
+	else if (connectionOwnedByMe) {
+	    StatementCache.closeStatements(conn);
 	    conn.close();
+	}
 	conn = null;
     }
+    pool = null;
     initializeConnection();
-    loadAllTables();
+    loadMetadata();
 
     report.reloadColumns();
 }
 
 /**
- * Loads information about all tables in the database. If no tables are
- * found when using the database schema name, try again with a
- * <code>null</code> schema name.
+ * Forgets all tables and reads the identifier settings we need from the
+ * database metadata. Tables are loaded when they are first needed: by
+ * name when a report refers to them (see {@link #loadTableNamed}), or all
+ * at once when someone asks for every table (see {@link #loadAllTables}).
+ * Databases with tens of thousands of tables can then open reports that
+ * use only a few of them quickly.
  */
-protected void loadAllTables() throws SQLException {
+protected void loadMetadata() throws SQLException {
     tables = new TreeMap();
     tableCacheMap = new HashMap();
+    tableNamesLookedUp = new HashSet();
+    allTablesLoaded = false;
+    catalogFromCache = false;
+    metadataChanged = false;
+    metadataCacheCreated = 0;
     schemaName = null;
 
     DatabaseMetaData dbmd = getConnection().getMetaData();
@@ -369,65 +600,312 @@ protected void loadAllTables() throws SQLException {
     storesUpperCaseIdentifiers = dbmd.storesUpperCaseIdentifiers();
     quoteString = dbmd.getIdentifierQuoteString();
 
+    if (metadataCacheTTL > 0)
+	loadMetadataCache();
+}
+
+/**
+ * Adds the tables and columns from the metadata cache, if it has a
+ * snapshot for this database that is not too old. Tables we already know
+ * about are kept. Tables whose columns were not in the snapshot load them
+ * from the database when they are first needed.
+ */
+protected void loadMetadataCache() {
+    MetadataCache cache =
+	MetadataCache.load(getMetadataCacheDirectory(), metadataCacheKey(),
+			   metadataCacheTTL * 1000L);
+    if (cache == null) {
+	metadataChanged = true;	// Write a snapshot for next time
+	return;
+    }
+
+    DatabaseMetaData dbmd = null;
+    try {
+	for (Iterator iter = cache.tableEntries(); iter.hasNext(); ) {
+	    MetadataCache.TableEntry entry =
+		(MetadataCache.TableEntry)iter.next();
+	    if (tables.containsKey(entry.name))
+		continue;
+	    SQLTable t;
+	    if (entry.columnNames == null) {
+		if (dbmd == null)
+		    dbmd = getConnection().getMetaData();
+		t = new SQLTable(this, entry.name, dbmd);
+	    }
+	    else {
+		t = new SQLTable(this, entry.name, null);
+		t.setCachedColumns(entry.columnNames, entry.columnTypes);
+	    }
+	    tables.put(t.getId().toString(), t);
+	}
+    }
+    catch (SQLException sqle) {
+	ErrorHandler.error(sqle);
+	return;
+    }
+
+    storesLowerCaseIdentifiers = cache.storesLowerCaseIdentifiers();
+    storesUpperCaseIdentifiers = cache.storesUpperCaseIdentifiers();
+    quoteString = cache.getIdentifierQuoteString();
+    schemaName = cache.getSchemaName();
+    metadataCacheCreated = cache.getCreated();
+    if (cache.isCatalogComplete()) {
+	allTablesLoaded = true;
+	catalogFromCache = true;
+    }
+}
+
+/**
+ * Writes a snapshot of the tables and columns we know about to the
+ * metadata cache, if caching is on and we have read anything from the
+ * database since the snapshot was last read or written. The snapshot keeps
+ * the age of the one we started from, so tables that are never revalidated
+ * still expire.
+ */
+public void saveMetadataCache() {
+    if (metadataCacheTTL <= 0 || !metadataChanged || tables == null)
+	return;
+
+    MetadataCache cache = new MetadataCache(metadataCacheKey());
+    if (metadataCacheCreated != 0)
+	cache.created = metadataCacheCreated;
+    cache.setIdentifierSettings(storesLowerCaseIdentifiers,
+				storesUpperCaseIdentifiers, quoteString,
+				schemaName);
+    cache.setCatalogComplete(allTablesLoaded);
+    for (Iterator iter = tables.values().iterator(); iter.hasNext(); ) {
+	SQLTable t = (SQLTable)iter.next();
+	if (!t.columnsLoaded()) {
+	    cache.addTable(t.getName(), null, null);
+	    continue;
+	}
+	ArrayList cols = new ArrayList();
+	for (Iterator ci = t.columns(); ci.hasNext(); )
+	    cols.add(ci.next());
+	String[] names = new String[cols.size()];
+	int[] types = new int[cols.size()];
+	for (int i = 0; i < names.length; ++i) {
+	    Column col = (Column)cols.get(i);
+	    names[i] = col.getName();
+	    types[i] = col.getType();
+	}
+	cache.addTable(t.getName(), names, types);
+    }
+    cache.save(getMetadataCacheDirectory());
+    metadataCacheCreated = cache.getCreated();
+    metadataChanged = false;
+}
+
+/**
+ * Notes that tables or columns have been read from the database, so the
+ * metadata cache should be written again. Called by {@link SQLTable}.
+ */
+void metadataChanged() {
+    metadataChanged = true;
+}
+
+/**
+ * Returns <code>true</code> if every table in the database has been
+ * loaded, as opposed to only those a report has asked for by name.
+ *
+ * @return <code>true</code> if the entire catalog has been read
+ */
+public boolean isCatalogLoaded() { return allTablesLoaded; }
+
+/**
+ * Loads every table in the database if that has not yet been done. Errors
+ * are reported, not thrown.
+ */
+protected void ensureAllTablesLoaded() {
+    if (allTablesLoaded)
+	return;
+    try {
+	loadAllTables();
+    }
+    catch (SQLException sqle) {
+	ErrorHandler.error(sqle);
+    }
+    saveMetadataCache();
+}
+
+/**
+ * Loads information about all tables in the database. If no tables are
+ * found when using the database schema name, try again with a
+ * <code>null</code> schema name. Tables that have already been loaded by
+ * name are kept.
+ */
+protected void loadAllTables() throws SQLException {
+    allTablesLoaded = true;	// Even if we fail, don't try again
+    DatabaseMetaData dbmd = getConnection().getMetaData();
+    int found = 0;
+
     try {
 	// Specify both schema name and DB_OBJECT_TYPES.
-	loadTablesUsingSchemaNameAndTypes(dbmd, name, DB_OBJECT_TYPES);
+	found = loadTablesUsingSchemaNameAndTypes(dbmd, name, "%",
+						  DB_OBJECT_TYPES);
     } catch (SQLException e) {}
     catch (NullPointerException npe) {}
 
     try {
-	if (tables.isEmpty() && name != null) // Only schema name
-	    loadTablesUsingSchemaNameAndTypes(dbmd, name, null);
+	if (found == 0 && name != null) // Only schema name
+	    found = loadTablesUsingSchemaNameAndTypes(dbmd, name, "%", null);
     } catch (SQLException e) {}
     catch (NullPointerException npe) {}
 
     try {
-	if (tables.isEmpty())	// No schema name, use types
-	    loadTablesUsingSchemaNameAndTypes(dbmd, null, DB_OBJECT_TYPES);
+	if (found == 0)	// No schema name, use types
+	    found = loadTablesUsingSchemaNameAndTypes(dbmd, null, "%",
+						      DB_OBJECT_TYPES);
     } catch (SQLException e) {}
     catch (NullPointerException npe) {}
 
     // If no tables found, try again with null database name. This time,
     // throw an exception if there is a problem.
-    if (tables.isEmpty())	// No schema name, no types
-	loadTablesUsingSchemaNameAndTypes(dbmd, null, null);
+    if (found == 0)		// No schema name, no types
+	loadTablesUsingSchemaNameAndTypes(dbmd, null, "%", null);
+}
+
+/**
+ * Loads the table with the given name, using the same schema name and
+ * object type strategies as {@link #loadAllTables} but asking the
+ * database only for tables with that name. The name is tried as-is and in
+ * the case the database uses to store identifiers. Each name is looked up
+ * at most once.
+ *
+ * @param tableName a table name, perhaps including a schema name
+ */
+protected void loadTableNamed(String tableName) {
+    if (tables == null || !tableNamesLookedUp.add(tableName))
+	return;
+
+    String schema = null;
+    int pos = tableName.indexOf('.');
+    if (pos >= 0) {
+	schema = tableName.substring(0, pos);
+	tableName = tableName.substring(pos + 1);
+    }
+
+    DatabaseMetaData dbmd;
+    String escape;
+    try {
+	dbmd = getConnection().getMetaData();
+	escape = dbmd.getSearchStringEscape();
+    }
+    catch (SQLException sqle) {
+	ErrorHandler.error(sqle);
+	return;
+    }
+
+    ArrayList schemas = new ArrayList();
+    if (schema != null) schemas.add(schema);
+    if (name != null && !schemas.contains(name)) schemas.add(name);
+    schemas.add(null);
+
+    String[] patterns = identifierVariants(tableName);
+    for (int i = 0; i < patterns.length; ++i)
+	patterns[i] = escapedPattern(patterns[i], escape);
+
+    String[][] typeLists = { DB_OBJECT_TYPES, null };
+    for (Iterator iter = schemas.iterator(); iter.hasNext(); ) {
+	String s = (String)iter.next();
+	for (int i = 0; i < patterns.length; ++i) {
+	    for (int j = 0; j < typeLists.length; ++j) {
+		try {
+		    if (loadTablesUsingSchemaNameAndTypes(dbmd, s, patterns[i],
+							  typeLists[j]) > 0)
+			return;
+		}
+		catch (SQLException e) {}
+		catch (NullPointerException npe) {}
+	    }
+	}
+    }
+}
+
+/**
+ * Returns the spellings of an identifier to look for in the database
+ * metadata: first the case in which the database stores identifiers, then
+ * the identifier as-is, then the other case.
+ */
+protected String[] identifierVariants(String id) {
+    ArrayList list = new ArrayList();
+    if (storesUpperCaseIdentifiers)
+	list.add(id.toUpperCase());
+    else if (storesLowerCaseIdentifiers)
+	list.add(id.toLowerCase());
+    String[] others = { id, id.toUpperCase(), id.toLowerCase() };
+    for (int i = 0; i < others.length; ++i)
+	if (!list.contains(others[i]))
+	    list.add(others[i]);
+    return (String[])list.toArray(new String[list.size()]);
+}
+
+/**
+ * Returns <var>id</var> with the metadata search pattern characters
+ * "_" and "%" escaped.
+ */
+protected static String escapedPattern(String id, String escape) {
+    if (escape == null || escape.length() == 0)
+	return id;
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < id.length(); ++i) {
+	char c = id.charAt(i);
+	if (c == '_' || c == '%' || escape.indexOf(c) >= 0)
+	    buf.append(escape);
+	buf.append(c);
+    }
+    return buf.toString();
 }
 
 /**
- * Loads our list of tables using a database meta data object and a
- * schema name. The schema name may be <code>null</code>.
+ * Loads the tables matching a name pattern using a database meta data
+ * object and a schema name. The schema name may be <code>null</code>.
+ * Tables we already know about are kept.
  *
  * @param dbmd the database meta data object
- * @param objectTypes a list of database object types
  * @param schema the schema name; may be <code>null</code>
+ * @param tablePattern a table name pattern
+ * @param objectTypes a list of database object types
+ * @return the number of tables found
  */
-protected void loadTablesUsingSchemaNameAndTypes(DatabaseMetaData dbmd,
-						 String schema,
-						 String[] objectTypes)
+protected int loadTablesUsingSchemaNameAndTypes(DatabaseMetaData dbmd,
+						String schema,
+						String tablePattern,
+						String[] objectTypes)
     throws SQLException
 {
-    ResultSet rset = dbmd.getTables(null, schema, "%", objectTypes);
-    if (rset == null) return;
+    ResultSet rset = dbmd.getTables(null, schema, tablePattern, objectTypes);
+    if (rset == null) return 0;
 
+    int found = 0;
     boolean schemaNameFailed = false; // Avoid banging our head against a wall
-    while (rset.next()) {
-	String name = rset.getString("TABLE_NAME").trim();
-
-	if (!schemaNameFailed) {
-	    try {
-		schemaName = rset.getString("TABLE_SCHEM");
+    try {
+	while (rset.next()) {
+	    String name = rset.getString("TABLE_NAME").trim();
+
+	    if (!schemaNameFailed) {
+		try {
+		    schemaName = rset.getString("TABLE_SCHEM");
+		}
+		catch (SQLException sqle) {
+		    schemaNameFailed = true;
+		}
+		if (schemaName != null && schemaName.length() > 0)
+		    name = schemaName.trim() + '.' + name;
 	    }
-	    catch (SQLException sqle) {
-		schemaNameFailed = true;
+
+	    ++found;
+	    if (!tables.containsKey(name)) {
+		SQLTable t = new SQLTable(this, name, dbmd);
+		tables.put(t.getId().toString(), t);
+		metadataChanged = true;
 	    }
-	    if (schemaName != null && schemaName.length() > 0)
-		name = schemaName.trim() + '.' + name;
 	}
-
-	SQLTable t = new SQLTable(this, name, dbmd);
-	tables.put(t.getId().toString(), t);
     }
-    rset.close();
+    finally {
+	rset.close();
+    }
+    return found;
 }
 
 /**
@@ -490,6 +968,183 @@ public String getUserName() { return username; }
  */
 public void setUserName(String newUserName) { username = newUserName; }
 
+/**
+ * Returns <code>true</code> if report rows are streamed from the database
+ * server instead of being read into memory all at once.
+ *
+ * @return <code>true</code> if streaming is on
+ * @see ResultSetRow#prepareStreaming
+ */
+public boolean isStreaming() { return streaming; }
+
+/**
+ * Returns the number of rows fetched from the server at a time when
+ * streaming.
+ *
+ * @return the streaming fetch size
+ */
+public int getFetchSize() { return fetchSize; }
+
+/**
+ * Turns streaming on or off. Called from <code>ReportReader</code> and
+ * from the command line, for example. Streaming lets reports run over
+ * result sets that are too large to fit in memory.
+ * <p>
+ * When streaming from MySQL, the connection may not be used for anything
+ * else until the report is done, so subreports will not work.
+ *
+ * @param streaming if <code>true</code>, turn streaming on
+ * @param fetchSize the number of rows to fetch at a time; if less than one,
+ * {@link #DEFAULT_STREAMING_FETCH_SIZE} is used
+ */
+public void setStreaming(boolean streaming, int fetchSize) {
+    this.streaming = streaming;
+    this.fetchSize = fetchSize < 1 ? DEFAULT_STREAMING_FETCH_SIZE : fetchSize;
+}
+
+/**
+ * Returns <code>true</code> if summary-only reports let the database
+ * compute their aggregates.
+ *
+ * @return <code>true</code> if aggregate push-down is on
+ * @see AggregatePushDown
+ */
+public boolean isAggregatePushDown() { return aggregatePushDown; }
+
+/**
+ * Turns aggregate push-down on or off. When it is on and a report's detail
+ * sections are hidden and its aggregates can be computed by the database
+ * (see {@link AggregatePushDown}), the report's query is rewritten to
+ * return one row per group instead of every detail row.
+ *
+ * @param pushDown if <code>true</code>, turn aggregate push-down on
+ */
+public void setAggregatePushDown(boolean pushDown) {
+    aggregatePushDown = pushDown;
+}
+
+/**
+ * Returns the most partitions the report's query is split into.
+ *
+ * @return the number of partitions; 0 or 1 means the query is not split
+ * @see PartitionedQuery
+ */
+public int getPartitions() { return partitions; }
+
+/**
+ * Sets the most partitions the report's query is split into. When it is
+ * more than one, connection pooling is on (see {@link
+ * #setConnectionPooling}), and the report's outermost group is over a
+ * column, the query is run as several queries at once, one per range of
+ * that column's values. Partitions are not used when streaming or when
+ * the result cache is on.
+ *
+ * @param n the most partitions; 0 or 1 turns partitioning off
+ */
+public void setPartitions(int n) { partitions = n < 0 ? 0 : n; }
+
+/**
+ * Rewrites the query to return one row per group if aggregate push-down
+ * is on and the report allows it, then runs it.
+ */
+public DataCursor executeForReport() throws Exception {
+    if (aggregatePushDown) {
+	AggregatePushDown plan = AggregatePushDown.plan(report,
+							(SQLQuery)query);
+	((SQLQuery)query).setAggregatePushDown(plan);
+	if (plan != null)
+	    plan.apply();
+    }
+    return super.executeForReport();
+}
+
+/**
+ * Returns the number of seconds query results are kept in the result
+ * cache. 0 means results are not cached.
+ *
+ * @return the result cache time to live in seconds
+ */
+public int getResultCacheTTL() { return resultCacheTTL; }
+
+/**
+ * Sets the number of seconds query results are kept in the result cache.
+ * Called from <code>ReportReader</code>, for example. A value of 0 or less
+ * turns off result caching. Only turn it on for reports whose data does not
+ * have to be up to the second; use {@link ResultCache#invalidateTable} when
+ * a table is known to have changed.
+ *
+ * @param seconds the result cache time to live in seconds
+ */
+public void setResultCacheTTL(int seconds) {
+    resultCacheTTL = seconds < 0 ? 0 : seconds;
+}
+
+/**
+ * Returns the result cache used by this database. Unless another one has
+ * been set, this is the cache shared by all reports.
+ *
+ * @return a result cache
+ * @see ResultCache#getDefault
+ */
+public ResultCache getResultCache() {
+    return resultCache == null ? ResultCache.getDefault() : resultCache;
+}
+
+/**
+ * Sets the result cache used by this database.
+ *
+ * @param cache a result cache; if <code>null</code>, the shared cache is
+ * used
+ */
+public void setResultCache(ResultCache cache) { resultCache = cache; }
+
+/**
+ * Returns the number of seconds a snapshot of this database's tables and
+ * columns is kept in the metadata cache. 0 means metadata is not cached.
+ *
+ * @return the metadata cache time to live in seconds
+ */
+public int getMetadataCacheTTL() { return metadataCacheTTL; }
+
+/**
+ * Sets the number of seconds a snapshot of this database's tables and
+ * columns is kept in the metadata cache, and reads the snapshot if there
+ * is one. Called from <code>ReportReader</code>, for example. A value of 0
+ * or less turns off metadata caching.
+ * <p>
+ * Cached metadata is checked against the database when a report asks for
+ * a column or table that isn't in the snapshot. Columns and tables that
+ * have been dropped are not noticed until the snapshot expires.
+ *
+ * @param seconds the metadata cache time to live in seconds
+ */
+public void setMetadataCacheTTL(int seconds) {
+    boolean wasOff = metadataCacheTTL <= 0;
+    metadataCacheTTL = seconds < 0 ? 0 : seconds;
+    if (wasOff && metadataCacheTTL > 0 && tables != null)
+	loadMetadataCache();
+}
+
+/**
+ * Returns the directory holding metadata cache files. Unless another one
+ * has been set, this is {@link MetadataCache#getDefaultDirectory}.
+ *
+ * @return a directory
+ */
+public File getMetadataCacheDirectory() {
+    return metadataCacheDirectory == null
+	? MetadataCache.getDefaultDirectory() : metadataCacheDirectory;
+}
+
+/**
+ * Sets the directory holding metadata cache files.
+ *
+ * @param dir a directory; if <code>null</code>, the default is used
+ */
+public void setMetadataCacheDirectory(File dir) {
+    metadataCacheDirectory = dir;
+}
+
 /**
  * Returns the password.
  *
@@ -518,6 +1173,26 @@ protected void doWriteXML(XMLWriter out) {
     out.attr("connInfo", connInfo);
     out.attr("name", name);
     out.attr("username", username);
+    if (typedRows)
+	out.attr("typed-rows", typedRows);
+    if (prefetchBatchSize > 0) {
+	out.attr("prefetch-batch-size", prefetchBatchSize);
+	out.attr("prefetch-queue-depth", prefetchQueueDepth);
+    }
+    if (streaming) {
+	out.attr("streaming", streaming);
+	out.attr("fetch-size", fetchSize);
+    }
+    if (aggregatePushDown)
+	out.attr("aggregate-push-down", aggregatePushDown);
+    if (connectionPooling)
+	out.attr("connection-pool", connectionPooling);
+    if (partitions > 1)
+	out.attr("partitions", partitions);
+    if (resultCacheTTL > 0)
+	out.attr("result-cache-ttl", resultCacheTTL);
+    if (metadataCacheTTL > 0)
+	out.attr("metadata-cache-ttl", metadataCacheTTL);
     out.endElement();
 }
 
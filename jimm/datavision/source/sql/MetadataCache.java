@@ -0,0 +1,284 @@
+package jimm.datavision.source.sql;
+import jimm.datavision.ErrorHandler;
+import java.io.*;
+import java.util.*;
+
+/**
+ * A snapshot of the metadata a {@link Database} has read: its identifier
+ * case and quote settings and the tables it knows about, with the names and
+ * types of the columns of those tables whose columns have been loaded. A
+ * snapshot is written to a file so the next run of a report against the
+ * same database can start from it instead of asking the database again.
+ * <p>
+ * Each file holds the snapshot for one key. The key identifies the
+ * database URL, the user, and the schema name (see
+ * {@link Database#metadataCacheKey}).
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class MetadataCache {
+
+protected static final int MAGIC = 0x44564d43; // "DVMC"
+protected static final int VERSION = 1;
+protected static final String FILE_PREFIX = "dvmc";
+protected static final String FILE_SUFFIX = ".dvmc";
+
+/** The columns of one table. Names and types are <code>null</code> if unknown. */
+static class TableEntry {
+    String name;
+    String[] columnNames;
+    int[] columnTypes;
+}
+
+protected String key;
+protected long created;
+protected boolean storesLowerCaseIdentifiers;
+protected boolean storesUpperCaseIdentifiers;
+protected String quoteString;
+protected String schemaName;
+protected boolean catalogComplete;
+protected ArrayList tables;
+
+/**
+ * Returns the directory that holds metadata cache files unless a database
+ * says otherwise: <code>metadata_cache</code> inside the user's cache
+ * directory (see {@link ResultCache#getUserCacheDirectory}).
+ *
+ * @return a directory
+ */
+public static File getDefaultDirectory() {
+    return new File(ResultCache.getUserCacheDirectory(), "metadata_cache");
+}
+
+/**
+ * Returns the file that holds the snapshot for <var>key</var>. Different
+ * keys may share a file name; the key stored in the file tells them apart.
+ *
+ * @param dir the cache directory
+ * @param key a cache key
+ * @return a file, which may not exist
+ */
+public static File fileFor(File dir, String key) {
+    return new File(dir, FILE_PREFIX + Integer.toHexString(key.hashCode())
+		    + FILE_SUFFIX);
+}
+
+/**
+ * Reads the snapshot for <var>key</var> from <var>dir</var>. Returns
+ * <code>null</code> if there is none, it is for another key, it can't be
+ * read, or it is older than <var>ttlMillis</var>.
+ *
+ * @param dir the cache directory
+ * @param key a cache key
+ * @param ttlMillis the maximum age of the snapshot in milliseconds
+ * @return a snapshot or <code>null</code>
+ */
+public static MetadataCache load(File dir, String key, long ttlMillis) {
+    File f = fileFor(dir, key);
+    if (!f.isFile())
+	return null;
+
+    DataInputStream in = null;
+    try {
+	in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+	MetadataCache cache = read(in);
+	if (cache == null || !key.equals(cache.key)
+	    || cache.created < System.currentTimeMillis() - ttlMillis)
+	    return null;
+	return cache;
+    }
+    catch (IOException ioe) {
+	return null;
+    }
+    finally {
+	if (in != null) try { in.close(); } catch (IOException ioe2) {}
+    }
+}
+
+/**
+ * Creates an empty snapshot.
+ *
+ * @param key the cache key
+ */
+public MetadataCache(String key) {
+    this.key = key;
+    created = System.currentTimeMillis();
+    tables = new ArrayList();
+}
+
+public String getKey() { return key; }
+
+/** Returns the time this snapshot was taken. */
+public long getCreated() { return created; }
+
+public boolean storesLowerCaseIdentifiers() {
+    return storesLowerCaseIdentifiers;
+}
+
+public boolean storesUpperCaseIdentifiers() {
+    return storesUpperCaseIdentifiers;
+}
+
+public String getIdentifierQuoteString() { return quoteString; }
+
+public String getSchemaName() { return schemaName; }
+
+/**
+ * Returns <code>true</code> if the snapshot holds every table in the
+ * database, not only those a report asked for by name.
+ */
+public boolean isCatalogComplete() { return catalogComplete; }
+
+/**
+ * Records the identifier settings read from the database metadata.
+ */
+public void setIdentifierSettings(boolean lower, boolean upper,
+				  String quoteString, String schemaName)
+{
+    storesLowerCaseIdentifiers = lower;
+    storesUpperCaseIdentifiers = upper;
+    this.quoteString = quoteString;
+    this.schemaName = schemaName;
+}
+
+public void setCatalogComplete(boolean complete) {
+    catalogComplete = complete;
+}
+
+/**
+ * Adds a table. If its columns have not been loaded, pass
+ * <code>null</code> for both arrays.
+ *
+ * @param name the table name
+ * @param columnNames the column names, or <code>null</code>
+ * @param columnTypes the column types, or <code>null</code>
+ */
+public void addTable(String name, String[] columnNames, int[] columnTypes) {
+    TableEntry entry = new TableEntry();
+    entry.name = name;
+    entry.columnNames = columnNames;
+    entry.columnTypes = columnTypes;
+    tables.add(entry);
+}
+
+/** Returns the number of tables in this snapshot. */
+public int getNumTables() { return tables.size(); }
+
+/**
+ * Returns an iterator over the table entries.
+ */
+Iterator tableEntries() { return tables.iterator(); }
+
+/**
+ * Writes this snapshot to its file in <var>dir</var>. The file is written
+ * under a temporary name first so readers never see a partial snapshot. A
+ * failure to write is reported but otherwise ignored.
+ *
+ * @param dir the cache directory
+ */
+public void save(File dir) {
+    File f = null;
+    DataOutputStream out = null;
+    try {
+	if (!dir.isDirectory())
+	    dir.mkdirs();
+	f = File.createTempFile(FILE_PREFIX, ".tmp", dir);
+	out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+	write(out);
+	out.close();
+	out = null;
+
+	File dest = fileFor(dir, key);
+	dest.delete();
+	if (!f.renameTo(dest))
+	    throw new IOException("can't rename " + f + " to " + dest);
+    }
+    catch (IOException ioe) {
+	if (out != null) try { out.close(); } catch (IOException ioe2) {}
+	if (f != null) f.delete();
+	ErrorHandler.error(ioe);
+    }
+}
+
+/**
+ * Writes this snapshot to a stream.
+ *
+ * @param out a data output stream
+ */
+public void write(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(key);
+    out.writeLong(created);
+    out.writeBoolean(storesLowerCaseIdentifiers);
+    out.writeBoolean(storesUpperCaseIdentifiers);
+    writeNullableString(out, quoteString);
+    writeNullableString(out, schemaName);
+    out.writeBoolean(catalogComplete);
+    out.writeInt(tables.size());
+    for (Iterator iter = tables.iterator(); iter.hasNext(); ) {
+	TableEntry entry = (TableEntry)iter.next();
+	out.writeUTF(entry.name);
+	if (entry.columnNames == null) {
+	    out.writeInt(-1);
+	    continue;
+	}
+	out.writeInt(entry.columnNames.length);
+	for (int i = 0; i < entry.columnNames.length; ++i) {
+	    out.writeUTF(entry.columnNames[i]);
+	    out.writeInt(entry.columnTypes[i]);
+	}
+    }
+}
+
+/**
+ * Reads a snapshot from a stream. Returns <code>null</code> if the stream
+ * does not hold a snapshot in the current format.
+ *
+ * @param in a data input stream
+ * @return a snapshot or <code>null</code>
+ */
+public static MetadataCache read(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC || in.readInt() != VERSION)
+	return null;
+    MetadataCache cache = new MetadataCache(in.readUTF());
+    cache.created = in.readLong();
+    cache.storesLowerCaseIdentifiers = in.readBoolean();
+    cache.storesUpperCaseIdentifiers = in.readBoolean();
+    cache.quoteString = readNullableString(in);
+    cache.schemaName = readNullableString(in);
+    cache.catalogComplete = in.readBoolean();
+    int numTables = in.readInt();
+    for (int t = 0; t < numTables; ++t) {
+	String name = in.readUTF();
+	int numColumns = in.readInt();
+	String[] names = null;
+	int[] types = null;
+	if (numColumns >= 0) {
+	    names = new String[numColumns];
+	    types = new int[numColumns];
+	    for (int i = 0; i < numColumns; ++i) {
+		names[i] = in.readUTF();
+		types[i] = in.readInt();
+	    }
+	}
+	cache.addTable(name, names, types);
+    }
+    return cache;
+}
+
+protected static void writeNullableString(DataOutputStream out, String str)
+    throws IOException
+{
+    out.writeBoolean(str != null);
+    if (str != null)
+	out.writeUTF(str);
+}
+
+protected static String readNullableString(DataInputStream in)
+    throws IOException
+{
+    return in.readBoolean() ? in.readUTF() : null;
+}
+
+}
@@ -0,0 +1,498 @@
+package jimm.datavision.source.sql;
+import jimm.datavision.*;
+import jimm.datavision.source.Column;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.RowBuffer;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Runs a report's query as several smaller queries at once, one for each
+ * range of values of the report's outermost group column. Each partition
+ * runs on a worker thread with a connection borrowed from a {@link
+ * ConnectionPool}. The cursor returned by {@link #execute} returns the rows
+ * of the first partition, then those of the second, and so on, so the
+ * report sees exactly the rows, in exactly the order, that the single query
+ * would have returned. Formulas, aggregates, and page numbers are computed
+ * by the report as usual.
+ * <p>
+ * Only the partition the report is reading and the few that follow it, one
+ * per worker thread, are run at any time. A worker stops reading when it
+ * is {@link #MAX_BUFFERED_ROWS} rows ahead of the report, so rows are
+ * passed along as they are read instead of being kept in memory.
+ * <p>
+ * If a partition's query fails, the other partitions are closed and the
+ * error is thrown from the cursor, so the report fails instead of ending
+ * early.
+ * <p>
+ * Partitions are found by asking the database for the distinct values of
+ * the outermost group column, then splitting them into ranges that hold
+ * roughly the same number of values. A <code>null</code> group value gets
+ * its own partition.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see Database#setPartitions
+ */
+public class PartitionedQuery implements Runnable {
+
+/** The most partitions a query is split into. */
+public static final int MAX_PARTITIONS = 64;
+
+/** The most rows a worker reads before the report asks for them. */
+public static final int MAX_BUFFERED_ROWS = 1000;
+
+/** A part of the query's rows. */
+static class Partition {
+    String sql;
+    List params;
+    boolean done;
+    PreparedStatement stmt;	// Non-null while running
+    LinkedList rows = new LinkedList(); // Read but not yet taken
+    Exception error;
+}
+
+protected ConnectionPool pool;
+protected SQLQuery query;
+protected boolean typed;
+protected Partition[] partitions;
+protected int window;		// Most partitions run at once
+protected int nextToRun;	// Guarded by this
+protected int current;		// Partition being read; guarded by this
+protected boolean closed;
+
+/**
+ * Runs a report's query in partitions and returns a cursor over all of
+ * its rows, or returns <code>null</code> if the query can not be
+ * partitioned. The query's <code>toPreparedStatementString</code> must
+ * have been called.
+ * <p>
+ * A query can be partitioned when the report's outermost group is over a
+ * column, the column has at least two distinct values, and the pool can
+ * lend at least two more connections (see {@link #availableConnections}).
+ *
+ * @param report the report
+ * @param query the report's query
+ * @param conn a connection for finding the group column's values
+ * @param pool the pool partition workers borrow their connections from
+ * @param numPartitions the most partitions to use; no more than
+ * {@link #MAX_PARTITIONS} are used
+ * @param typed if <code>true</code>, the cursor uses typed storage
+ * @return a data cursor or <code>null</code>
+ */
+public static DataCursor execute(Report report, SQLQuery query,
+				 Connection conn, ConnectionPool pool,
+				 int numPartitions, boolean typed)
+    throws SQLException
+{
+    if (query instanceof SubreportQuery || query.getAggregatePushDown() != null
+	|| !report.hasGroups())
+	return null;
+    int numThreads = availableConnections(report, pool);
+    if (numThreads < 2)
+	return null;
+    Group group = (Group)report.groups().next();
+    if (!(group.getSelectable() instanceof Column))
+	return null;
+
+    Column col = (Column)group.getSelectable();
+    String sel = col.getSelectString(query);
+    String order = group.getSortOrder() == Group.SORT_DESCENDING
+	? " desc" : " asc";
+    List values = distinctValues(conn, "select distinct " + sel
+				 + query.getFromWhereString() + " order by "
+				 + col.getSortString(query) + order,
+				 query.getPreparedStmtValues());
+    if (values.size() < 2)
+	return null;
+
+    List parts = split(query, sel, values,
+		       Math.min(numPartitions, MAX_PARTITIONS),
+		       group.getSortOrder() == Group.SORT_DESCENDING);
+    PartitionedQuery pq =
+	new PartitionedQuery(pool, query, typed,
+			     (Partition[])parts.toArray(new Partition[parts.size()]),
+			     numThreads);
+    return pq.new PartitionCursor();
+}
+
+/**
+ * Returns the number of connections partition workers may borrow from
+ * <var>pool</var>: those the pool can still lend without waiting, less one
+ * for each thread the report's subreports may use to run queries ahead of
+ * time (see {@link Subreport#setPrefetch}). Connections the report and
+ * other reports have borrowed are not available.
+ *
+ * @param report the report
+ * @param pool the pool partition workers borrow their connections from
+ * @return the number of connections; may be zero or less
+ */
+public static int availableConnections(Report report, ConnectionPool pool) {
+    int reserved = 0;
+    for (Iterator iter = report.subreports(); iter.hasNext(); ) {
+	int prefetch = ((Subreport)iter.next()).getPrefetch();
+	reserved += Math.min(prefetch, SubreportPrefetcher.MAX_THREADS);
+    }
+    return pool.getMaxSize() - pool.getActiveCount() - reserved;
+}
+
+/**
+ * Returns the values returned by a query that selects a single column.
+ */
+protected static List distinctValues(Connection conn, String sql,
+				     List params)
+    throws SQLException
+{
+    PreparedStatement stmt = StatementCache.prepare(conn, sql, false);
+    try {
+	setParameters(stmt, params, 1);
+	ResultSet rset = stmt.executeQuery();
+	ArrayList values = new ArrayList();
+	while (rset.next())
+	    values.add(rset.getObject(1));
+	rset.close();
+	return values;
+    }
+    finally {
+	StatementCache.release(stmt);
+    }
+}
+
+/**
+ * Splits the group column's values, in report order, into at most
+ * <var>n</var> partitions.
+ *
+ * @param query the report's query
+ * @param sel the group column's select string
+ * @param values the group column's distinct values, in report order
+ * @param n the most partitions
+ * @param descending <code>true</code> if values are in descending order
+ * @return a list of partitions
+ */
+protected static List split(SQLQuery query, String sel, List values, int n,
+			    boolean descending)
+{
+    int numNulls = values.contains(null) ? 1 : 0;
+    int numRanges = Math.max(1, n - numNulls);
+    int perRange = (values.size() - numNulls + numRanges - 1) / numRanges;
+
+    ArrayList parts = new ArrayList();
+    ArrayList range = new ArrayList();
+    for (Iterator iter = values.iterator(); iter.hasNext(); ) {
+	Object val = iter.next();
+	if (val == null) {
+	    addRange(parts, query, sel, range, descending);
+	    parts.add(partition(query, sel + " is null", Collections.EMPTY_LIST));
+	    continue;
+	}
+	range.add(val);
+	if (range.size() >= perRange)
+	    addRange(parts, query, sel, range, descending);
+    }
+    addRange(parts, query, sel, range, descending);
+    return parts;
+}
+
+/**
+ * Adds a partition for a range of values, if there are any, and empties
+ * the range.
+ */
+protected static void addRange(List parts, SQLQuery query, String sel,
+			       List range, boolean descending)
+{
+    if (range.isEmpty())
+	return;
+    Object first = range.get(0);
+    Object last = range.get(range.size() - 1);
+    if (range.size() == 1)
+	parts.add(partition(query, sel + " = ?", Collections.singletonList(first)));
+    else
+	parts.add(partition(query, sel + " >= ? and " + sel + " <= ?",
+			    descending ? Arrays.asList(new Object[] {last, first})
+			    : Arrays.asList(new Object[] {first, last})));
+    range.clear();
+}
+
+protected static Partition partition(SQLQuery query, String condition,
+				     List conditionValues)
+{
+    Partition p = new Partition();
+    p.sql = query.withCondition(condition);
+    p.params = new ArrayList(query.getPreparedStmtValues());
+    p.params.addAll(conditionValues);
+    return p;
+}
+
+/**
+ * Plugs values into a prepared statement the way {@link
+ * SQLQuery#setParameters} does, except that timestamps keep their time.
+ */
+protected static void setParameters(PreparedStatement stmt, List params,
+				    int i)
+    throws SQLException
+{
+    for (Iterator iter = params.iterator(); iter.hasNext(); ++i) {
+	Object val = iter.next();
+	if (val instanceof Timestamp)
+	    stmt.setTimestamp(i, (Timestamp)val);
+	else if (val instanceof java.util.Date)
+	    stmt.setDate(i,
+			 new java.sql.Date(((java.util.Date)val).getTime()));
+	else
+	    stmt.setObject(i, val);
+    }
+}
+
+/**
+ * Constructor. Starts one worker thread per partition, but no more than
+ * <var>numThreads</var>. The number of threads is also the number of
+ * partitions run at once.
+ */
+protected PartitionedQuery(ConnectionPool pool, SQLQuery query,
+			   boolean typed, Partition[] partitions,
+			   int numThreads)
+{
+    this.pool = pool;
+    this.query = query;
+    this.typed = typed;
+    this.partitions = partitions;
+    window = Math.max(1, Math.min(partitions.length, numThreads));
+    for (int i = 0; i < window; ++i) {
+	Thread t = new Thread(this, "DataVision query partition " + i);
+	t.setDaemon(true);
+	t.start();
+    }
+}
+
+/**
+ * Returns the number of partitions.
+ *
+ * @return the number of partitions
+ */
+public int getNumPartitions() { return partitions.length; }
+
+/**
+ * Returns the number of worker threads, which is also the most partitions
+ * run at once.
+ *
+ * @return the number of worker threads
+ */
+public int getNumThreads() { return window; }
+
+/**
+ * A worker thread's loop. Runs partitions in order until all have been
+ * started or the cursor is closed. A partition is only started once the
+ * partition the report is reading is less than <var>window</var>
+ * partitions before it.
+ */
+public void run() {
+    while (true) {
+	Partition p;
+	synchronized (this) {
+	    while (!closed && nextToRun < partitions.length
+		   && nextToRun >= current + window) {
+		try {
+		    wait();
+		}
+		catch (InterruptedException ie) {
+		    return;
+		}
+	    }
+	    if (closed || nextToRun >= partitions.length)
+		return;
+	    p = partitions[nextToRun++];
+	}
+	execute(p);
+    }
+}
+
+/**
+ * Runs a partition's query using a borrowed connection and hands its rows
+ * to the cursor as they are read.
+ */
+protected void execute(Partition p) {
+    Exception error = null;
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet rset = null;
+    int numColumns = query.getNumSelectables();
+    try {
+	conn = pool.borrow();
+	stmt = StatementCache.prepare(conn, p.sql, false);
+	synchronized (this) {
+	    if (closed)
+		return;
+	    p.stmt = stmt;
+	}
+
+	setParameters(stmt, p.params, 1);
+	rset = stmt.executeQuery();
+	boolean wanted = true;
+	while (wanted && rset.next()) {
+	    ArrayList row = new ArrayList(numColumns);
+	    for (int col = 1; col <= numColumns; ++col)
+		row.add(rset.getObject(col));
+	    wanted = add(p, row);
+	}
+    }
+    catch (SQLException sqle) {
+	error = sqle;
+    }
+    catch (RuntimeException re) {
+	error = re;
+    }
+    finally {
+	if (rset != null)
+	    try { rset.close(); } catch (SQLException e) {}
+	if (stmt != null)
+	    try { StatementCache.release(stmt); } catch (SQLException e) {}
+	if (conn != null) pool.giveBack(conn);
+	synchronized (this) {
+	    p.stmt = null;
+	    p.error = error;
+	    p.done = true;
+	    notifyAll();
+	}
+    }
+}
+
+/**
+ * Adds a row to a partition's rows, first waiting until the cursor has
+ * taken enough of them. Returns <code>false</code> if the cursor has been
+ * closed.
+ */
+protected synchronized boolean add(Partition p, List row) {
+    while (!closed && p.rows.size() >= MAX_BUFFERED_ROWS) {
+	try {
+	    wait();
+	}
+	catch (InterruptedException ie) {
+	    return false;
+	}
+    }
+    if (closed)
+	return false;
+    p.rows.add(row);
+    if (p.rows.size() == 1)	// The cursor may be waiting for it
+	notifyAll();
+    return true;
+}
+
+/**
+ * Waits for a partition to read more rows and takes all of the rows it
+ * has read. Returns <code>null</code> if the partition has finished and
+ * all of its rows have been taken, or if the cursor has been closed.
+ *
+ * @throws UserCancellationException if interrupted while waiting
+ */
+protected synchronized LinkedList takeRows(Partition p) {
+    while (p.rows.isEmpty() && !p.done && !closed) {
+	try {
+	    wait();
+	}
+	catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	    throw new UserCancellationException();
+	}
+    }
+    if (closed || p.rows.isEmpty())
+	return null;
+    LinkedList taken = p.rows;
+    p.rows = new LinkedList();
+    notifyAll();		// The partition's worker may be waiting for room
+    return taken;
+}
+
+/**
+ * Records that the cursor has moved on to partition <var>i</var>, so
+ * workers may start the partitions that follow it.
+ */
+protected synchronized void startReading(int i) {
+    current = i;
+    notifyAll();
+}
+
+/**
+ * Stops starting partitions, tries to cancel running queries, and lets go
+ * of rows that have been read.
+ */
+protected void close() {
+    ArrayList running = new ArrayList();
+    synchronized (this) {
+	closed = true;
+	for (int i = 0; i < partitions.length; ++i) {
+	    if (partitions[i].stmt != null)
+		running.add(partitions[i].stmt);
+	    partitions[i].rows.clear();
+	}
+	notifyAll();
+    }
+    for (Iterator iter = running.iterator(); iter.hasNext(); ) {
+	try {
+	    ((PreparedStatement)iter.next()).cancel();
+	}
+	catch (SQLException sqle) {} // Not supported; let it finish
+    }
+}
+
+/**
+ * Returns the rows of each partition in turn.
+ */
+public class PartitionCursor extends DataCursor {
+
+protected int index = -1;
+protected LinkedList rows;	// Taken from the current partition
+
+PartitionCursor() {
+    if (typed)
+	useTypedStorage(RowBuffer.kindsFor(query));
+}
+
+/** Returns the query this cursor returns the rows of. */
+public PartitionedQuery getPartitionedQuery() {
+    return PartitionedQuery.this;
+}
+
+/**
+ * Takes the next rows read by the current partition, moving on to the
+ * following partitions when it has none left. Returns <code>false</code>
+ * when there are no more rows.
+ * <p>
+ * If a partition's query failed, closes the other partitions and throws
+ * its error. An <code>SQLException</code> is wrapped in a
+ * <code>RuntimeException</code>.
+ */
+protected boolean takeRows() {
+    while (index < partitions.length) {
+	if (index >= 0) {
+	    Partition p = partitions[index];
+	    rows = PartitionedQuery.this.takeRows(p);
+	    if (rows != null)
+		return true;
+	    if (p.error != null) {
+		close();
+		if (p.error instanceof RuntimeException)
+		    throw (RuntimeException)p.error;
+		throw new RuntimeException(p.error.toString(), p.error);
+	    }
+	}
+	if (++index < partitions.length)
+	    startReading(index);
+    }
+    return false;
+}
+
+public List readRowData() {
+    if ((rows == null || rows.isEmpty()) && !takeRows())
+	return null;
+    return (List)rows.removeFirst();
+}
+
+public void close() {
+    rows = null;
+    index = partitions.length;
+    PartitionedQuery.this.close();
+}
+
+}
+
+}
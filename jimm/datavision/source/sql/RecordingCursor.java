@@ -0,0 +1,76 @@
+package jimm.datavision.source.sql;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.RowBuffer;
+import jimm.datavision.source.ValueCodec;
+import java.util.List;
+import java.util.ArrayList;
+
+/**
+ * A data cursor that returns the rows of another cursor and remembers them.
+ * When every row has been read, the rows are put into a {@link ResultCache}.
+ * If the rows would take more than a given amount of memory or contain
+ * values that can't be cached (see {@link CachedResult#canCache}), the
+ * cursor stops remembering them and nothing is cached.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class RecordingCursor extends DataCursor {
+
+protected ResultSetRow source;
+protected ResultCache cache;
+protected String key;
+protected String[] tableNames;
+protected int numColumns;
+protected long maxBytes;
+protected long recordedBytes;
+protected ArrayList recorded;
+
+/**
+ * Constructor.
+ *
+ * @param source an untyped cursor returning the query's rows
+ * @param cache the cache that will hold the rows
+ * @param key the query's cache key
+ * @param tableNames the names of the tables used by the query
+ * @param query the query
+ * @param typed if <code>true</code>, use typed storage
+ */
+RecordingCursor(ResultSetRow source, ResultCache cache, String key,
+		String[] tableNames, SQLQuery query, boolean typed)
+{
+    this.source = source;
+    this.cache = cache;
+    this.key = key;
+    this.tableNames = tableNames;
+    numColumns = query.getNumSelectables();
+    maxBytes = cache.getMaxResultBytes();
+    recorded = new ArrayList();
+    if (typed)
+	useTypedStorage(RowBuffer.kindsFor(query));
+}
+
+public List readRowData() {
+    List data = source.readRowData();
+    if (recorded == null)	// Too big or already cached
+	return data;
+
+    if (data == null) {
+	cache.put(new CachedResult(key, tableNames, numColumns, recorded));
+	recorded = null;
+	return null;
+    }
+
+    recordedBytes += ValueCodec.estimateSize(data);
+    if (recordedBytes > maxBytes || !CachedResult.canCache(data))
+	recorded = null;
+    else
+	recorded.add(data);
+    return data;
+}
+
+public void close() {
+    recorded = null;		// Rows not all read; don't cache them
+    source.close();
+}
+
+}
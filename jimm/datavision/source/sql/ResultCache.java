@@ -0,0 +1,427 @@
+package jimm.datavision.source.sql;
+import jimm.datavision.ErrorHandler;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Holds the rows returned by queries so reports that are run again with the
+ * same query and parameters don't have to go back to the database. Results
+ * are keyed by the query's prepared statement string and parameter values
+ * (see {@link Database#resultCacheKey}).
+ * <p>
+ * There are two tiers. The memory tier holds the most recently used
+ * results, up to a budget of bytes. Every result is also written to the
+ * disk tier, if there is one, so results that no longer fit in memory (or
+ * were cached by an earlier run of DataVision) can be read back without
+ * running the query. Disk results are written using the column-oriented
+ * format of {@link CachedResult}.
+ * <p>
+ * Results expire after a time to live given by each lookup. They can also
+ * be removed explicitly, either all at once or for every query that used a
+ * particular table.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class ResultCache {
+
+public static final long DEFAULT_MEMORY_BUDGET = 32L * 1024 * 1024;
+public static final long DEFAULT_DISK_BUDGET = 256L * 1024 * 1024;
+protected static final String FILE_PREFIX = "dvrc";
+protected static final String FILE_SUFFIX = ".dvrc";
+
+protected static ResultCache defaultCache;
+
+/** A result on disk. */
+static class DiskEntry {
+    File file;
+    String key;
+    String[] tableNames;
+    long created;
+    long length;
+}
+
+protected long memoryBudget;
+protected long memoryUsed;
+protected long maxResultBytes;
+protected LinkedHashMap memory;	// Keys to results, least recently used first
+protected File diskDirectory;
+protected long diskBudget;
+protected long diskUsed;
+protected HashMap disk;		// Keys to disk entries; null until loaded
+protected int hits;
+protected int misses;
+
+/**
+ * Returns the directory that holds the cache files of the user running
+ * DataVision: <code>.datavision</code> inside the directory named by the
+ * <code>user.home</code> system property. Cache files are read back without
+ * further checks, so they must not be kept where other users can write
+ * them, like the system's temporary directory.
+ *
+ * @return a directory
+ */
+public static File getUserCacheDirectory() {
+    return new File(System.getProperty("user.home"), ".datavision");
+}
+
+/**
+ * Returns the cache shared by all reports. Its disk tier is in the
+ * directory <code>result_cache</code> inside the user's cache directory
+ * (see {@link #getUserCacheDirectory}).
+ *
+ * @return the shared result cache
+ */
+public static synchronized ResultCache getDefault() {
+    if (defaultCache == null)
+	defaultCache =
+	    new ResultCache(DEFAULT_MEMORY_BUDGET,
+			    new File(getUserCacheDirectory(), "result_cache"));
+    return defaultCache;
+}
+
+/**
+ * Constructor.
+ *
+ * @param memoryBudget the number of bytes of memory that results may use
+ * @param diskDirectory the directory that holds disk results; if
+ * <code>null</code>, there is no disk tier
+ */
+public ResultCache(long memoryBudget, File diskDirectory) {
+    this.memoryBudget = memoryBudget;
+    maxResultBytes = memoryBudget / 4;
+    this.diskDirectory = diskDirectory;
+    diskBudget = DEFAULT_DISK_BUDGET;
+    memory = new LinkedHashMap(16, 0.75f, true);
+}
+
+public long getMemoryBudget() { return memoryBudget; }
+
+/**
+ * Sets the memory budget, removing least recently used results from memory
+ * if necessary. Also sets the maximum size of a single result to a quarter
+ * of the budget.
+ *
+ * @param bytes the number of bytes of memory that results may use
+ */
+public synchronized void setMemoryBudget(long bytes) {
+    memoryBudget = bytes;
+    maxResultBytes = bytes / 4;
+    evictMemory();
+}
+
+/**
+ * Returns the estimated size of the largest result that will be cached.
+ * Queries returning more rows than that are not cached.
+ *
+ * @return a size in bytes
+ */
+public long getMaxResultBytes() { return maxResultBytes; }
+
+public void setMaxResultBytes(long bytes) { maxResultBytes = bytes; }
+
+public long getDiskBudget() { return diskBudget; }
+
+/**
+ * Sets the number of bytes the disk tier may use, removing the oldest disk
+ * results if necessary.
+ *
+ * @param bytes the number of bytes of disk that results may use
+ */
+public synchronized void setDiskBudget(long bytes) {
+    diskBudget = bytes;
+    if (disk != null)
+	evictDisk();
+}
+
+public File getDiskDirectory() { return diskDirectory; }
+
+/** Returns the number of lookups that found a result. */
+public synchronized int getHits() { return hits; }
+
+/** Returns the number of lookups that did not find a result. */
+public synchronized int getMisses() { return misses; }
+
+/** Returns the number of results in memory. */
+public synchronized int getMemoryCount() { return memory.size(); }
+
+/** Returns the estimated number of bytes of memory used by results. */
+public synchronized long getMemoryUsed() { return memoryUsed; }
+
+/** Returns the number of results on disk. */
+public synchronized int getDiskCount() {
+    return diskDirectory == null ? 0 : diskIndex().size();
+}
+
+/**
+ * Returns the result for a key, or <code>null</code> if there is none or it
+ * is older than <var>ttlMillis</var>. Results found on disk are moved into
+ * memory.
+ *
+ * @param key a cache key
+ * @param ttlMillis the maximum age of the result in milliseconds
+ * @return a result or <code>null</code>
+ */
+public synchronized CachedResult get(String key, long ttlMillis) {
+    long oldest = System.currentTimeMillis() - ttlMillis;
+
+    CachedResult result = (CachedResult)memory.get(key);
+    if (result != null && result.getCreated() < oldest) {
+	remove(key);
+	result = null;
+    }
+
+    if (result == null && diskDirectory != null) {
+	DiskEntry entry = (DiskEntry)diskIndex().get(key);
+	if (entry != null) {
+	    if (entry.created >= oldest)
+		result = readResult(entry);
+	    if (result == null)	// Expired or unreadable
+		removeFromDisk(key);
+	    else
+		addToMemory(result);
+	}
+    }
+
+    if (result == null)
+	++misses;
+    else
+	++hits;
+    return result;
+}
+
+/**
+ * Adds a result to the cache, replacing any result with the same key.
+ *
+ * @param result a result
+ */
+public synchronized void put(CachedResult result) {
+    remove(result.getKey());
+    if (result.getEstimatedBytes() <= memoryBudget)
+	addToMemory(result);
+    if (diskDirectory != null)
+	writeResult(result);
+}
+
+/**
+ * Removes the result for a key.
+ *
+ * @param key a cache key
+ */
+public synchronized void remove(String key) {
+    CachedResult result = (CachedResult)memory.remove(key);
+    if (result != null)
+	memoryUsed -= result.getEstimatedBytes();
+    if (diskDirectory != null)
+	removeFromDisk(key);
+}
+
+/**
+ * Removes every result whose query used the named table. Table names are
+ * compared without regard to case.
+ *
+ * @param tableName a table name
+ */
+public synchronized void invalidateTable(String tableName) {
+    ArrayList keys = new ArrayList();
+    for (Iterator iter = memory.values().iterator(); iter.hasNext(); ) {
+	CachedResult result = (CachedResult)iter.next();
+	if (result.usesTable(tableName))
+	    keys.add(result.getKey());
+    }
+    if (diskDirectory != null) {
+	for (Iterator iter = diskIndex().values().iterator(); iter.hasNext(); ) {
+	    DiskEntry entry = (DiskEntry)iter.next();
+	    for (int i = 0; i < entry.tableNames.length; ++i)
+		if (entry.tableNames[i].equalsIgnoreCase(tableName)) {
+		    keys.add(entry.key);
+		    break;
+		}
+	}
+    }
+    for (Iterator iter = keys.iterator(); iter.hasNext(); )
+	remove((String)iter.next());
+}
+
+/**
+ * Removes every result from memory and disk.
+ */
+public synchronized void invalidateAll() {
+    memory.clear();
+    memoryUsed = 0;
+    if (diskDirectory != null) {
+	for (Iterator iter = diskIndex().values().iterator(); iter.hasNext(); )
+	    ((DiskEntry)iter.next()).file.delete();
+	disk.clear();
+	diskUsed = 0;
+    }
+}
+
+/**
+ * Removes every result from memory but leaves the disk tier alone. Later
+ * lookups will read results from disk.
+ */
+public synchronized void clearMemory() {
+    memory.clear();
+    memoryUsed = 0;
+}
+
+protected void addToMemory(CachedResult result) {
+    memory.put(result.getKey(), result);
+    memoryUsed += result.getEstimatedBytes();
+    evictMemory();
+}
+
+/**
+ * Removes least recently used results from memory until we are within our
+ * budget. They remain on disk.
+ */
+protected void evictMemory() {
+    Iterator iter = memory.values().iterator();
+    while (memoryUsed > memoryBudget && iter.hasNext()) {
+	CachedResult result = (CachedResult)iter.next();
+	memoryUsed -= result.getEstimatedBytes();
+	iter.remove();
+    }
+}
+
+// ================================================================
+// Disk tier
+
+/**
+ * Returns the map of keys to disk entries, reading the header of every
+ * result file the first time it is called. Files that can't be read are
+ * deleted.
+ */
+protected HashMap diskIndex() {
+    if (disk != null)
+	return disk;
+
+    disk = new HashMap();
+    diskUsed = 0;
+    File[] files = diskDirectory.listFiles();
+    if (files == null)
+	return disk;
+
+    for (int i = 0; i < files.length; ++i) {
+	File f = files[i];
+	if (!f.getName().endsWith(FILE_SUFFIX))
+	    continue;
+
+	DiskEntry entry = null;
+	DataInputStream in = null;
+	try {
+	    in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+	    CachedResult header = CachedResult.readHeader(in);
+	    if (header != null) {
+		entry = new DiskEntry();
+		entry.file = f;
+		entry.key = header.getKey();
+		entry.tableNames = header.getTableNames();
+		entry.created = header.getCreated();
+		entry.length = f.length();
+	    }
+	}
+	catch (IOException ioe) {
+	    entry = null;
+	}
+	finally {
+	    if (in != null) try { in.close(); } catch (IOException ioe2) {}
+	}
+
+	DiskEntry old = entry == null ? null : (DiskEntry)disk.get(entry.key);
+	if (old != null && old.created > entry.created) {
+	    f.delete();		// Newer copy already indexed
+	    continue;
+	}
+	if (old != null) {
+	    old.file.delete();
+	    diskUsed -= old.length;
+	}
+	if (entry == null)
+	    f.delete();
+	else {
+	    disk.put(entry.key, entry);
+	    diskUsed += entry.length;
+	}
+    }
+    return disk;
+}
+
+/**
+ * Reads a result from disk. Returns <code>null</code> if the file can't be
+ * read or holds a different key.
+ */
+protected CachedResult readResult(DiskEntry entry) {
+    DataInputStream in = null;
+    try {
+	in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry.file)));
+	CachedResult result = CachedResult.read(in);
+	return (result != null && result.getKey().equals(entry.key))
+	    ? result : null;
+    }
+    catch (IOException ioe) {
+	return null;
+    }
+    finally {
+	if (in != null) try { in.close(); } catch (IOException ioe2) {}
+    }
+}
+
+/**
+ * Writes a result to a new file in the disk directory. A failure to write
+ * is reported but otherwise ignored; the result is simply not on disk.
+ */
+protected void writeResult(CachedResult result) {
+    HashMap index = diskIndex();
+    File f = null;
+    DataOutputStream out = null;
+    try {
+	if (!diskDirectory.isDirectory())
+	    diskDirectory.mkdirs();
+	f = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, diskDirectory);
+	out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+	result.write(out);
+	out.close();
+	out = null;
+
+	DiskEntry entry = new DiskEntry();
+	entry.file = f;
+	entry.key = result.getKey();
+	entry.tableNames = result.getTableNames();
+	entry.created = result.getCreated();
+	entry.length = f.length();
+	index.put(entry.key, entry);
+	diskUsed += entry.length;
+	evictDisk();
+    }
+    catch (IOException ioe) {
+	if (out != null) try { out.close(); } catch (IOException ioe2) {}
+	if (f != null) f.delete();
+	ErrorHandler.error(ioe);
+    }
+}
+
+protected void removeFromDisk(String key) {
+    DiskEntry entry = (DiskEntry)diskIndex().remove(key);
+    if (entry != null) {
+	entry.file.delete();
+	diskUsed -= entry.length;
+    }
+}
+
+/**
+ * Removes the oldest disk results until we are within our disk budget.
+ */
+protected void evictDisk() {
+    while (diskUsed > diskBudget && !disk.isEmpty()) {
+	DiskEntry oldest = null;
+	for (Iterator iter = disk.values().iterator(); iter.hasNext(); ) {
+	    DiskEntry entry = (DiskEntry)iter.next();
+	    if (oldest == null || entry.created < oldest.created)
+		oldest = entry;
+	}
+	removeFromDisk(oldest.key);
+    }
+}
+
+}
@@ -1,6 +1,7 @@
 package jimm.datavision.source.sql;
 import jimm.datavision.ErrorHandler;
 import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.RowBuffer;
 import java.util.List;
 import java.util.ArrayList;
 import java.sql.*;
@@ -16,21 +17,87 @@ protected PreparedStatement stmt;
 protected ResultSet rset;
 protected int numSelectables;
 protected boolean noMoreData;
+protected Connection autoCommitConn; // Restore auto-commit when closed
 
 ResultSetRow(Connection conn, SQLQuery query) throws SQLException {
+    this(conn, query, false);
+}
+
+/**
+ * Constructor. If <var>typed</var> is <code>true</code>, rows are read
+ * into reusable typed buffers using the type-specific JDBC getters that
+ * match each column's type.
+ *
+ * @param conn a database connection
+ * @param query the query to run
+ * @param typed if <code>true</code>, use typed storage
+ */
+ResultSetRow(Connection conn, SQLQuery query, boolean typed)
+    throws SQLException
+{
+    this(conn, query, typed, false, 0);
+}
+
+/**
+ * Constructor. If <var>streaming</var> is <code>true</code>, the statement
+ * is forward-only and read-only and we ask the driver to fetch rows from
+ * the server a few at a time instead of reading the entire result set into
+ * memory before returning the first row. See {@link #prepareStreaming}.
+ *
+ * @param conn a database connection
+ * @param query the query to run
+ * @param typed if <code>true</code>, use typed storage
+ * @param streaming if <code>true</code>, stream rows from the server
+ * @param fetchSize the number of rows to fetch at a time when streaming;
+ * 0 means use the driver's default
+ */
+ResultSetRow(Connection conn, SQLQuery query, boolean typed,
+	     boolean streaming, int fetchSize)
+    throws SQLException
+{
+    this(conn, query, query.toPreparedStatementString(), typed, streaming,
+	 fetchSize);
+}
+
+/**
+ * Constructor used when the caller has already called
+ * <code>query.toPreparedStatementString()</code>. Calling it again would
+ * evaluate the query's parameters and formulas a second time.
+ *
+ * @param conn a database connection
+ * @param query the query to run
+ * @param preparedStmtString the query's prepared statement string
+ * @param typed if <code>true</code>, use typed storage
+ * @param streaming if <code>true</code>, stream rows from the server
+ * @param fetchSize the number of rows to fetch at a time when streaming;
+ * 0 means use the driver's default
+ */
+ResultSetRow(Connection conn, SQLQuery query, String preparedStmtString,
+	     boolean typed, boolean streaming, int fetchSize)
+    throws SQLException
+{
     // Suggested by Konstantin. Though it works for his Oracle driver,
     // it doesn't work for my PostgreSQL driver. These args are also
     // legal for prepared statements.
     //  	stmt = conn.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE,
     //  				    ResultSet.CONCUR_READ_ONLY);
 
-    String preparedStmtString = query.toPreparedStatementString();
     if (preparedStmtString != null && preparedStmtString.length() > 0) {
-	stmt = conn.prepareStatement(preparedStmtString);
-	query.setParameters(stmt);
-	rset = stmt.executeQuery();
+	stmt = StatementCache.prepare(conn, preparedStmtString, streaming);
+	if (streaming)
+	    prepareStreaming(conn, fetchSize);
+	try {
+	    query.setParameters(stmt);
+	    rset = stmt.executeQuery();
+	}
+	catch (SQLException sqle) {
+	    close();		// Restores auto-commit if we turned it off
+	    throw sqle;
+	}
 	numSelectables = query.getNumSelectables();
 	noMoreData = false;
+	if (typed)
+	    useTypedStorage(RowBuffer.kindsFor(query));
     }
     else {
 	numSelectables = 0;
@@ -38,6 +105,43 @@ ResultSetRow(Connection conn, SQLQuery query) throws SQLException {
     }
 }
 
+/**
+ * Applies the driver-specific settings needed to make the driver stream
+ * rows instead of reading the whole result set up front.
+ * <p>
+ * MySQL's driver only streams when the fetch size is
+ * <code>Integer.MIN_VALUE</code>; it then reads one row at a time no matter
+ * what fetch size was asked for. PostgreSQL's driver ignores the fetch size
+ * unless it is inside a transaction, so we turn off auto-commit until this
+ * cursor is closed. All other drivers get the fetch size as a hint.
+ *
+ * @param conn the database connection
+ * @param fetchSize the number of rows to fetch at a time; 0 means use the
+ * driver's default
+ */
+protected void prepareStreaming(Connection conn, int fetchSize)
+    throws SQLException
+{
+    String product = conn.getMetaData().getDatabaseProductName();
+    product = product == null ? "" : product.toLowerCase();
+
+    if (product.indexOf("mysql") >= 0)
+	fetchSize = Integer.MIN_VALUE;
+    else if (product.indexOf("postgres") >= 0 && conn.getAutoCommit()) {
+	conn.setAutoCommit(false);
+	autoCommitConn = conn;
+    }
+
+    if (fetchSize != 0) {
+	try {
+	    stmt.setFetchSize(fetchSize);
+	}
+	catch (SQLException sqle) {
+	    // The fetch size is only a hint. Some drivers don't support it.
+	}
+    }
+}
+
 public List readRowData() {
     // Avoid calling rset.next() if it has already returned false. Doing so
     // appears harmless in most cases but seems to be causing a problem
@@ -67,10 +171,52 @@ public List readRowData() {
     return list;
 }
 
+protected boolean readRowInto(RowBuffer row) {
+    if (noMoreData)
+	return false;
+
+    try {
+	if (!rset.next()) {
+	    noMoreData = true;
+	    return false;
+	}
+    }
+    catch (SQLException sqle) {
+	ErrorHandler.error(sqle);
+	return false;
+    }
+
+    try {
+	for (int i = 0; i < numSelectables; ++i) {
+	    switch (row.kindAt(i)) {
+	    case RowBuffer.KIND_INT:
+	    case RowBuffer.KIND_LONG:
+		long l = rset.getLong(i + 1);
+		if (rset.wasNull()) row.setNull(i);
+		else row.setLong(i, l);
+		break;
+	    case RowBuffer.KIND_DOUBLE:
+		double d = rset.getDouble(i + 1);
+		if (rset.wasNull()) row.setNull(i);
+		else row.setDouble(i, d);
+		break;
+	    default:
+		row.setObject(i, rset.getObject(i + 1));
+		break;
+	    }
+	}
+    }
+    catch (SQLException sqle) {
+	ErrorHandler.error(sqle);
+    }
+    return true;
+}
+
 public void close() {
     try {
 	if (rset != null) rset.close();
-	if (stmt != null) stmt.close();
+	if (stmt != null) StatementCache.release(stmt);
+	if (autoCommitConn != null) autoCommitConn.setAutoCommit(true);
     }
     catch (SQLException sqle) {
 	ErrorHandler.error(sqle);
@@ -78,6 +224,7 @@ public void close() {
     finally {
 	rset = null;
 	stmt = null;
+	autoCommitConn = null;
     }
 }
 
@@ -17,6 +17,11 @@ public class SQLQuery extends Query {
 
 protected Set tables;
 protected ArrayList preparedStmtValues;
+protected AggregatePushDown aggregatePushDown;
+protected String preparedString; // Last prepared statement string
+protected int fromStart;	// Offsets into preparedString
+protected int whereStart;
+protected int whereEnd;
 
 /**
  * Constructor.
@@ -420,7 +425,76 @@ public String toString() {
  */
 public String toPreparedStatementString() {
     preparedStmtValues = new ArrayList();
-    return queryAsString(false);
+    preparedString = queryAsString(false);
+    return preparedString;
+}
+
+/**
+ * Returns the "from" and "where" clauses of the string returned by the
+ * last call to <code>toPreparedStatementString</code>. Its parameters are
+ * the values returned by {@link #getPreparedStmtValues}.
+ *
+ * @return the "from" clause, followed by the "where" clause if there is one
+ */
+public String getFromWhereString() {
+    return preparedString.substring(fromStart, whereEnd);
+}
+
+/**
+ * Returns the string returned by the last call to
+ * <code>toPreparedStatementString</code> with another condition added to
+ * its "where" clause. The condition's parameters follow those returned by
+ * {@link #getPreparedStmtValues}.
+ *
+ * @param condition a SQL condition
+ * @return a SQL query string
+ */
+public String withCondition(String condition) {
+    StringBuffer buf = new StringBuffer(preparedString.substring(0, whereEnd));
+    buf.append(whereEnd > whereStart ? " and (" : " where (");
+    buf.append(condition);
+    buf.append(')');
+    buf.append(preparedString.substring(whereEnd));
+    return buf.toString();
+}
+
+/**
+ * Returns the parameter and formula values gathered by the last call to
+ * <code>toPreparedStatementString</code>, in the order in which they will
+ * be plugged into the prepared statement.
+ *
+ * @return a list of values
+ * @see #toPreparedStatementString
+ */
+public List getPreparedStmtValues() { return preparedStmtValues; }
+
+/**
+ * Returns the plan used to rewrite this query into one that returns one
+ * row per group, or <code>null</code> if the query is not rewritten.
+ *
+ * @return a plan or <code>null</code>
+ */
+public AggregatePushDown getAggregatePushDown() { return aggregatePushDown; }
+
+/**
+ * Sets the plan used to rewrite this query into one that returns one row
+ * per group. Set by {@link Database} while a report is being run.
+ *
+ * @param plan a plan; <code>null</code> stops rewriting the query
+ */
+public void setAggregatePushDown(AggregatePushDown plan) {
+    aggregatePushDown = plan;
+}
+
+/**
+ * Returns the number of columns in each row returned by this query,
+ * including any partial aggregates added by the aggregate push-down plan.
+ *
+ * @return the number of columns
+ */
+public int getNumSelectables() {
+    return super.getNumSelectables() + (aggregatePushDown == null ? 0
+					: aggregatePushDown.getNumExtraColumns());
 }
 
 /**
@@ -442,8 +516,17 @@ protected String queryAsString(boolean forDisplay) {
 
     StringBuffer str = new StringBuffer();
     buildSelect(str);
+    int from = str.length();
     buildFrom(str);
+    int where = str.length();
     buildWhereClause(str, forDisplay);
+    if (!forDisplay) {		// Remember where to add partition conditions
+	fromStart = from;
+	whereStart = where;
+	whereEnd = str.length();
+    }
+    if (aggregatePushDown != null)
+	buildGroupBy(str);
     buildOrderBy(str);
     return str.toString();
 }
@@ -454,10 +537,14 @@ protected void buildSelect(StringBuffer str) {
     // Build list of database columns and user columns
     ArrayList selectCols = new ArrayList();
     for (Iterator iter = selectables.iterator(); iter.hasNext(); ) {
-	String sel = ((Selectable)iter.next()).getSelectString(this);
+	Selectable s = (Selectable)iter.next();
+	String sel = aggregatePushDown == null ? s.getSelectString(this)
+	    : aggregatePushDown.getSelectString(s);
 	if (sel != null)
 	    selectCols.add(sel);
     }
+    if (aggregatePushDown != null)
+	selectCols.addAll(aggregatePushDown.getExtraSelectStrings());
     str.append(StringUtils.join(selectCols, ", "));
 }
 
@@ -515,6 +602,15 @@ protected void buildUserWhereClause(StringBuffer str, boolean forDisplay) {
     str.append(")");
 }
 
+protected void buildGroupBy(StringBuffer str) {
+    str.append(" group by ");
+    ArrayList groupCols = new ArrayList();
+    for (Iterator iter = report.groups(); iter.hasNext(); )
+	groupCols.add(((Group)iter.next()).getSelectable()
+		      .getSelectString(this));
+    str.append(StringUtils.join(groupCols, ", "));
+}
+
 protected void buildOrderBy(StringBuffer str) {
     if (report.hasGroups() || !sortSelectables.isEmpty()) {
 	str.append(" order by ");
@@ -528,7 +624,10 @@ protected void buildOrderBy(StringBuffer str) {
 			    ? "desc" : "asc");
 	    orders.add(buf.toString());
 	}
-	for (Iterator iter = sortedSelectables(); iter.hasNext(); ) {
+	// Sorts only order detail rows, which a grouped query doesn't return
+	Iterator sorts = aggregatePushDown == null ? sortedSelectables()
+	    : Collections.EMPTY_LIST.iterator();
+	for (Iterator iter = sorts; iter.hasNext(); ) {
 	    Selectable s = (Selectable)iter.next();
 	    StringBuffer buf = new StringBuffer(s.getSortString(this));
 	    buf.append(' ');
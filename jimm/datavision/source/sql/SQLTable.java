@@ -1,8 +1,10 @@
 package jimm.datavision.source.sql;
+import jimm.datavision.ErrorHandler;
 import jimm.datavision.source.Table;
 import jimm.datavision.source.Column;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.TreeMap;
 import java.sql.*;
 
 /**
@@ -14,6 +16,7 @@ public class SQLTable extends Table {
 
 protected DatabaseMetaData dbmd;
     protected HashMap colCacheMap;
+protected boolean fromCache;
 
 /**
  * Constructor.
@@ -27,10 +30,58 @@ public SQLTable(Database database, String name, DatabaseMetaData dbmd) {
     this.dbmd = dbmd;
 }
 
+/**
+ * Sets this table's columns to those read from a {@link MetadataCache}
+ * instead of loading them from the database. If a column can't be found
+ * later, the columns are loaded from the database after all (see
+ * {@link #revalidate}).
+ *
+ * @param names the column names
+ * @param types the column types
+ */
+public void setCachedColumns(String[] names, int[] types) {
+    columns.clear();
+    colCacheMap = new HashMap();
+    try {
+	for (int i = 0; i < names.length; ++i)
+	    addColumn(new SQLColumn(this, names[i], types[i]));
+    }
+    catch (SQLException sqle) {	// Never thrown by SQLColumn
+	ErrorHandler.error(sqle);
+    }
+    dbmd = null;
+    fromCache = true;
+}
+
+/**
+ * Returns <code>true</code> if this table's columns came from a metadata
+ * cache and have not been checked against the database.
+ */
+public boolean isFromCache() { return fromCache; }
+
+/**
+ * Returns <code>true</code> if this table's columns have been loaded,
+ * either from the database or from a metadata cache.
+ */
+public boolean columnsLoaded() { return dbmd == null; }
+
+/**
+ * Returns the column with the given id. If it isn't found and this table's
+ * columns came from a metadata cache, they may be out of date so we reload
+ * them from the database and look again.
+ */
 public Column findColumn(Object colIdObj) {
     if (dbmd != null) loadColumns();
 
-    String colId = colIdObj.toString();
+    Column col = findLoadedColumn(colIdObj.toString());
+    if (col == null && fromCache) {
+	revalidate();
+	col = findLoadedColumn(colIdObj.toString());
+    }
+    return col;
+}
+
+protected Column findLoadedColumn(String colId) {
 
     // First try a simple exact match using colCacheMap. This will often
     // fail the first time, but after we have found a column using the quite
@@ -139,6 +190,34 @@ protected void loadColumns() {
 	loadColumnsUsing(null, tableName);
 
     dbmd = null;
+    ((Database)dataSource).metadataChanged();
+}
+
+/**
+ * Reloads this table's columns from the database. Columns that are still
+ * there with the same type are kept, so fields that refer to them don't
+ * have to find them again.
+ */
+protected void revalidate() {
+    fromCache = false;
+    try {
+	dbmd = ((Database)dataSource).getConnection().getMetaData();
+    }
+    catch (SQLException sqle) {
+	ErrorHandler.error(sqle);
+	return;
+    }
+
+    TreeMap oldColumns = columns;
+    columns = new TreeMap();
+    loadColumns();
+    for (Iterator iter = columns.keySet().iterator(); iter.hasNext(); ) {
+	String key = (String)iter.next();
+	Column old = (Column)oldColumns.get(key);
+	if (old != null
+	    && old.getType() == ((Column)columns.get(key)).getType())
+	    columns.put(key, old);
+    }
 }
 
 protected void loadColumnsUsing(String schemaName, String tableName) {
@@ -168,6 +247,7 @@ protected void loadColumnsUsing(String schemaName, String tableName) {
 		rset.beforeFirst();	// Undo side-effect of rset.next in if test
 	    }
 	    catch (SQLException sqle) {	// Regenerate the result set instead
+		rset.close();
 		rset = dbmd.getColumns(null, schemaName, tableName, "%");
 	    }
 	}
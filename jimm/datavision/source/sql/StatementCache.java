@@ -0,0 +1,315 @@
+package jimm.datavision.source.sql;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Keeps prepared statements open so that running the same query again on
+ * the same connection skips preparing it. Servers and batch jobs that run
+ * a report many times with different parameter values, and subreports that
+ * run their query once for every parent row, then only prepare each query
+ * once per connection.
+ * <p>
+ * Each connection has its own cache, holding up to <var>maxSize</var>
+ * statements keyed by their SQL. A statement is only handed to one user at
+ * a time; if the cached statement for some SQL is in use, a new one is
+ * prepared and closed when it is released. When the cache is full, the
+ * least recently used statement that is not in use is closed.
+ * <p>
+ * Caching is off unless {@link #setEnabled} is called. Connections given
+ * back to a {@link ConnectionPool} keep their idle statements for the next
+ * borrower; the statements are closed when the pool closes the connection.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class StatementCache {
+
+public static final int DEFAULT_MAX_SIZE = 32;
+
+protected static boolean enabled;
+protected static int defaultMaxSize = DEFAULT_MAX_SIZE;
+protected static HashMap caches = new HashMap(); // Connections to caches
+
+/** A cached statement. */
+static class Entry {
+    PreparedStatement stmt;
+    boolean inUse;
+    Entry(PreparedStatement stmt) { this.stmt = stmt; }
+}
+
+protected Connection conn;
+protected int maxSize;
+protected LinkedHashMap entries; // Keys to entries, least recently used first
+protected HashMap inUse;	// Statements in use to their keys
+protected int hitCount;
+protected int missCount;
+protected int evictionCount;
+
+/**
+ * Returns <code>true</code> if prepared statements are cached.
+ *
+ * @return <code>true</code> if caching is on
+ */
+public static boolean isEnabled() { return enabled; }
+
+/**
+ * Turns statement caching on or off. Turning it off closes all cached
+ * statements that are not in use.
+ *
+ * @param enable if <code>true</code>, turn caching on
+ */
+public static void setEnabled(boolean enable) {
+    enabled = enable;
+    if (!enable)
+	closeAll();
+}
+
+/**
+ * Returns the number of statements kept for each connection.
+ *
+ * @return the cache size for new connections
+ */
+public static int getDefaultMaxSize() { return defaultMaxSize; }
+
+/**
+ * Sets the number of statements kept for each connection seen from now on.
+ *
+ * @param size the cache size; at least one
+ */
+public static void setDefaultMaxSize(int size) {
+    defaultMaxSize = size < 1 ? 1 : size;
+}
+
+/**
+ * Returns the cache for a connection, creating it if necessary, or
+ * <code>null</code> if caching is off.
+ *
+ * @param conn a connection
+ * @return a statement cache or <code>null</code>
+ */
+public static synchronized StatementCache forConnection(Connection conn) {
+    if (!enabled)
+	return null;
+    StatementCache cache = (StatementCache)caches.get(conn);
+    if (cache == null) {
+	forgetClosedConnections();
+	cache = new StatementCache(conn, defaultMaxSize);
+	caches.put(conn, cache);
+    }
+    return cache;
+}
+
+/**
+ * Returns all the statement caches.
+ *
+ * @return a collection of statement caches
+ */
+public static synchronized Collection getCaches() {
+    return new ArrayList(caches.values());
+}
+
+/**
+ * Returns a prepared statement for <var>sql</var>, from the connection's
+ * cache if caching is on. Give it back with {@link #release} instead of
+ * closing it.
+ *
+ * @param conn a connection
+ * @param sql a prepared statement string
+ * @param streaming if <code>true</code>, the statement will be used to
+ * stream rows (see {@link ResultSetRow#prepareStreaming})
+ * @return a prepared statement
+ */
+public static PreparedStatement prepare(Connection conn, String sql,
+					boolean streaming)
+    throws SQLException
+{
+    StatementCache cache = forConnection(conn);
+    if (cache != null)
+	return cache.get(sql, streaming);
+    return newStatement(conn, sql, streaming);
+}
+
+/**
+ * Gives back a statement returned by {@link #prepare}. Cached statements
+ * are kept open; others are closed.
+ *
+ * @param stmt a prepared statement
+ */
+public static void release(PreparedStatement stmt) throws SQLException {
+    StatementCache cache = null;
+    synchronized (StatementCache.class) {
+	for (Iterator iter = caches.values().iterator(); iter.hasNext(); ) {
+	    StatementCache c = (StatementCache)iter.next();
+	    if (c.owns(stmt)) {
+		cache = c;
+		break;
+	    }
+	}
+    }
+    if (cache != null)
+	cache.giveBack(stmt);
+    else
+	stmt.close();
+}
+
+/**
+ * Closes and forgets all the statements cached for a connection. Called
+ * before a connection is closed.
+ *
+ * @param conn a connection
+ */
+public static void closeStatements(Connection conn) {
+    StatementCache cache;
+    synchronized (StatementCache.class) {
+	cache = (StatementCache)caches.remove(conn);
+    }
+    if (cache != null)
+	cache.close();
+}
+
+/**
+ * Closes all cached statements that are not in use and forgets all
+ * caches.
+ */
+public static synchronized void closeAll() {
+    for (Iterator iter = caches.values().iterator(); iter.hasNext(); )
+	((StatementCache)iter.next()).close();
+    caches.clear();
+}
+
+/** Forgets the caches of connections that have been closed. */
+protected static void forgetClosedConnections() {
+    for (Iterator iter = caches.keySet().iterator(); iter.hasNext(); ) {
+	Connection c = (Connection)iter.next();
+	try {
+	    if (!c.isClosed())
+		continue;
+	}
+	catch (SQLException sqle) {}
+	iter.remove();
+    }
+}
+
+protected static PreparedStatement newStatement(Connection conn, String sql,
+						boolean streaming)
+    throws SQLException
+{
+    if (streaming)
+	return conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+				     ResultSet.CONCUR_READ_ONLY);
+    return conn.prepareStatement(sql);
+}
+
+/**
+ * Constructor. Use {@link #forConnection} to share caches.
+ *
+ * @param conn a connection
+ * @param maxSize the number of statements to keep
+ */
+protected StatementCache(Connection conn, int maxSize) {
+    this.conn = conn;
+    this.maxSize = maxSize;
+    entries = new LinkedHashMap(16, 0.75f, true);
+    inUse = new HashMap();
+}
+
+/** Returns the number of statements found in this cache. */
+public synchronized int getHitCount() { return hitCount; }
+
+/** Returns the number of statements prepared because they weren't cached. */
+public synchronized int getMissCount() { return missCount; }
+
+/** Returns the number of statements closed to make room for others. */
+public synchronized int getEvictionCount() { return evictionCount; }
+
+/** Returns the number of statements in this cache. */
+public synchronized int size() { return entries.size(); }
+
+/**
+ * Returns a statement for <var>sql</var>, preparing it if it isn't cached
+ * or the cached one is in use.
+ */
+protected PreparedStatement get(String sql, boolean streaming)
+    throws SQLException
+{
+    String key = (streaming ? "S" : "N") + sql;
+    synchronized (this) {
+	Entry entry = (Entry)entries.get(key);
+	if (entry != null && !entry.inUse) {
+	    ++hitCount;
+	    entry.inUse = true;
+	    inUse.put(entry.stmt, key);
+	    return entry.stmt;
+	}
+	++missCount;
+	if (entry != null)	// In use; don't cache another
+	    return newStatement(conn, sql, streaming);
+    }
+
+    PreparedStatement stmt = newStatement(conn, sql, streaming);
+    synchronized (this) {
+	Entry entry = new Entry(stmt);
+	entry.inUse = true;
+	entries.put(key, entry);
+	inUse.put(stmt, key);
+	evictIdle();
+    }
+    return stmt;
+}
+
+/** Returns <code>true</code> if <var>stmt</var> came from this cache. */
+protected synchronized boolean owns(PreparedStatement stmt) {
+    return inUse.containsKey(stmt);
+}
+
+/** Marks a cached statement as no longer in use. */
+protected void giveBack(PreparedStatement stmt) throws SQLException {
+    synchronized (this) {
+	String key = (String)inUse.remove(stmt);
+	Entry entry = key == null ? null : (Entry)entries.get(key);
+	if (entry != null && entry.stmt == stmt) {
+	    entry.inUse = false;
+	    stmt.clearParameters();
+	    evictIdle();
+	    return;
+	}
+    }
+    stmt.close();		// Evicted or closed while in use
+}
+
+/**
+ * Closes the least recently used statements that aren't in use until
+ * there are no more than <var>maxSize</var>.
+ */
+protected synchronized void evictIdle() {
+    Iterator iter = entries.values().iterator();
+    while (entries.size() > maxSize && iter.hasNext()) {
+	Entry entry = (Entry)iter.next();
+	if (entry.inUse)
+	    continue;
+	iter.remove();
+	closeQuietly(entry.stmt);
+	++evictionCount;
+    }
+}
+
+/**
+ * Closes all statements that are not in use and forgets all statements.
+ * Statements in use are closed when they are released.
+ */
+protected synchronized void close() {
+    for (Iterator iter = entries.values().iterator(); iter.hasNext(); ) {
+	Entry entry = (Entry)iter.next();
+	if (!entry.inUse)
+	    closeQuietly(entry.stmt);
+    }
+    entries.clear();
+}
+
+protected static void closeQuietly(Statement stmt) {
+    try {
+	stmt.close();
+    }
+    catch (SQLException sqle) {}
+}
+
+}
@@ -1,11 +1,13 @@
 package jimm.datavision.source.sql;
 import jimm.datavision.Subreport;
+import jimm.datavision.source.DataSource;
 import java.sql.Connection;
 import java.sql.SQLException;
 
 /**
- * The only difference between this and a <code>Database</code> is the
- * type of the query that it holds and the single constructor.
+ * The only differences between this and a <code>Database</code> are the
+ * type of the query that it holds, the single constructor, and that it
+ * always uses its parent report's connection.
  *
  * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
  */
@@ -18,4 +20,24 @@ public SubreportDatabase(Connection conn, Subreport report)
     query = new SubreportQuery(report);
 }
 
+/**
+ * Returns the parent report's connection. If the parent borrows its
+ * connections from a pool, it may not be the one we were created with.
+ */
+public Connection getConnection() {
+    DataSource parent = ((Subreport)report).getParentReport().getDataSource();
+    return parent instanceof Database ? ((Database)parent).getConnection()
+	: conn;
+}
+
+/**
+ * Returns the parent report's connection pool, if it borrows its
+ * connections from one.
+ */
+public ConnectionPool getConnectionPool() {
+    DataSource parent = ((Subreport)report).getParentReport().getDataSource();
+    return parent instanceof Database ? ((Database)parent).getConnectionPool()
+	: null;
+}
+
 }
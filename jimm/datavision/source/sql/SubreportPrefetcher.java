@@ -0,0 +1,306 @@
+package jimm.datavision.source.sql;
+import jimm.datavision.source.DataCursor;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Runs a subreport's query for upcoming parent rows on worker threads, so
+ * the queries run while the report thread is laying out earlier rows. Each
+ * worker borrows its own connection from a {@link ConnectionPool}.
+ * <p>
+ * The report thread submits a task for each parent row, in parent row
+ * order, and later takes the task for the current row. A task is only used
+ * if its statement string, parameter values, and join values are exactly
+ * those of the current row; otherwise it is thrown away and the caller
+ * runs the query itself. Rows are read completely by the worker and handed
+ * to the report thread as a {@link CachedResultRow}.
+ * <p>
+ * Only the report thread may call {@link #submit}, {@link #take}, and
+ * {@link #close}.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see jimm.datavision.Subreport#setPrefetch
+ */
+public class SubreportPrefetcher implements Runnable {
+
+/** The most worker threads used by a single prefetcher. */
+public static final int MAX_THREADS = 4;
+
+/** A query waiting to be run, being run, or finished. */
+public static class Task {
+    int row;
+    String sql;
+    List params;		// Where clause values, then join values
+    List joinValues;
+    int numColumns;
+    boolean done;
+    boolean cancelled;
+    PreparedStatement stmt;	// Non-null while running
+    CachedResult result;
+    SQLException error;
+
+    /** Returns the parent row number this task was submitted for. */
+    public int getRow() { return row; }
+}
+
+protected ConnectionPool pool;
+protected Thread[] workers;
+protected LinkedList waiting;	// Tasks not yet started, guarded by this
+protected boolean closed;
+protected LinkedList pending;	// All tasks not yet taken, in row order
+protected int submitCount;
+protected int usedCount;
+protected int discardCount;
+
+/**
+ * Constructor. Starts the worker threads immediately.
+ *
+ * @param pool the pool workers borrow their connections from
+ * @param numThreads the number of worker threads; at most
+ * {@link #MAX_THREADS} are started
+ */
+public SubreportPrefetcher(ConnectionPool pool, int numThreads) {
+    if (numThreads < 1)		// Programmer error; no I18N
+	throw new IllegalArgumentException("thread count must be positive");
+    this.pool = pool;
+    waiting = new LinkedList();
+    pending = new LinkedList();
+
+    workers = new Thread[Math.min(numThreads, MAX_THREADS)];
+    for (int i = 0; i < workers.length; ++i) {
+	workers[i] = new Thread(this, "DataVision subreport prefetch " + i);
+	workers[i].setDaemon(true);
+	workers[i].start();
+    }
+}
+
+/** Returns <code>true</code> if {@link #close} has been called. */
+public synchronized boolean isClosed() { return closed; }
+
+/** Returns the number of tasks submitted. */
+public int getSubmitCount() { return submitCount; }
+
+/** Returns the number of tasks whose results were used. */
+public int getUsedCount() { return usedCount; }
+
+/** Returns the number of tasks thrown away or cancelled. */
+public int getDiscardCount() { return discardCount; }
+
+/**
+ * Returns the parent row number of the last task submitted, or 0 if no
+ * task is waiting to be taken.
+ *
+ * @return a row number
+ */
+public int lastRowSubmitted() {
+    return pending.isEmpty() ? 0 : ((Task)pending.getLast()).row;
+}
+
+/**
+ * Submits a query to be run for a parent row. Rows must be submitted in
+ * increasing order.
+ *
+ * @param row the parent row number
+ * @param sql the prepared statement string
+ * @param params the values to plug into the statement, in order
+ * @param joinValues the parent row's join values
+ * @param numColumns the number of columns to read from each row
+ */
+public void submit(int row, String sql, List params, List joinValues,
+		   int numColumns)
+{
+    Task task = new Task();
+    task.row = row;
+    task.sql = sql;
+    task.params = params;
+    task.joinValues = joinValues;
+    task.numColumns = numColumns;
+    pending.addLast(task);
+    ++submitCount;
+    synchronized (this) {
+	waiting.addLast(task);
+	notifyAll();
+    }
+}
+
+/**
+ * Returns the task submitted for a parent row, if its query is exactly the
+ * one given. Tasks for earlier rows are cancelled. Returns
+ * <code>null</code> if there is no matching task.
+ *
+ * @param row the parent row number
+ * @param sql the prepared statement string
+ * @param params the values to plug into the statement
+ * @param joinValues the parent row's join values
+ * @return a task or <code>null</code>
+ */
+public Task take(int row, String sql, List params, List joinValues) {
+    while (!pending.isEmpty() && ((Task)pending.getFirst()).row < row)
+	cancel((Task)pending.removeFirst());
+    if (pending.isEmpty() || ((Task)pending.getFirst()).row != row)
+	return null;
+
+    Task task = (Task)pending.removeFirst();
+    if (!task.sql.equals(sql) || !task.params.equals(params)
+	|| !task.joinValues.equals(joinValues)) {
+	cancel(task);
+	return null;
+    }
+    ++usedCount;
+    return task;
+}
+
+/**
+ * Waits up to <var>millis</var> milliseconds for a task to finish.
+ *
+ * @param task a task returned by {@link #take}
+ * @param millis the most milliseconds to wait
+ * @return <code>true</code> if the task is finished
+ */
+public synchronized boolean await(Task task, long millis) {
+    if (!task.done) {
+	try {
+	    wait(millis);
+	}
+	catch (InterruptedException ie) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+    return task.done;
+}
+
+/**
+ * Returns a cursor over the rows read by a finished task.
+ *
+ * @param task a finished task
+ * @param query the query that was run
+ * @param typed if <code>true</code>, use typed storage
+ * @return a data cursor
+ * @throws SQLException if the task's query failed
+ */
+public DataCursor rows(Task task, SQLQuery query, boolean typed)
+    throws SQLException
+{
+    synchronized (this) {
+	if (task.error != null)
+	    throw task.error;
+	return new CachedResultRow(task.result, query, typed);
+    }
+}
+
+/**
+ * Cancels every task that has not been taken and stops the worker threads.
+ * Workers running a query try to cancel it; they give their connections
+ * back to the pool when it ends.
+ */
+public void close() {
+    while (!pending.isEmpty())
+	cancel((Task)pending.removeFirst());
+    synchronized (this) {
+	closed = true;
+	notifyAll();
+    }
+}
+
+/** Cancels a task, interrupting its query if it is running. */
+protected void cancel(Task task) {
+    ++discardCount;
+    PreparedStatement stmt;
+    synchronized (this) {
+	task.cancelled = true;
+	waiting.remove(task);
+	stmt = task.stmt;
+    }
+    if (stmt != null) {
+	try {
+	    stmt.cancel();
+	}
+	catch (SQLException sqle) {} // Not supported; let it finish
+    }
+}
+
+/**
+ * A worker thread's loop. Runs waiting tasks until this prefetcher is
+ * closed.
+ */
+public void run() {
+    while (true) {
+	Task task;
+	synchronized (this) {
+	    while (waiting.isEmpty() && !closed) {
+		try {
+		    wait();
+		}
+		catch (InterruptedException ie) {
+		    return;
+		}
+	    }
+	    if (closed)
+		return;
+	    task = (Task)waiting.removeFirst();
+	}
+	execute(task);
+    }
+}
+
+/**
+ * Runs a task's query using a borrowed connection and reads all of its
+ * rows.
+ */
+protected void execute(Task task) {
+    CachedResult result = null;
+    SQLException error = null;
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    try {
+	conn = pool.borrow();
+	stmt = StatementCache.prepare(conn, task.sql, false);
+	synchronized (this) {
+	    if (task.cancelled)
+		return;
+	    task.stmt = stmt;
+	}
+
+	int i = 1;
+	for (Iterator iter = task.params.iterator(); iter.hasNext(); ++i) {
+	    Object val = iter.next();
+	    if (val instanceof java.util.Date)
+		stmt.setDate(i,
+			     new java.sql.Date(((java.util.Date)val).getTime()));
+	    else
+		stmt.setObject(i, val);
+	}
+
+	ResultSet rset = stmt.executeQuery();
+	ArrayList rows = new ArrayList();
+	while (rset.next()) {
+	    ArrayList row = new ArrayList(task.numColumns);
+	    for (int col = 1; col <= task.numColumns; ++col)
+		row.add(rset.getObject(col));
+	    rows.add(row);
+	}
+	rset.close();
+	result = new CachedResult(task.sql, new String[0], task.numColumns,
+				  rows);
+    }
+    catch (SQLException sqle) {
+	error = sqle;
+    }
+    catch (RuntimeException re) {
+	error = new SQLException(re.toString());
+    }
+    finally {
+	if (stmt != null)
+	    try { StatementCache.release(stmt); } catch (SQLException e) {}
+	if (conn != null) pool.giveBack(conn);
+	synchronized (this) {
+	    task.stmt = null;
+	    task.result = result;
+	    task.error = error;
+	    task.done = true;
+	    notifyAll();
+	}
+    }
+}
+
+}
@@ -17,6 +17,8 @@ public class SubreportQuery extends SQLQuery {
 
 protected Subreport subreport;
 protected ArrayList subreportJoins;
+protected SelectableAccessor[] parentAccessors; // One per subreport join
+protected List batchKeys;	// Lists of parent values; null unless batching
 
 /**
  * Constructor.
@@ -31,10 +33,29 @@ public SubreportQuery(Subreport report) {
 
 public void addSubreportJoin(Join join) {
     subreportJoins.add(join);
+    parentAccessors = null;
 }
 
 public void addSubreportJoins(Collection coll) {
     subreportJoins.addAll(coll);
+    parentAccessors = null;
+}
+
+/**
+ * Returns the accessor used to read the parent report's value of the
+ * <var>i</var>'th subreport join's &quot;from&quot; column.
+ *
+ * @param i a subreport join index
+ * @param from the join's &quot;from&quot; column
+ * @return an accessor
+ */
+protected SelectableAccessor parentAccessor(int i, Column from) {
+    if (parentAccessors == null)
+	parentAccessors = new SelectableAccessor[subreportJoins.size()];
+    SelectableAccessor accessor = parentAccessors[i];
+    if (accessor == null || accessor.getSelectable() != from)
+	parentAccessors[i] = accessor = new SelectableAccessor(from);
+    return accessor;
 }
 
 /**
@@ -51,6 +72,89 @@ public Iterator parentColumns() {
     return list.iterator();
 }
 
+/**
+ * Returns <code>true</code> if every subreport join is an equality join,
+ * so the rows for several parent rows can be fetched with one query (see
+ * {@link #setBatchKeys}).
+ *
+ * @return <code>true</code> if this query can be batched
+ */
+public boolean canBatch() {
+    if (subreportJoins.isEmpty())
+	return false;
+    for (Iterator iter = subreportJoins.iterator(); iter.hasNext(); )
+	if (!"=".equals(((Join)iter.next()).getRelation()))
+	    return false;
+    return true;
+}
+
+/**
+ * Makes this query return the rows for a batch of parent rows instead of
+ * for the parent report's current row. Each key is a list holding a value
+ * for each subreport join's &quot;from&quot; column. While batching, the
+ * &quot;to&quot; columns are added to the selectables so rows can be
+ * matched with their keys.
+ *
+ * @param keys a list of lists of parent values; <code>null</code> to stop
+ * batching
+ * @see #childColumns
+ */
+public void setBatchKeys(List keys) { batchKeys = keys; }
+
+/**
+ * Returns the parent report's current values of the subreport joins'
+ * &quot;from&quot; columns, one per join.
+ *
+ * @return a list of values
+ */
+public List parentValues() {
+    Report parent = subreport.getParentReport();
+    ArrayList values = new ArrayList(subreportJoins.size());
+    for (int j = 0; j < subreportJoins.size(); ++j) {
+	Column from = ((Join)subreportJoins.get(j)).getFrom();
+	values.add(parentAccessor(j, from).getValue(parent));
+    }
+    return values;
+}
+
+/**
+ * Returns the parent report's data cursor column indexes of the subreport
+ * joins' &quot;from&quot; columns, one per join.
+ *
+ * @return an array of 1-based column indexes
+ */
+public int[] parentSlots() {
+    SelectableBinding binding =
+	subreport.getParentReport().getSelectableBinding();
+    int[] slots = new int[subreportJoins.size()];
+    for (int j = 0; j < slots.length; ++j)
+	slots[j] = binding.slotOf(((Join)subreportJoins.get(j)).getFrom());
+    return slots;
+}
+
+/**
+ * Returns the subreport joins' &quot;to&quot; columns, one per join.
+ *
+ * @return a list of columns
+ */
+public List childColumns() {
+    ArrayList list = new ArrayList();
+    for (Iterator iter = subreportJoins.iterator(); iter.hasNext(); )
+	list.add(((Join)iter.next()).getTo());
+    return list;
+}
+
+public void findSelectablesUsed() {
+    super.findSelectablesUsed();
+    if (batchKeys == null)
+	return;
+    for (Iterator iter = childColumns().iterator(); iter.hasNext(); ) {
+	Column col = (Column)iter.next();
+	if (!selectables.contains(col)) selectables.add(col);
+	addTable(col.getTable());
+    }
+}
+
 protected void buildWhereClause(StringBuffer str, boolean forDisplay) {
     // We always have a where clauses, even if the user didn't specify one
     str.append(" where ");
@@ -90,7 +194,9 @@ public String getWhereClauseForPreparedStatement() {
 	buf.append(super.getWhereClauseForPreparedStatement());
 	buf.append(") and (");
     }
-    for (Iterator iter = subreportJoins.iterator(); iter.hasNext(); ) {
+    if (batchKeys != null)
+	buildBatchJoins(buf);
+    else for (Iterator iter = subreportJoins.iterator(); iter.hasNext(); ) {
 	Join j = (Join)iter.next();
 	buf.append("? ");
 	buf.append(j.getRelation());
@@ -104,25 +210,65 @@ public String getWhereClauseForPreparedStatement() {
     return buf.toString();
 }
 
+/**
+ * Appends the where clause that matches the &quot;to&quot; columns
+ * against every batch key: an "in" list when there is one join, else one
+ * parenthesized group of comparisons per key.
+ */
+protected void buildBatchJoins(StringBuffer buf) {
+    List to = childColumns();
+    if (to.size() == 1) {
+	buf.append(quoted(((Column)to.get(0)).fullName()));
+	buf.append(" in (");
+	for (int k = 0; k < batchKeys.size(); ++k)
+	    buf.append(k == 0 ? "?" : ", ?");
+	buf.append(')');
+	return;
+    }
+
+    for (int k = 0; k < batchKeys.size(); ++k) {
+	buf.append(k == 0 ? "(" : " or (");
+	for (int j = 0; j < to.size(); ++j) {
+	    if (j > 0) buf.append(" and ");
+	    buf.append("? = ");
+	    buf.append(quoted(((Column)to.get(j)).fullName()));
+	}
+	buf.append(')');
+    }
+}
+
 public void setParameters(PreparedStatement stmt) throws SQLException {
     super.setParameters(stmt);
 
     // Continue with parameters after those filled in by superclass.
     // Remember that param indices start at 1.
     int i = preparedStmtValues.size() + 1;
-    for (Iterator iter = subreportJoins.iterator(); iter.hasNext(); ++i) {
-	// In Oracle, Java Dates are turned into timestamps, or something
-	// like that. This is an attempt to fix this problem.
-	Column from = ((Join)iter.next()).getFrom();
-	Object val = subreport.getParentReport().columnValue(from);
-	if (val instanceof java.util.Date)
-	    stmt.setDate(i,
-			 new java.sql.Date(((java.util.Date)val).getTime()));
-	else
-	    stmt.setObject(i, val);
+    if (batchKeys != null) {
+	for (Iterator iter = batchKeys.iterator(); iter.hasNext(); )
+	    for (Iterator vals = ((List)iter.next()).iterator();
+		 vals.hasNext(); ++i)
+		setParameter(stmt, i, vals.next());
+	return;
+    }
+
+    Report parent = subreport.getParentReport();
+    for (int j = 0; j < subreportJoins.size(); ++i, ++j) {
+	Column from = ((Join)subreportJoins.get(j)).getFrom();
+	setParameter(stmt, i, parentAccessor(j, from).getValue(parent));
     }
 }
 
+protected void setParameter(PreparedStatement stmt, int i, Object val)
+    throws SQLException
+{
+    // In Oracle, Java Dates are turned into timestamps, or something
+    // like that. This is an attempt to fix this problem.
+    if (val instanceof java.util.Date)
+	stmt.setDate(i, new java.sql.Date(((java.util.Date)val).getTime()));
+    else
+	stmt.setObject(i, val);
+}
+
 protected void writeExtras(XMLWriter out) {
     out.startElement("subreport-joins");
     for (Iterator iter = subreportJoins.iterator(); iter.hasNext(); )
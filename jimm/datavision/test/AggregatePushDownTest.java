@@ -0,0 +1,148 @@
+package jimm.datavision.test;
+import jimm.datavision.*;
+import jimm.datavision.field.ColumnField;
+import jimm.datavision.field.SpecialField;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.sql.SQLQuery;
+import jimm.datavision.source.sql.SQLTable;
+import jimm.datavision.test.DatabaseTestHelper.RecordingDatabase;
+import java.io.*;
+import java.sql.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests letting the database compute the aggregates of summary-only
+ * reports (see {@link jimm.datavision.source.sql.AggregatePushDown}). Uses
+ * an in-memory SQLite database, so these tests do not need a database
+ * server. The output of each run must match the output of the same report
+ * with aggregate push-down turned off.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class AggregatePushDownTest extends TestCase {
+
+protected Connection conn;
+protected Report report;
+protected RecordingDatabase db;
+protected Section detail;
+
+public static Test suite() {
+    return new TestSuite(AggregatePushDownTest.class);
+}
+
+public AggregatePushDownTest(String name) {
+    super(name);
+}
+
+public void setUp() throws Exception {
+    Class.forName("org.sqlite.JDBC");
+    conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+    Statement stmt = conn.createStatement();
+    stmt.executeUpdate("create table sales (region varchar(10), rep varchar(10), amount double, qty integer)");
+    String[] regions = { "east", "west", "north" };
+    for (int i = 0; i < 60; ++i) {
+	String amount = (i % 7 == 0) ? "null" : String.valueOf(i * 1.25);
+	stmt.executeUpdate("insert into sales values ('" + regions[i % 3]
+			   + "', 'rep" + (i % 4) + "', " + amount + ", "
+			   + (i % 5) + ")");
+    }
+    stmt.close();
+
+    report = new Report();
+    db = new RecordingDatabase(conn, report);
+    db.countRows = true;
+    report.setDataSource(db);
+    // The SQLite driver says every column is a LONGVARCHAR, and only
+    // numeric columns can be aggregated
+    SQLTable sales = (SQLTable)report.findColumn("SALES.amount").getTable();
+    sales.setCachedColumns(new String[] { "region", "rep", "amount", "qty" },
+			   new int[] { Types.VARCHAR, Types.VARCHAR,
+				       Types.DOUBLE, Types.INTEGER });
+    detail = report.getFirstSectionByArea(SectionArea.DETAIL);
+    ColumnField amount =
+	new ColumnField(null, report, detail, "SALES.amount", true);
+    ColumnField qty = new ColumnField(null, report, detail, "SALES.qty", true);
+    detail.addField(amount);
+    detail.addField(qty);
+    detail.getSuppressionProc().setHidden(true);
+
+    Group region = Group.create(report, report.findColumn("SALES.region"));
+    report.addGroup(region);
+    Group rep = Group.create(report, report.findColumn("SALES.rep"));
+    report.addGroup(rep);
+
+    Section repFooter = rep.footers().first();
+    DatabaseTestHelper.addAggregate(repFooter, amount, "sum", rep);
+    DatabaseTestHelper.addAggregate(repFooter, qty, "count", rep);
+    DatabaseTestHelper.addAggregate(repFooter, amount, "average", rep);
+    DatabaseTestHelper.addAggregate(repFooter, qty, "min", rep);
+    DatabaseTestHelper.addAggregate(repFooter, amount, "max", rep);
+    Section regionFooter = region.footers().first();
+    DatabaseTestHelper.addAggregate(regionFooter, amount, "sum", region);
+    DatabaseTestHelper.addAggregate(regionFooter, qty, "average", region);
+    DatabaseTestHelper.addAggregate(regionFooter, amount, "count", region);
+    Section reportFooter = report.footers().first();
+    DatabaseTestHelper.addAggregate(reportFooter, qty, "sum", null);
+    DatabaseTestHelper.addAggregate(reportFooter, amount, "average", null);
+}
+
+public void tearDown() throws SQLException {
+    if (conn != null)
+	conn.close();
+}
+
+protected String run(boolean pushDown) {
+    db.setAggregatePushDown(pushDown);
+    db.rows = 0;
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    return out.toString();
+}
+
+public void testPushDown() throws Exception {
+    String expected = run(false);
+    assertEquals(60, db.rows);
+    assertTrue(db.sql.indexOf("group by") < 0);
+
+    assertEquals(expected, run(true));
+    assertEquals(12, db.rows);	// 3 regions times 4 reps
+    assertTrue(db.sql.indexOf("group by") >= 0);
+    assertNull(((SQLQuery)db.getQuery()).getAggregatePushDown());
+
+    // Running again without push-down must not use partial aggregates
+    assertEquals(expected, run(false));
+    assertEquals(60, db.rows);
+}
+
+public void testVisibleDetail() throws Exception {
+    detail.getSuppressionProc().setHidden(false);
+    String expected = run(false);
+    assertEquals(expected, run(true));
+    assertEquals(60, db.rows);
+}
+
+public void testRowCounter() throws Exception {
+    Section footer = report.footers().first();
+    footer.addField(new SpecialField(null, report, footer, "report.row",
+				     true));
+    String expected = run(false);
+    assertEquals(expected, run(true));
+    assertEquals(60, db.rows);
+}
+
+public void testNonGroupColumn() throws Exception {
+    Section footer = report.footers().first();
+    footer.addField(new ColumnField(null, report, footer, "SALES.qty", true));
+    run(true);
+    assertEquals(60, db.rows);
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -27,9 +27,14 @@ public static Test suite(boolean runJdbcTests, boolean skipNonJdbcTests) {
     if (!skipNonJdbcTests) {
 	suite.addTest(StringUtilsTest.suite());
 	suite.addTest(ColumnIteratorTest.suite());
+	suite.addTest(DataCursorTest.suite());
 	suite.addTest(DelimParserTest.suite());
+	suite.addTest(ExternalSorterTest.suite());
+	suite.addTest(RowPredicateTest.suite());
+	suite.addTest(ObjectSourceTest.suite());
 	suite.addTest(XMLWriterTest.suite());
 	suite.addTest(FormulaTest.suite());
+	suite.addTest(ExpressionCompilerTest.suite());
 	suite.addTest(FormulaEvalTest.suite());
 	suite.addTest(SectionAreaTest.suite());
 	suite.addTest(SuppressionProcTest.suite());
@@ -42,6 +47,15 @@ public static Test suite(boolean runJdbcTests, boolean skipNonJdbcTests) {
 	suite.addTest(ScriptingTest.suite());
 	suite.addTest(CharSepTest.suite());
 	suite.addTest(AggregateTest.suite());
+	suite.addTest(StreamingTest.suite());
+	suite.addTest(ResultCacheTest.suite());
+	suite.addTest(DatabaseMetadataTest.suite());
+	suite.addTest(ConnectionPoolTest.suite());
+	suite.addTest(SubreportBatchTest.suite());
+	suite.addTest(SubreportPrefetchTest.suite());
+	suite.addTest(AggregatePushDownTest.suite());
+	suite.addTest(StatementCacheTest.suite());
+	suite.addTest(PartitionedQueryTest.suite());
     }
     if (runJdbcTests) {
 	suite.addTest(SubreportRunTest.suite());
@@ -0,0 +1,117 @@
+package jimm.datavision.test;
+import jimm.datavision.Report;
+import jimm.datavision.source.Column;
+import jimm.datavision.source.charsep.CharSepRow;
+import jimm.datavision.source.charsep.CharSepSource;
+import java.io.*;
+import java.sql.Types;
+
+/**
+ * Measures how charsep parsing scales with the number of parsing threads.
+ * This is not a unit test and is not run by {@link AllTests}.
+ * <p>
+ * Usage: <code>java jimm.datavision.test.CharSepParseBenchmark
+ * [megabytes [max_threads [file]]]</code>
+ * <p>
+ * Writes a file of about <var>megabytes</var> MB of generated rows (unless
+ * <var>file</var> already exists), then reads every row of it using 1, 2,
+ * 4, and so on up to <var>max_threads</var> parsing threads and prints the
+ * elapsed time and speedup of each run.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see CharSepSource#setParseThreads
+ */
+public class CharSepParseBenchmark {
+
+protected static final int RUNS = 3;
+
+protected File file;
+
+public CharSepParseBenchmark(File file) {
+    this.file = file;
+}
+
+/**
+ * Writes rows with a number, a quoted string, a decimal number, and a date
+ * until the file is at least <var>megabytes</var> MB long.
+ */
+public void generate(int megabytes) throws IOException {
+    long size = (long)megabytes * 1024 * 1024;
+    PrintWriter out =
+	new PrintWriter(new BufferedWriter(new FileWriter(file), 65536));
+    long written = 0;
+    for (int i = 0; written < size; ++i) {
+	String line = i + ",\"Customer " + (i % 997) + ", Inc.\","
+	    + (i % 10000) + "." + (i % 100) + ",2004-0" + (1 + i % 9) + "-1"
+	    + (i % 10);
+	out.println(line);
+	written += line.length() + 1;
+    }
+    out.close();
+}
+
+/**
+ * Reads every value of every row of the file and returns the elapsed time in
+ * milliseconds. Uses the fastest of several runs.
+ */
+public long time(int threads) throws IOException {
+    long best = Long.MAX_VALUE;
+    for (int run = 0; run < RUNS; ++run) {
+	CharSepSource source = new CharSepSource(new Report());
+	source.addColumn(new Column("id", "id", Types.INTEGER));
+	source.addColumn(new Column("name", "name", Types.VARCHAR));
+	source.addColumn(new Column("amount", "amount", Types.DOUBLE));
+	source.addColumn(new Column("date", "date", Types.DATE));
+	source.setParseThreads(threads);
+	source.setInput(file.getPath());
+
+	long start = System.currentTimeMillis();
+	CharSepRow cursor = (CharSepRow)source.execute();
+	int rows = 0;
+	while (cursor.next()) {
+	    for (int i = 1; i <= 4; ++i) // Make sure every value is converted
+		cursor.getObject(i);
+	    ++rows;
+	}
+	cursor.close();
+	long elapsed = System.currentTimeMillis() - start;
+
+	if (run == 0)
+	    System.out.print(rows + " rows, ");
+	best = Math.min(best, elapsed);
+    }
+    return best;
+}
+
+public static void main(String[] args) throws IOException {
+    int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+	: Runtime.getRuntime().availableProcessors();
+    File file = args.length > 2 ? new File(args[2])
+	: new File(System.getProperty("java.io.tmpdir"),
+		   "datavision_benchmark.csv");
+
+    CharSepParseBenchmark benchmark = new CharSepParseBenchmark(file);
+    boolean generated = !file.exists();
+    if (generated)
+	benchmark.generate(megabytes);
+    System.out.println(file + ": " + file.length() + " bytes");
+
+    long oneThread = 0;
+    for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+	System.out.print(threads + " thread(s): ");
+	long millis = benchmark.time(threads);
+	if (threads == 1)
+	    oneThread = millis;
+	System.out.println(millis + " ms, speedup "
+			   + ((double)oneThread / Math.max(1, millis)));
+	if (threads >= maxThreads)
+	    break;
+    }
+
+    if (generated)
+	file.delete();
+    System.exit(0);
+}
+
+}
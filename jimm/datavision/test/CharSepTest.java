@@ -3,9 +3,13 @@ import jimm.datavision.*;
 import jimm.datavision.field.*;
 import jimm.datavision.layout.CharSepLE;
 import jimm.datavision.source.Column;
+import jimm.datavision.source.SelectableBinding;
+import jimm.datavision.source.charsep.CharSepRow;
 import jimm.datavision.source.charsep.CharSepSource;
 import java.io.*;
 import java.util.Date;
+import java.util.List;
+import java.util.ArrayList;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import junit.framework.TestCase;
@@ -99,6 +103,23 @@ public void testColumnInfo() {
     }
 }
 
+public void testSelectableBinding() {
+    SelectableBinding binding = report.getSelectableBinding();
+    assertSame(binding, report.getSelectableBinding());
+
+    String[] colNames = { "office.name", "jobs.ID", "jobs.title",
+			  "jobs.hourly rate", "jobs.post_date" };
+    for (int i = 0; i < colNames.length; ++i) {
+	Column col = dataSource.findColumn(colNames[i]);
+	assertEquals(i + 1, binding.slotOf(col));
+    }
+
+    // Finding the query's selectables again makes a new binding
+    dataSource.getQuery().findSelectablesUsed();
+    assertTrue(!binding.isCurrent(dataSource));
+    assertNotSame(binding, report.getSelectableBinding());
+}
+
 public void testReportRun() throws IOException, FileNotFoundException {
     assertEquals("{office.name} != 'Chicago'",
 		 report.getDataSource().getQuery().getWhereClause());
@@ -332,6 +353,166 @@ public void testShortInputLines() {
     }
 }
 
+public void testParallelReportRun() throws IOException {
+    dataSource.setParseThreads(3);
+    dataSource.setParseChunkSize(40);
+    dataSource.setInput(DATA_FILE);
+    testReportRun();
+}
+
+public void testUnsortableGroup() throws Exception {
+    // Character-separated rows have no user column values to sort by
+    UserColumn uc = new UserColumn(null, report, "unsortable", "1");
+    report.addUserColumn(uc);
+    report.addGroup(Group.create(report, uc));
+    try {
+	dataSource.executeForReport();
+	fail("expected a group that can't be sorted to fail");
+    }
+    catch (IllegalStateException e) {
+	assertTrue(e.getMessage().indexOf("unsortable") != -1);
+    }
+}
+
+public void testSpilledSortReportRun() throws IOException {
+    // The file isn't sorted by office, and Chicago is excluded by the where
+    // clause, so this also makes sure the sort evaluates the where clause
+    dataSource.setSortMemoryBudget(100);
+    testReportRun();
+}
+
+/**
+ * Makes sure parsing with several threads returns exactly what parsing
+ * with one does, even when chunks start inside quoted columns and quotes
+ * are unbalanced.
+ */
+public void testParallelParsing() throws IOException {
+    File f = File.createTempFile("datavision_parallel", ".csv");
+    f.deleteOnExit();
+    try {
+	PrintWriter out = new PrintWriter(new FileWriter(f));
+	for (int i = 0; i < 200; ++i) {
+	    switch (i % 7) {
+	    case 0: out.print("a" + i + ",b,c\n"); break;
+	    case 1: out.print("\"quoted\nline " + i + "\",\"x,y\",z\r\n"); break;
+	    case 2: out.print("\"\"\"q\"\"\n\n\",,\n"); break;
+	    case 3: out.print("un\"balanced," + i + "\n"); break;
+	    case 4: out.print("\n"); break;
+	    case 5: out.print("long " + i + " \"\"\"\n\n\n\n\n\n\",2,3\r"); break;
+	    default: out.print("x,\"" + i + "\"\n"); break;
+	    }
+	}
+	out.print("last,line");
+	out.close();
+
+	List expected = readAll(f, 1, 0);
+	assertTrue(expected.size() > 200);
+	int[] chunkSizes = { 1, 2, 3, 7, 16, 100, 1000 };
+	for (int i = 0; i < chunkSizes.length; ++i)
+	    assertEquals("chunk size " + chunkSizes[i], expected,
+			 readAll(f, 4, chunkSizes[i]));
+    }
+    finally {
+	f.delete();
+    }
+}
+
+/**
+ * Makes sure numbers, dates, and strings are converted the same way by
+ * every parser, with and without typed rows.
+ */
+public void testValueConversion() throws Exception {
+    File f = File.createTempFile("datavision_values", ".csv");
+    f.deleteOnExit();
+    try {
+	PrintWriter out = new PrintWriter(new FileWriter(f));
+	out.print("12,2004-01-02,red\n-3,2004-01-02,red\n1.5,2004-01-03,blue\n"
+		  + ",,\n99999999999,2004-01-02,red\n1e3,2004-01-03,green\n");
+	out.close();
+
+	SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+	Date jan2 = format.parse("2004-01-02");
+	Date jan3 = format.parse("2004-01-03");
+	Object[][] expected = {
+	    { new Integer(12), jan2, "red" },
+	    { new Integer(-3), jan2, "red" },
+	    { new Double(1.5), jan3, "blue" },
+	    { null, null, "" },
+	    { new Long(99999999999L), jan2, "red" },
+	    { new Double(1000), jan3, "green" }
+	};
+
+	for (int typed = 0; typed < 2; ++typed) {
+	    for (int mapped = 0; mapped < 2; ++mapped) {
+		CharSepSource source = new CharSepSource(report);
+		source.addColumn(new Column("num", "num",
+					    java.sql.Types.NUMERIC));
+		Column dateCol = new Column("date", "date", java.sql.Types.DATE);
+		dateCol.setDateParseFormat("yyyy-MM-dd");
+		source.addColumn(dateCol);
+		source.addColumn(new Column("str", "str",
+					    java.sql.Types.VARCHAR));
+		source.setTypedRows(typed == 1);
+		if (mapped == 1)
+		    source.setInput(f.getPath());
+		else
+		    source.setInput(new FileReader(f));
+
+		String which = "typed " + typed + ", mapped " + mapped;
+		CharSepRow cursor = (CharSepRow)source.execute();
+		assertEquals(which, typed == 1, cursor.isTypedStorage());
+		try {
+		    for (int i = 0; i < expected.length; ++i) {
+			assertTrue(which, cursor.next());
+			for (int j = 0; j < 3; ++j)
+			    assertEquals(which + ", row " + i + ", col " + j,
+					 expected[i][j], cursor.getObject(j + 1));
+			Number num = (Number)expected[i][0];
+			assertEquals(num == null ? 0 : num.doubleValue(),
+				     cursor.getDouble(1), 0);
+		    }
+		    assertTrue(which, !cursor.next());
+		}
+		finally {
+		    cursor.close();
+		}
+	    }
+	}
+    }
+    finally {
+	f.delete();
+    }
+}
+
+public void testTypedReportRun() throws IOException {
+    dataSource.setTypedRows(true);
+    testReportRun();
+}
+
+protected List readAll(File f, int threads, int chunkSize)
+    throws IOException
+{
+    CharSepSource source = new CharSepSource(report);
+    for (int i = 1; i <= 3; ++i)
+	source.addColumn(new Column("col" + i, "col" + i,
+				    java.sql.Types.VARCHAR));
+    source.setParseThreads(threads);
+    source.setParseChunkSize(chunkSize);
+    source.setInput(f.getPath());
+
+    ArrayList rows = new ArrayList();
+    CharSepRow cursor = (CharSepRow)source.execute();
+    try {
+	List row;
+	while ((row = cursor.readRowData()) != null)
+	    rows.add(new ArrayList(row));
+    }
+    finally {
+	cursor.close();
+    }
+    return rows;
+}
+
 public static void main(String[] args) {
     junit.textui.TestRunner.run(suite());
     System.exit(0);
@@ -0,0 +1,269 @@
+package jimm.datavision.test;
+import jimm.datavision.*;
+import jimm.datavision.field.ColumnField;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.sql.ConnectionPool;
+import jimm.datavision.source.sql.Database;
+import java.io.*;
+import java.sql.*;
+import java.util.Properties;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests {@link ConnectionPool} and its use by {@link Database}. Uses a
+ * SQLite database file, so these tests do not need a database server.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class ConnectionPoolTest extends TestCase {
+
+protected static final String DRIVER = "org.sqlite.JDBC";
+protected static final String PASSWORD_DRIVER =
+    PasswordDriver.class.getName();
+
+/**
+ * A driver that opens SQLite databases for the user "jimm" only if the
+ * password is "secret". SQLite itself ignores passwords.
+ */
+public static class PasswordDriver implements Driver {
+    static final String PREFIX = "jdbc:dvpasswordtest:";
+    public boolean acceptsURL(String url) { return url.startsWith(PREFIX); }
+    public Connection connect(String url, Properties info)
+	throws SQLException
+    {
+	if (!acceptsURL(url))
+	    return null;
+	if (!"jimm".equals(info.getProperty("user"))
+	    || !"secret".equals(info.getProperty("password")))
+	    throw new SQLException("login failed");
+	return DriverManager.getConnection("jdbc:sqlite:"
+					   + url.substring(PREFIX.length()));
+    }
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+	return new DriverPropertyInfo[0];
+    }
+    public int getMajorVersion() { return 1; }
+    public int getMinorVersion() { return 0; }
+    public boolean jdbcCompliant() { return false; }
+    public java.util.logging.Logger getParentLogger() {
+	return java.util.logging.Logger.getLogger(getClass().getName());
+    }
+}
+
+/** Gives up instead of asking for another password. */
+static class NoPasswordReport extends Report {
+    int asked;
+    public void askForPassword(Database db) {
+	++asked;
+	db.setPassword(null);
+    }
+}
+
+protected File dbFile;
+protected String url;
+
+public static Test suite() {
+    return new TestSuite(ConnectionPoolTest.class);
+}
+
+public ConnectionPoolTest(String name) {
+    super(name);
+}
+
+public void setUp() throws Exception {
+    Class.forName(DRIVER);
+    dbFile = File.createTempFile("datavision_pool_test", ".db");
+    url = "jdbc:sqlite:" + dbFile.getPath();
+
+    Connection conn = DriverManager.getConnection(url);
+    Statement stmt = conn.createStatement();
+    stmt.executeUpdate("create table items (id integer, name varchar(20))");
+    stmt.executeUpdate("insert into items values (1, 'one')");
+    stmt.executeUpdate("insert into items values (2, 'two')");
+    stmt.close();
+    conn.close();
+}
+
+public void tearDown() {
+    ConnectionPool.setEnabled(false);
+    ConnectionPool.closeAll();
+    dbFile.delete();
+}
+
+protected ConnectionPool pool() {
+    return ConnectionPool.getPool(DRIVER, url, "", "");
+}
+
+public void testReuse() throws Exception {
+    ConnectionPool pool = pool();
+    assertSame(pool, pool());
+
+    Connection conn = pool.borrow();
+    assertEquals(1, pool.getActiveCount());
+    pool.giveBack(conn);
+    assertEquals(0, pool.getActiveCount());
+    assertEquals(1, pool.getIdleCount());
+
+    assertSame(conn, pool.borrow());
+    assertEquals(1, pool.getCreateCount());
+    assertEquals(2, pool.getBorrowCount());
+}
+
+public void testMaxSize() throws Exception {
+    ConnectionPool pool = pool();
+    pool.setMaxSize(1);
+    pool.setBorrowTimeout(100);
+    Connection conn = pool.borrow();
+    try {
+	pool.borrow();
+	fail("borrowed more than the maximum number of connections");
+    }
+    catch (SQLException sqle) {
+	assertEquals(1, pool.getWaitCount());
+	assertEquals(1, pool.getTimeoutCount());
+    }
+
+    pool.giveBack(conn);
+    assertSame(conn, pool.borrow());
+}
+
+public void testValidation() throws Exception {
+    ConnectionPool pool = pool();
+    pool.setValidationQuery("select 1");
+    Connection conn = pool.borrow();
+    pool.giveBack(conn);
+    conn.close();
+
+    Connection conn2 = pool.borrow();
+    assertNotSame(conn, conn2);
+    assertTrue(!conn2.isClosed());
+    assertEquals(1, pool.getValidationFailureCount());
+    assertEquals(1, pool.getActiveCount());
+}
+
+public void testIdleEviction() throws Exception {
+    ConnectionPool pool = pool();
+    pool.setIdleTimeout(0);
+    Connection conn = pool.borrow();
+    pool.giveBack(conn);
+    assertTrue(conn.isClosed());
+    assertEquals(0, pool.getIdleCount());
+    assertEquals(1, pool.getEvictionCount());
+
+    pool.setMinSize(1);
+    conn = pool.borrow();
+    pool.giveBack(conn);
+    assertTrue(!conn.isClosed());
+    assertEquals(1, pool.getIdleCount());
+}
+
+public void testPrefill() throws Exception {
+    ConnectionPool pool = pool();
+    pool.setMinSize(3);
+    pool.prefill();
+    assertEquals(3, pool.getIdleCount());
+    assertEquals(0, pool.getActiveCount());
+}
+
+public void testDatabase() throws Exception {
+    ConnectionPool.setEnabled(true);
+    Report report = new Report();
+    Database db = new Database(DRIVER, url, report, "", "", "");
+    report.setDataSource(db);
+    ConnectionPool pool = db.getConnectionPool();
+    assertSame(pool(), pool);
+
+    Section detail = report.getFirstSectionByArea(SectionArea.DETAIL);
+    detail.addField(new ColumnField(null, report, detail, "ITEMS.name",
+				    true));
+    for (int i = 0; i < 2; ++i) {
+	StringWriter out = new StringWriter();
+	report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+	report.runReport();
+	assertTrue(out.toString().indexOf("two") >= 0);
+	assertEquals(0, pool.getActiveCount());
+	assertEquals(1, pool.getIdleCount());
+    }
+    assertEquals(1, pool.getCreateCount());
+}
+
+public void testCloseAll() throws Exception {
+    ConnectionPool pool = pool();
+    Connection idle = pool.borrow();
+    Connection borrowed = pool.borrow();
+    pool.giveBack(idle);
+
+    // Idle connections close now, borrowed ones when they are given back
+    ConnectionPool.closeAll();
+    assertTrue(idle.isClosed());
+    assertTrue(!borrowed.isClosed());
+    pool.giveBack(borrowed);
+    assertTrue(borrowed.isClosed());
+    assertEquals(0, pool.getIdleCount());
+    assertNotSame(pool, pool());
+}
+
+public void testDatabasePooling() throws Exception {
+    Report report = new Report();
+    Database db = new Database(DRIVER, url, report, "", "", "");
+    report.setDataSource(db);
+    assertNull(db.getConnectionPool());
+
+    // The connection the database opened is handed to the pool
+    db.setConnectionPooling(true);
+    ConnectionPool pool = db.getConnectionPool();
+    assertSame(pool(), pool);
+    assertEquals(1, pool.getIdleCount());
+
+    Section detail = report.getFirstSectionByArea(SectionArea.DETAIL);
+    detail.addField(new ColumnField(null, report, detail, "ITEMS.name",
+				    true));
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    assertTrue(out.toString().indexOf("two") >= 0);
+    assertEquals(1, pool.getIdleCount());
+    assertEquals(1, pool.getCreateCount());
+}
+
+public void testWrongPassword() throws Exception {
+    DriverManager.registerDriver(new PasswordDriver());
+    String pwUrl = PasswordDriver.PREFIX + dbFile.getPath();
+    ConnectionPool pool =
+	ConnectionPool.getPool(PASSWORD_DRIVER, pwUrl, "jimm", "secret");
+    pool.giveBack(pool.borrow());
+    assertEquals(1, pool.getIdleCount());
+
+    // Another password doesn't get the pool or its idle connection
+    assertNull(ConnectionPool.getPool(PASSWORD_DRIVER, pwUrl, "jimm",
+				      "wrong"));
+    ConnectionPool.setEnabled(true);
+    NoPasswordReport report = new NoPasswordReport();
+    try {
+	new Database(PASSWORD_DRIVER, pwUrl, report, "", "jimm", "wrong");
+	fail("logged in with the wrong password");
+    }
+    catch (UserCancellationException e) {
+	assertEquals(1, report.asked);
+    }
+    assertEquals(1, pool.getIdleCount());
+    assertEquals(1, pool.getBorrowCount());
+
+    // The pool still has its own password
+    assertSame(pool, ConnectionPool.getPool(PASSWORD_DRIVER, pwUrl, "jimm",
+					    "secret"));
+    Database db = new Database(PASSWORD_DRIVER, pwUrl, new Report(), "",
+			       "jimm", "secret");
+    assertSame(pool, db.getConnectionPool());
+    assertEquals(0, pool.getIdleCount());
+    assertEquals(1, pool.getCreateCount());
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,208 @@
+package jimm.datavision.test;
+import jimm.datavision.UserCancellationException;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.RowBuffer;
+import jimm.datavision.source.PrefetchCursor;
+import java.util.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests {@link DataCursor} row navigation with both list and typed row
+ * storage, and through a {@link PrefetchCursor}.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class DataCursorTest extends TestCase {
+
+protected static final int NUM_ROWS = 5;
+protected static final int[] KINDS = {
+    RowBuffer.KIND_INT, RowBuffer.KIND_LONG, RowBuffer.KIND_DOUBLE,
+    RowBuffer.KIND_OBJECT
+};
+
+/**
+ * Returns rows of the form (i, i * 1000, i / 2.0, "row i"). Row 3 has a
+ * <code>null</code> in every column.
+ */
+static class NumberCursor extends DataCursor {
+    int rowsRead;
+    NumberCursor(boolean typed) {
+	if (typed) useTypedStorage(KINDS);
+    }
+    protected List readRowData() {
+	if (rowsRead == NUM_ROWS)
+	    return null;
+	int i = ++rowsRead;
+	ArrayList row = new ArrayList();
+	if (i == 3) {
+	    row.add(null); row.add(null); row.add(null); row.add(null);
+	}
+	else {
+	    row.add(new Integer(i));
+	    row.add(new Long(i * 1000L));
+	    row.add(new Double(i / 2.0));
+	    row.add("row " + i);
+	}
+	return row;
+    }
+}
+
+public static Test suite() {
+    return new TestSuite(DataCursorTest.class);
+}
+
+public DataCursorTest(String name) {
+    super(name);
+}
+
+protected void checkNavigation(DataCursor cursor) {
+    for (int i = 1; i <= NUM_ROWS; ++i) {
+	assertTrue(cursor.next());
+	assertEquals(i, cursor.getRow());
+	assertEquals(i == 1, cursor.isFirst());
+
+	if (i == 3) {
+	    assertNull(cursor.getObject(1));
+	    assertTrue(cursor.isNull(2));
+	    assertEquals(0, cursor.getDouble(3), 0);
+	}
+	else {
+	    assertEquals(new Integer(i), cursor.getObject(1));
+	    assertEquals(new Long(i * 1000L), cursor.getObject(2));
+	    assertEquals(new Double(i / 2.0), cursor.getObject(3));
+	    assertEquals("row " + i, cursor.getObject(4));
+	    assertEquals(i * 1000L, cursor.getLong(2));
+	    assertEquals(i / 2.0, cursor.getDouble(3), 0);
+	    assertTrue(cursor.valueEquals(1, new Integer(i)));
+	    assertTrue(!cursor.valueEquals(1, new Long(i)));
+	}
+
+	// Look back at the previous row, then return
+	if (i > 1) {
+	    assertTrue(cursor.previous());
+	    assertEquals(i - 1, cursor.getRow());
+	    if (i - 1 != 3)
+		assertEquals("row " + (i - 1), cursor.getObject(4));
+	    assertTrue(cursor.next());
+	    assertEquals(i, cursor.getRow());
+	}
+
+	// Same order as Report.processResultRow: look back, then ahead
+	assertEquals(i == NUM_ROWS, cursor.isLast());
+    }
+    assertTrue(!cursor.next());
+    assertNull(cursor.getObject(1));
+
+    cursor.last();
+    assertEquals(NUM_ROWS, cursor.getRow());
+    assertEquals("row " + NUM_ROWS, cursor.getObject(4));
+}
+
+public void testListStorage() {
+    DataCursor cursor = new NumberCursor(false);
+    assertTrue(!cursor.isTypedStorage());
+    checkNavigation(cursor);
+}
+
+public void testTypedStorage() {
+    DataCursor cursor = new NumberCursor(true);
+    assertTrue(cursor.isTypedStorage());
+    checkNavigation(cursor);
+}
+
+public void testPrefetch() {
+    // Batch sizes that do and do not divide the number of rows evenly
+    checkNavigation(new PrefetchCursor(new NumberCursor(false), 1, 1));
+    checkNavigation(new PrefetchCursor(new NumberCursor(true), 2, 1));
+    checkNavigation(new PrefetchCursor(new NumberCursor(false), 100, 4));
+}
+
+public void testPrefetchClose() {
+    final int[] closed = new int[1];
+    DataCursor cursor = new PrefetchCursor(new NumberCursor(false) {
+	public void close() { ++closed[0]; }
+	}, 1, 1);
+    assertTrue(cursor.next());
+    cursor.close();		// Producer is probably blocked on a full queue
+    assertEquals(1, closed[0]);
+}
+
+public void testPrefetchInterrupted() {
+    final Object lock = new Object();
+    final boolean[] released = new boolean[1];
+    DataCursor cursor = new PrefetchCursor(new NumberCursor(false) {
+	protected List readRowData() {
+	    synchronized (lock) {
+		while (!released[0])
+		    try { lock.wait(); } catch (InterruptedException e) {}
+	    }
+	    return null;
+	}
+	}, 1, 1);
+
+    Thread.currentThread().interrupt();
+    try {
+	cursor.next();
+	fail("interrupted wait returned");
+    }
+    catch (UserCancellationException e) {
+	assertTrue(Thread.interrupted()); // Flag is restored; clear it
+    }
+    synchronized (lock) {
+	released[0] = true;
+	lock.notifyAll();
+    }
+    cursor.close();
+}
+
+protected void checkLookAhead(DataCursor cursor) {
+    assertEquals(2, cursor.lookAhead(2)); // Before the first row
+    assertEquals(Arrays.asList(new Object[] {new Integer(1), new Integer(2)}),
+		 cursor.peekColumn(2, 1));
+
+    assertTrue(cursor.next());
+    assertEquals(NUM_ROWS - 1, cursor.lookAhead(100));
+    List ids = cursor.peekColumn(NUM_ROWS - 1, 1);
+    assertEquals(new Integer(2), ids.get(0));
+    assertNull(ids.get(1));
+    assertEquals(new Integer(NUM_ROWS), ids.get(NUM_ROWS - 2));
+
+    // Moving back and forth keeps the rows read ahead
+    assertTrue(cursor.next());
+    assertTrue(cursor.previous());
+    assertTrue(cursor.next());
+    for (int i = 3; i <= NUM_ROWS; ++i) {
+	assertTrue(cursor.next());
+	assertEquals(i, cursor.getRow());
+	assertEquals(NUM_ROWS - i, cursor.lookAhead(NUM_ROWS));
+	assertEquals(i == NUM_ROWS, cursor.isLast());
+    }
+    assertTrue(!cursor.next());
+    cursor.last();
+    assertEquals("row " + NUM_ROWS, cursor.getObject(4));
+}
+
+public void testLookAhead() {
+    checkLookAhead(new NumberCursor(false));
+    checkLookAhead(new NumberCursor(true));
+    checkLookAhead(new PrefetchCursor(new NumberCursor(false), 2, 1));
+}
+
+public void testEmpty() {
+    DataCursor cursor = new NumberCursor(true) {
+	protected List readRowData() { return null; }
+	};
+    assertTrue(cursor.isLast());
+    assertTrue(!cursor.next());
+    assertNull(cursor.getObject(1));
+    assertEquals(0, cursor.getLong(1));
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,180 @@
+package jimm.datavision.test;
+import jimm.datavision.*;
+import jimm.datavision.field.ColumnField;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.Column;
+import jimm.datavision.source.Table;
+import jimm.datavision.source.sql.Database;
+import jimm.datavision.source.sql.MetadataCache;
+import jimm.datavision.source.sql.SQLTable;
+import java.io.*;
+import java.sql.*;
+import java.util.Iterator;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests how a {@link Database} loads table and column metadata. Uses an
+ * in-memory SQLite database, so these tests do not need a database server.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class DatabaseMetadataTest extends TestCase {
+
+protected static final int NUM_TABLES = 50;
+
+protected Connection conn;
+protected File cacheDir;
+
+public static Test suite() {
+    return new TestSuite(DatabaseMetadataTest.class);
+}
+
+public DatabaseMetadataTest(String name) {
+    super(name);
+}
+
+public void setUp() throws Exception {
+    Class.forName("org.sqlite.JDBC");
+    conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+    Statement stmt = conn.createStatement();
+    for (int i = 0; i < NUM_TABLES; ++i)
+	stmt.executeUpdate("create table t_" + i + " (id integer, name varchar(20))");
+    stmt.executeUpdate("create table tx1 (id integer)"); // Matches "t_1"
+    stmt.executeUpdate("insert into t_7 values (1, 'one')");
+    stmt.executeUpdate("insert into t_7 values (2, 'two')");
+    stmt.close();
+
+    cacheDir = File.createTempFile("dvmc", "test");
+    cacheDir.delete();
+}
+
+public void tearDown() throws SQLException {
+    if (conn != null)
+	conn.close();
+    File[] files = cacheDir.listFiles();
+    if (files != null)
+	for (int i = 0; i < files.length; ++i)
+	    files[i].delete();
+    cacheDir.delete();
+}
+
+protected Database cachingDatabase() throws Exception {
+    Report report = new Report();
+    report.setDatabaseConnection(conn);
+    Database db = (Database)report.getDataSource();
+    db.setMetadataCacheDirectory(cacheDir);
+    db.setMetadataCacheTTL(3600);
+    return db;
+}
+
+protected int countTables(Database db) {
+    int n = 0;
+    for (Iterator iter = db.tables(); iter.hasNext(); iter.next())
+	++n;
+    return n;
+}
+
+public void testTablesLoadedByName() throws Exception {
+    Report report = new Report();
+    report.setDatabaseConnection(conn);
+    Database db = (Database)report.getDataSource();
+
+    Column col = db.findColumn("T_7.name");
+    assertNotNull(col);
+    assertNotNull(db.findColumn("T_1.id"));
+    assertNull(db.findColumn("no_such_table.id"));
+    assertTrue(!db.isCatalogLoaded());
+
+    Section detail = report.getFirstSectionByArea(SectionArea.DETAIL);
+    detail.addField(new ColumnField(null, report, detail, "T_7.name", true));
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    assertTrue(out.toString().indexOf("two") >= 0);
+    assertTrue(!db.isCatalogLoaded());
+
+    // Asking for every table loads the rest, keeping the tables we have
+    Table t = col.getTable();
+    assertTrue(countTables(db) >= NUM_TABLES + 1);
+    assertTrue(db.isCatalogLoaded());
+    boolean found = false;
+    for (Iterator iter = db.tables(); iter.hasNext(); )
+	if (iter.next() == t)
+	    found = true;
+    assertTrue(found);
+    assertSame(col, db.findColumn("T_7.name"));
+}
+
+public void testColumnsLoadAllTables() throws Exception {
+    Report report = new Report();
+    report.setDatabaseConnection(conn);
+    Database db = (Database)report.getDataSource();
+    int n = 0;
+    for (Iterator iter = db.columns(); iter.hasNext(); iter.next())
+	++n;
+    assertEquals(NUM_TABLES * 2 + 1, n);
+    assertTrue(db.isCatalogLoaded());
+}
+
+public void testMetadataCache() throws Exception {
+    Database db = cachingDatabase();
+    Column live = db.findColumn("T_7.name");
+    assertNotNull(live);
+    db.saveMetadataCache();
+    assertTrue(cacheDir.isDirectory());
+
+    // A new database starts from the cache
+    db = cachingDatabase();
+    Column col = db.findColumn("T_7.name");
+    assertNotNull(col);
+    assertEquals(live.getType(), col.getType());
+    assertTrue(((SQLTable)col.getTable()).isFromCache());
+
+    // A column that isn't in the cache makes the table check the database
+    Statement stmt = conn.createStatement();
+    stmt.executeUpdate("alter table t_7 add column extra integer");
+    stmt.close();
+    assertNotNull(db.findColumn("T_7.extra"));
+    assertSame(col, db.findColumn("T_7.name"));
+    assertTrue(!((SQLTable)col.getTable()).isFromCache());
+}
+
+public void testMetadataCacheCatalog() throws Exception {
+    Database db = cachingDatabase();
+    assertEquals(NUM_TABLES + 1, countTables(db)); // Writes the cache
+
+    db = cachingDatabase();
+    assertTrue(db.isCatalogLoaded());
+    assertEquals(NUM_TABLES + 1, countTables(db));
+
+    // Tables created since the cache was written are still found by name
+    Statement stmt = conn.createStatement();
+    stmt.executeUpdate("create table newer (id integer)");
+    stmt.close();
+    assertNotNull(db.findColumn("NEWER.id"));
+}
+
+public void testExpiredMetadataCache() throws Exception {
+    Database db = cachingDatabase();
+    assertNotNull(db.findColumn("T_7.name"));
+    db.saveMetadataCache();
+
+    Report report = new Report();
+    report.setDatabaseConnection(conn);
+    db = (Database)report.getDataSource();
+    db.setMetadataCacheDirectory(cacheDir);
+    Thread.sleep(1100);
+    db.setMetadataCacheTTL(1);
+    Column col = db.findColumn("T_7.name");
+    assertNotNull(col);
+    assertTrue(!((SQLTable)col.getTable()).isFromCache());
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,76 @@
+package jimm.datavision.test;
+import jimm.datavision.*;
+import jimm.datavision.field.AggregateField;
+import jimm.datavision.field.Field;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.sql.Database;
+import jimm.datavision.source.sql.SQLQuery;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers shared by the tests that run reports against SQLite databases.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+class DatabaseTestHelper {
+
+/**
+ * Remembers the SQL of the last query run and the cursor it returned. If
+ * <var>countRows</var> is <code>true</code>, also counts the rows the
+ * report reads.
+ */
+static class RecordingDatabase extends Database {
+    String sql;
+    DataCursor cursor;
+    boolean countRows;
+    int rows;
+    RecordingDatabase(Connection conn, Report report) throws SQLException {
+	super(conn, report);
+    }
+    RecordingDatabase(String driver, String url, Report report)
+	throws Exception
+    {
+	super(driver, url, report, "", "", "");
+    }
+    public DataCursor execute() throws SQLException {
+	sql = ((SQLQuery)query).toString();
+	return cursor = super.execute();
+    }
+    public DataCursor executeForReport() throws Exception {
+	final DataCursor reportCursor = super.executeForReport();
+	if (!countRows)
+	    return reportCursor;
+	return new DataCursor() {
+	    protected List readRowData() {
+		if (!reportCursor.next())
+		    return null;
+		++rows;
+		ArrayList row = new ArrayList();
+		for (int i = 1; i <= query.getNumSelectables(); ++i)
+		    row.add(reportCursor.getObject(i));
+		return row;
+	    }
+	    public void close() { reportCursor.close(); }
+	    };
+    }
+}
+
+/**
+ * Adds an aggregate of <var>f</var> to section <var>s</var>.
+ *
+ * @param s a section
+ * @param f the field to aggregate
+ * @param function the aggregate function name, like "sum"
+ * @param g the group to aggregate over; <code>null</code> for the whole
+ * report
+ */
+static void addAggregate(Section s, Field f, String function, Group g) {
+    AggregateField af = new AggregateField(null, s.getReport(), s, f.getId(),
+					   true, function);
+    af.setGroup(g);
+    s.addField(af);
+}
+
+}
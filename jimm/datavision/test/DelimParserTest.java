@@ -1,5 +1,7 @@
 package jimm.datavision.test;
 import jimm.datavision.source.charsep.DelimParser;
+import jimm.datavision.source.charsep.DelimRecord;
+import jimm.datavision.source.charsep.MappedDelimParser;
 import jimm.util.StringUtils;
 import java.io.*;
 import java.util.List;
@@ -10,7 +12,8 @@ import junit.framework.Test;
 /**
  * Compares CSV file input with "answers" file. The answers file is
  * tab-delimited and lines that end with a backslash are continued
- * on the next line.
+ * on the next line. Also makes sure that {@link MappedDelimParser} returns
+ * exactly what {@link DelimParser} does.
  *
  * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
  */
@@ -64,6 +67,103 @@ public void testParser() {
     }
 }
 
+public void testMappedParser() throws IOException {
+    // A tiny window makes lines cross window boundaries
+    int[] windowSizes = { MappedDelimParser.DEFAULT_WINDOW_SIZE, 7, 1 };
+    for (int i = 0; i < windowSizes.length; ++i) {
+	BufferedReader answers = new BufferedReader(new FileReader(TEST_ANSWERS));
+	MappedDelimParser parser =
+	    new MappedDelimParser(new File(TEST_INPUT), ',', "UTF-8",
+				  windowSizes[i]);
+	try {
+	    List answer;
+	    while ((answer = getNextAnswer(answers)) != null)
+		assertEquals(answer, parser.parse());
+	    assertNull(parser.parse());
+	    assertNull(parser.parse());
+	}
+	finally {
+	    parser.close();
+	    answers.close();
+	}
+    }
+}
+
+/**
+ * Odd inputs, line endings, and end-of-file cases. Whatever DelimParser
+ * does with these, MappedDelimParser must do too.
+ */
+public void testMappedParserMatchesDelimParser() throws IOException {
+    String[] inputs = {
+	"", "\n", "\n\n", "a", "a,", "a,b\n", "a,b\r\nc,d\r\n", "a\rb\r",
+	"\"a\"\r\nb", "a,\"\"", "a,\"\"\n", "\"ab\"cd,e\n", "x\"y\"z,w",
+	",,\n,", "\"a,\"\",b\"", "\"multi\r\nline\"\n", "\n\na\n\n",
+	"caf\u00e9,\"na\u00efve \"\"q\"\"\"\n"
+    };
+    File f = File.createTempFile("datavision_delim", ".csv");
+    f.deleteOnExit();
+    try {
+	for (int i = 0; i < inputs.length; ++i) {
+	    Writer out = new OutputStreamWriter(new FileOutputStream(f),
+						"UTF-8");
+	    out.write(inputs[i]);
+	    out.close();
+
+	    int[] windowSizes = { 1024, 2, 1 };
+	    for (int j = 0; j < windowSizes.length; ++j) {
+		DelimParser expected =
+		    new DelimParser(new StringReader(inputs[i]), ',');
+		MappedDelimParser parser =
+		    new MappedDelimParser(f, ',', "UTF-8", windowSizes[j]);
+		List answer;
+		do {
+		    answer = expected.parse();
+		    assertEquals("input " + i, answer, parser.parse());
+		} while (answer != null);
+		parser.close();
+	    }
+	}
+    }
+    finally {
+	f.delete();
+    }
+}
+
+public void testRecordNumbers() throws IOException {
+    File f = File.createTempFile("datavision_delim", ".csv");
+    f.deleteOnExit();
+    try {
+	Writer out = new FileWriter(f);
+	out.write("42,-17,3.25,-0.5,.5,1e3,12345678901,0.1,,x\n");
+	out.close();
+
+	MappedDelimParser parser = new MappedDelimParser(f, ',');
+	DelimRecord r = parser.readRecord();
+	parser.close();
+
+	assertEquals(10, r.size());
+	assertEquals(42, r.getInt(0));
+	assertEquals(-17, r.getInt(1));
+	assertEquals(3.25, r.getDouble(2), 0);
+	assertEquals(-0.5, r.getDouble(3), 0);
+	assertEquals(0.5, r.getDouble(4), 0);
+	assertEquals(1000, r.getDouble(5), 0);
+	assertEquals(Double.parseDouble("0.1"), r.getDouble(7), 0);
+	assertTrue(r.contains(2, '.'));
+	assertTrue(!r.contains(0, '.'));
+	assertTrue(r.isEmpty(8));
+	assertEquals("x", r.getString(9));
+	try {
+	    r.getInt(6);
+	    fail("int overflow should throw an exception");
+	}
+	catch (NumberFormatException nfe) {}
+    }
+    finally {
+	f.delete();
+    }
+}
+
 protected List getNextAnswer(BufferedReader in) throws IOException {
     String line = in.readLine();
     if (line == null)
@@ -0,0 +1,197 @@
+package jimm.datavision.test;
+import jimm.datavision.*;
+import jimm.datavision.expr.*;
+import jimm.datavision.test.mock.source.MockDataSource;
+import java.util.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests the expression language compiler and formulas written in the
+ * expression language.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class ExpressionCompilerTest extends TestCase {
+
+protected Report report;
+
+public static Test suite() {
+    return new TestSuite(ExpressionCompilerTest.class);
+}
+
+public ExpressionCompilerTest(String name) {
+    super(name);
+}
+
+public void setUp() {
+    report = new Report();
+    report.setDataSource(new MockDataSource(report));
+}
+
+protected Object eval(String expr) throws ExpressionException {
+    return ExpressionCompiler.compile(expr).eval(new Object[0]);
+}
+
+/** Compiles a one-operand expression and evaluates it with a value. */
+protected Object eval(String before, int type, String after, Object val)
+    throws ExpressionException
+{
+    List parts = Arrays.asList(new Object[] {
+	before, new Operand(type, "{x}"), after
+    });
+    return ExpressionCompiler.compile(parts).eval(new Object[] { val });
+}
+
+protected void assertError(String expr) {
+    try {
+	ExpressionCompiler.compile(expr);
+	fail("expected error compiling " + expr);
+    }
+    catch (ExpressionException e) {}
+}
+
+public void testArithmetic() throws Exception {
+    assertEquals(new Long(42), eval("39 + 3"));
+    assertEquals(new Long(42), eval("6 * (10 - 3)"));
+    assertEquals(new Double(42), eval("84.0 / 2"));
+    assertEquals(new Double(3.5), eval("7 / 2"));
+    assertEquals(new Long(1), eval("7 % 2"));
+    assertEquals(new Long(-42), eval("-(40 + 2)"));
+    assertEquals(new Double(1.5e3), eval("1.5e3"));
+    assertEquals(new Double(42.5), eval("40 + 2.5"));
+}
+
+public void testStrings() throws Exception {
+    assertEquals("foobar", eval("\"foo\" + 'bar'"));
+    assertEquals("x42", eval("'x' + 42"));
+    assertEquals("say \"hi\"", eval("'say \\\"hi\\\"'"));
+    assertEquals("FOO", eval("upper('foo')"));
+    assertEquals("ell", eval("substr('hello', 2, 3)"));
+    assertEquals("lo", eval("right('hello', 2)"));
+    assertEquals(new Long(3), eval("indexOf('hello', 'l')"));
+    assertEquals("h_llo", eval("replace('hello', 'e', '_')"));
+    assertEquals("007", eval("lpad('7', 3, '0')"));
+    assertEquals(Boolean.TRUE, eval("'abc' < 'abd'"));
+}
+
+public void testLogic() throws Exception {
+    assertEquals(Boolean.TRUE, eval("1 < 2 && 2.5 >= 2"));
+    assertEquals(Boolean.TRUE, eval("1 > 2 or not false"));
+    assertEquals(Boolean.FALSE, eval("!(1 == 1)"));
+    assertEquals("yes", eval("3 != 4 ? 'yes' : 'no'"));
+    assertEquals(new Double(2), eval("false ? 1 : 2.0"));
+}
+
+public void testFunctions() throws Exception {
+    assertEquals(new Long(42), eval("round(41.6)"));
+    assertEquals(new Double(41.57), eval("round(41.567, 2)"));
+    assertEquals(new Long(42), eval("abs(-42)"));
+    assertEquals(new Double(42), eval("max(42, 41.5)"));
+    assertEquals(new Double(42), eval("sqrt(1764)"));
+    assertEquals("42", eval("string(42)"));
+    assertEquals(new Long(42), eval("integer('42')"));
+    assertEquals("1,234.50", eval("format(1234.5, '#,##0.00')"));
+}
+
+public void testDates() throws Exception {
+    assertEquals(new Long(2004), eval("year(date(2004, 2, 28))"));
+    assertEquals(new Long(3), eval("month(date(2004, 2, 28) + 2)"));
+    assertEquals(new Double(2), eval("date(2004, 3, 1) - date(2004, 2, 28)"));
+    assertEquals("2004-03-28", eval("format(addMonths(date(2004, 2, 28), 1), 'yyyy-MM-dd')"));
+    assertEquals(Boolean.TRUE, eval("date(2004, 1, 1) < date(2004, 1, 2)"));
+}
+
+public void testOperands() throws Exception {
+    int LONG = CompiledExpression.TYPE_LONG;
+    int DOUBLE = CompiledExpression.TYPE_DOUBLE;
+    int STRING = CompiledExpression.TYPE_STRING;
+    int DATE = CompiledExpression.TYPE_DATE;
+    int OBJECT = CompiledExpression.TYPE_OBJECT;
+
+    assertEquals(new Long(42), eval("", LONG, " * 2", new Integer(21)));
+    assertEquals(new Double(42), eval("", DOUBLE, " * 2",
+				      new java.math.BigDecimal("21")));
+    assertEquals("Hi Bob", eval("'Hi ' + ", STRING, "", "Bob"));
+    assertEquals(new Long(2004),
+		 eval("year(", DATE, ")", new java.sql.Date(104, 0, 1)));
+    assertEquals(new Double(42), eval("number(", OBJECT, ")", "42"));
+
+    // Null operands make the result null, except in isnull and ifnull
+    assertNull(eval("", LONG, " * 2", null));
+    assertEquals(Boolean.TRUE, eval("isnull(", LONG, ")", null));
+    assertEquals(new Long(0), eval("ifnull(", LONG, ", 0)", null));
+    assertEquals(new Long(3), eval("ifnull(", LONG, ", 0)", new Long(3)));
+    CompiledExpression ce = ExpressionCompiler.compile(Arrays.asList(new Object[] {
+	"'x' + ", new Operand(STRING, "{x}")
+    }));
+    assertEquals(CompiledExpression.TYPE_STRING, ce.getType());
+}
+
+public void testErrors() {
+    assertError("");
+    assertError("1 +");
+    assertError("(1 + 2");
+    assertError("1 = 2");
+    assertError("'a' - 1");
+    assertError("true + 1");
+    assertError("1 && true");
+    assertError("'a' < 1");
+    assertError("nosuchfunction(1)");
+    assertError("upper(1)");
+    assertError("{unknown.column}");
+    assertError("'unterminated");
+    assertError("isnull(1)");
+    try {			// Operands of unknown type must be converted
+	ExpressionCompiler.compile(Arrays.asList(new Object[] {
+	    new Operand(CompiledExpression.TYPE_OBJECT, "{!1}"), " + 1"
+	}));
+	fail("expected error adding an object");
+    }
+    catch (ExpressionException e) {
+	assertTrue(e.getMessage().indexOf("number()") != -1);
+    }
+}
+
+public void testFormulas() throws Exception {
+    String lang = Scripting.EXPRESSION_LANGUAGE;
+    Parameter p = new Parameter(null, report, Parameter.TYPE_NUMERIC, "rate",
+				"rate", Parameter.ARITY_ONE);
+    p.addValue(new Double(2.5));
+    report.addParameter(p);
+
+    Formula g = new Formula(null, report, "referenced");
+    g.setLanguage(lang);
+    g.setExpression("20");
+    report.addFormula(g);
+
+    Formula f = new Formula(null, report, "native");
+    f.setLanguage(lang);
+    f.setExpression(g.formulaString() + " * " + p.formulaString()
+		    + " + length({%report.title})");
+    report.setTitle("abc");
+    assertEquals(new Double(53), f.eval());
+
+    // The referenced formula's type is known, so integer math is used
+    f.setExpression(g.formulaString() + " % 7");
+    assertEquals(new Long(6), f.eval());
+
+    // Ruby formulas have no type
+    Formula ruby = new Formula(null, report, "ruby");
+    ruby.setExpression("21");
+    report.addFormula(ruby);
+    f.setExpression("integer(" + ruby.formulaString() + ") * 2");
+    assertEquals(new Long(42), f.eval());
+
+    // A nil Ruby formula makes the expression nil
+    ruby.setExpression("nil");
+    assertNull(f.eval());
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
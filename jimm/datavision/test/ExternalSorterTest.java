@@ -0,0 +1,169 @@
+package jimm.datavision.test;
+import jimm.datavision.source.ExternalSorter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests the {@link ExternalSorter}, both in memory and when it writes runs
+ * to disk.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class ExternalSorterTest extends TestCase {
+
+protected static final int NUM_ROWS = 2000;
+
+public static Test suite() {
+    return new TestSuite(ExternalSorterTest.class);
+}
+
+public ExternalSorterTest(String name) {
+    super(name);
+}
+
+/**
+ * Returns rows containing a group number, a value that is sometimes an
+ * Integer and sometimes a Double, and the row's original position.
+ */
+protected List makeRows() {
+    Random random = new Random(42);
+    ArrayList rows = new ArrayList();
+    for (int i = 0; i < NUM_ROWS; ++i) {
+	ArrayList row = new ArrayList();
+	row.add(random.nextInt(10) == 0 ? null
+		: new Integer(random.nextInt(20)));
+	int n = random.nextInt(50);
+	row.add(n % 2 == 0 ? (Object)new Integer(n) : new Double(n + 0.5));
+	row.add(new Integer(i));
+	rows.add(row);
+    }
+    return rows;
+}
+
+protected List sort(List rows, long memoryBudget, boolean expectSpill)
+    throws IOException
+{
+    ExternalSorter sorter =
+	new ExternalSorter(new int[] { 0, 1 }, new boolean[] { false, true },
+			   memoryBudget);
+    try {
+	for (Iterator iter = rows.iterator(); iter.hasNext(); )
+	    sorter.add((List)iter.next());
+	sorter.finish();
+	assertEquals(expectSpill, sorter.hasSpilled());
+
+	ArrayList sorted = new ArrayList();
+	List row;
+	while ((row = sorter.next()) != null)
+	    sorted.add(row);
+	return sorted;
+    }
+    finally {
+	sorter.close();
+    }
+}
+
+protected void checkSorted(List sorted) {
+    assertEquals(NUM_ROWS, sorted.size());
+    for (int i = 1; i < sorted.size(); ++i) {
+	List prev = (List)sorted.get(i - 1);
+	List row = (List)sorted.get(i);
+	int cmp = ExternalSorter.compareValues(prev.get(0), row.get(0));
+	assertTrue(cmp <= 0);
+	if (cmp == 0) {
+	    cmp = ExternalSorter.compareValues(prev.get(1), row.get(1));
+	    assertTrue(cmp >= 0); // Descending
+	    if (((Number)prev.get(1)).doubleValue()
+		== ((Number)row.get(1)).doubleValue())
+		// Stable
+		assertTrue(((Integer)prev.get(2)).intValue()
+			   < ((Integer)row.get(2)).intValue());
+	}
+    }
+}
+
+public void testInMemory() throws IOException {
+    checkSorted(sort(makeRows(), Long.MAX_VALUE, false));
+}
+
+public void testSpilled() throws IOException {
+    List rows = makeRows();
+    List inMemory = sort(rows, Long.MAX_VALUE, false);
+    // Small enough to make more runs than can be merged at once
+    List spilled = sort(rows, 1000, true);
+    checkSorted(spilled);
+    assertEquals(inMemory, spilled);
+}
+
+public void testCompareValues() {
+    assertTrue(ExternalSorter.compareValues(null, new Integer(0)) < 0);
+    assertTrue(ExternalSorter.compareValues(new Integer(2),
+					    new Double(1.5)) > 0);
+    assertTrue(ExternalSorter.compareValues(new Long(3),
+					    new BigDecimal("3.1")) < 0);
+    assertEquals(0, ExternalSorter.compareValues(new Integer(3),
+						 new Long(3)));
+    assertTrue(ExternalSorter.compareValues("abc", "abd") < 0);
+    assertTrue(ExternalSorter.compareValues(new Date(1000),
+					    new java.sql.Timestamp(2000)) < 0);
+}
+
+/**
+ * Makes sure every kind of value survives being written to a run file.
+ */
+public void testValueTypes() throws IOException {
+    StringBuffer buf = new StringBuffer();
+    for (int i = 0; i < 30000; ++i)
+	buf.append('\u20ac');
+    java.sql.Timestamp ts = new java.sql.Timestamp(123456789L);
+    ts.setNanos(987654321);
+    Object[] values = {
+	null, "caf\u00e9", buf.toString(), new Integer(-5), new Long(1L << 40),
+	new Double(2.5), new Float(1.25f), new Short((short)7),
+	new Byte((byte)-1), Boolean.TRUE, new Character('x'),
+	new BigDecimal("12345678901234567890.123"),
+	new java.math.BigInteger("98765432109876543210"), new Date(1000),
+	new java.sql.Date(86400000L), new java.sql.Time(3600000L), ts,
+	Arrays.asList(new Object[] { "serialized" })
+    };
+
+    ArrayList rows = new ArrayList();
+    for (int i = 0; i < 3; ++i) {
+	ArrayList row = new ArrayList();
+	row.add(new Integer(2 - i));
+	row.addAll(Arrays.asList(values));
+	rows.add(row);
+    }
+
+    ExternalSorter sorter =
+	new ExternalSorter(new int[] { 0 }, new boolean[] { false }, 1);
+    try {
+	for (Iterator iter = rows.iterator(); iter.hasNext(); )
+	    sorter.add((List)iter.next());
+	sorter.finish();
+	assertTrue(sorter.hasSpilled());
+	for (int i = 2; i >= 0; --i) {
+	    List row = sorter.next();
+	    assertEquals(rows.get(i), row);
+	    for (int j = 1; j < row.size(); ++j)
+		if (row.get(j) != null)
+		    assertSame(((List)rows.get(i)).get(j).getClass(),
+			       row.get(j).getClass());
+	}
+	assertNull(sorter.next());
+    }
+    finally {
+	sorter.close();
+    }
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
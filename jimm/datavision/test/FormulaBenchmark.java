@@ -0,0 +1,128 @@
+package jimm.datavision.test;
+import jimm.datavision.Formula;
+import jimm.datavision.Parameter;
+import jimm.datavision.Report;
+import jimm.datavision.Scripting;
+
+/**
+ * Compares how fast formulas are evaluated when they are compiled once
+ * with how fast they are evaluated when values are pasted into their text
+ * and the text is parsed every time. This is not a unit test and is not
+ * run by {@link AllTests}.
+ * <p>
+ * Usage: <code>java jimm.datavision.test.FormulaBenchmark
+ * [evaluations]</code>
+ * <p>
+ * For each of a few formulas that refer to a numeric parameter, sets the
+ * parameter to a new value and evaluates the formula
+ * <var>evaluations</var> times, once with compiled formulas and once
+ * without, and prints the elapsed times and speedup. Then does the same
+ * for an equivalent formula written in the expression language.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see Scripting#setCompileFormulas
+ */
+public class FormulaBenchmark {
+
+protected static final int RUNS = 3;
+protected static final String[] EXPRESSIONS = {
+    "{?1} * 2",
+    "{?1}.nil? ? nil : {?1} / 100.0",
+    "x = {?1} % 7; x == 0 ? \"none\" : (x * {?1}).to_s",
+    "[{?1}, 500, {?1} * 3].max - [{?1}, 10].min"
+};
+/** The same formulas in the expression language. */
+protected static final String[] NATIVE_EXPRESSIONS = {
+    "{?1} * 2",
+    "{?1} / 100.0",
+    "{?1} % 7 == 0 ? \"none\" : string(({?1} % 7) * {?1})",
+    "max({?1}, max(500, {?1} * 3)) - min({?1}, 10)"
+};
+
+protected Report report;
+protected Parameter param;
+protected Formula formula;
+
+public FormulaBenchmark() {
+    report = new Report();
+    param = new Parameter(new Long(1), report, Parameter.TYPE_NUMERIC,
+			  "value", "value", Parameter.ARITY_ONE);
+    report.addParameter(param);
+    formula = new Formula(null, report, "benchmark");
+}
+
+/**
+ * Returns <code>true</code> if compiled and pasted evaluation of
+ * <var>expression</var> give the same results.
+ */
+public boolean sameResults(String expression) {
+    formula.setLanguage(null);
+    for (int i = -3; i < 30; ++i) {
+	param.removeValues();
+	param.addValue(new Long(i));
+	formula.setExpression(expression);
+	report.getScripting().setCompileFormulas(false);
+	Object pasted = formula.eval();
+	report.getScripting().setCompileFormulas(true);
+	formula.setExpression(expression);
+	Object compiled = formula.eval();
+	if (pasted == null ? compiled != null : !pasted.equals(compiled))
+	    return false;
+    }
+    return true;
+}
+
+/**
+ * Evaluates <var>expression</var> <var>evaluations</var> times with a
+ * different parameter value each time and returns the elapsed time in
+ * milliseconds. Uses the fastest of several runs.
+ *
+ * @param language the formula's language; <code>null</code> means Ruby
+ */
+public long time(String expression, String language, int evaluations,
+		 boolean compile)
+{
+    report.getScripting().setCompileFormulas(compile);
+    formula.setLanguage(language);
+    formula.setExpression(expression);
+    long best = Long.MAX_VALUE;
+    for (int run = 0; run < RUNS; ++run) {
+	long start = System.currentTimeMillis();
+	for (int i = 0; i < evaluations; ++i) {
+	    param.removeValues();
+	    param.addValue(new Long(i));
+	    formula.eval();
+	}
+	best = Math.min(best, System.currentTimeMillis() - start);
+    }
+    if (language == null && formula.isCompiled() != compile)
+	System.out.print("(not compiled) ");
+    return best;
+}
+
+public static void main(String[] args) {
+    int evaluations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    FormulaBenchmark benchmark = new FormulaBenchmark();
+
+    for (int i = 0; i < EXPRESSIONS.length; ++i) {
+	String expression = EXPRESSIONS[i];
+	System.out.println(expression);
+	if (!benchmark.sameResults(expression))
+	    System.out.println("  results differ");
+	long spliced = benchmark.time(expression, null, evaluations, false);
+	System.out.print("  pasted: " + spliced + " ms, compiled: ");
+	long compiled = benchmark.time(expression, null, evaluations, true);
+	System.out.println(compiled + " ms, speedup "
+			   + ((double)spliced / Math.max(1, compiled)));
+
+	System.out.print(NATIVE_EXPRESSIONS[i] + "\n  expression language: ");
+	long expr = benchmark.time(NATIVE_EXPRESSIONS[i],
+				   Scripting.EXPRESSION_LANGUAGE, evaluations,
+				   true);
+	System.out.println(expr + " ms, speedup "
+			   + ((double)spliced / Math.max(1, expr)));
+    }
+    System.exit(0);
+}
+
+}
@@ -1,5 +1,7 @@
 package jimm.datavision.test;
 import jimm.datavision.*;
+import jimm.datavision.field.Field;
+import jimm.datavision.field.FormulaField;
 import jimm.datavision.layout.CharSepLE;
 import jimm.datavision.source.charsep.CharSepSource;
 import java.io.*;
@@ -146,6 +148,91 @@ public void testParamInSuppressionProc()
     assertEquals("Chicago", p.getValue());
 }
 
+public void testEvaluationFrequency()
+    throws FileNotFoundException, IOException
+{
+    final int[] evaluations = new int[2];
+    Formula perRun = new Formula(null, report, "per run") {
+	protected Object evaluate(Field f) {
+	    ++evaluations[0];
+	    return super.evaluate(f);
+	}
+    };
+    perRun.setExpression("\"{%report.title}\".length");
+    report.addFormula(perRun);
+    Formula perGroup = new Formula(null, report, "per group") {
+	protected Object evaluate(Field f) {
+	    ++evaluations[1];
+	    return super.evaluate(f);
+	}
+    };
+    perGroup.setExpression("{table.group} * 10");
+    report.addFormula(perGroup);
+
+    // The detail formula uses both and still counts rows
+    Formula detail = report.findFormula(new Long(2));
+    detail.setExpression(perRun.formulaString() + " + "
+			 + perGroup.formulaString()
+			 + "; sum += {table.amount}; count += 1");
+    assertEquals(Formula.EVAL_PER_ROW, detail.getEvaluationFrequency());
+    assertEquals(Formula.EVAL_PER_RUN, perRun.getEvaluationFrequency());
+    assertEquals(Formula.EVAL_PER_GROUP, perGroup.getEvaluationFrequency());
+
+    runEvalTest(null);
+    assertEquals(1, evaluations[0]);
+    assertEquals(2, evaluations[1]); // Once for each group value
+}
+
+public void testHiddenFormulaNotEvaluated()
+    throws FileNotFoundException, IOException
+{
+    final int[] evaluations = new int[1];
+    Formula hidden = new Formula(null, report, "hidden") {
+	protected Object evaluate(Field f) {
+	    ++evaluations[0];
+	    return super.evaluate(f);
+	}
+    };
+    hidden.setExpression("{table.amount} * 2");
+    report.addFormula(hidden);
+    Section detail = report.findField("2").getSection();
+    detail.addField(new FormulaField(null, report, detail, hidden.getId(),
+				     false));
+    assertTrue(!hidden.hasSideEffects());
+
+    // Nothing uses the hidden field's value, so its formula is skipped.
+    // The detail formula has side effects, so the footer still works.
+    runEvalTest(null);
+    assertEquals(0, evaluations[0]);
+}
+
+public void testHiddenFormulaKeepsSectionHeight() {
+    final int[] evaluations = new int[1];
+    Formula hidden = new Formula(null, report, "hidden") {
+	protected Object evaluate(Field f) {
+	    ++evaluations[0];
+	    return super.evaluate(f);
+	}
+    };
+    hidden.setExpression("2 * 3");
+    report.addFormula(hidden);
+    Section section = new Section(report);
+    FormulaField field = new FormulaField(null, report, section,
+					  hidden.getId(), false);
+    field.getBounds().setBounds(0, section.getMinHeight() + 20, 50, 30);
+    section.addField(field);
+
+    // The hidden field is measured by its bounds, without evaluation
+    double hiddenHeight = section.getOutputHeight();
+    assertEquals(0, evaluations[0]);
+    assertEquals(section.getMinHeight() + 50, hiddenHeight, 0);
+
+    // Showing it doesn't change the section's height
+    field.setVisible(true);
+    assertEquals(hiddenHeight, section.getOutputHeight(), 0);
+    assertEquals(1, evaluations[0]);
+}
+
 void runEvalTest(ExpectedLineModifier elm)
     throws FileNotFoundException, IOException
 {
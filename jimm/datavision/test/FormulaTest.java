@@ -170,6 +170,150 @@ public void testIgnoreNonColumns() {
     }
 }
 
+public void testReferences() {
+    Formula g = new Formula(null, report, "referenced");
+    g.setExpression("21");
+    report.addFormula(g);
+    String ref = g.formulaString();
+
+    Formula f = new Formula(null, report, "references");
+    f.setExpression(ref + " * 2");
+    assertEquals(new Long(42), f.eval());
+
+    // References inside braces that aren't columns are still replaced
+    f.setExpression("x = { 1 => " + ref + " }; x[1] * 2");
+    assertEquals(new Long(42), f.eval());
+    f.setExpression("\"#{" + ref + " * 2}\"");
+    assertEquals("42", f.eval());
+
+    // The compiled expression sees changes to referenced formulas
+    g.setExpression("20");
+    assertEquals("40", f.eval());
+
+    // A formula referring to a nil formula is nil
+    g.setExpression("nil");
+    f.setExpression(ref + " * 2");
+    assertNull(f.eval());
+}
+
+public void testCompiled() {
+    Formula g = new Formula(null, report, "referenced");
+    g.setExpression("21");
+    report.addFormula(g);
+    String ref = g.formulaString();
+
+    Formula f = new Formula(null, report, "compiled");
+    f.setExpression(ref + " * 2");
+    assertEquals(new Long(42), f.eval());
+    assertTrue(f.isCompiled());
+
+    // Values are bound each time the formula is evaluated
+    g.setExpression("20.5");
+    assertEquals(new Double(41), f.eval());
+    assertTrue(f.isCompiled());
+
+    // A negative number written into the script binds tighter than "**"
+    g.setExpression("-2");
+    f.setExpression(ref + " ** 2");
+    assertEquals(new Long(-4), f.eval());
+
+    // References in strings are pasted in
+    g.setExpression("21");
+    f.setExpression("\"x#{" + ref + "}\"");
+    assertEquals("x21", f.eval());
+    assertTrue(!f.isCompiled());
+
+    report.getScripting().setCompileFormulas(false);
+    f.setExpression(ref + " * 2");
+    assertEquals(new Long(42), f.eval());
+    assertTrue(!f.isCompiled());
+}
+
+public void testCompiledSeesLocals() {
+    Formula g = new Formula(null, report, "referenced");
+    g.setExpression("21");
+    report.addFormula(g);
+
+    Formula f = new Formula(null, report, "uses local");
+    f.setExpression("defined?(compiled_local) ? compiled_local + "
+		    + g.formulaString() + " : 0");
+    assertEquals(new Long(0), f.eval());
+    assertTrue(f.isCompiled());
+
+    // A local variable created by another formula is seen by this one
+    Formula setter = new Formula(null, report, "sets local");
+    setter.setExpression("compiled_local = 1");
+    setter.eval();
+    assertEquals(new Long(22), f.eval());
+}
+
+public void testEvaluationFrequency() throws Exception {
+    report.read(EXAMPLE_REPORT);
+    Group g = report.findGroup(report.findColumn("jobs.post_date"));
+    assertNotNull(g);
+    String param = report.findParameter(new Long(1)).formulaString();
+
+    // Columns and user columns that aren't grouped change every row
+    assertEquals(Formula.EVAL_PER_ROW,
+		 report.findFormula(new Long(2)).getEvaluationFrequency());
+    assertEquals(Formula.EVAL_PER_ROW,
+		 report.findFormula(new Long(3)).getEvaluationFrequency());
+
+    Formula grouped = new Formula(null, report, "grouped");
+    grouped.setExpression("{jobs.post_date}.to_s");
+    report.addFormula(grouped);
+    assertEquals(Formula.EVAL_PER_GROUP, grouped.getEvaluationFrequency());
+    assertTrue(grouped.groupsUsed().contains(g));
+
+    Formula f = new Formula(null, report, "frequency");
+    f.setExpression(grouped.formulaString() + " + {%report.title}");
+    assertEquals(Formula.EVAL_PER_GROUP, f.getEvaluationFrequency());
+    assertTrue(f.groupsUsed().contains(g));
+    assertTrue(f.dependencyString().indexOf("per group") != -1);
+
+    f.setExpression(param + ".to_s * 2 + {%report.name}.upcase");
+    assertEquals(Formula.EVAL_PER_RUN, f.getEvaluationFrequency());
+    f.setExpression("{%report.row} + 1");
+    assertEquals(Formula.EVAL_PER_ROW, f.getEvaluationFrequency());
+
+    // Scripts that might read or change other state are evaluated every row
+    String[] impure = {
+	"x = " + param, "rand", "$report.row_number", "Time.now",
+	param + ".to_s.upcase!", "total += 1", "@count", "puts " + param,
+	"\"#{" + param + "}\""
+    };
+    for (int i = 0; i < impure.length; ++i) {
+	f.setExpression(impure[i]);
+	assertEquals(impure[i], Formula.EVAL_PER_ROW,
+		     f.getEvaluationFrequency());
+    }
+    f.setExpression(param + " == 'x' ? :a : nil");
+    assertEquals(Formula.EVAL_PER_RUN, f.getEvaluationFrequency());
+
+    f.setLanguage(Scripting.EXPRESSION_LANGUAGE);
+    f.setExpression("upper(" + param + ")");
+    assertEquals(Formula.EVAL_PER_RUN, f.getEvaluationFrequency());
+
+    // Formulas can be declared to have side effects the scan can't see
+    assertTrue(!f.hasSideEffects());
+    f.setSideEffects(true);
+    assertTrue(f.hasSideEffects());
+    assertEquals(Formula.EVAL_PER_ROW, f.getEvaluationFrequency());
+    f.setLanguage(null);
+    f.setSideEffects(false);
+    f.setExpression("total += " + param);
+    assertTrue(f.hasSideEffects());
+
+    // Circular references don't recurse forever
+    Formula a = new Formula(null, report, "a");
+    Formula b = new Formula(null, report, "b");
+    report.addFormula(a);
+    report.addFormula(b);
+    a.setExpression(b.formulaString());
+    b.setExpression(a.formulaString());
+    assertEquals(Formula.EVAL_PER_ROW, a.getEvaluationFrequency());
+}
+
 public static void main(String[] args) {
     junit.textui.TestRunner.run(suite());
     System.exit(0);
@@ -0,0 +1,217 @@
+package jimm.datavision.test;
+import jimm.datavision.Report;
+import jimm.datavision.source.Column;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.PrefetchCursor;
+import jimm.datavision.source.object.*;
+import java.sql.Types;
+import java.util.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests {@link ObjectSource} data read from lists, iterators, row
+ * suppliers, and beans.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class ObjectSourceTest extends TestCase {
+
+protected static final int NUM_ROWS = 100;
+
+/** A bean used to test the {@link BeanRowAdapter}. */
+public static class Job {
+    protected int id;
+    protected String title;
+    protected double rate;
+    protected Date posted;
+
+    public Job(int id) {
+	this.id = id;
+	title = "Job " + id;
+	rate = id * 1.5;
+	posted = new Date(id * 86400000L);
+    }
+    public int getId() { return id; }
+    public String getTitle() { return title; }
+    public double getRate() { return rate; }
+    public Date getPosted() { return posted; }
+}
+
+protected Report report;
+
+public static Test suite() {
+    return new TestSuite(ObjectSourceTest.class);
+}
+
+public ObjectSourceTest(String name) {
+    super(name);
+}
+
+public void setUp() {
+    report = new Report();
+}
+
+protected ArrayList makeRows() {
+    ArrayList rows = new ArrayList();
+    for (int i = 0; i < NUM_ROWS; ++i)
+	rows.add(new ArrayList(Arrays.asList(new Object[] {
+	    new Integer(i), "row " + i
+	})));
+    return rows;
+}
+
+protected void addColumns(ObjectSource source) {
+    source.addColumn(new Column("id", "id", Types.INTEGER));
+    source.addColumn(new Column("name", "name", Types.VARCHAR));
+}
+
+/**
+ * Returns every row read from the data source as a list of lists.
+ */
+protected List readAll(ObjectSource source, int numColumns) throws Exception {
+    ArrayList rows = new ArrayList();
+    DataCursor cursor = source.execute();
+    try {
+	while (cursor.next()) {
+	    ArrayList row = new ArrayList();
+	    for (int i = 1; i <= numColumns; ++i)
+		row.add(cursor.getObject(i));
+	    rows.add(row);
+	}
+    }
+    finally {
+	cursor.close();
+    }
+    return rows;
+}
+
+public void testList() throws Exception {
+    ArrayList rows = makeRows();
+    ObjectSource source = new ObjectSource(report, rows);
+    addColumns(source);
+    assertEquals(rows, readAll(source, 2));
+    assertEquals(rows, readAll(source, 2)); // Lists may be read again
+}
+
+public void testIterator() throws Exception {
+    ArrayList rows = makeRows();
+    ObjectSource source = new ObjectSource(report, rows.iterator());
+    addColumns(source);
+    assertNull(source.getData());
+    assertEquals(rows, readAll(source, 2));
+    assertEquals(0, readAll(source, 2).size()); // Iterators are read once
+}
+
+public void testSupplier() throws Exception {
+    final int[] produced = new int[1];
+    RowSupplier supplier = new RowSupplier() {
+	public List nextRow() {
+	    if (produced[0] == NUM_ROWS)
+		return null;
+	    int i = produced[0]++;
+	    return Arrays.asList(new Object[] { new Integer(i), "row " + i });
+	}
+	public void close() {}
+    };
+    ObjectSource source = new ObjectSource(report, supplier);
+    addColumns(source);
+
+    // Rows are produced lazily
+    DataCursor cursor = source.execute();
+    assertTrue(cursor.next());
+    assertEquals(new Integer(0), cursor.getObject(1));
+    assertTrue(produced[0] < NUM_ROWS);
+    cursor.close();
+}
+
+public void testBuffered() throws Exception {
+    ArrayList rows = makeRows();
+    int[] sizes = { 1, 3, NUM_ROWS * 2 };
+    for (int i = 0; i < sizes.length; ++i) {
+	ObjectSource source = new ObjectSource(report, rows.iterator());
+	addColumns(source);
+	source.setBufferSize(sizes[i]);
+	assertEquals(rows, readAll(source, 2));
+    }
+
+    // Closing before all rows are read stops the producer thread
+    ObjectSource source = new ObjectSource(report, rows.iterator());
+    addColumns(source);
+    source.setBufferSize(2);
+    DataCursor cursor = source.execute();
+    assertTrue(cursor.next());
+    cursor.close();
+}
+
+public void testPrefetch() throws Exception {
+    ArrayList rows = makeRows();
+    ObjectSource source = new ObjectSource(report, rows);
+    addColumns(source);
+    source.setPrefetch(10, 2);
+    assertTrue(source.canPrefetch());
+    DataCursor cursor = source.executeForReport();
+    assertTrue(cursor instanceof PrefetchCursor);
+    cursor.close();
+
+    // The where clause is evaluated on the report thread
+    source.getQuery().setWhereClause("{id} > 6");
+    assertTrue(!source.canPrefetch());
+    cursor = source.executeForReport();
+    assertTrue(!(cursor instanceof PrefetchCursor));
+    int n = 0;
+    while (cursor.next())
+	++n;
+    cursor.close();
+    assertEquals(NUM_ROWS - 7, n);
+}
+
+public void testBeans() throws Exception {
+    ArrayList jobs = new ArrayList();
+    for (int i = 0; i < 10; ++i)
+	jobs.add(new Job(i));
+
+    BeanRowAdapter adapter = new BeanRowAdapter(Job.class);
+    ObjectSource source = new ObjectSource(report, jobs.iterator(), adapter);
+
+    // Columns are sorted by property name
+    String[] names = { "id", "posted", "rate", "title" };
+    int[] types = { Types.INTEGER, Types.DATE, Types.DOUBLE, Types.VARCHAR };
+    for (int i = 0; i < names.length; ++i) {
+	Column col = source.findColumn(names[i]);
+	assertNotNull(col);
+	assertEquals(i, source.indexOfSelectable(col));
+	assertEquals(types[i], col.getType());
+    }
+
+    source.getQuery().setWhereClause("{id} > 6");
+    List rows = readAll(source, 4);
+    assertEquals(3, rows.size());
+    Job job = (Job)jobs.get(7);
+    assertEquals(Arrays.asList(new Object[] {
+	new Integer(job.getId()), job.getPosted(), new Double(job.getRate()),
+	job.getTitle()
+    }), rows.get(0));
+}
+
+public void testBeanProperties() throws Exception {
+    BeanRowAdapter adapter =
+	new BeanRowAdapter(Job.class, new String[] { "title", "id" });
+    assertEquals(2, adapter.getNumColumns());
+    assertEquals(Arrays.asList(new Object[] { "Job 3", new Integer(3) }),
+		 adapter.toRow(new Job(3)));
+
+    try {
+	new BeanRowAdapter(Job.class, new String[] { "salary" });
+	fail("expected an exception for a missing property");
+    }
+    catch (java.beans.IntrospectionException ie) {}
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
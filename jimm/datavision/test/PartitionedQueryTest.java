@@ -0,0 +1,207 @@
+package jimm.datavision.test;
+import jimm.datavision.*;
+import jimm.datavision.field.ColumnField;
+import jimm.datavision.field.SpecialField;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.Query;
+import jimm.datavision.source.sql.ConnectionPool;
+import jimm.datavision.source.sql.PartitionedQuery;
+import jimm.datavision.test.DatabaseTestHelper.RecordingDatabase;
+import java.io.*;
+import java.sql.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests running a report's query in partitions (see {@link
+ * PartitionedQuery}). Uses a SQLite database file, so these tests do not
+ * need a database server. The output of each partitioned run must match
+ * the output of running the query once.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class PartitionedQueryTest extends TestCase {
+
+protected static final String DRIVER = "org.sqlite.JDBC";
+protected static final int NUM_ROWS = 200;
+
+protected File dbFile;
+protected String url;
+protected Report report;
+protected RecordingDatabase db;
+protected Group region;
+
+public static Test suite() {
+    return new TestSuite(PartitionedQueryTest.class);
+}
+
+public PartitionedQueryTest(String name) {
+    super(name);
+}
+
+public void setUp() throws Exception {
+    Class.forName(DRIVER);
+    dbFile = File.createTempFile("datavision_partition_test", ".db");
+    url = "jdbc:sqlite:" + dbFile.getPath();
+
+    Connection conn = DriverManager.getConnection(url);
+    Statement stmt = conn.createStatement();
+    stmt.executeUpdate("create table sales (id integer, region varchar(10), amount integer)");
+    for (int i = 1; i <= NUM_ROWS; ++i) {
+	String r = i % 17 == 0 ? "null" : "'region " + (char)('a' + i % 9) + "'";
+	stmt.executeUpdate("insert into sales values (" + i + ", " + r + ", "
+			   + (i * 3 % 50) + ")");
+    }
+    stmt.close();
+    conn.close();
+    ConnectionPool.setEnabled(true);
+
+    report = new Report();
+    db = new RecordingDatabase(DRIVER, url, report);
+    report.setDataSource(db);
+    Section detail = report.getFirstSectionByArea(SectionArea.DETAIL);
+    ColumnField id = new ColumnField(null, report, detail, "SALES.id", true);
+    detail.addField(id);
+    detail.addField(new ColumnField(null, report, detail, "SALES.amount",
+				    true));
+    detail.addField(new SpecialField(null, report, detail, "report.row",
+				     true));
+    report.getDataSource().getQuery().addSort(id.getColumn(),
+					      Query.SORT_ASCENDING);
+
+    region = Group.create(report, report.findColumn("SALES.region"));
+    report.addGroup(region);
+    Section header = region.headers().first();
+    header.addField(new ColumnField(null, report, header, "SALES.region",
+				    true));
+    Section footer = region.footers().first();
+    DatabaseTestHelper.addAggregate(footer, id, "count", region);
+    Section reportFooter = report.footers().first();
+    DatabaseTestHelper.addAggregate(reportFooter, id, "count", null);
+}
+
+public void tearDown() {
+    ConnectionPool.setEnabled(false);
+    ConnectionPool.closeAll();
+    dbFile.delete();
+}
+
+protected String run(int partitions) {
+    db.setPartitions(partitions);
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    return out.toString();
+}
+
+protected int partitionsUsed() {
+    if (!(db.cursor instanceof PartitionedQuery.PartitionCursor))
+	return 0;
+    return ((PartitionedQuery.PartitionCursor)db.cursor)
+	.getPartitionedQuery().getNumPartitions();
+}
+
+public void testPartitions() throws Exception {
+    String expected = run(0);
+    assertEquals(0, partitionsUsed());
+    assertTrue(expected.indexOf("" + NUM_ROWS) >= 0);
+
+    assertEquals(expected, run(4));
+    assertEquals(4, partitionsUsed()); // Null region gets its own
+    assertEquals(expected, run(3));
+    assertEquals(3, partitionsUsed());
+    assertEquals(expected, run(20));
+    assertEquals(10, partitionsUsed()); // One per region
+}
+
+public void testDescending() throws Exception {
+    region.setSortOrder(Group.SORT_DESCENDING);
+    String expected = run(0);
+    assertEquals(expected, run(4));
+    assertEquals(4, partitionsUsed());
+}
+
+public void testWhereClause() throws Exception {
+    report.getDataSource().getQuery().setWhereClause("{SALES.amount} > 20");
+    String expected = run(0);
+    assertEquals(expected, run(5));
+    assertEquals(5, partitionsUsed());
+}
+
+public void testLargePartitions() throws Exception {
+    // More rows than a worker may read ahead of the report
+    Connection conn = DriverManager.getConnection(url);
+    conn.setAutoCommit(false);
+    PreparedStatement stmt =
+	conn.prepareStatement("insert into sales values (?, ?, ?)");
+    for (int i = 1; i <= 3 * PartitionedQuery.MAX_BUFFERED_ROWS; ++i) {
+	stmt.setInt(1, NUM_ROWS + i);
+	stmt.setString(2, "region " + (char)('a' + i % 3));
+	stmt.setInt(3, i % 50);
+	stmt.executeUpdate();
+    }
+    stmt.close();
+    conn.commit();
+    conn.close();
+
+    String expected = run(0);
+    assertEquals(expected, run(4));
+    assertEquals(4, partitionsUsed());
+}
+
+public void testFailedPartition() throws Exception {
+    // Only the report's own connection can see a temporary table, so every
+    // partition's query fails
+    Statement stmt = db.getConnection().createStatement();
+    stmt.executeUpdate("create temp table dv_ids as select id from sales");
+    stmt.close();
+    report.getDataSource().getQuery()
+	.setWhereClause("{SALES.id} in (select id from dv_ids)");
+    String output = run(4);
+    assertTrue(db.cursor instanceof PartitionedQuery.PartitionCursor);
+    assertTrue(!report.getLayoutEngine().wantsMoreData()); // Cancelled
+    assertTrue(output.indexOf("" + NUM_ROWS) < 0);
+}
+
+public void testPoolSize() throws Exception {
+    String expected = run(0);
+    ConnectionPool pool = db.getConnectionPool();
+
+    // The report holds one connection, leaving one for a single worker
+    pool.setMaxSize(2);
+    assertEquals(expected, run(4));
+    assertEquals(0, partitionsUsed());
+
+    pool.setMaxSize(3);
+    assertEquals(expected, run(4));
+    assertEquals(4, partitionsUsed());
+    assertEquals(2, ((PartitionedQuery.PartitionCursor)db.cursor)
+		 .getPartitionedQuery().getNumThreads());
+
+    // Connections borrowed by others aren't available
+    Connection other = pool.borrow();
+    assertEquals(expected, run(4));
+    assertEquals(0, partitionsUsed());
+    pool.giveBack(other);
+}
+
+public void testNoPool() throws Exception {
+    ConnectionPool.setEnabled(false);
+    report = new Report();
+    db = new RecordingDatabase(DRIVER, url, report);
+    report.setDataSource(db);
+    Group g = Group.create(report, report.findColumn("SALES.region"));
+    report.addGroup(g);
+    Section detail = report.getFirstSectionByArea(SectionArea.DETAIL);
+    detail.addField(new ColumnField(null, report, detail, "SALES.id", true));
+    run(4);
+    assertEquals(0, partitionsUsed());
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,273 @@
+package jimm.datavision.test;
+import jimm.datavision.*;
+import jimm.datavision.field.ColumnField;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.Query;
+import jimm.datavision.source.sql.*;
+import java.io.*;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests the {@link ResultCache} and reports that use it. Uses an in-memory
+ * SQLite database, so these tests do not need a database server.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class ResultCacheTest extends TestCase {
+
+protected static final int NUM_ROWS = 100;
+protected static final File CACHE_DIR =
+    new File(System.getProperty("java.io.tmpdir"),
+	     "datavision_result_cache_test");
+
+protected Connection conn;
+protected ResultCache cache;
+
+public static Test suite() {
+    return new TestSuite(ResultCacheTest.class);
+}
+
+public ResultCacheTest(String name) {
+    super(name);
+}
+
+public void setUp() throws Exception {
+    Class.forName("org.sqlite.JDBC");
+    conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+    Statement stmt = conn.createStatement();
+    stmt.executeUpdate("create table items (id integer, name varchar(20))");
+    stmt.close();
+
+    PreparedStatement ps =
+	conn.prepareStatement("insert into items values (?, ?)");
+    for (int i = 1; i <= NUM_ROWS; ++i) {
+	ps.setInt(1, i);
+	ps.setString(2, "item " + i);
+	ps.executeUpdate();
+    }
+    ps.close();
+
+    cache = new ResultCache(ResultCache.DEFAULT_MEMORY_BUDGET, CACHE_DIR);
+    cache.invalidateAll();
+}
+
+public void tearDown() throws SQLException {
+    cache.invalidateAll();
+    CACHE_DIR.delete();
+    if (conn != null)
+	conn.close();
+}
+
+/**
+ * Runs a report that outputs the id and name of every row in order and
+ * returns the output.
+ */
+protected String runReport(int ttl, boolean typed) throws Exception {
+    Report report = new Report();
+    report.setDatabaseConnection(conn);
+    Database db = (Database)report.getDataSource();
+    db.setResultCache(cache);
+    db.setResultCacheTTL(ttl);
+    db.setTypedRows(typed);
+
+    Section detail = report.getFirstSectionByArea(SectionArea.DETAIL);
+    ColumnField id = new ColumnField(null, report, detail, "ITEMS.id", true);
+    ColumnField name =
+	new ColumnField(null, report, detail, "ITEMS.name", true);
+    detail.addField(id);
+    detail.addField(name);
+    report.getDataSource().getQuery().addSort(id.getColumn(),
+					      Query.SORT_ASCENDING);
+
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    return out.toString();
+}
+
+protected void deleteSomeRows() throws SQLException {
+    Statement stmt = conn.createStatement();
+    stmt.executeUpdate("delete from items where id > 10");
+    stmt.close();
+}
+
+public void testReportUsesCache() throws Exception {
+    String expected = runReport(0, false);
+    assertTrue(expected.indexOf("item " + NUM_ROWS) >= 0);
+    assertEquals(0, cache.getMemoryCount()); // Caching is off
+
+    assertEquals(expected, runReport(60, false));
+    assertEquals(1, cache.getMemoryCount());
+    assertEquals(1, cache.getDiskCount());
+    assertEquals(0, cache.getHits());
+
+    // The cached rows are used even though the table has changed
+    deleteSomeRows();
+    assertEquals(expected, runReport(60, false));
+    assertEquals(expected, runReport(60, true));
+    assertEquals(2, cache.getHits());
+
+    // Without caching, or once the table is invalidated, we see the change
+    String changed = runReport(0, false);
+    assertTrue(!expected.equals(changed));
+    cache.invalidateTable("items");
+    assertEquals(0, cache.getMemoryCount());
+    assertEquals(0, cache.getDiskCount());
+    assertEquals(changed, runReport(60, true));
+    assertEquals(changed, runReport(60, false));
+}
+
+public void testDiskTier() throws Exception {
+    String expected = runReport(60, false);
+    deleteSomeRows();
+
+    // Read from disk when not in memory
+    cache.clearMemory();
+    assertEquals(expected, runReport(60, false));
+    assertEquals(1, cache.getHits());
+
+    // A new cache finds results written by an earlier one
+    cache = new ResultCache(ResultCache.DEFAULT_MEMORY_BUDGET, CACHE_DIR);
+    assertEquals(1, cache.getDiskCount());
+    assertEquals(expected, runReport(60, false));
+    assertEquals(1, cache.getHits());
+}
+
+protected CachedResult makeResult(String key, String table) {
+    ArrayList rows = new ArrayList();
+    for (int i = 0; i < 20; ++i) {
+	rows.add(Arrays.asList(new Object[] {
+	    new Integer(i),
+	    i % 3 == 0 ? null : new Long(i * 10000000000L),
+	    new Double(i / 4.0),
+	    i % 5 == 0 ? null : "row " + i,
+	    i % 2 == 0 ? (Object)new Integer(i) : (Object)new BigDecimal("1.5"),
+	    new java.util.Date(i * 86400000L)
+	}));
+    }
+    return new CachedResult(key, new String[] { table }, 6, rows);
+}
+
+protected void assertSameValues(CachedResult expected, CachedResult actual) {
+    assertEquals(expected.getNumRows(), actual.getNumRows());
+    assertEquals(expected.getNumColumns(), actual.getNumColumns());
+    for (int row = 0; row < expected.getNumRows(); ++row)
+	for (int col = 0; col < expected.getNumColumns(); ++col)
+	    assertEquals(expected.get(row, col), actual.get(row, col));
+}
+
+public void testRoundTrip() throws Exception {
+    CachedResult result = makeResult("key", "t");
+    assertNull(result.get(0, 1));
+    assertEquals(new Long(10000000000L), result.get(1, 1));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    result.write(new DataOutputStream(bytes));
+    CachedResult copy = CachedResult.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals("key", copy.getKey());
+    assertEquals(result.getCreated(), copy.getCreated());
+    assertTrue(copy.usesTable("T"));
+    assertSameValues(result, copy);
+
+    // Junk is not a result
+    assertNull(CachedResult.read(new DataInputStream(new ByteArrayInputStream(new byte[16]))));
+}
+
+public void testExpiryAndEviction() throws Exception {
+    CachedResult a = makeResult("a", "t1");
+    CachedResult b = makeResult("b", "t2");
+    cache.put(a);
+    cache.put(b);
+    assertSame(a, cache.get("a", 60000));
+    assertNull(cache.get("a", -1000)); // Expired, so removed
+    assertNull(cache.get("a", 60000));
+    assertEquals(1, cache.getDiskCount());
+
+    // Only one result fits in memory; the other is read from disk
+    cache.put(a);
+    cache.setMemoryBudget(a.getEstimatedBytes());
+    assertEquals(1, cache.getMemoryCount());
+    assertSame(a, cache.get("a", 60000));
+    CachedResult fromDisk = cache.get("b", 60000);
+    assertNotSame(b, fromDisk);
+    assertSameValues(b, fromDisk);
+    assertEquals(1, cache.getMemoryCount());
+    assertTrue(cache.getMemoryUsed() <= cache.getMemoryBudget());
+
+    // The disk budget removes the oldest results
+    cache.setDiskBudget(0);
+    assertEquals(0, cache.getDiskCount());
+}
+
+/** Remembers whether any instance has been deserialized. */
+static class Planted implements Serializable {
+    static boolean deserialized;
+    private void readObject(ObjectInputStream in)
+	throws IOException, ClassNotFoundException
+    {
+	deserialized = true;
+	in.defaultReadObject();
+    }
+}
+
+public void testSerializedValues() throws Exception {
+    // Results holding values that would have to be serialized aren't cached
+    assertTrue(!CachedResult.canCache(Arrays.asList(new Object[] {
+	"a", new Integer(1), new Planted()
+    })));
+    CachedResult result =
+	new CachedResult("key", new String[] { "t" }, 1,
+			 Collections.singletonList(Collections.singletonList(new Planted())));
+    try {
+	result.write(new DataOutputStream(new ByteArrayOutputStream()));
+	fail("serialized value written");
+    }
+    catch (IOException ioe) {}
+
+    // A file planted in the cache directory is never deserialized
+    CACHE_DIR.mkdirs();
+    File planted = new File(CACHE_DIR, "planted.dvrc");
+    DataOutputStream out =
+	new DataOutputStream(new FileOutputStream(planted));
+    out.writeInt(0x44565243);	// CachedResult's magic number and version
+    out.writeInt(1);
+    jimm.datavision.source.ValueCodec.writeValue(out, new Planted());
+    out.close();
+    Planted.deserialized = false;
+    cache = new ResultCache(ResultCache.DEFAULT_MEMORY_BUDGET, CACHE_DIR);
+    assertEquals(0, cache.getDiskCount());
+    assertTrue(!Planted.deserialized);
+    assertTrue(!planted.exists());
+}
+
+public void testSettings() throws Exception {
+    Report report = new Report();
+    report.setDatabaseConnection(conn);
+    Database db = (Database)report.getDataSource();
+    assertEquals(0, db.getResultCacheTTL());
+    assertSame(ResultCache.getDefault(), db.getResultCache());
+
+    // Cache files are kept where only the user can write them
+    File home = new File(System.getProperty("user.home"));
+    assertEquals(home, ResultCache.getUserCacheDirectory().getParentFile());
+    assertEquals(ResultCache.getUserCacheDirectory(),
+		 ResultCache.getDefault().getDiskDirectory().getParentFile());
+    assertEquals(ResultCache.getUserCacheDirectory(),
+		 MetadataCache.getDefaultDirectory().getParentFile());
+    db.setResultCacheTTL(-5);
+    assertEquals(0, db.getResultCacheTTL());
+    db.setResultCacheTTL(300);
+    assertEquals(300, db.getResultCacheTTL());
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,145 @@
+package jimm.datavision.test;
+import jimm.datavision.Report;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.RowPredicate;
+import jimm.datavision.source.WhereClauseFilter;
+import jimm.datavision.source.charsep.CharSepSource;
+import java.io.*;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests compiled where clauses. Uses the report in <code>charsep.xml</code>,
+ * whose columns are office.name (string), jobs.ID (number), jobs.title
+ * (string), jobs.hourly rate (number), and jobs.post_date (date).
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ * @see CharSepTest
+ */
+public class RowPredicateTest extends TestCase {
+
+protected static final File EXAMPLE_REPORT =
+    new File(AllTests.testDataFile("charsep.xml"));
+protected static final String DATA_FILE =
+    AllTests.testDataFile("charsep_data.csv");
+
+/** Where clauses that should compile. */
+protected static final String[] COMPILED = {
+    "{office.name} != 'Chicago'",
+    "{jobs.ID} > 10 && {jobs.hourly rate} <= 1500",
+    "{jobs.ID}.between?(3, 20) or {office.name} == \"New York\"",
+    "not ['Chicago', 'New Jersey'].include?({office.name})",
+    "{jobs.title} =~ /^This is the short description of job 1/",
+    "!{jobs.post_date}.nil? && {jobs.ID} >= 2.5",
+    "({jobs.ID} < 5 || {jobs.ID} > 40) and not {office.name} < 'New'",
+};
+
+/** Where clauses that should not compile. */
+protected static final String[] NOT_COMPILED = {
+    "{jobs.title}.length > 40",
+    "{office.name}.include?('New')",
+    "{jobs.ID} + 1 > 10",
+    "{no.such.column} == 1",
+    "{office.name} == '{jobs.title}'",
+    "{@some formula} == 1",
+    "x = 3; {jobs.ID} > x",
+    "{jobs.ID} === 3",
+    "{jobs.title} =~ /^This.*job/",
+};
+
+protected Report report;
+protected CharSepSource dataSource;
+
+public static Test suite() {
+    return new TestSuite(RowPredicateTest.class);
+}
+
+public RowPredicateTest(String name) {
+    super(name);
+}
+
+public void setUp() throws Exception {
+    report = new Report();
+    report.read(EXAMPLE_REPORT);
+    dataSource = (CharSepSource)report.getDataSource();
+}
+
+protected RowPredicate compile(String whereClause) {
+    return RowPredicate.compile(dataSource, whereClause, "Ruby");
+}
+
+protected Boolean test(String whereClause, Object[] row) {
+    return compile(whereClause).test(Arrays.asList(row));
+}
+
+public void testCompile() {
+    for (int i = 0; i < COMPILED.length; ++i)
+	assertNotNull(COMPILED[i], compile(COMPILED[i]));
+    for (int i = 0; i < NOT_COMPILED.length; ++i)
+	assertNull(NOT_COMPILED[i], compile(NOT_COMPILED[i]));
+
+    assertNull(RowPredicate.compile(dataSource, COMPILED[0], "JavaScript"));
+    assertTrue(new WhereClauseFilter(dataSource, null, COMPILED[0])
+	       .isCompiled());
+}
+
+public void testValues() {
+    Object[] row = {
+	"New York", new Integer(12), "Manager", new Double(1200.5), null
+    };
+    assertEquals(Boolean.TRUE, test("{office.name} != 'Chicago'", row));
+    assertEquals(Boolean.TRUE, test("{jobs.ID} == 12.0", row));
+    assertEquals(Boolean.FALSE, test("{jobs.ID} == '12'", row));
+    assertEquals(Boolean.TRUE, test("{jobs.hourly rate} > 1200", row));
+    assertEquals(Boolean.TRUE, test("{jobs.post_date}.nil?", row));
+    assertEquals(Boolean.TRUE, test("{jobs.post_date} == nil", row));
+    assertEquals(Boolean.TRUE, test("[1, 12, 20].include?({jobs.ID})", row));
+    assertEquals(Boolean.TRUE, test("{jobs.title} =~ /^Man/", row));
+    assertEquals(Boolean.FALSE, test("{jobs.title} !~ /^Man/", row));
+    assertEquals(Boolean.FALSE, test("{jobs.title} =~ /^man/", row));
+    assertEquals(Boolean.TRUE, test("{jobs.title}.between?('M', 'N')", row));
+    assertEquals(Boolean.TRUE, test("not {jobs.ID} > 20 and true", row));
+    assertEquals(Boolean.FALSE, test("{jobs.ID} > 20 || nil", row));
+
+    // Ruby would raise an error, so the script must decide
+    assertNull(test("{jobs.post_date} > '2002'", row));
+    assertNull(test("{office.name} > 3", row));
+    row[0] = "#{`rm -rf /`}";
+    assertNull(test("{office.name} == 'x'", row));
+}
+
+/**
+ * Runs the report with each compiled where clause and with an equivalent
+ * where clause that can't be compiled, and makes sure the output is the
+ * same.
+ */
+public void testSameAsScript() throws Exception {
+    for (int i = 0; i < COMPILED.length; ++i) {
+	String compiled = runReport(COMPILED[i]);
+	String script = runReport("(" + COMPILED[i] + ") && 'x'.length == 1");
+	assertEquals(COMPILED[i], script, compiled);
+	assertTrue(COMPILED[i], compiled.length() > 0);
+    }
+}
+
+protected String runReport(String whereClause) throws Exception {
+    StringWriter out = new StringWriter();
+    Report r = new Report();
+    r.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    r.read(EXAMPLE_REPORT);
+    CharSepSource source = (CharSepSource)r.getDataSource();
+    source.setSepChar(',');
+    source.setInput(DATA_FILE);
+    source.getQuery().setWhereClause(whereClause);
+    r.runReport();
+    return out.toString();
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,220 @@
+package jimm.datavision.test;
+import jimm.datavision.*;
+import jimm.datavision.field.ColumnField;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.sql.ConnectionPool;
+import jimm.datavision.source.sql.StatementCache;
+import java.io.*;
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.HashSet;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests {@link StatementCache} and its use when running reports. Uses a
+ * SQLite database file, so these tests do not need a database server.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class StatementCacheTest extends TestCase {
+
+protected static final String DRIVER = "org.sqlite.JDBC";
+protected static final String SQL = "select id from items where id > ?";
+
+protected File dbFile;
+protected String url;
+protected Connection conn;
+protected HashSet closed;	// Statements closed by tracking connections
+
+public static Test suite() {
+    return new TestSuite(StatementCacheTest.class);
+}
+
+public StatementCacheTest(String name) {
+    super(name);
+}
+
+public void setUp() throws Exception {
+    Class.forName(DRIVER);
+    dbFile = File.createTempFile("datavision_stmt_cache_test", ".db");
+    url = "jdbc:sqlite:" + dbFile.getPath();
+
+    closed = new HashSet();
+    conn = tracking(DriverManager.getConnection(url));
+    Statement stmt = conn.createStatement();
+    stmt.executeUpdate("create table items (id integer, name varchar(20))");
+    stmt.executeUpdate("insert into items values (1, 'one')");
+    stmt.executeUpdate("insert into items values (2, 'two')");
+    stmt.executeUpdate("insert into items values (3, 'three')");
+    stmt.close();
+    StatementCache.setEnabled(true);
+}
+
+public void tearDown() throws SQLException {
+    StatementCache.setEnabled(false);
+    StatementCache.setDefaultMaxSize(StatementCache.DEFAULT_MAX_SIZE);
+    ConnectionPool.setEnabled(false);
+    ConnectionPool.closeAll();
+    if (conn != null)
+	conn.close();
+    dbFile.delete();
+}
+
+/**
+ * Wraps a connection so the statements it prepares remember being closed.
+ * The SQLite driver lets closed statements be used again, so this is the
+ * only way to tell.
+ */
+protected Connection tracking(final Connection c) {
+    return (Connection)Proxy.newProxyInstance(
+	getClass().getClassLoader(), new Class[] { Connection.class },
+	new InvocationHandler() {
+	public Object invoke(Object proxy, Method m, Object[] args)
+	    throws Throwable
+	{
+	    Object result = call(c, m, args);
+	    if (!"prepareStatement".equals(m.getName()))
+		return result;
+	    final Object stmt = result;
+	    return Proxy.newProxyInstance(
+		getClass().getClassLoader(),
+		new Class[] { PreparedStatement.class },
+		new InvocationHandler() {
+		public Object invoke(Object p, Method sm, Object[] sargs)
+		    throws Throwable
+		{
+		    if ("close".equals(sm.getName()))
+			closed.add(p);
+		    return call(stmt, sm, sargs);
+		}
+		});
+	}
+	});
+}
+
+protected static Object call(Object target, Method m, Object[] args)
+    throws Throwable
+{
+    try {
+	return m.invoke(target, args);
+    }
+    catch (InvocationTargetException ite) {
+	throw ite.getTargetException();
+    }
+}
+
+protected boolean isClosed(PreparedStatement stmt) {
+    return closed.contains(stmt);
+}
+
+public void testReuse() throws Exception {
+    PreparedStatement stmt = StatementCache.prepare(conn, SQL, false);
+    StatementCache.release(stmt);
+    assertTrue(!isClosed(stmt));
+    assertSame(stmt, StatementCache.prepare(conn, SQL, false));
+    StatementCache.release(stmt);
+
+    StatementCache cache = StatementCache.forConnection(conn);
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.size());
+
+    // Streaming statements are prepared differently, so aren't shared
+    PreparedStatement streaming = StatementCache.prepare(conn, SQL, true);
+    assertNotSame(stmt, streaming);
+    StatementCache.release(streaming);
+    assertEquals(2, cache.size());
+}
+
+public void testInUse() throws Exception {
+    PreparedStatement stmt = StatementCache.prepare(conn, SQL, false);
+    PreparedStatement other = StatementCache.prepare(conn, SQL, false);
+    assertNotSame(stmt, other);
+    StatementCache.release(other);
+    assertTrue(isClosed(other));	// Not cached, so closed
+    StatementCache.release(stmt);
+    assertTrue(!isClosed(stmt));
+    assertEquals(1, StatementCache.forConnection(conn).size());
+}
+
+public void testEviction() throws Exception {
+    StatementCache.setDefaultMaxSize(2);
+    PreparedStatement first = StatementCache.prepare(conn, SQL, false);
+    StatementCache.release(first);
+    for (int i = 1; i <= 2; ++i)
+	StatementCache.release(StatementCache.prepare(conn, SQL + " + " + i,
+						      false));
+
+    StatementCache cache = StatementCache.forConnection(conn);
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+    assertTrue(isClosed(first));
+}
+
+public void testDisabled() throws Exception {
+    StatementCache.setEnabled(false);
+    assertNull(StatementCache.forConnection(conn));
+    PreparedStatement stmt = StatementCache.prepare(conn, SQL, false);
+    StatementCache.release(stmt);
+    assertTrue(isClosed(stmt));
+}
+
+public void testCloseStatements() throws Exception {
+    PreparedStatement stmt = StatementCache.prepare(conn, SQL, false);
+    StatementCache.release(stmt);
+    StatementCache.closeStatements(conn);
+    assertTrue(isClosed(stmt));
+    assertEquals(0, StatementCache.getCaches().size());
+}
+
+public void testPoolClosesStatements() throws Exception {
+    ConnectionPool pool = ConnectionPool.getPool(DRIVER, url, "", "");
+    Connection pooled = pool.borrow();
+    PreparedStatement stmt = StatementCache.prepare(pooled, SQL, false);
+    StatementCache.release(stmt);
+    pool.giveBack(pooled);
+
+    // Idle statements survive while the connection waits in the pool
+    assertSame(pooled, pool.borrow());
+    assertSame(stmt, StatementCache.prepare(pooled, SQL, false));
+    StatementCache.release(stmt);
+    pool.giveBack(pooled);
+
+    assertEquals(1, StatementCache.forConnection(pooled).getHitCount());
+
+    pool.close();		// Closes the cached statements first
+    assertEquals(0, StatementCache.getCaches().size());
+}
+
+protected String runReport(Report report) throws Exception {
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    return out.toString();
+}
+
+public void testRepeatedRuns() throws Exception {
+    Report report = new Report();
+    report.setDatabaseConnection(conn);
+    Section detail = report.getFirstSectionByArea(SectionArea.DETAIL);
+    ColumnField f = new ColumnField(null, report, detail, "ITEMS.id", true);
+    assertNotNull(f.getColumn());
+    detail.addField(f);
+
+    String expected = runReport(report);
+    assertEquals(expected, runReport(report));
+    assertEquals(expected, runReport(report));
+
+    StatementCache cache = StatementCache.forConnection(conn);
+    assertEquals(1, cache.getMissCount());
+    assertEquals(2, cache.getHitCount());
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,138 @@
+package jimm.datavision.test;
+import jimm.datavision.*;
+import jimm.datavision.field.ColumnField;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.Query;
+import jimm.datavision.source.sql.Database;
+import java.io.*;
+import java.sql.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Runs reports against the bundled Derby and SQLite drivers with and
+ * without streaming turned on and makes sure the output is the same. These
+ * tests do not need a database server.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class StreamingTest extends TestCase {
+
+protected static final int NUM_ROWS = 250;
+protected static final File TMP_DIR =
+    new File(System.getProperty("java.io.tmpdir"));
+
+protected Connection conn;
+
+public static Test suite() {
+    return new TestSuite(StreamingTest.class);
+}
+
+public StreamingTest(String name) {
+    super(name);
+}
+
+public void tearDown() throws SQLException {
+    if (conn != null)
+	conn.close();
+}
+
+/**
+ * Creates and fills a table named "items" with ids from 1 to NUM_ROWS.
+ */
+protected void createTable(boolean canDropMissingTable) throws SQLException {
+    Statement stmt = conn.createStatement();
+    try {
+	stmt.executeUpdate(canDropMissingTable ? "drop table if exists items"
+			   : "drop table items");
+    }
+    catch (SQLException sqle) {} // Table does not yet exist
+    stmt.executeUpdate("create table items (id integer, name varchar(20))");
+    stmt.close();
+
+    PreparedStatement ps =
+	conn.prepareStatement("insert into items values (?, ?)");
+    for (int i = 1; i <= NUM_ROWS; ++i) {
+	ps.setInt(1, i);
+	ps.setString(2, "item " + i);
+	ps.executeUpdate();
+    }
+    ps.close();
+}
+
+/**
+ * Runs a report that outputs the id column of every row in order and
+ * returns the output.
+ */
+protected String runReport(String idColumnName, boolean streaming,
+			   int fetchSize)
+    throws Exception
+{
+    Report report = new Report();
+    report.setDatabaseConnection(conn);
+    ((Database)report.getDataSource()).setStreaming(streaming, fetchSize);
+
+    Section detail = report.getFirstSectionByArea(SectionArea.DETAIL);
+    ColumnField f = new ColumnField(null, report, detail, idColumnName, true);
+    assertNotNull(f.getColumn());
+    detail.addField(f);
+    report.getDataSource().getQuery().addSort(f.getColumn(),
+					      Query.SORT_ASCENDING);
+
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    return out.toString();
+}
+
+protected void checkStreaming(String idColumnName) throws Exception {
+    String expected = runReport(idColumnName, false, 0);
+    assertTrue(expected.indexOf("" + NUM_ROWS) >= 0);
+
+    assertEquals(expected, runReport(idColumnName, true, 10));
+    assertEquals(expected, runReport(idColumnName, true, 0));
+    assertTrue(conn.getAutoCommit());
+}
+
+public void testDerby() throws Exception {
+    System.setProperty("derby.stream.error.file",
+		       new File(TMP_DIR, "datavision_derby.log").getPath());
+    Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+    File dbDir = new File(TMP_DIR, "datavision_streaming_test_derby");
+    conn = DriverManager.getConnection("jdbc:derby:" + dbDir.getPath()
+				       + ";create=true");
+    createTable(false);
+    checkStreaming("APP.ITEMS.ID");
+}
+
+public void testSQLite() throws Exception {
+    Class.forName("org.sqlite.JDBC");
+    File dbFile = new File(TMP_DIR, "datavision_streaming_test.db");
+    dbFile.deleteOnExit();
+    conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+    createTable(true);
+    checkStreaming("ITEMS.id");	// This driver upper-cases table names
+}
+
+public void testSettings() throws Exception {
+    Class.forName("org.sqlite.JDBC");
+    conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+    Report report = new Report();
+    report.setDatabaseConnection(conn);
+    Database db = (Database)report.getDataSource();
+
+    assertTrue(!db.isStreaming());
+    db.setStreaming(true, 0);
+    assertTrue(db.isStreaming());
+    assertEquals(Database.DEFAULT_STREAMING_FETCH_SIZE, db.getFetchSize());
+    db.setStreaming(true, 42);
+    assertEquals(42, db.getFetchSize());
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
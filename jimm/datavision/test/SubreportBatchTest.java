@@ -0,0 +1,272 @@
+package jimm.datavision.test;
+import jimm.datavision.*;
+import jimm.datavision.field.ColumnField;
+import jimm.datavision.field.SubreportField;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.Join;
+import jimm.datavision.source.Query;
+import jimm.datavision.source.sql.SubreportDatabase;
+import java.io.*;
+import java.sql.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests running subreports in batches (see {@link Subreport#setBatchSize})
+ * and caching their values (see {@link Subreport#setCacheSize}). Uses an
+ * in-memory SQLite database, so these tests do not need a database server.
+ * The output of each batched or cached run must match the output of running
+ * the subreport query once per parent row.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class SubreportBatchTest extends TestCase {
+
+protected static final int NUM_ORDERS = 25;
+
+/** Counts the queries run by a subreport. */
+static class CountingDatabase extends SubreportDatabase {
+    int executions;
+    CountingDatabase(Connection conn, Subreport sub) throws SQLException {
+	super(conn, sub);
+    }
+    public DataCursor execute() throws SQLException {
+	++executions;
+	return super.execute();
+    }
+}
+
+protected Connection conn;
+protected int executions;
+protected Subreport sub;
+
+public static Test suite() {
+    return new TestSuite(SubreportBatchTest.class);
+}
+
+public SubreportBatchTest(String name) {
+    super(name);
+}
+
+public void setUp() throws Exception {
+    Class.forName("org.sqlite.JDBC");
+    conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+    Statement stmt = conn.createStatement();
+    stmt.executeUpdate("create table orders (id integer, region varchar(10))");
+    stmt.executeUpdate("create table items (order_id integer, region varchar(10), name varchar(20))");
+    for (int i = 1; i <= NUM_ORDERS; ++i) {
+	String region = (i % 2 == 0) ? "'east'" : "'west'";
+	stmt.executeUpdate("insert into orders values (" + i + ", " + region
+			   + ")");
+	// Order i has i % 4 items; some are in the wrong region
+	for (int j = 0; j < i % 4; ++j)
+	    stmt.executeUpdate("insert into items values (" + i + ", "
+			       + (j == 2 ? "'north'" : region)
+			       + ", 'item " + i + "-" + j + "')");
+    }
+    stmt.executeUpdate("insert into orders values (null, 'west')");
+    stmt.close();
+}
+
+public void tearDown() throws SQLException {
+    if (conn != null)
+	conn.close();
+}
+
+/**
+ * Builds and runs a report listing orders, with a subreport listing each
+ * order's items, and returns its output.
+ */
+protected String run(int batchSize, boolean joinRegions) throws Exception {
+    return run(batchSize, 0, true, joinRegions);
+}
+
+/**
+ * Builds and runs a report listing orders, with a subreport listing the
+ * items that match each order's id, region, or both, and returns its output.
+ */
+protected String run(int batchSize, int cacheSize, boolean joinIds,
+		     boolean joinRegions)
+    throws Exception
+{
+    Report report = new Report();
+    report.setDatabaseConnection(conn);
+    Section detail = report.getFirstSectionByArea(SectionArea.DETAIL);
+    detail.addField(new ColumnField(null, report, detail, "ORDERS.id", true));
+
+    sub = new Subreport(report, null);
+    CountingDatabase db = new CountingDatabase(conn, sub);
+    sub.setDataSource(db);
+    Section subDetail = sub.getFirstSectionByArea(SectionArea.DETAIL);
+    subDetail.addField(new ColumnField(null, sub, subDetail, "ITEMS.name",
+				       true));
+    sub.getDataSource().getQuery().addSort(sub.findColumn("ITEMS.name"),
+					   Query.SORT_DESCENDING);
+    if (joinIds)
+	sub.addJoin(new Join(report.findColumn("ORDERS.id"), "=",
+			     sub.findColumn("ITEMS.order_id")));
+    if (joinRegions)
+	sub.addJoin(new Join(report.findColumn("ORDERS.region"), "=",
+			     sub.findColumn("ITEMS.region")));
+    sub.setBatchSize(batchSize);
+    sub.setCacheSize(cacheSize);
+    detail.addField(new SubreportField(null, report, detail, sub.getId(),
+				       true));
+
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    executions = db.executions;
+    return out.toString();
+}
+
+public void testSingleJoin() throws Exception {
+    String expected = run(0, false);
+    assertEquals(NUM_ORDERS + 1, executions);
+    assertTrue(expected.indexOf("item 7-2") >= 0);
+    assertEquals(expected, run(2, false));
+    assertEquals((NUM_ORDERS + 1) / 2, executions);
+    assertEquals(expected, run(7, false));
+    assertEquals(expected, run(100, false));
+    assertEquals(1, executions);
+}
+
+public void testMultipleJoins() throws Exception {
+    String expected = run(0, true);
+    assertTrue(expected.indexOf("item 7-1") >= 0);
+    assertTrue(expected.indexOf("item 7-2") < 0); // Wrong region
+    assertEquals(expected, run(3, true));
+    assertEquals(expected, run(100, true));
+}
+
+public void testCache() throws Exception {
+    String expected = run(0, 0, false, true);
+    assertEquals(NUM_ORDERS + 1, executions);
+    assertEquals(expected, run(0, 10, false, true));
+    assertEquals(2, executions); // One per region
+    assertEquals(2, sub.getCacheMisses());
+    assertEquals(NUM_ORDERS - 1, sub.getCacheHits());
+
+    // A cache holding one value misses every time the region changes
+    assertEquals(expected, run(0, 1, false, true));
+    assertEquals(NUM_ORDERS, executions);
+    assertEquals(expected, run(100, 1, false, true));
+    assertEquals(1, executions);
+
+    // Unique keys never hit
+    expected = run(0, 0, true, false);
+    assertEquals(expected, run(0, 10, true, false));
+    assertEquals(NUM_ORDERS + 1, executions);
+    assertEquals(0, sub.getCacheHits());
+}
+
+public void testCacheClearedPerRun() throws Exception {
+    Report report = new Report();
+    report.setDatabaseConnection(conn);
+    Section detail = report.getFirstSectionByArea(SectionArea.DETAIL);
+    detail.addField(new ColumnField(null, report, detail, "ORDERS.id", true));
+    Subreport sub = new Subreport(report, null);
+    CountingDatabase db = new CountingDatabase(conn, sub);
+    sub.setDataSource(db);
+    Section subDetail = sub.getFirstSectionByArea(SectionArea.DETAIL);
+    subDetail.addField(new ColumnField(null, sub, subDetail, "ITEMS.name",
+				       true));
+    sub.addJoin(new Join(report.findColumn("ORDERS.region"), "=",
+			 sub.findColumn("ITEMS.region")));
+    sub.setCacheSize(10);
+    detail.addField(new SubreportField(null, report, detail, sub.getId(),
+				       true));
+
+    Statement stmt = conn.createStatement();
+    for (int i = 0; i < 2; ++i) {
+	StringWriter out = new StringWriter();
+	report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+	report.runReport();
+	assertEquals(i == 0, out.toString().indexOf("added") < 0);
+	assertEquals(2 * (i + 1), db.executions);
+	stmt.executeUpdate("insert into items values (99, 'east', 'added')");
+    }
+    stmt.close();
+}
+
+public void testCacheWhereFormula() throws Exception {
+    String expected = runWhereFormula(0, 0);
+    assertEquals(NUM_ORDERS + 1, executions);
+    assertTrue(expected.indexOf("item 3-1") >= 0);
+    assertTrue(expected.indexOf("item 7-1") >= 0);
+
+    // The where clause's formula value is part of the key. It changes
+    // every four rows, and the region every row.
+    assertEquals(expected, runWhereFormula(0, 10));
+    assertEquals(14, executions);
+    assertEquals(expected, runWhereFormula(3, 0));
+    assertEquals(expected, runWhereFormula(3, 10));
+}
+
+/**
+ * Builds and runs a report listing orders, with a subreport listing the
+ * items in each order's region whose order ids are no larger than the
+ * value of a formula in its where clause. The formula's value is the
+ * parent's row number rounded down to a multiple of four.
+ */
+protected String runWhereFormula(int batchSize, int cacheSize)
+    throws Exception
+{
+    final Report parent = new Report();
+    parent.setDatabaseConnection(conn);
+    Section detail = parent.getFirstSectionByArea(SectionArea.DETAIL);
+    detail.addField(new ColumnField(null, parent, detail, "ORDERS.id", true));
+
+    sub = new Subreport(parent, null);
+    CountingDatabase db = new CountingDatabase(conn, sub);
+    sub.setDataSource(db);
+    Section subDetail = sub.getFirstSectionByArea(SectionArea.DETAIL);
+    subDetail.addField(new ColumnField(null, sub, subDetail, "ITEMS.name",
+				       true));
+    Formula maxId = new Formula(null, sub, "max id") {
+	public Object eval(jimm.datavision.field.Field f) {
+	    DataCursor rows = parent.getCurrentRow();
+	    int row = rows == null ? 0 : rows.getRow();
+	    return new Integer(row - row % 4);
+	}
+    };
+    sub.addFormula(maxId);
+    sub.getDataSource().getQuery()
+	.setWhereClause("{ITEMS.order_id} <= {@" + maxId.getId() + "}");
+    sub.getDataSource().getQuery().addSort(sub.findColumn("ITEMS.name"),
+					   Query.SORT_DESCENDING);
+    sub.addJoin(new Join(parent.findColumn("ORDERS.region"), "=",
+			 sub.findColumn("ITEMS.region")));
+    sub.setBatchSize(batchSize);
+    sub.setCacheSize(cacheSize);
+    detail.addField(new SubreportField(null, parent, detail, sub.getId(),
+				       true));
+
+    StringWriter out = new StringWriter();
+    parent.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    parent.runReport();
+    executions = db.executions;
+    return out.toString();
+}
+
+public void testXML() throws Exception {
+    Report report = new Report();
+    report.setDatabaseConnection(conn);
+    Subreport sub = new Subreport(report, null);
+    sub.setDataSource(new SubreportDatabase(conn, sub));
+    sub.setBatchSize(50);
+    sub.setCacheSize(20);
+    StringWriter out = new StringWriter();
+    sub.writeXML(new jimm.util.XMLWriter(out));
+    assertTrue(out.toString().indexOf("batch-size=\"50\"") >= 0);
+    assertTrue(out.toString().indexOf("cache-size=\"20\"") >= 0);
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}
@@ -0,0 +1,175 @@
+package jimm.datavision.test;
+import jimm.datavision.*;
+import jimm.datavision.field.ColumnField;
+import jimm.datavision.field.SubreportField;
+import jimm.datavision.layout.CharSepLE;
+import jimm.datavision.source.DataCursor;
+import jimm.datavision.source.Join;
+import jimm.datavision.source.Query;
+import jimm.datavision.source.sql.ConnectionPool;
+import jimm.datavision.source.sql.Database;
+import jimm.datavision.source.sql.SubreportDatabase;
+import jimm.datavision.source.sql.SubreportPrefetcher;
+import java.io.*;
+import java.sql.*;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import junit.framework.Test;
+
+/**
+ * Tests running subreport queries ahead of time (see {@link
+ * Subreport#setPrefetch}). Uses a SQLite database file, so these tests do
+ * not need a database server. The output of each prefetched run must match
+ * the output of running the subreport query once per parent row.
+ *
+ * @author Jim Menard, <a href="mailto:jimm@io.com">jimm@io.com</a>
+ */
+public class SubreportPrefetchTest extends TestCase {
+
+protected static final String DRIVER = "org.sqlite.JDBC";
+protected static final int NUM_ORDERS = 25;
+
+/** Counts the queries run by a subreport on the report thread. */
+static class CountingDatabase extends SubreportDatabase {
+    int executions;
+    CountingDatabase(Connection conn, Subreport sub) throws SQLException {
+	super(conn, sub);
+    }
+    public DataCursor execute() throws SQLException {
+	++executions;
+	return super.execute();
+    }
+}
+
+protected File dbFile;
+protected String url;
+protected Subreport sub;
+protected ConnectionPool pool;
+protected int executions;
+
+public static Test suite() {
+    return new TestSuite(SubreportPrefetchTest.class);
+}
+
+public SubreportPrefetchTest(String name) {
+    super(name);
+}
+
+public void setUp() throws Exception {
+    Class.forName(DRIVER);
+    dbFile = File.createTempFile("datavision_prefetch_test", ".db");
+    url = "jdbc:sqlite:" + dbFile.getPath();
+
+    Connection conn = DriverManager.getConnection(url);
+    Statement stmt = conn.createStatement();
+    stmt.executeUpdate("create table orders (id integer)");
+    stmt.executeUpdate("create table items (order_id integer, name varchar(20))");
+    for (int i = 1; i <= NUM_ORDERS; ++i) {
+	stmt.executeUpdate("insert into orders values (" + i + ")");
+	for (int j = 0; j < i % 4; ++j)
+	    stmt.executeUpdate("insert into items values (" + i
+			       + ", 'item " + i + "-" + j + "')");
+    }
+    stmt.executeUpdate("insert into orders values (null)");
+    stmt.close();
+    conn.close();
+    ConnectionPool.setEnabled(true);
+}
+
+public void tearDown() {
+    ConnectionPool.setEnabled(false);
+    ConnectionPool.closeAll();
+    dbFile.delete();
+}
+
+/**
+ * Builds and runs a report listing orders, with a subreport listing the
+ * items whose order ids are related to each order's id, and returns its
+ * output.
+ */
+protected String run(int prefetch, String relation) throws Exception {
+    Report report = new Report();
+    Database db = new Database(DRIVER, url, report, "", "", "");
+    report.setDataSource(db);
+    pool = db.getConnectionPool();
+    Section detail = report.getFirstSectionByArea(SectionArea.DETAIL);
+    detail.addField(new ColumnField(null, report, detail, "ORDERS.id", true));
+    report.getDataSource().getQuery().addSort(report.findColumn("ORDERS.id"),
+					      Query.SORT_ASCENDING);
+
+    sub = new Subreport(report, null);
+    CountingDatabase subDb = new CountingDatabase(db.getConnection(), sub);
+    sub.setDataSource(subDb);
+    Section subDetail = sub.getFirstSectionByArea(SectionArea.DETAIL);
+    subDetail.addField(new ColumnField(null, sub, subDetail, "ITEMS.name",
+				       true));
+    sub.getDataSource().getQuery().addSort(sub.findColumn("ITEMS.name"),
+					   Query.SORT_DESCENDING);
+    sub.addJoin(new Join(report.findColumn("ORDERS.id"), relation,
+			 sub.findColumn("ITEMS.order_id")));
+    sub.setPrefetch(prefetch);
+    detail.addField(new SubreportField(null, report, detail, sub.getId(),
+				       true));
+
+    StringWriter out = new StringWriter();
+    report.setLayoutEngine(new CharSepLE(new PrintWriter(out), '\t'));
+    report.runReport();
+    executions = subDb.executions;
+    return out.toString();
+}
+
+public void testPrefetch() throws Exception {
+    String expected = run(0, "=");
+    assertEquals(NUM_ORDERS + 1, executions);
+    assertTrue(expected.indexOf("item 7-2") >= 0);
+    assertNull(sub.getPrefetcher());
+
+    assertEquals(expected, run(3, "="));
+    SubreportPrefetcher prefetcher = sub.getPrefetcher();
+    assertTrue(prefetcher.isClosed());
+    assertEquals(1, executions); // Only the first row
+    assertEquals(NUM_ORDERS, prefetcher.getUsedCount());
+    assertEquals(NUM_ORDERS, prefetcher.getSubmitCount());
+}
+
+public void testNonEqualityJoin() throws Exception {
+    String expected = run(0, ">");
+    assertTrue(expected.indexOf("item 7-2") >= 0);
+    assertEquals(expected, run(10, ">"));
+    assertEquals(1, executions);
+}
+
+public void testConnectionsGivenBack() throws Exception {
+    run(5, "=");
+    for (int i = 0; i < 50 && pool.getActiveCount() > 0; ++i)
+	Thread.sleep(100);
+    assertEquals(0, pool.getActiveCount());
+    assertTrue(pool.getCreateCount() > 1);
+}
+
+public void testWithoutPool() throws Exception {
+    ConnectionPool.setEnabled(false);
+    String expected = run(0, "=");
+    assertEquals(expected, run(3, "="));
+    assertEquals(NUM_ORDERS + 1, executions);
+    assertNull(sub.getPrefetcher());
+}
+
+public void testXML() throws Exception {
+    Report report = new Report();
+    Database db = new Database(DRIVER, url, report, "", "", "");
+    report.setDataSource(db);
+    Subreport sub = new Subreport(report, null);
+    sub.setDataSource(new SubreportDatabase(db.getConnection(), sub));
+    sub.setPrefetch(6);
+    StringWriter out = new StringWriter();
+    sub.writeXML(new jimm.util.XMLWriter(out));
+    assertTrue(out.toString().indexOf("prefetch=\"6\"") >= 0);
+}
+
+public static void main(String[] args) {
+    junit.textui.TestRunner.run(suite());
+    System.exit(0);
+}
+
+}